@@ -0,0 +1,37 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * A benchmark thread acting as one user, who picks a random movie and clip on every request
+ */
+@State(Scope.Thread)
+public class Caller {
+
+    private static int nextUser;
+
+    private final Random random = new Random();
+    final String userToken;
+    private int position;
+
+    public Caller() {
+        synchronized (Caller.class) {
+            userToken = Fixture.tokenOf(nextUser++ % Fixture.TOKENS);
+        }
+    }
+
+    long nextMovieId() {
+        return random.nextInt(Fixture.MOVIES);
+    }
+
+    long nextClipId() {
+        return Fixture.clipIdOf(nextMovieId(), random.nextInt(Fixture.CLIPS_PER_MOVIE));
+    }
+
+    int nextPosition() {
+        return position++;
+    }
+}
@@ -0,0 +1,216 @@
+package benchmarks;
+
+import edu.umflix.authenticationhandler.AuthenticationHandler;
+import edu.umflix.clipstorage.ClipStorage;
+import edu.umflix.model.Activity;
+import edu.umflix.model.Ad;
+import edu.umflix.model.Clip;
+import edu.umflix.model.ClipData;
+import edu.umflix.model.Movie;
+import edu.umflix.model.Role;
+import edu.umflix.model.User;
+import edu.umflix.persistence.ActivityDao;
+import edu.umflix.persistence.AdDao;
+import edu.umflix.persistence.MovieDao;
+import edu.umflix.persistence.RoleDao;
+import services.MovieManagerImpl;
+import services.activity.ActivityCoalescer;
+import services.activity.ActivityPipeline;
+import services.activity.ResumeIndex;
+import services.ads.AdIndex;
+import services.ads.AdWeighting;
+import services.auth.PlaybackGrants;
+import services.auth.RoleResolver;
+import services.auth.TokenValidationCache;
+import services.cache.ClipDataCache;
+import services.cache.ClipPrefetcher;
+import services.cache.MovieCache;
+import services.stats.ViewingStats;
+import services.trace.Tracer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A {@link MovieManagerImpl} wired to stand-ins, either with production sized caches that every request hits after
+ * warm up, or with caching disabled so that every request reaches the stand-ins. Prefetching and tracing are off so
+ * that only the request path is measured. Every component is built for the fixture, so that no state is shared with
+ * the process-wide components or with another trial.
+ */
+final class Fixture {
+
+    static final int MOVIES = 100;
+    static final int CLIPS_PER_MOVIE = 20;
+    static final int TOKENS = 1000;
+    private static final int CLIP_BYTES = 64 * 1024;
+    private static final int AD_CLIP_BYTES = 4 * 1024;
+
+    final MovieManagerImpl movieManager = new MovieManagerImpl();
+    private final ActivityPipeline activityPipeline;
+    private final ActivityCoalescer activityCoalescer;
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService batchExecutor = Executors.newFixedThreadPool(16);
+
+    /**
+     * @param cacheHits     true to serve requests from warm caches, false to disable caching
+     * @param latencyMicros latency of every call to a stand-in
+     * @param adPoolSize    number of ads in the system
+     */
+    Fixture(boolean cacheHits, long latencyMicros, int adPoolSize) {
+        movieManager.setAuthenticationHandler(authenticationHandler(latencyMicros));
+        movieManager.setRoleDao(roleDao(latencyMicros));
+        movieManager.setMovieDao(movieDao(latencyMicros));
+        movieManager.setClipStorage(clipStorage(latencyMicros));
+        movieManager.setAdDao(adDao(latencyMicros, adPoolSize));
+        movieManager.setActivityDao(activityDao(latencyMicros));
+
+        movieManager.setTokenValidationCache(cacheHits ? new TokenValidationCache(100000, 30000, 5000) : new TokenValidationCache(1, 0, 0));
+        movieManager.setRoleResolver(cacheHits ? new RoleResolver(100000, 300000) : new RoleResolver(1, 0));
+        movieManager.setMovieCache(cacheHits ? new MovieCache(10000, 60000, 10000) : new MovieCache(1, 0, 0));
+        ClipDataCache clipDataCache = cacheHits ? new ClipDataCache(256L * 1024 * 1024, 32L * 1024 * 1024) : new ClipDataCache(1, 1);
+        movieManager.setClipDataCache(clipDataCache);
+        movieManager.setClipPrefetcher(new ClipPrefetcher(clipDataCache, prefetchExecutor, 0, 60000, 0, 1));
+        movieManager.setAdIndex(new AdIndex(60000, AdWeighting.UNIFORM));
+        movieManager.setTracer(new Tracer(0, 1));
+        movieManager.setResumeIndex(new ResumeIndex(100000, 64));
+        movieManager.setViewingStats(new ViewingStats(60000, 60, 120000, 14, 8, 2000));
+        movieManager.setPlaybackGrants(PlaybackGrants.fromSetting(null, 600000));
+        movieManager.setBatchExecutor(batchExecutor);
+        activityPipeline = new ActivityPipeline(50000, 200, 50, 20, 2);
+        activityCoalescer = new ActivityCoalescer(activityPipeline, 10000);
+        movieManager.setActivitySink(activityCoalescer);
+    }
+
+    void shutdown() {
+        activityCoalescer.shutdown();
+        activityPipeline.shutdown(10000);
+        prefetchExecutor.shutdownNow();
+        batchExecutor.shutdownNow();
+    }
+
+    static String tokenOf(int user) {
+        return "token-" + user;
+    }
+
+    static String emailOf(String userToken) {
+        return userToken + "@umflix.edu";
+    }
+
+    static long clipIdOf(long movieId, int index) {
+        return movieId * CLIPS_PER_MOVIE + index;
+    }
+
+    private static AuthenticationHandler authenticationHandler(long latencyMicros) {
+        return StandIns.of(AuthenticationHandler.class, latencyMicros, new StandIns.Responder() {
+            public Object respond(String method, Object[] args) {
+                if (method.equals("validateToken"))
+                    return true;
+                if (method.equals("isUserInRole"))
+                    return false;
+                if (method.equals("getUserOfToken")) {
+                    User user = new User();
+                    user.setEmail(emailOf((String) args[0]));
+                    return user;
+                }
+                throw StandIns.unsupported(method);
+            }
+        });
+    }
+
+    private static RoleDao roleDao(long latencyMicros) {
+        return StandIns.of(RoleDao.class, latencyMicros, new StandIns.Responder() {
+            public Object respond(String method, Object[] args) {
+                if (method.equals("getRoleById"))
+                    return new Role();
+                throw StandIns.unsupported(method);
+            }
+        });
+    }
+
+    private static MovieDao movieDao(long latencyMicros) {
+        final List<Movie> movies = new ArrayList<Movie>(MOVIES);
+        for (long movieId = 0; movieId < MOVIES; movieId++) {
+            List<Clip> clips = new ArrayList<Clip>(CLIPS_PER_MOVIE);
+            for (int i = 0; i < CLIPS_PER_MOVIE; i++)
+                clips.add(clipOf(clipIdOf(movieId, i)));
+            Movie movie = new Movie();
+            movie.setId(movieId);
+            movie.setEnabled(true);
+            movie.setClips(clips);
+            movies.add(movie);
+        }
+        return StandIns.of(MovieDao.class, latencyMicros, new StandIns.Responder() {
+            public Object respond(String method, Object[] args) {
+                if (method.equals("getMovieById"))
+                    return movies.get(((Long) args[0]).intValue());
+                throw StandIns.unsupported(method);
+            }
+        });
+    }
+
+    private static ClipStorage clipStorage(long latencyMicros) {
+        final byte[] bytes = new byte[CLIP_BYTES];
+        final byte[] adBytes = new byte[AD_CLIP_BYTES];
+        return StandIns.of(ClipStorage.class, latencyMicros, new StandIns.Responder() {
+            public Object respond(String method, Object[] args) {
+                if (!method.equals("getClipDataByClipId"))
+                    throw StandIns.unsupported(method);
+                Long clipId = (Long) args[0];
+                ClipData clipData = new ClipData();
+                clipData.setId(clipId);
+                clipData.setClip(clipOf(clipId));
+                clipData.setBytes(clipId < 0 ? adBytes : bytes);
+                return clipData;
+            }
+        });
+    }
+
+    private static AdDao adDao(long latencyMicros, int adPoolSize) {
+        final List<Ad> ads = new ArrayList<Ad>(adPoolSize);
+        for (long adId = 0; adId < adPoolSize; adId++) {
+            Ad ad = new Ad();
+            ad.setId(adId);
+            ad.setClip(clipOf(-1 - adId)); //ad clips have negative ids
+            ads.add(ad);
+        }
+        return StandIns.of(AdDao.class, latencyMicros, new StandIns.Responder() {
+            public Object respond(String method, Object[] args) {
+                if (method.equals("getAllAds"))
+                    return ads;
+                throw StandIns.unsupported(method);
+            }
+        });
+    }
+
+    private static ActivityDao activityDao(long latencyMicros) {
+        return StandIns.of(ActivityDao.class, latencyMicros, new StandIns.Responder() {
+            public Object respond(String method, Object[] args) {
+                if (method.equals("addActivity"))
+                    return null;
+                throw StandIns.unsupported(method);
+            }
+        });
+    }
+
+    private static Clip clipOf(long clipId) {
+        Clip clip = new Clip();
+        clip.setId(clipId);
+        return clip;
+    }
+
+    /**
+     * Builds the activity a caller reports while watching a movie
+     */
+    static Activity activityOf(String userToken, long movieId, int position) {
+        User user = new User();
+        user.setEmail(emailOf(userToken));
+        Activity activity = new Activity();
+        activity.setUser(user);
+        activity.setMovieId(movieId);
+        activity.setPosition(position);
+        activity.setTime(System.currentTimeMillis());
+        return activity;
+    }
+}
@@ -0,0 +1,73 @@
+package benchmarks;
+
+import edu.umflix.model.Clip;
+import edu.umflix.model.ClipData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the movie manager operations, with warm or disabled caches and with or without latency on the
+ * dependencies. Runs on one thread unless JMH is given <code>-t</code>, e.g. through <code>-Djmh.threads=8</code>, to
+ * measure threads contending on the caches, the activity pipeline and the ad index.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MovieManagerBenchmark {
+
+    @Param({"hit", "miss"})
+    public String cache;
+
+    @Param({"0", "200"})
+    public long latencyMicros;
+
+    private Fixture fixture;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = new Fixture("hit".equals(cache), latencyMicros, 100);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.shutdown();
+    }
+
+    @Benchmark
+    public List<Clip> getMovie(Caller caller) throws Exception {
+        return fixture.movieManager.getMovie(caller.userToken, caller.nextMovieId());
+    }
+
+    @Benchmark
+    public ClipData getClipData(Caller caller) throws Exception {
+        return fixture.movieManager.getClipData(caller.userToken, caller.nextClipId());
+    }
+
+    @Benchmark
+    public void sendActivity(Caller caller) throws Exception {
+        fixture.movieManager.sendActivity(caller.userToken,
+                Fixture.activityOf(caller.userToken, caller.nextMovieId(), caller.nextPosition()));
+    }
+
+    @Benchmark
+    public ClipData getAd(Caller caller) throws Exception {
+        return fixture.movieManager.getAd(caller.userToken, caller.nextMovieId());
+    }
+}
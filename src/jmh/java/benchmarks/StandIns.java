@@ -0,0 +1,63 @@
+package benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process stand-ins for the remote beans the movie manager depends on. Each stand-in answers through a
+ * {@link Responder} after an injected latency, parking the calling thread the way a remote call would; methods
+ * the responder does not know fail with {@link UnsupportedOperationException}.
+ */
+final class StandIns {
+
+    private StandIns() {
+    }
+
+    /**
+     * Answers calls to a stand-in
+     */
+    interface Responder {
+
+        /**
+         * @param method the name of the called method
+         * @param args   the arguments of the call
+         * @return the result of the call
+         * @throws Exception thrown by the call
+         */
+        Object respond(String method, Object[] args) throws Exception;
+    }
+
+    /**
+     * Builds a stand-in
+     *
+     * @param type          the interface of the bean
+     * @param latencyMicros latency added to every call
+     * @param responder     answers the calls
+     * @return the stand-in
+     */
+    static <T> T of(Class<T> type, final long latencyMicros, final Responder responder) {
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class) {
+                    try {
+                        return method.invoke(this, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+                if (latencyMicros > 0)
+                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(latencyMicros));
+                return responder.respond(method.getName(), args);
+            }
+        };
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    static UnsupportedOperationException unsupported(String method) {
+        return new UnsupportedOperationException(method + " is not used by the benchmarks");
+    }
+}
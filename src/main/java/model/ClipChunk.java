@@ -0,0 +1,66 @@
+package model;
+
+/**
+ * A byte range of the payload of a clip, as returned by {@link MovieManager#getClipChunk(String, Long, Long, Integer)}
+ */
+public class ClipChunk {
+
+    private Long clipId;
+    private long offset;
+    private long totalLength;
+    private byte[] bytes;
+
+    public ClipChunk() {
+    }
+
+    public ClipChunk(Long clipId, long offset, long totalLength, byte[] bytes) {
+        this.clipId = clipId;
+        this.offset = offset;
+        this.totalLength = totalLength;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return the id of the clip the chunk belongs to
+     */
+    public Long getClipId() {
+        return clipId;
+    }
+
+    public void setClipId(Long clipId) {
+        this.clipId = clipId;
+    }
+
+    /**
+     * @return position of the first byte of the chunk within the clip payload
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * @return length of the whole clip payload
+     */
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    public void setTotalLength(long totalLength) {
+        this.totalLength = totalLength;
+    }
+
+    /**
+     * @return the bytes of the chunk; empty when the offset is past the end of the clip
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public void setBytes(byte[] bytes) {
+        this.bytes = bytes;
+    }
+}
@@ -0,0 +1,55 @@
+package model;
+
+import edu.umflix.model.ClipData;
+
+import java.util.List;
+
+/**
+ * Outcome of one clip of a {@link MovieManager#getClipDataBatch(String, List)} request: either its ClipData or an
+ * error
+ */
+public class ClipDataResult {
+
+    private Long clipId;
+    private ClipData clipData;
+    private ItemError error;
+
+    public ClipDataResult() {
+    }
+
+    public ClipDataResult(Long clipId, ClipData clipData, ItemError error) {
+        this.clipId = clipId;
+        this.clipData = clipData;
+        this.error = error;
+    }
+
+    public Long getClipId() {
+        return clipId;
+    }
+
+    public void setClipId(Long clipId) {
+        this.clipId = clipId;
+    }
+
+    /**
+     * @return the ClipData of the clip, or null when the clip could not be returned
+     */
+    public ClipData getClipData() {
+        return clipData;
+    }
+
+    public void setClipData(ClipData clipData) {
+        this.clipData = clipData;
+    }
+
+    /**
+     * @return why the clip could not be returned, or null on success
+     */
+    public ItemError getError() {
+        return error;
+    }
+
+    public void setError(ItemError error) {
+        this.error = error;
+    }
+}
@@ -0,0 +1,55 @@
+package model;
+
+import javax.activation.DataHandler;
+import javax.xml.bind.annotation.XmlMimeType;
+
+/**
+ * The payload of a clip sent as a streamed binary attachment, as returned by
+ * {@link MovieManager#getClipStream(String, Long)} and {@link MovieManager#getAdStream(String, Long)}
+ */
+public class ClipStream {
+
+    private Long clipId;
+    private long length;
+    private DataHandler data;
+
+    public ClipStream() {
+    }
+
+    public ClipStream(Long clipId, long length, DataHandler data) {
+        this.clipId = clipId;
+        this.length = length;
+        this.data = data;
+    }
+
+    public Long getClipId() {
+        return clipId;
+    }
+
+    public void setClipId(Long clipId) {
+        this.clipId = clipId;
+    }
+
+    /**
+     * @return size of the payload in bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public void setLength(long length) {
+        this.length = length;
+    }
+
+    /**
+     * @return the payload, sent as an MTOM attachment
+     */
+    @XmlMimeType("application/octet-stream")
+    public DataHandler getData() {
+        return data;
+    }
+
+    public void setData(DataHandler data) {
+        this.data = data;
+    }
+}
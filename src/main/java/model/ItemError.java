@@ -0,0 +1,27 @@
+package model;
+
+/**
+ * Reason why a single item of a batch request could not be returned
+ */
+public enum ItemError {
+    /**
+     * the requested movie does not exist in system
+     */
+    MOVIE_NOT_FOUND,
+    /**
+     * the caller is not allowed to interact with the requested movie
+     */
+    USER_NOT_ALLOWED,
+    /**
+     * the requested clip has no ClipData
+     */
+    CLIP_NOT_FOUND,
+    /**
+     * the item would take the response above its size limit; it must be requested on its own
+     */
+    SIZE_LIMIT_EXCEEDED,
+    /**
+     * the item could not be loaded because of an unexpected failure
+     */
+    FAILED
+}
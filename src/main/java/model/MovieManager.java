@@ -30,9 +30,37 @@ public interface MovieManager {
     public List<Clip> getMovie(String userToken, Long movieId) throws InvalidTokenException, MovieNotFoundException, UserNotAllowedException;
 
     /**
-     * Method that allows a user to obtain the ClipData associated with a Clip object.
+     * Variant of {@link #getMovie(String, Long)} that also issues a short lived playback grant for the clips of the
+     * movie. The grant can be sent in place of the user token to {@link #getClipData(String, Long)},
+     * {@link #getClipChunk(String, Long, Long, Integer)} and {@link #getClipStream(String, Long)}, which then verify
+     * it locally instead of validating the user again.
      *
      * @param userToken the token used to authenticate the calling user
+     * @param movieId   the id of the requested movie
+     * @return the clips of the movie along with the grant
+     * @throws InvalidTokenException   when received token is malformed
+     * @throws MovieNotFoundException  when requested movie does not exist in system
+     * @throws UserNotAllowedException when the user passed as a token is not allowed to interact with the received movie
+     * @see PlaybackGrant
+     */
+    public PlaybackGrant getPlaybackGrant(String userToken, Long movieId) throws InvalidTokenException, MovieNotFoundException, UserNotAllowedException;
+
+    /**
+     * Batch variant of {@link #getMovie(String, Long)}: validates the token once and loads the requested movies in
+     * parallel. A movie that can not be returned does not fail the whole request; its result carries the reason.
+     *
+     * @param userToken the token used to authenticate the calling user
+     * @param movieIds  the ids of the requested movies
+     * @return one result per requested id, in request order
+     * @throws InvalidTokenException when received token is malformed
+     * @see MovieResult
+     */
+    public List<MovieResult> getMovies(String userToken, List<Long> movieIds) throws InvalidTokenException;
+
+    /**
+     * Method that allows a user to obtain the ClipData associated with a Clip object.
+     *
+     * @param userToken the token used to authenticate the calling user, or a playback grant covering the clip
      * @param clipId    the id of the token for which the user wishes to retrieve its ClipData object
      * @return ClipData object associated with given Clip id
      * @throws InvalidTokenException when received token is malformed
@@ -40,6 +68,58 @@ public interface MovieManager {
      */
     public ClipData getClipData(String userToken, Long clipId) throws InvalidTokenException;
 
+    /**
+     * Batch variant of {@link #getClipData(String, Long)}: validates the token once and loads the requested ClipData
+     * in parallel. A clip that can not be returned does not fail the whole request; its result carries the reason.
+     * The ClipData returned in one response are limited in total size; a clip that does not fit is reported as
+     * {@link model.ItemError#SIZE_LIMIT_EXCEEDED} and must be requested on its own.
+     *
+     * @param userToken the token used to authenticate the calling user
+     * @param clipIds   the ids of the requested clips
+     * @return one result per requested id, in request order
+     * @throws InvalidTokenException when received token is malformed
+     * @see ClipDataResult
+     */
+    public List<ClipDataResult> getClipDataBatch(String userToken, List<Long> clipIds) throws InvalidTokenException;
+
+    /**
+     * Method that allows a user to obtain a byte range of the ClipData associated with a Clip object, so that
+     * players can start or seek without waiting for the whole clip.
+     *
+     * @param userToken the token used to authenticate the calling user, or a playback grant covering the clip
+     * @param clipId    the id of the clip
+     * @param offset    position of the first requested byte
+     * @param length    number of requested bytes; larger requests are truncated to the configured chunk size
+     * @return the requested range, or null when the clip has no ClipData
+     * @throws InvalidTokenException when received token is malformed
+     * @see ClipChunk
+     */
+    public ClipChunk getClipChunk(String userToken, Long clipId, Long offset, Integer length) throws InvalidTokenException;
+
+    /**
+     * Streaming variant of {@link #getClipData(String, Long)}: the payload is sent as a binary attachment read straight
+     * from the clip cache, so neither side has to hold it inlined in the message.
+     *
+     * @param userToken the token used to authenticate the calling user, or a playback grant covering the clip
+     * @param clipId    the id of the clip
+     * @return the payload of the clip, or null when the clip has no ClipData
+     * @throws InvalidTokenException when received token is malformed
+     * @see ClipStream
+     */
+    public ClipStream getClipStream(String userToken, Long clipId) throws InvalidTokenException;
+
+    /**
+     * Method that allows a client holding the ClipData of a clip to check it is still allowed to fetch it, without
+     * the payload being read. ClipData never changes for a clip id, so the copy held stays valid as long as the clip
+     * exists.
+     *
+     * @param userToken the token used to authenticate the calling user, or a playback grant covering the clip
+     * @param clipId    the id of the clip
+     * @return false when the clip is known to have no ClipData, true otherwise
+     * @throws InvalidTokenException when received token is malformed
+     */
+    public boolean hasClip(String userToken, Long clipId) throws InvalidTokenException;
+
     /**
      * Reports a given activiy to the UMFlix system
      *
@@ -52,6 +132,18 @@ public interface MovieManager {
      */
     public void sendActivity(String userToken, Activity activity) throws InvalidTokenException, ValuesInActivityException, UserNotAllowedException;
 
+    /**
+     * Returns where the calling user stopped playing a movie, as reported by the latest activity sent for it. The
+     * position is served from memory, without querying the activities recorded in the system.
+     *
+     * @param userToken the user token used to identify the calling user
+     * @param movieId   the id of the movie
+     * @return the latest position of the user in the movie, or null if the user has not played it
+     * @throws InvalidTokenException when the received user token is malformed
+     * @see ResumePosition
+     */
+    public ResumePosition getResumePosition(String userToken, Long movieId) throws InvalidTokenException;
+
     /**
      * Method that allows a user to obtain an Ad's ClipData while playing a movie.
      *
@@ -59,7 +151,19 @@ public interface MovieManager {
      * @param movieId   the movie for which the Ad is supposed to be played in
      * @return the ClipData associated with the Ad object
      * @throws InvalidTokenException when the received token is malformed
-     * @throws NoAdsException        when no Ads are available in the system
+     * @throws NoAdsException        when no Ads are available in the system, or they can not be served in time
      */
     public ClipData getAd(String userToken, Long movieId) throws InvalidTokenException, NoAdsException;
+
+    /**
+     * Streaming variant of {@link #getAd(String, Long)}: the payload of the selected Ad is sent as a binary attachment.
+     *
+     * @param userToken the user token used to identify the calling user
+     * @param movieId   the movie for which the Ad is supposed to be played in
+     * @return the payload of the Ad's clip
+     * @throws InvalidTokenException when the received token is malformed
+     * @throws NoAdsException        when no Ads are available in the system, or they can not be served in time
+     * @see ClipStream
+     */
+    public ClipStream getAdStream(String userToken, Long movieId) throws InvalidTokenException, NoAdsException;
 }
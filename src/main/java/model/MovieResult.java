@@ -0,0 +1,54 @@
+package model;
+
+import edu.umflix.model.Clip;
+
+import java.util.List;
+
+/**
+ * Outcome of one movie of a {@link MovieManager#getMovies(String, List)} request: either its clips or an error
+ */
+public class MovieResult {
+
+    private Long movieId;
+    private List<Clip> clips;
+    private ItemError error;
+
+    public MovieResult() {
+    }
+
+    public MovieResult(Long movieId, List<Clip> clips, ItemError error) {
+        this.movieId = movieId;
+        this.clips = clips;
+        this.error = error;
+    }
+
+    public Long getMovieId() {
+        return movieId;
+    }
+
+    public void setMovieId(Long movieId) {
+        this.movieId = movieId;
+    }
+
+    /**
+     * @return the clips of the movie, or null when the movie could not be returned
+     */
+    public List<Clip> getClips() {
+        return clips;
+    }
+
+    public void setClips(List<Clip> clips) {
+        this.clips = clips;
+    }
+
+    /**
+     * @return why the movie could not be returned, or null on success
+     */
+    public ItemError getError() {
+        return error;
+    }
+
+    public void setError(ItemError error) {
+        this.error = error;
+    }
+}
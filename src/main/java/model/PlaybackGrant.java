@@ -0,0 +1,67 @@
+package model;
+
+import edu.umflix.model.Clip;
+
+import java.util.List;
+
+/**
+ * The clips of a movie together with a playback grant, as returned by
+ * {@link MovieManager#getPlaybackGrant(String, Long)}
+ */
+public class PlaybackGrant {
+
+    private Long movieId;
+    private List<Clip> clips;
+    private String grant;
+    private long expiresAt;
+
+    public PlaybackGrant() {
+    }
+
+    public PlaybackGrant(Long movieId, List<Clip> clips, String grant, long expiresAt) {
+        this.movieId = movieId;
+        this.clips = clips;
+        this.grant = grant;
+        this.expiresAt = expiresAt;
+    }
+
+    public Long getMovieId() {
+        return movieId;
+    }
+
+    public void setMovieId(Long movieId) {
+        this.movieId = movieId;
+    }
+
+    public List<Clip> getClips() {
+        return clips;
+    }
+
+    public void setClips(List<Clip> clips) {
+        this.clips = clips;
+    }
+
+    /**
+     * @return a token accepted in place of the user token by the clip fetching operations, for the clips of the movie
+     *         only, until {@link #getExpiresAt()}; null when grants are not enabled, in which case the user token
+     *         keeps being used
+     */
+    public String getGrant() {
+        return grant;
+    }
+
+    public void setGrant(String grant) {
+        this.grant = grant;
+    }
+
+    /**
+     * @return when the grant stops being accepted, in milliseconds since the epoch
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+}
@@ -0,0 +1,50 @@
+package model;
+
+/**
+ * Where a user stopped playing a movie, as returned by {@link MovieManager#getResumePosition(String, Long)}
+ */
+public class ResumePosition {
+
+    private Long movieId;
+    private int position;
+    private long time;
+
+    public ResumePosition() {
+    }
+
+    public ResumePosition(Long movieId, int position, long time) {
+        this.movieId = movieId;
+        this.position = position;
+        this.time = time;
+    }
+
+    public Long getMovieId() {
+        return movieId;
+    }
+
+    public void setMovieId(Long movieId) {
+        this.movieId = movieId;
+    }
+
+    /**
+     * @return the position reported by the latest activity of the user on the movie
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    public void setPosition(int position) {
+        this.position = position;
+    }
+
+    /**
+     * @return the time of the latest activity of the user on the movie
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public void setTime(long time) {
+        this.time = time;
+    }
+}
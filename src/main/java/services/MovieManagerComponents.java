@@ -0,0 +1,380 @@
+package services;
+
+import edu.umflix.model.Ad;
+import org.apache.log4j.Logger;
+import services.activity.ActivityCoalescer;
+import services.activity.ActivityPipeline;
+import services.activity.ActivitySink;
+import services.activity.ActivitySpool;
+import services.activity.ResumeIndex;
+import services.ads.AdIndex;
+import services.ads.AdRandom;
+import services.ads.AdWeighting;
+import services.ads.FrequencyCap;
+import services.auth.PlaybackGrants;
+import services.auth.RoleResolver;
+import services.auth.TokenValidationCache;
+import services.cache.ClipDataCache;
+import services.cache.ClipPrefetcher;
+import services.cache.MovieCache;
+import services.cache.OffHeapClipStore;
+import services.metrics.Metrics;
+import services.stats.ViewingStats;
+import services.trace.Tracer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide instances of the components used by {@link MovieManagerImpl}. The container pools stateless bean
+ * instances, so state that must be shared between requests lives here instead of in the bean. Other modules
+ * deployed in the same application use these accessors to reach the invalidation hooks.
+ */
+public final class MovieManagerComponents {
+
+    static Logger logger = Logger.getLogger(MovieManagerComponents.class);
+
+    private static final ScheduledThreadPoolExecutor MAINTENANCE_EXECUTOR = new ScheduledThreadPoolExecutor(1,
+            new DaemonThreadFactory("movie-manager-maintenance"));
+    //the rebuild of the resume index may run for minutes, it must not hold up the maintenance tasks
+    private static final ScheduledThreadPoolExecutor RESUME_INDEX_LOADER = new ScheduledThreadPoolExecutor(1,
+            new DaemonThreadFactory("resume-index-loader"));
+    private static final TokenValidationCache TOKEN_VALIDATION_CACHE = new TokenValidationCache(
+            Settings.getInt("tokenCache.maxEntries", 100000),
+            Settings.getLong("tokenCache.ttlMillis", 30000),
+            Settings.getLong("tokenCache.negativeTtlMillis", 5000));
+    private static final RoleResolver ROLE_RESOLVER = new RoleResolver(
+            Settings.getInt("roleCache.maxEntries", 100000),
+            Settings.getLong("roleCache.ttlMillis", 300000));
+    private static final PlaybackGrants PLAYBACK_GRANTS = PlaybackGrants.fromSetting(
+            Settings.getString("grant.keys", null),
+            Settings.getLong("grant.ttlMillis", 600000));
+    private static final MovieCache MOVIE_CACHE = new MovieCache(
+            Settings.getInt("movieCache.maxEntries", 10000),
+            Settings.getLong("movieCache.ttlMillis", 60000),
+            Settings.getLong("movieCache.negativeTtlMillis", 10000),
+            Settings.getLong("movieCache.loadTimeoutMillis", 10000));
+    private static final ClipDataCache CLIP_DATA_CACHE = new ClipDataCache(
+            Settings.getLong("clipCache.maxBytes", 256L * 1024 * 1024),
+            Settings.getLong("clipCache.maxEntryBytes", 32L * 1024 * 1024),
+            Settings.getLong("clipCache.maxPinnedBytes", 64L * 1024 * 1024),
+            Settings.getBoolean("clipCache.offHeap", false)
+                    ? new OffHeapClipStore(Settings.getLong("clipCache.offHeapMaxBytes", 1024L * 1024 * 1024))
+                    : null,
+            Settings.getLong("clipCache.loadTimeoutMillis", 30000));
+    private static final ThreadPoolExecutor PREFETCH_EXECUTOR = new ThreadPoolExecutor(
+            Settings.getInt("prefetch.threads", 4), Settings.getInt("prefetch.threads", 4),
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Settings.getInt("prefetch.queueCapacity", 256)),
+            new DaemonThreadFactory("clip-prefetcher"), new ThreadPoolExecutor.DiscardPolicy());
+    private static final ClipPrefetcher CLIP_PREFETCHER = new ClipPrefetcher(CLIP_DATA_CACHE, PREFETCH_EXECUTOR,
+            Settings.getInt("prefetch.lookahead", 2),
+            Settings.getLong("prefetch.idleMillis", 120000),
+            Settings.getLong("prefetch.maxOutstandingBytes", 64L * 1024 * 1024),
+            Settings.getInt("prefetch.maxSessions", 50000));
+    private static final ActivityPipeline ACTIVITY_PIPELINE = new ActivityPipeline(
+            Settings.getInt("activityPipeline.capacity", 50000),
+            Settings.getInt("activityPipeline.batchSize", 200),
+            Settings.getLong("activityPipeline.lingerMillis", 50),
+            Settings.getLong("activityPipeline.offerTimeoutMillis", 20),
+            Settings.getInt("activityPipeline.workers", 2));
+    private static final ActivitySpool ACTIVITY_SPOOL = createActivitySpool();
+    private static final ActivityCoalescer ACTIVITY_COALESCER = new ActivityCoalescer(
+            ACTIVITY_SPOOL != null ? ACTIVITY_SPOOL : ACTIVITY_PIPELINE,
+            Settings.getLong("activityCoalescer.windowMillis", 10000));
+    private static final ResumeIndex RESUME_INDEX = new ResumeIndex(
+            Settings.getInt("resumeIndex.maxEntries", 1000000),
+            Settings.getInt("resumeIndex.concurrencyLevel", 64));
+    private static final ViewingStats VIEWING_STATS = new ViewingStats(
+            Settings.getLong("viewingStats.bucketMillis", 60000),
+            Settings.getInt("viewingStats.buckets", 60),
+            Settings.getLong("viewingStats.activeWindowMillis", 120000),
+            Settings.getInt("viewingStats.precision", 14),
+            Settings.getInt("viewingStats.moviePrecision", 8),
+            Settings.getInt("viewingStats.maxMoviesPerBucket", 2000));
+    private static final AdIndex AD_INDEX = new AdIndex(
+            Settings.getLong("adIndex.refreshMillis", 60000),
+            AdWeighting.UNIFORM,
+            Settings.isSet("adIndex.seed") ? AdRandom.seeded(Settings.getLong("adIndex.seed", 0)) : AdRandom.perThread(),
+            new FrequencyCap(
+                    Settings.getInt("adFrequencyCap.maxImpressions", 0),
+                    Settings.getLong("adFrequencyCap.windowMillis", 3600000),
+                    Settings.getInt("adFrequencyCap.maxUsers", 100000)),
+            Settings.getInt("adIndex.maxTargetedMovies", 10000),
+            MAINTENANCE_EXECUTOR);
+
+    private static final Tracer TRACER = new Tracer(
+            Settings.getInt("trace.sampleOneIn", 100),
+            Settings.getInt("trace.queueCapacity", 10000));
+    private static final ThreadPoolExecutor BATCH_EXECUTOR = new ThreadPoolExecutor(
+            Settings.getInt("batch.threads", 16), Settings.getInt("batch.threads", 16),
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Settings.getInt("batch.queueCapacity", 1000)),
+            new DaemonThreadFactory("movie-manager-batch"), new ThreadPoolExecutor.CallerRunsPolicy());
+    private static final ThreadPoolExecutor ASYNC_EXECUTOR = new ThreadPoolExecutor(
+            Settings.getInt("async.threads", 64), Settings.getInt("async.threads", 64),
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Settings.getInt("async.queueCapacity", 5000)),
+            new DaemonThreadFactory("movie-manager-async"), new ThreadPoolExecutor.AbortPolicy());
+    private static final ScheduledThreadPoolExecutor DEADLINE_TIMER = new ScheduledThreadPoolExecutor(1,
+            new DaemonThreadFactory("movie-manager-deadlines"));
+
+    static {
+        TOKEN_VALIDATION_CACHE.registerGauges(Metrics.getRegistry());
+        CLIP_DATA_CACHE.registerGauges(Metrics.getRegistry());
+        ACTIVITY_PIPELINE.registerGauges(Metrics.getRegistry());
+        ASYNC_EXECUTOR.allowCoreThreadTimeOut(true);
+        DEADLINE_TIMER.setRemoveOnCancelPolicy(true);
+        //ad clips are pinned while they are served, and released once their ad is removed
+        AD_INDEX.setRefreshListener(new AdIndex.RefreshListener() {
+            public void refreshed(List<Ad> ads) {
+                Set<Long> clipIds = new HashSet<Long>();
+                for (Ad ad : ads) {
+                    if (ad.getClip() != null)
+                        clipIds.add(ad.getClip().getId());
+                }
+                CLIP_DATA_CACHE.retainPinned(clipIds);
+            }
+        });
+        long sweepMillis = Settings.getLong("prefetch.sweepMillis", 30000);
+        MAINTENANCE_EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    CLIP_PREFETCHER.sweep();
+                } catch (RuntimeException e) {
+                    logger.error("could not sweep idle prefetch sessions", e);
+                }
+            }
+        }, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+        long coalescerWindowMillis = Settings.getLong("activityCoalescer.windowMillis", 10000);
+        if (coalescerWindowMillis > 0) {
+            long coalescerSweepMillis = Math.max(10, coalescerWindowMillis / 4);
+            MAINTENANCE_EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        ACTIVITY_COALESCER.sweep();
+                    } catch (RuntimeException e) {
+                        logger.error("could not forward coalesced activities", e);
+                    }
+                }
+            }, coalescerSweepMillis, coalescerSweepMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private MovieManagerComponents() {
+    }
+
+    /**
+     * @return the activity spool, or null if no spool directory is configured or it can not be opened
+     */
+    private static ActivitySpool createActivitySpool() {
+        String directory = Settings.getString("activitySpool.dir", null);
+        if (directory == null)
+            return null;
+        try {
+            return new ActivitySpool(new File(directory),
+                    Settings.getInt("activitySpool.segmentBytes", 64 * 1024 * 1024),
+                    Settings.getLong("activitySpool.syncMillis", 50),
+                    Settings.getLong("activitySpool.retryMillis", 1000),
+                    Settings.getInt("activitySpool.maxAttempts", 5),
+                    Settings.getInt("activitySpool.dedupeEntries", 100000),
+                    Settings.getLong("activitySpool.dedupeWindowMillis", 600000),
+                    ACTIVITY_PIPELINE, ACTIVITY_PIPELINE);
+        } catch (IOException e) {
+            logger.error("could not open the activity spool in " + directory + ", activities go to the pipeline", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the shared token validation cache
+     * @see TokenValidationCache
+     */
+    public static TokenValidationCache getTokenValidationCache() {
+        return TOKEN_VALIDATION_CACHE;
+    }
+
+    /**
+     * @return the shared role resolver
+     * @see RoleResolver
+     */
+    public static RoleResolver getRoleResolver() {
+        return ROLE_RESOLVER;
+    }
+
+    /**
+     * @return the issuer and verifier of playback grants
+     * @see PlaybackGrants
+     */
+    public static PlaybackGrants getPlaybackGrants() {
+        return PLAYBACK_GRANTS;
+    }
+
+    /**
+     * @return the shared movie cache
+     * @see MovieCache
+     */
+    public static MovieCache getMovieCache() {
+        return MOVIE_CACHE;
+    }
+
+    /**
+     * @return the shared clip data cache
+     * @see ClipDataCache
+     */
+    public static ClipDataCache getClipDataCache() {
+        return CLIP_DATA_CACHE;
+    }
+
+    /**
+     * @return the shared clip prefetcher
+     * @see ClipPrefetcher
+     */
+    public static ClipPrefetcher getClipPrefetcher() {
+        return CLIP_PREFETCHER;
+    }
+
+    /**
+     * @return the shared activity ingestion pipeline
+     * @see ActivityPipeline
+     */
+    public static ActivityPipeline getActivityPipeline() {
+        return ACTIVITY_PIPELINE;
+    }
+
+    /**
+     * @return the shared activity spool, or null when activities are not spooled
+     * @see ActivitySpool
+     */
+    public static ActivitySpool getActivitySpool() {
+        return ACTIVITY_SPOOL;
+    }
+
+    /**
+     * @return the shared activity coalescer
+     * @see ActivityCoalescer
+     */
+    public static ActivityCoalescer getActivityCoalescer() {
+        return ACTIVITY_COALESCER;
+    }
+
+    /**
+     * @return the entry point of the activity ingestion path
+     * @see ActivitySink
+     */
+    public static ActivitySink getActivitySink() {
+        return ACTIVITY_COALESCER;
+    }
+
+    /**
+     * @return the shared index of resume positions
+     * @see ResumeIndex
+     */
+    public static ResumeIndex getResumeIndex() {
+        return RESUME_INDEX;
+    }
+
+    /**
+     * @return the shared real-time viewing aggregates
+     * @see ViewingStats
+     */
+    public static ViewingStats getViewingStats() {
+        return VIEWING_STATS;
+    }
+
+    /**
+     * @return the shared ad index
+     * @see AdIndex
+     */
+    public static AdIndex getAdIndex() {
+        return AD_INDEX;
+    }
+
+    /**
+     * @return the shared executor loading the items of batch requests; when it is saturated callers load items
+     *         themselves
+     */
+    public static ExecutorService getBatchExecutor() {
+        return BATCH_EXECUTOR;
+    }
+
+    /**
+     * @return the shared executor running the calls of {@link services.async.AsyncMovieManager}; when it is saturated
+     *         calls fail at once rather than waiting
+     */
+    public static ExecutorService getAsyncExecutor() {
+        return ASYNC_EXECUTOR;
+    }
+
+    /**
+     * @return the shared timer failing asynchronous calls whose deadline passed
+     */
+    public static ScheduledExecutorService getDeadlineTimer() {
+        return DEADLINE_TIMER;
+    }
+
+    /**
+     * @return the shared executor of background upkeep: refreshes, sweeps and reloads
+     */
+    public static ScheduledExecutorService getMaintenanceExecutor() {
+        return MAINTENANCE_EXECUTOR;
+    }
+
+    /**
+     * @return the executor rebuilding the resume index on startup
+     */
+    public static ScheduledExecutorService getResumeIndexLoader() {
+        return RESUME_INDEX_LOADER;
+    }
+
+    /**
+     * @return the shared request tracer
+     * @see Tracer
+     */
+    public static Tracer getTracer() {
+        return TRACER;
+    }
+
+    /**
+     * Forgets everything cached about a token, to be called on logout or when the token's roles change
+     *
+     * @param userToken the token to forget
+     */
+    public static void invalidateToken(String userToken) {
+        TOKEN_VALIDATION_CACHE.invalidate(userToken);
+        ROLE_RESOLVER.invalidate(userToken);
+    }
+
+    /**
+     * Forgets a cached movie, to be called by the publishing side when a movie is enabled, disabled or its clips change
+     *
+     * @param movieId the id of the movie
+     */
+    public static void invalidateMovie(Long movieId) {
+        MOVIE_CACHE.invalidate(movieId);
+    }
+
+    /**
+     * Flushes pending work and stops background threads, to be called when the application is undeployed
+     */
+    public static void shutdown() {
+        ACTIVITY_COALESCER.shutdown();
+        if (ACTIVITY_SPOOL != null)
+            ACTIVITY_SPOOL.shutdown(Settings.getLong("shutdownTimeoutMillis", 10000));
+        ACTIVITY_PIPELINE.shutdown(Settings.getLong("shutdownTimeoutMillis", 10000));
+        PREFETCH_EXECUTOR.shutdownNow();
+        BATCH_EXECUTOR.shutdown();
+        ASYNC_EXECUTOR.shutdown();
+        DEADLINE_TIMER.shutdownNow();
+        MAINTENANCE_EXECUTOR.shutdownNow();
+        RESUME_INDEX_LOADER.shutdownNow();
+        TRACER.shutdown();
+        Metrics.getRegistry().unregister();
+    }
+}
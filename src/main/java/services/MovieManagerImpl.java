@@ -2,26 +2,59 @@ package services;
 
 import edu.umflix.authenticationhandler.AuthenticationHandler;
 import edu.umflix.authenticationhandler.exceptions.InvalidTokenException;
-import edu.umflix.authenticationhandler.exceptions.InvalidUserException;
 import edu.umflix.exceptions.MovieNotFoundException;
-import edu.umflix.exceptions.RoleNotFoundException;
 import edu.umflix.model.*;
 import edu.umflix.persistence.ActivityDao;
 import edu.umflix.persistence.AdDao;
 import edu.umflix.persistence.MovieDao;
 import edu.umflix.persistence.RoleDao;
 import edu.umflix.clipstorage.ClipStorage;
+import model.ClipChunk;
+import model.ClipDataResult;
+import model.ClipStream;
+import model.ItemError;
 import model.MovieManager;
+import model.MovieResult;
+import model.PlaybackGrant;
+import model.ResumePosition;
 import model.exceptions.NoAdsException;
 import model.exceptions.ValuesInActivityException;
 import model.exceptions.UserNotAllowedException;
 import org.apache.log4j.Logger;
+import services.activity.ActivitySink;
+import services.activity.ResumeIndex;
+import services.ads.AdIndex;
+import services.auth.PlaybackGrants;
+import services.auth.Principal;
+import services.auth.RoleResolver;
+import services.auth.TokenValidationCache;
+import services.cache.CachedMovie;
+import services.cache.ClipDataCache;
+import services.cache.ClipPayload;
+import services.cache.ClipPrefetcher;
+import services.cache.MovieCache;
+import services.metrics.Metric;
+import services.metrics.Metrics;
+import services.resilience.Deadline;
+import services.resilience.DependencyUnavailableException;
+import services.stats.ViewingStats;
+import services.trace.Phase;
+import services.trace.Trace;
+import services.trace.Tracer;
 
+import javax.activation.DataHandler;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.jws.WebMethod;
 import javax.jws.WebService;
+import javax.xml.ws.BindingType;
+import javax.xml.ws.soap.SOAPBinding;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * @see MovieManager
@@ -30,9 +63,28 @@ import java.util.List;
 @WebService(portName = "MovieManagerServicePort",
         serviceName = "MovieManagerServiceWebService",
         targetNamespace = "http://um.org/wsdl")
+@BindingType(SOAPBinding.SOAP11HTTP_MTOM_BINDING)
 public class MovieManagerImpl implements MovieManager {
 
     static Logger logger = Logger.getLogger(MovieManager.class);
+    private static final boolean PIN_AD_CLIPS = Settings.getBoolean("clipCache.pinAds", true);
+    private static final int MAX_CHUNK_LENGTH = Settings.getInt("clipChunk.maxLength", 1024 * 1024);
+    private static final int MAX_BATCH_SIZE = Settings.getInt("batch.maxSize", 200);
+    private static final long MAX_BATCH_BYTES = Settings.getLong("batch.maxClipBytes", 64L * 1024 * 1024);
+    private static final long DEADLINE_MILLIS = Settings.getLong("deadline.millis", 15000);
+    private static final Metric GET_MOVIE = Metrics.operation("getMovie");
+    private static final Metric GET_PLAYBACK_GRANT = Metrics.operation("getPlaybackGrant");
+    private static final Metric GET_MOVIES = Metrics.operation("getMovies");
+    private static final Metric GET_CLIP_DATA = Metrics.operation("getClipData");
+    private static final Metric GET_CLIP_DATA_BATCH = Metrics.operation("getClipDataBatch");
+    private static final Metric GET_CLIP_CHUNK = Metrics.operation("getClipChunk");
+    private static final Metric GET_CLIP_STREAM = Metrics.operation("getClipStream");
+    private static final Metric HAS_CLIP = Metrics.operation("hasClip");
+    private static final Metric SEND_ACTIVITY = Metrics.operation("sendActivity");
+    private static final Metric GET_RESUME_POSITION = Metrics.operation("getResumePosition");
+    private static final Metric GET_AD = Metrics.operation("getAd");
+    private static final Metric GET_AD_STREAM = Metrics.operation("getAdStream");
+    private static final int PRIVILEGED_ROLES = RoleResolver.maskOf(Role.RoleType.ADMINISTRATOR, Role.RoleType.REVIEWER);
     @EJB(beanName = "MovieDao")
     private MovieDao movieDao;
     @EJB(beanName = "RoleDao")
@@ -45,6 +97,18 @@ public class MovieManagerImpl implements MovieManager {
     private ClipStorage clipStorage;
     @EJB(beanName = "AdDao")
     private AdDao adDao;
+    private TokenValidationCache tokenValidationCache = MovieManagerComponents.getTokenValidationCache();
+    private RoleResolver roleResolver = MovieManagerComponents.getRoleResolver();
+    private MovieCache movieCache = MovieManagerComponents.getMovieCache();
+    private ClipDataCache clipDataCache = MovieManagerComponents.getClipDataCache();
+    private ClipPrefetcher clipPrefetcher = MovieManagerComponents.getClipPrefetcher();
+    private ActivitySink activitySink = MovieManagerComponents.getActivitySink();
+    private ResumeIndex resumeIndex = MovieManagerComponents.getResumeIndex();
+    private ViewingStats viewingStats = MovieManagerComponents.getViewingStats();
+    private AdIndex adIndex = MovieManagerComponents.getAdIndex();
+    private ExecutorService batchExecutor = MovieManagerComponents.getBatchExecutor();
+    private Tracer tracer = MovieManagerComponents.getTracer();
+    private PlaybackGrants playbackGrants = MovieManagerComponents.getPlaybackGrants();
 
     /**
      * {@link MovieManager#getMovie(String, Long)}
@@ -52,18 +116,100 @@ public class MovieManagerImpl implements MovieManager {
     public List<Clip> getMovie(String userToken, Long movieId) throws InvalidTokenException, MovieNotFoundException, UserNotAllowedException {
         if (userToken == null || movieId == null)
             throw new IllegalArgumentException("Null values are not accepted as inputs");
-        logger.info("received getMovie invocation; proceeding to validate user token");
-        if (validateUser(userToken)) {
-            logger.info("user token validation returned true");
-            Movie movie = movieDao.getMovieById(movieId);
-            logger.info("movie found; proceeding to validate if user is allowed to request movie");
-            if (userAllowedMovie(userToken, movie))
-                return movie.getClips();
-            else
-                throw new UserNotAllowedException("The given user is not allowed to request the selected movie");
-        } else {
-            logger.info("user token validation returned false");
-            throw new IllegalArgumentException("User token has expired");
+        Trace trace = tracer.start("getMovie");
+        Long deadline = Deadline.begin(DEADLINE_MILLIS);
+        long start = System.nanoTime();
+        try {
+            CachedMovie movie = getAllowedMovie(userToken, movieId, trace);
+            clipPrefetcher.movieOpened(userToken, movieId, movie.getClips(), clipStorage);
+            return movie.getClips();
+        } catch (Exception e) {
+            GET_MOVIE.error(e);
+            throw e;
+        } finally {
+            GET_MOVIE.record(System.nanoTime() - start);
+            tracer.finish(trace);
+            Deadline.end(deadline);
+        }
+    }
+
+    /**
+     * {@link MovieManager#getPlaybackGrant(String, Long)}
+     */
+    public PlaybackGrant getPlaybackGrant(String userToken, Long movieId) throws InvalidTokenException, MovieNotFoundException, UserNotAllowedException {
+        if (userToken == null || movieId == null)
+            throw new IllegalArgumentException("Null values are not accepted as inputs");
+        Trace trace = tracer.start("getPlaybackGrant");
+        Long deadline = Deadline.begin(DEADLINE_MILLIS);
+        long start = System.nanoTime();
+        try {
+            CachedMovie movie = getAllowedMovie(userToken, movieId, trace);
+            PlaybackGrant grant = playbackGrants.issue(movieId, movie.getClips());
+            //clip requests will carry the grant and activities the user token, the session is found by both
+            clipPrefetcher.movieOpened(userToken, grant.getGrant() == null ? userToken : grant.getGrant(), movieId,
+                    movie.getClips(), clipStorage);
+            return grant;
+        } catch (Exception e) {
+            GET_PLAYBACK_GRANT.error(e);
+            throw e;
+        } finally {
+            GET_PLAYBACK_GRANT.record(System.nanoTime() - start);
+            tracer.finish(trace);
+            Deadline.end(deadline);
+        }
+    }
+
+    /**
+     * {@link MovieManager#getMovies(String, List)}
+     */
+    public List<MovieResult> getMovies(String userToken, List<Long> movieIds) throws InvalidTokenException {
+        validateBatch(userToken, movieIds);
+        Trace trace = tracer.start("getMovies");
+        Long deadline = Deadline.begin(DEADLINE_MILLIS);
+        long start = System.nanoTime();
+        try {
+            if (validateUser(userToken, trace)) {
+                List<Callable<CachedMovie>> loads = new ArrayList<Callable<CachedMovie>>(movieIds.size());
+                for (final Long movieId : movieIds) {
+                    loads.add(new Callable<CachedMovie>() {
+                        public CachedMovie call() throws MovieNotFoundException {
+                            return movieCache.getMovie(movieId, movieDao);
+                        }
+                    });
+                }
+                trace.begin(Phase.DAO_FETCH);
+                List<Future<CachedMovie>> movies = runAll(loads);
+                trace.end(Phase.DAO_FETCH);
+                trace.begin(Phase.PERMISSION_CHECK);
+                Principal principal = principalOf(userToken);
+                List<MovieResult> results = new ArrayList<MovieResult>(movieIds.size());
+                for (int i = 0; i < movieIds.size(); i++) {
+                    Long movieId = movieIds.get(i);
+                    try {
+                        CachedMovie movie = movies.get(i).get();
+                        if (userAllowedMovie(principal, movie))
+                            results.add(new MovieResult(movieId, movie.getClips(), null));
+                        else
+                            results.add(new MovieResult(movieId, null, ItemError.USER_NOT_ALLOWED));
+                    } catch (ExecutionException e) {
+                        results.add(new MovieResult(movieId, null, itemErrorOf(e, ItemError.MOVIE_NOT_FOUND)));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while loading movies");
+                    }
+                }
+                trace.end(Phase.PERMISSION_CHECK);
+                return results;
+            } else {
+                throw new IllegalArgumentException("User token has expired");
+            }
+        } catch (Exception e) {
+            GET_MOVIES.error(e);
+            throw e;
+        } finally {
+            GET_MOVIES.record(System.nanoTime() - start);
+            tracer.finish(trace);
+            Deadline.end(deadline);
         }
     }
 
@@ -73,13 +219,166 @@ public class MovieManagerImpl implements MovieManager {
     public ClipData getClipData(String userToken, Long clipId) throws InvalidTokenException {
         if (userToken == null || clipId == null)
             throw new IllegalArgumentException("Null values are not accepted as inputs");
-        logger.info("received getClipData invocation; proceeding to validate user token");
-        if (validateUser(userToken)) {
-            logger.info("user token validation returned true");
-            return clipStorage.getClipDataByClipId(clipId);
-        } else {
-            logger.info("user token validation returned false");
-            throw new IllegalArgumentException("User token has expired");
+        Trace trace = tracer.start("getClipData");
+        Long deadline = Deadline.begin(DEADLINE_MILLIS);
+        long start = System.nanoTime();
+        try {
+            if (validateClipAccess(userToken, clipId, trace)) {
+                trace.begin(Phase.STORAGE_FETCH);
+                ClipData clipData = clipDataCache.get(clipId, clipStorage, false);
+                trace.end(Phase.STORAGE_FETCH);
+                clipPrefetcher.clipRequested(userToken, clipId, clipStorage);
+                return clipData;
+            } else {
+                throw new IllegalArgumentException("User token has expired");
+            }
+        } catch (Exception e) {
+            GET_CLIP_DATA.error(e);
+            throw e;
+        } finally {
+            GET_CLIP_DATA.record(System.nanoTime() - start);
+            tracer.finish(trace);
+            Deadline.end(deadline);
+        }
+    }
+
+    /**
+     * {@link MovieManager#getClipDataBatch(String, List)}
+     */
+    public List<ClipDataResult> getClipDataBatch(String userToken, List<Long> clipIds) throws InvalidTokenException {
+        validateBatch(userToken, clipIds);
+        Trace trace = tracer.start("getClipDataBatch");
+        Long deadline = Deadline.begin(DEADLINE_MILLIS);
+        long start = System.nanoTime();
+        try {
+            if (validateBatchClipAccess(userToken, clipIds, trace)) {
+                List<Callable<ClipData>> loads = new ArrayList<Callable<ClipData>>(clipIds.size());
+                for (final Long clipId : clipIds) {
+                    loads.add(new Callable<ClipData>() {
+                        public ClipData call() {
+                            return clipDataCache.get(clipId, clipStorage, false);
+                        }
+                    });
+                }
+                trace.begin(Phase.STORAGE_FETCH);
+                List<Future<ClipData>> clips = runAll(loads);
+                trace.end(Phase.STORAGE_FETCH);
+                List<ClipDataResult> results = new ArrayList<ClipDataResult>(clipIds.size());
+                long responseBytes = 0;
+                for (int i = 0; i < clipIds.size(); i++) {
+                    Long clipId = clipIds.get(i);
+                    try {
+                        ClipData clipData = clips.get(i).get();
+                        long size = clipData == null || clipData.getBytes() == null ? 0 : clipData.getBytes().length;
+                        if (responseBytes + size > MAX_BATCH_BYTES) {
+                            results.add(new ClipDataResult(clipId, null, ItemError.SIZE_LIMIT_EXCEEDED));
+                            continue;
+                        }
+                        responseBytes += size;
+                        results.add(new ClipDataResult(clipId, clipData, clipData == null ? ItemError.CLIP_NOT_FOUND : null));
+                    } catch (ExecutionException e) {
+                        results.add(new ClipDataResult(clipId, null, itemErrorOf(e, ItemError.CLIP_NOT_FOUND)));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while loading clips");
+                    }
+                }
+                return results;
+            } else {
+                throw new IllegalArgumentException("User token has expired");
+            }
+        } catch (Exception e) {
+            GET_CLIP_DATA_BATCH.error(e);
+            throw e;
+        } finally {
+            GET_CLIP_DATA_BATCH.record(System.nanoTime() - start);
+            tracer.finish(trace);
+            Deadline.end(deadline);
+        }
+    }
+
+    /**
+     * {@link MovieManager#getClipChunk(String, Long, Long, Integer)}
+     */
+    public ClipChunk getClipChunk(String userToken, Long clipId, Long offset, Integer length) throws InvalidTokenException {
+        if (userToken == null || clipId == null || offset == null || length == null)
+            throw new IllegalArgumentException("Null values are not accepted as inputs");
+        if (offset < 0 || length < 0)
+            throw new IllegalArgumentException("Offset and length must not be negative");
+        Trace trace = tracer.start("getClipChunk");
+        Long deadline = Deadline.begin(DEADLINE_MILLIS);
+        long start = System.nanoTime();
+        try {
+            if (validateClipAccess(userToken, clipId, trace)) {
+                trace.begin(Phase.STORAGE_FETCH);
+                ClipChunk chunk = clipDataCache.getChunk(clipId, clipStorage, offset, Math.min(length, MAX_CHUNK_LENGTH));
+                trace.end(Phase.STORAGE_FETCH);
+                return chunk;
+            } else {
+                throw new IllegalArgumentException("User token has expired");
+            }
+        } catch (Exception e) {
+            GET_CLIP_CHUNK.error(e);
+            throw e;
+        } finally {
+            GET_CLIP_CHUNK.record(System.nanoTime() - start);
+            tracer.finish(trace);
+            Deadline.end(deadline);
+        }
+    }
+
+    /**
+     * {@link MovieManager#getClipStream(String, Long)}
+     */
+    public ClipStream getClipStream(String userToken, Long clipId) throws InvalidTokenException {
+        if (userToken == null || clipId == null)
+            throw new IllegalArgumentException("Null values are not accepted as inputs");
+        Trace trace = tracer.start("getClipStream");
+        Long deadline = Deadline.begin(DEADLINE_MILLIS);
+        long start = System.nanoTime();
+        try {
+            if (validateClipAccess(userToken, clipId, trace)) {
+                trace.begin(Phase.STORAGE_FETCH);
+                ClipPayload payload = clipDataCache.getPayload(clipId, clipStorage, false);
+                trace.end(Phase.STORAGE_FETCH);
+                clipPrefetcher.clipRequested(userToken, clipId, clipStorage);
+                return streamOf(payload);
+            } else {
+                throw new IllegalArgumentException("User token has expired");
+            }
+        } catch (Exception e) {
+            GET_CLIP_STREAM.error(e);
+            throw e;
+        } finally {
+            GET_CLIP_STREAM.record(System.nanoTime() - start);
+            tracer.finish(trace);
+            Deadline.end(deadline);
+        }
+    }
+
+    /**
+     * {@link MovieManager#hasClip(String, Long)}
+     */
+    public boolean hasClip(String userToken, Long clipId) throws InvalidTokenException {
+        if (userToken == null || clipId == null)
+            throw new IllegalArgumentException("Null values are not accepted as inputs");
+        Trace trace = tracer.start("hasClip");
+        Long deadline = Deadline.begin(DEADLINE_MILLIS);
+        long start = System.nanoTime();
+        try {
+            if (validateClipAccess(userToken, clipId, trace)) {
+                //a clip not read recently is assumed to exist rather than read to find out
+                return !clipDataCache.isAbsent(clipId);
+            } else {
+                throw new IllegalArgumentException("User token has expired");
+            }
+        } catch (Exception e) {
+            HAS_CLIP.error(e);
+            throw e;
+        } finally {
+            HAS_CLIP.record(System.nanoTime() - start);
+            tracer.finish(trace);
+            Deadline.end(deadline);
         }
     }
 
@@ -89,19 +388,56 @@ public class MovieManagerImpl implements MovieManager {
     public void sendActivity(String userToken, Activity activity) throws InvalidTokenException, ValuesInActivityException, UserNotAllowedException {
         if (userToken == null || activity == null)
             throw new IllegalArgumentException("Null values are not accepted as inputs");
-        logger.info("received sendActivity invocation; proceeding to validate user token");
-        if (validateUser(userToken)) {
-            logger.info("user token validation returned true; proceeding to validate received activity");
-            validateActivity(activity);
-            logger.info("activity validation returned true; proceeding to check if sender user matches user in activity");
-            if (authenticationHandler.getUserOfToken(userToken).getEmail() != activity.getUser().getEmail())
-                throw new ValuesInActivityException("the user token and the user set in the activity do not match");
-            logger.info("activity validation succeeded; proceeding add activity");
-            activityDao.addActivity(activity);
-            logger.info("activity added");
-        } else {
-            logger.info("user token validation returned false");
-            throw new IllegalArgumentException("User token has expired");
+        Trace trace = tracer.start("sendActivity");
+        Long deadline = Deadline.begin(DEADLINE_MILLIS);
+        long start = System.nanoTime();
+        try {
+            if (validateUser(userToken, trace)) {
+                trace.begin(Phase.PERMISSION_CHECK);
+                validateActivity(principalOf(userToken), activity);
+                trace.end(Phase.PERMISSION_CHECK);
+                trace.begin(Phase.ACTIVITY_SUBMIT);
+                activitySink.submit(activity, activityDao);
+                resumeIndex.record(activity);
+                viewingStats.recordActivity(activity);
+                trace.end(Phase.ACTIVITY_SUBMIT);
+                clipPrefetcher.activityReported(userToken, activity.getMovieId());
+            } else {
+                throw new IllegalArgumentException("User token has expired");
+            }
+        } catch (Exception e) {
+            SEND_ACTIVITY.error(e);
+            throw e;
+        } finally {
+            SEND_ACTIVITY.record(System.nanoTime() - start);
+            tracer.finish(trace);
+            Deadline.end(deadline);
+        }
+    }
+
+    /**
+     * {@link MovieManager#getResumePosition(String, Long)}
+     */
+    public ResumePosition getResumePosition(String userToken, Long movieId) throws InvalidTokenException {
+        if (userToken == null || movieId == null)
+            throw new IllegalArgumentException("Null values are not accepted as inputs");
+        Trace trace = tracer.start("getResumePosition");
+        Long deadline = Deadline.begin(DEADLINE_MILLIS);
+        long start = System.nanoTime();
+        try {
+            if (validateUser(userToken, trace)) {
+                User user = principalOf(userToken).getUser();
+                return user == null ? null : resumeIndex.get(user.getEmail(), movieId);
+            } else {
+                throw new IllegalArgumentException("User token has expired");
+            }
+        } catch (Exception e) {
+            GET_RESUME_POSITION.error(e);
+            throw e;
+        } finally {
+            GET_RESUME_POSITION.record(System.nanoTime() - start);
+            tracer.finish(trace);
+            Deadline.end(deadline);
         }
     }
 
@@ -111,43 +447,246 @@ public class MovieManagerImpl implements MovieManager {
     public ClipData getAd(String userToken, Long movieId) throws InvalidTokenException, NoAdsException {
         if (userToken == null || movieId == null)
             throw new IllegalArgumentException("Null values are not accepted as inputs");
-        logger.info("received sendActivity invocation; proceeding to validate user token");
-        if (validateUser(userToken)) {
-            logger.info("user token validation returned true; proceeding to select random Ad");
-            Ad ad = getRandomAd();
-            logger.info("random Ad selected; proceeding to retrieve its associated ClipData");
-            ClipData clipData = clipStorage.getClipDataByClipId(ad.getClip().getId());
-            logger.info("Clip data for the selected Ad found, proceeding to return this object");
-            return clipData;
-        } else {
-            logger.info("user token validation returned false");
-            throw new IllegalArgumentException("User token has expired");
+        Trace trace = tracer.start("getAd");
+        Long deadline = Deadline.begin(DEADLINE_MILLIS);
+        long start = System.nanoTime();
+        try {
+            if (validateUser(userToken, trace)) {
+                try {
+                    trace.begin(Phase.AD_SELECTION);
+                    Ad ad = getRandomAd(userToken, movieId);
+                    trace.end(Phase.AD_SELECTION);
+                    trace.begin(Phase.STORAGE_FETCH);
+                    ClipData clipData = clipDataCache.get(ad.getClip().getId(), clipStorage, PIN_AD_CLIPS);
+                    trace.end(Phase.STORAGE_FETCH);
+                    viewingStats.recordAdImpression(movieId);
+                    return clipData;
+                } catch (DependencyUnavailableException e) {
+                    //the movie plays without an ad rather than waiting for a failing dependency
+                    throw new NoAdsException();
+                }
+            } else {
+                throw new IllegalArgumentException("User token has expired");
+            }
+        } catch (Exception e) {
+            GET_AD.error(e);
+            throw e;
+        } finally {
+            GET_AD.record(System.nanoTime() - start);
+            tracer.finish(trace);
+            Deadline.end(deadline);
+        }
+    }
+
+    /**
+     * {@link MovieManager#getAdStream(String, Long)}
+     */
+    public ClipStream getAdStream(String userToken, Long movieId) throws InvalidTokenException, NoAdsException {
+        if (userToken == null || movieId == null)
+            throw new IllegalArgumentException("Null values are not accepted as inputs");
+        Trace trace = tracer.start("getAdStream");
+        Long deadline = Deadline.begin(DEADLINE_MILLIS);
+        long start = System.nanoTime();
+        try {
+            if (validateUser(userToken, trace)) {
+                try {
+                    trace.begin(Phase.AD_SELECTION);
+                    Ad ad = getRandomAd(userToken, movieId);
+                    trace.end(Phase.AD_SELECTION);
+                    trace.begin(Phase.STORAGE_FETCH);
+                    ClipPayload payload = clipDataCache.getPayload(ad.getClip().getId(), clipStorage, PIN_AD_CLIPS);
+                    trace.end(Phase.STORAGE_FETCH);
+                    viewingStats.recordAdImpression(movieId);
+                    return streamOf(payload);
+                } catch (DependencyUnavailableException e) {
+                    //the movie plays without an ad rather than waiting for a failing dependency
+                    throw new NoAdsException();
+                }
+            } else {
+                throw new IllegalArgumentException("User token has expired");
+            }
+        } catch (Exception e) {
+            GET_AD_STREAM.error(e);
+            throw e;
+        } finally {
+            GET_AD_STREAM.record(System.nanoTime() - start);
+            tracer.finish(trace);
+            Deadline.end(deadline);
         }
     }
 
     /**
-     * Validates received user token
+     * Validates received user token, using the token validation cache to avoid repeated remote calls
      *
      * @param userToken the user token
+     * @param trace     the trace of the request
      * @return true if token is valid, otherwise false
      * @throws InvalidTokenException when token is malformed
+     * @see TokenValidationCache
+     */
+    private boolean validateUser(String userToken, Trace trace) throws InvalidTokenException {
+        trace.begin(Phase.TOKEN_VALIDATION);
+        boolean valid = tokenValidationCache.validate(userToken, authenticationHandler);
+        trace.end(Phase.TOKEN_VALIDATION);
+        return valid;
+    }
+
+    /**
+     * Validates the token of a clip fetch. A playback grant is verified locally; any other token is validated as a
+     * user token.
+     *
+     * @param userToken the user token or playback grant
+     * @param clipId    the clip requested
+     * @param trace     the trace of the request
+     * @return true if the token is valid, false if it has expired
+     * @throws InvalidTokenException when the token is malformed, or is a grant that is forged or does not cover the clip
+     * @see PlaybackGrants
+     */
+    private boolean validateClipAccess(String userToken, Long clipId, Trace trace) throws InvalidTokenException {
+        if (!PlaybackGrants.isGrant(userToken))
+            return validateUser(userToken, trace);
+        trace.begin(Phase.TOKEN_VALIDATION);
+        PlaybackGrants.Status status = playbackGrants.verify(userToken, clipId);
+        trace.end(Phase.TOKEN_VALIDATION);
+        switch (status) {
+            case VALID:
+                return true;
+            case EXPIRED:
+                return false;
+            default:
+                //forged, signed with a retired key or issued for another movie
+                throw new InvalidTokenException();
+        }
+    }
+
+    /**
+     * Validates the token of a batch clip fetch. A playback grant is verified for every clip of the batch; any other
+     * token is validated once as a user token.
+     *
+     * @param userToken the user token or playback grant
+     * @param clipIds   the clips requested
+     * @param trace     the trace of the request
+     * @return true if the token is valid, false if it has expired
+     * @throws InvalidTokenException when the token is malformed, or is a grant that is forged or does not cover
+     *                               every clip
+     * @see #validateClipAccess(String, Long, Trace)
+     */
+    private boolean validateBatchClipAccess(String userToken, List<Long> clipIds, Trace trace) throws InvalidTokenException {
+        if (!PlaybackGrants.isGrant(userToken))
+            return validateUser(userToken, trace);
+        for (Long clipId : clipIds) {
+            if (!validateClipAccess(userToken, clipId, trace))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Loads a movie the caller is allowed to see
+     *
+     * @param userToken the user token
+     * @param movieId   the id of the movie
+     * @param trace     the trace of the request
+     * @return the movie
+     * @throws InvalidTokenException   when token is malformed
+     * @throws MovieNotFoundException  when the movie does not exist
+     * @throws UserNotAllowedException when the user is not allowed to see the movie
+     */
+    private CachedMovie getAllowedMovie(String userToken, Long movieId, Trace trace) throws InvalidTokenException, MovieNotFoundException, UserNotAllowedException {
+        if (!validateUser(userToken, trace))
+            throw new IllegalArgumentException("User token has expired");
+        trace.begin(Phase.DAO_FETCH);
+        CachedMovie movie = movieCache.getMovie(movieId, movieDao);
+        trace.end(Phase.DAO_FETCH);
+        trace.begin(Phase.PERMISSION_CHECK);
+        boolean allowed = userAllowedMovie(principalOf(userToken), movie);
+        trace.end(Phase.PERMISSION_CHECK);
+        if (!allowed)
+            throw new UserNotAllowedException("The given user is not allowed to request the selected movie");
+        return movie;
+    }
+
+    /**
+     * Wraps the payload of a clip for sending as an MTOM attachment
+     *
+     * @param payload the payload, or null
+     * @return the streamed clip, or null when there is no payload
      */
-    private boolean validateUser(String userToken) throws InvalidTokenException {
-        return authenticationHandler.validateToken(userToken);
+    private static ClipStream streamOf(ClipPayload payload) {
+        if (payload == null)
+            return null;
+        return new ClipStream(payload.getClipId(), payload.getLength(), new DataHandler(payload));
     }
 
     /**
-     * Validates if all values set in the received activity are allowed
+     * Checks the inputs of a batch request
      *
-     * @param activity the activity subject to controls
-     * @throws ValuesInActivityException if non-primitive attributes in the activity are not set, or if they do not exist in the system
+     * @param userToken the user token
+     * @param ids       the requested ids
+     */
+    private void validateBatch(String userToken, List<Long> ids) {
+        if (userToken == null || ids == null || ids.contains(null))
+            throw new IllegalArgumentException("Null values are not accepted as inputs");
+        if (ids.size() > MAX_BATCH_SIZE)
+            throw new IllegalArgumentException("At most " + MAX_BATCH_SIZE + " items can be requested at once");
+    }
+
+    /**
+     * Runs the loads of a batch request on the batch executor and waits for all of them
+     *
+     * @param loads the loads to run
+     * @return the futures of the loads, in the same order, all of them done
+     */
+    private <T> List<Future<T>> runAll(List<Callable<T>> loads) {
+        List<Callable<T>> bounded = new ArrayList<Callable<T>>(loads.size());
+        for (Callable<T> load : loads)
+            bounded.add(Deadline.propagate(load));
+        try {
+            return batchExecutor.invokeAll(bounded);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running batch request");
+        }
+    }
+
+    /**
+     * Maps the failure of a batch item load to the error reported to the caller
+     *
+     * @param e        the failure
+     * @param notFound the error reported when the item does not exist
+     * @return the error of the item
+     */
+    private ItemError itemErrorOf(ExecutionException e, ItemError notFound) {
+        if (e.getCause() instanceof MovieNotFoundException)
+            return notFound;
+        logger.error("could not load batch item", e.getCause());
+        return ItemError.FAILED;
+    }
+
+    /**
+     * Builds the principal of a request whose token was already validated
+     *
+     * @param userToken the validated user token
+     * @return the principal, resolving user and roles on first use
+     * @see Principal
+     */
+    private Principal principalOf(String userToken) {
+        return new Principal(userToken, authenticationHandler, roleDao, tokenValidationCache, roleResolver);
+    }
+
+    /**
+     * Validates if all values set in the received activity are allowed. The user set in the activity must be the
+     * owner of the token, so the permissions checked are those of the calling principal.
+     *
+     * @param principal the caller sending the activity
+     * @param activity  the activity subject to controls
+     * @throws ValuesInActivityException if non-primitive attributes in the activity are not set, if they do not exist in the system, or if the user does not match the caller
      * @throws UserNotAllowedException   when the user set in the activity is not the allowed roles to interact with the movie set in the activity
+     * @throws InvalidTokenException     when the token of the principal is malformed
      * @see Activity
      */
-    private void validateActivity(Activity activity) throws ValuesInActivityException, UserNotAllowedException {
+    private void validateActivity(Principal principal, Activity activity) throws ValuesInActivityException, UserNotAllowedException, InvalidTokenException {
         Long movieId = activity.getMovieId();
-        int position = activity.getPosition();
-        long time = activity.getTime();
         User user = activity.getUser();
 
         if (movieId == null)
@@ -155,56 +694,53 @@ public class MovieManagerImpl implements MovieManager {
         if (user == null)
             throw new ValuesInActivityException("User is not set");
 
+        User caller = principal.getUser();
+        if (caller == null || caller.getEmail() == null || !caller.getEmail().equals(user.getEmail()))
+            throw new ValuesInActivityException("the user token and the user set in the activity do not match");
+
         try {
-            if (!userAllowedMovie(authenticationHandler.authenticate(user), movieDao.getMovieById(movieId)))
+            if (!userAllowedMovie(principal, movieCache.getMovie(movieId, movieDao)))
                 throw new UserNotAllowedException("The user set in the activity is not allowed to interact with the movie set in the activity");
         } catch (MovieNotFoundException e) {
             throw new ValuesInActivityException("The movie set in the activity does not exist");
-        } catch (InvalidUserException e) {
-            throw new ValuesInActivityException("The user set in the activity is not valid");
         }
     }
 
     /**
-     * Checks if a user is allowed to interact with a certain movie
+     * Checks if a user is allowed to interact with a certain movie. Disabled movies are only available to
+     * administrators and reviewers; the roles of the token are resolved once and memoized by the role resolver.
      *
-     * @param userToken the user token
+     * @param principal the caller
      * @param movie     the movie in consideration
      * @return true if user is allowed to interact with given movie, false otherwise
-     * @see Movie
+     * @see CachedMovie
+     * @see RoleResolver
      */
-    private boolean userAllowedMovie(String userToken, Movie movie) {
+    private boolean userAllowedMovie(Principal principal, CachedMovie movie) {
         if (movie.isEnabled())
             return true;
-        else {
-            try {
-                if (authenticationHandler.isUserInRole(userToken, roleDao.getRoleById(Role.RoleType.ADMINISTRATOR.getRole())) || authenticationHandler.isUserInRole(userToken, roleDao.getRoleById(Role.RoleType.REVIEWER.getRole())))
-                    return true;
-                if (authenticationHandler.isUserInRole(userToken, roleDao.getRoleById(Role.RoleType.AD_PROVIDER.getRole())) || authenticationHandler.isUserInRole(userToken, roleDao.getRoleById(Role.RoleType.MOVIE_PROVIDER.getRole())) || authenticationHandler.isUserInRole(userToken, roleDao.getRoleById(Role.RoleType.USER.getRole())))
-                    return false;
-            } catch (RoleNotFoundException e) {
-                return false; //should never reach here
-            } catch (InvalidTokenException e) {
-                return false; //should never reach here
-            }
+        try {
+            return principal.hasAnyRole(PRIVILEGED_ROLES);
+        } catch (InvalidTokenException e) {
             return false; //should never reach here
         }
     }
 
     /**
-     * Method that retrieves all ads in system through adDao, and randomly returns one
+     * Method that randomly selects one of the ads in system for the given movie, using the in-memory ad index. The
+     * frequency cap is counted per user rather than per token, so that logging in again does not reset it.
      *
+     * @param userToken the token of the user the ad is shown to
+     * @param movieId   the movie the ad is played in
      * @return randomly selected Ad
-     * @throws NoAdsException when no ads are found in the system
+     * @throws NoAdsException        when no ads are found in the system
+     * @throws InvalidTokenException when the token is malformed
      * @see Ad
+     * @see AdIndex
      */
-    private Ad getRandomAd() throws NoAdsException {
-        List<Ad> ads = adDao.getAllAds();
-        if (ads == null || ads.size() == 0)
-            throw new NoAdsException();
-        int size = ads.size();
-        int randomNumberInRange = (int) Math.floor(Math.random() * size);
-        return ads.get(randomNumberInRange);
+    private Ad getRandomAd(String userToken, Long movieId) throws NoAdsException, InvalidTokenException {
+        User user = principalOf(userToken).getUser();
+        return adIndex.select(movieId, user == null ? null : user.getEmail(), adDao);
     }
 
     /**
@@ -272,4 +808,135 @@ public class MovieManagerImpl implements MovieManager {
     public void setAdDao(AdDao adDao) {
         this.adDao = adDao;
     }
+
+    /**
+     * Setter for playbackGrants attribute
+     *
+     * @param playbackGrants to set
+     * @see PlaybackGrants
+     */
+    @WebMethod(exclude = true)
+    public void setPlaybackGrants(PlaybackGrants playbackGrants) {
+        this.playbackGrants = playbackGrants;
+    }
+
+    /**
+     * Setter for tokenValidationCache attribute
+     *
+     * @param tokenValidationCache to set
+     * @see TokenValidationCache
+     */
+    @WebMethod(exclude = true)
+    public void setTokenValidationCache(TokenValidationCache tokenValidationCache) {
+        this.tokenValidationCache = tokenValidationCache;
+    }
+
+    /**
+     * Setter for roleResolver attribute
+     *
+     * @param roleResolver to set
+     * @see RoleResolver
+     */
+    @WebMethod(exclude = true)
+    public void setRoleResolver(RoleResolver roleResolver) {
+        this.roleResolver = roleResolver;
+    }
+
+    /**
+     * Setter for movieCache attribute
+     *
+     * @param movieCache to set
+     * @see MovieCache
+     */
+    @WebMethod(exclude = true)
+    public void setMovieCache(MovieCache movieCache) {
+        this.movieCache = movieCache;
+    }
+
+    /**
+     * Setter for activitySink attribute
+     *
+     * @param activitySink to set
+     * @see ActivitySink
+     */
+    @WebMethod(exclude = true)
+    public void setActivitySink(ActivitySink activitySink) {
+        this.activitySink = activitySink;
+    }
+
+    /**
+     * Setter for resumeIndex attribute
+     *
+     * @param resumeIndex to set
+     * @see ResumeIndex
+     */
+    @WebMethod(exclude = true)
+    public void setResumeIndex(ResumeIndex resumeIndex) {
+        this.resumeIndex = resumeIndex;
+    }
+
+    /**
+     * Setter for viewingStats attribute
+     *
+     * @param viewingStats to set
+     * @see ViewingStats
+     */
+    @WebMethod(exclude = true)
+    public void setViewingStats(ViewingStats viewingStats) {
+        this.viewingStats = viewingStats;
+    }
+
+    /**
+     * Setter for adIndex attribute
+     *
+     * @param adIndex to set
+     * @see AdIndex
+     */
+    @WebMethod(exclude = true)
+    public void setAdIndex(AdIndex adIndex) {
+        this.adIndex = adIndex;
+    }
+
+    /**
+     * Setter for clipDataCache attribute
+     *
+     * @param clipDataCache to set
+     * @see ClipDataCache
+     */
+    @WebMethod(exclude = true)
+    public void setClipDataCache(ClipDataCache clipDataCache) {
+        this.clipDataCache = clipDataCache;
+    }
+
+    /**
+     * Setter for batchExecutor attribute
+     *
+     * @param batchExecutor to set
+     */
+    @WebMethod(exclude = true)
+    public void setBatchExecutor(ExecutorService batchExecutor) {
+        this.batchExecutor = batchExecutor;
+    }
+
+    /**
+     * Setter for clipPrefetcher attribute
+     *
+     * @param clipPrefetcher to set
+     * @see ClipPrefetcher
+     */
+    @WebMethod(exclude = true)
+    public void setClipPrefetcher(ClipPrefetcher clipPrefetcher) {
+        this.clipPrefetcher = clipPrefetcher;
+    }
+
+    /**
+     * Setter for tracer attribute
+     *
+     * @param tracer to set
+     * @see Tracer
+     */
+    @WebMethod(exclude = true)
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
 }
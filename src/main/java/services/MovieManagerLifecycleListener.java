@@ -0,0 +1,52 @@
+package services;
+
+import edu.umflix.persistence.ActivityDao;
+import org.apache.log4j.Logger;
+import services.activity.ActivitySpool;
+
+import javax.ejb.EJB;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Starts the background work of the shared components of the movie manager when the application is deployed, and
+ * releases them when it is undeployed
+ *
+ * @see MovieManagerComponents#shutdown()
+ */
+public class MovieManagerLifecycleListener implements ServletContextListener {
+
+    static Logger logger = Logger.getLogger(MovieManagerLifecycleListener.class);
+    private static final int MAX_REBUILD_ACTIVITIES = Settings.getInt("resumeIndex.maxRebuildActivities", 5000000);
+    private static final long REBUILD_RETRY_MILLIS = Settings.getLong("resumeIndex.rebuildRetryMillis", 1000);
+    private static final long MAX_REBUILD_RETRY_MILLIS = Settings.getLong("resumeIndex.maxRebuildRetryMillis", 60000);
+
+    @EJB(beanName = "ActivityDao")
+    private ActivityDao activityDao;
+
+    public void contextInitialized(ServletContextEvent servletContextEvent) {
+        //activities left in the spool by the previous run are replayed without waiting for a new one
+        ActivitySpool activitySpool = MovieManagerComponents.getActivitySpool();
+        if (activitySpool != null && activityDao != null)
+            activitySpool.start(activityDao);
+        //activities sent while the index is loaded are indexed as usual
+        if (activityDao != null)
+            MovieManagerComponents.getResumeIndex().rebuildInBackground(activityDao,
+                    MovieManagerComponents.getResumeIndexLoader(), MAX_REBUILD_ACTIVITIES, REBUILD_RETRY_MILLIS,
+                    MAX_REBUILD_RETRY_MILLIS);
+    }
+
+    public void contextDestroyed(ServletContextEvent servletContextEvent) {
+        MovieManagerComponents.shutdown();
+    }
+
+    /**
+     * Setter for activityDao attribute
+     *
+     * @param activityDao to set
+     * @see ActivityDao
+     */
+    public void setActivityDao(ActivityDao activityDao) {
+        this.activityDao = activityDao;
+    }
+}
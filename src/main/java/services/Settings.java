@@ -0,0 +1,68 @@
+package services;
+
+/**
+ * Tunables of the movie manager, read from system properties prefixed with <code>moviemanager.</code>
+ * so that they can be set per node in the app server configuration.
+ */
+public final class Settings {
+
+    private static final String PREFIX = "moviemanager.";
+
+    private Settings() {
+    }
+
+    /**
+     * Tells whether a setting is present
+     *
+     * @param key the setting name, without prefix
+     * @return true if the setting has a value
+     */
+    public static boolean isSet(String key) {
+        return System.getProperty(PREFIX + key) != null;
+    }
+
+    /**
+     * Reads a long setting
+     *
+     * @param key          the setting name, without prefix
+     * @param defaultValue the value used when the setting is missing or malformed
+     * @return the configured value
+     */
+    public static long getLong(String key, long defaultValue) {
+        return Long.getLong(PREFIX + key, defaultValue);
+    }
+
+    /**
+     * Reads an int setting
+     *
+     * @param key          the setting name, without prefix
+     * @param defaultValue the value used when the setting is missing or malformed
+     * @return the configured value
+     */
+    public static int getInt(String key, int defaultValue) {
+        return Integer.getInteger(PREFIX + key, defaultValue);
+    }
+
+    /**
+     * Reads a boolean setting
+     *
+     * @param key          the setting name, without prefix
+     * @param defaultValue the value used when the setting is missing
+     * @return the configured value
+     */
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * Reads a string setting
+     *
+     * @param key          the setting name, without prefix
+     * @param defaultValue the value used when the setting is missing
+     * @return the configured value
+     */
+    public static String getString(String key, String defaultValue) {
+        return System.getProperty(PREFIX + key, defaultValue);
+    }
+}
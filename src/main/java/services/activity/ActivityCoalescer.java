@@ -0,0 +1,204 @@
+package services.activity;
+
+import edu.umflix.model.Activity;
+import edu.umflix.model.User;
+import edu.umflix.persistence.ActivityDao;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces playback position updates of the same user and movie. The first activity of a (user, movie) pair opens
+ * a window of <code>windowMillis</code>; later forward position updates within the window replace it, and only the
+ * latest one is handed to the downstream sink when the window closes. A position moving backwards (a seek or a
+ * restart) is a distinct event: the pending activity is forwarded right away and the new one opens a new window.
+ * Closed windows are forwarded by {@link #sweep()}, which the owner of the coalescer schedules.
+ * <p/>
+ * Submits are rejected once {@link #shutdown()} is called, so that nothing is left pending after its final flush,
+ * and nothing is forwarded after it returns.
+ */
+public class ActivityCoalescer implements ActivitySink {
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final ActivitySink downstream;
+    private final long windowMillis;
+    private final ConcurrentHashMap<Key, Pending> pending = new ConcurrentHashMap<Key, Pending>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private volatile boolean stopped;
+
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong forwardedCount = new AtomicLong();
+
+    /**
+     * @param downstream   the sink receiving coalesced activities
+     * @param windowMillis how long position updates are held back; 0 forwards every activity right away
+     */
+    public ActivityCoalescer(ActivitySink downstream, long windowMillis) {
+        this.downstream = downstream;
+        this.windowMillis = windowMillis;
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            locks[i] = new Object();
+    }
+
+    /**
+     * {@link ActivitySink#submit(Activity, ActivityDao)}
+     *
+     * @throws IllegalStateException when the coalescer is shut down
+     */
+    public void submit(Activity activity, ActivityDao activityDao) {
+        if (stopped)
+            throw new IllegalStateException("activity coalescer is shut down");
+        receivedCount.incrementAndGet();
+        User user = activity.getUser();
+        if (windowMillis <= 0 || user == null || user.getEmail() == null) {
+            forward(activity, activityDao);
+            return;
+        }
+        Key key = new Key(user.getEmail(), activity.getMovieId());
+        synchronized (lockFor(key)) {
+            //checked again under the lock, which shutdown goes through before its final flush
+            if (stopped)
+                throw new IllegalStateException("activity coalescer is shut down");
+            Pending current = pending.get(key);
+            if (current == null) {
+                pending.put(key, new Pending(activity, activityDao, currentTimeMillis()));
+                return;
+            }
+            if (activity.getTime() < current.activity.getTime()) {
+                coalescedCount.incrementAndGet(); //arrived late, already superseded
+                return;
+            }
+            if (activity.getPosition() < current.activity.getPosition()) {
+                pending.put(key, new Pending(activity, activityDao, currentTimeMillis()));
+                //forwarded under the lock, so that shutdown does not return before the downstream sink has it
+                forward(current.activity, current.activityDao);
+            } else {
+                current.activity = activity;
+                current.activityDao = activityDao;
+                coalescedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Forwards every pending activity whose window is closed, to be called periodically. Once the coalescer is shut
+     * down, its final flush forwards them instead.
+     */
+    public synchronized void sweep() {
+        if (!stopped)
+            forwardPending(currentTimeMillis() - windowMillis);
+    }
+
+    /**
+     * Stops accepting activities and forwards every pending one, to be called on undeploy
+     */
+    public void shutdown() {
+        stopped = true;
+        for (Object lock : locks) {
+            synchronized (lock) {
+                //waits for the submits already past the check to leave their activity pending
+            }
+        }
+        //waits for a sweep in progress to forward what it took
+        synchronized (this) {
+            forwardPending(Long.MAX_VALUE);
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    /**
+     * @return number of activities dropped because a later position update of the same user and movie replaced them
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getForwardedCount() {
+        return forwardedCount.get();
+    }
+
+    /**
+     * Time source of the coalescer, overridable by tests
+     *
+     * @return current time in milliseconds
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private void forwardPending(long openedBefore) {
+        List<Pending> closed = new ArrayList<Pending>();
+        Iterator<Map.Entry<Key, Pending>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Pending> entry = iterator.next();
+            if (entry.getValue().openedAt > openedBefore)
+                continue;
+            synchronized (lockFor(entry.getKey())) {
+                Pending current = pending.get(entry.getKey());
+                if (current != null && current.openedAt <= openedBefore) {
+                    pending.remove(entry.getKey());
+                    closed.add(current);
+                }
+            }
+        }
+        for (Pending closedPending : closed)
+            forward(closedPending.activity, closedPending.activityDao);
+    }
+
+    private void forward(Activity activity, ActivityDao activityDao) {
+        forwardedCount.incrementAndGet();
+        downstream.submit(activity, activityDao);
+    }
+
+    private Object lockFor(Key key) {
+        return locks[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    private static final class Key {
+        private final String email;
+        private final Long movieId;
+
+        private Key(String email, Long movieId) {
+            this.email = email;
+            this.movieId = movieId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return email.equals(other.email) && (movieId == null ? other.movieId == null : movieId.equals(other.movieId));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * email.hashCode() + (movieId == null ? 0 : movieId.hashCode());
+        }
+    }
+
+    private static final class Pending {
+        private Activity activity;
+        private ActivityDao activityDao;
+        private final long openedAt;
+
+        private Pending(Activity activity, ActivityDao activityDao, long openedAt) {
+            this.activity = activity;
+            this.activityDao = activityDao;
+            this.openedAt = openedAt;
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package services.activity;
+
+import edu.umflix.model.Activity;
+import edu.umflix.persistence.ActivityDao;
+import org.apache.log4j.Logger;
+import services.Settings;
+import services.metrics.Gauge;
+import services.metrics.Metric;
+import services.metrics.Metrics;
+import services.metrics.MetricsRegistry;
+import services.resilience.DependencyUnavailableException;
+import services.resilience.Guard;
+import services.resilience.Guards;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Asynchronous ingestion of validated activities. Callers hand activities to a bounded queue and background
+ * workers write them through {@link ActivityDao} in batches of up to <code>batchSize</code> activities, or whatever
+ * arrived within <code>lingerMillis</code> of the first one. When the queue stays full for
+ * <code>offerTimeoutMillis</code> the caller writes the activity itself, which slows producers down to the pace of
+ * persistence instead of dropping activities. With no workers every activity is written on the calling thread.
+ * <p/>
+ * While ActivityDao is unavailable, its circuit open, workers park the activities they could not write in a side
+ * buffer as large as the queue and keep draining the queue into it; parked activities are retried, at most every
+ * <code>activityPipeline.retryMillis</code>, once the circuit lets calls through again. Only activities that find
+ * both full are dropped. A write that fails is retried the same way, up to
+ * <code>activityPipeline.maxAttempts</code> attempts.
+ * <p/>
+ * Once {@link #shutdown(long)} is called, submits are rejected, so that no activity is queued after the workers
+ * and the undeploying thread drained the queue.
+ */
+public class ActivityPipeline implements ActivitySink {
+
+    static Logger logger = Logger.getLogger(ActivityPipeline.class);
+    private static final Metric ADD_ACTIVITY = Metrics.dependency("ActivityDao.addActivity");
+    private static final Guard ACTIVITY_DAO = Guards.of("ActivityDao");
+    private static final long RETRY_MILLIS = Settings.getLong("activityPipeline.retryMillis", 1000);
+    private static final int MAX_ATTEMPTS = Settings.getInt("activityPipeline.maxAttempts", 3);
+
+    private final BlockingQueue<PendingActivity> queue;
+    private final BlockingQueue<PendingActivity> parked;
+    private final AtomicLong nextRetryAt = new AtomicLong();
+    private final int batchSize;
+    private final long lingerMillis;
+    private final long offerTimeoutMillis;
+    private final int workerCount;
+    private final List<Thread> workers = new ArrayList<Thread>();
+    //submits hold the read lock while they queue, shutdown takes the write lock to stop accepting them
+    private final ReadWriteLock gate = new ReentrantReadWriteLock();
+    private volatile boolean running;
+    private volatile boolean stopped;
+
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong callerWrittenCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong batchNanos = new AtomicLong();
+    private final AtomicLong maxBatchNanos = new AtomicLong();
+
+    /**
+     * @param capacity           maximum number of activities waiting to be written
+     * @param batchSize          maximum number of activities written by a worker in one go
+     * @param lingerMillis       how long a worker waits for a batch to fill up
+     * @param offerTimeoutMillis how long a caller waits for room in a full queue before writing the activity itself
+     * @param workerCount        number of background writers; 0 writes every activity on the calling thread
+     */
+    public ActivityPipeline(int capacity, int batchSize, long lingerMillis, long offerTimeoutMillis, int workerCount) {
+        if (capacity <= 0 || batchSize <= 0 || workerCount < 0)
+            throw new IllegalArgumentException("capacity and batchSize must be positive, workerCount non negative");
+        this.queue = new ArrayBlockingQueue<PendingActivity>(capacity);
+        this.parked = new ArrayBlockingQueue<PendingActivity>(capacity);
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * {@link ActivitySink#submit(Activity, ActivityDao)}
+     *
+     * @throws IllegalStateException when the pipeline is shut down
+     */
+    public void submit(Activity activity, ActivityDao activityDao) {
+        submit(activity, activityDao, null);
+    }
+
+    /**
+     * Accepts an activity and tells the given acknowledgement once it is written or given up
+     *
+     * @throws IllegalStateException when the pipeline is shut down
+     */
+    void submit(Activity activity, ActivityDao activityDao, Acknowledgement acknowledgement) {
+        PendingActivity pending = new PendingActivity(activity, activityDao, acknowledgement);
+        boolean queued;
+        gate.readLock().lock();
+        try {
+            if (stopped)
+                throw new IllegalStateException("activity pipeline is shut down");
+            acceptedCount.incrementAndGet();
+            if (workerCount == 0) {
+                queued = false;
+            } else {
+                if (!running)
+                    start();
+                queued = queue.offer(pending, offerTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queued = false;
+        } finally {
+            gate.readLock().unlock();
+        }
+        if (!queued)
+            writeOnCaller(pending);
+    }
+
+    /**
+     * Stops the workers once every queued activity has been written, to be called on undeploy. Activities the
+     * workers could not write within the timeout, parked ones included, are written on the calling thread.
+     *
+     * @param timeoutMillis how long to wait for the workers to drain the queue
+     * @return true if the workers drained the queue in time
+     */
+    public boolean shutdown(long timeoutMillis) {
+        gate.writeLock().lock();
+        try {
+            stopped = true;
+            running = false;
+        } finally {
+            gate.writeLock().unlock();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Thread worker : workers) {
+            try {
+                worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        List<PendingActivity> remaining = new ArrayList<PendingActivity>();
+        parked.drainTo(remaining);
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            logger.info("writing " + remaining.size() + " queued activities left after shutdown");
+            drop(write(remaining));
+        }
+        return remaining.isEmpty();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return number of activities waiting for ActivityDao to be available again
+     */
+    public int getParkedDepth() {
+        return parked.size();
+    }
+
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return number of activities written by callers because the queue was full or no workers are configured
+     */
+    public long getCallerWrittenCount() {
+        return callerWrittenCount.get();
+    }
+
+    /**
+     * @return number of activities given up because ActivityDao was unavailable and they could not be buffered, or
+     *         because every attempt to write them failed
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * @return mean time taken to write a batch, in microseconds
+     */
+    public long getMeanBatchLatencyMicros() {
+        long batches = batchCount.get();
+        return batches == 0 ? 0 : batchNanos.get() / batches / 1000;
+    }
+
+    /**
+     * @return longest time taken to write a batch, in microseconds
+     */
+    public long getMaxBatchLatencyMicros() {
+        return maxBatchNanos.get() / 1000;
+    }
+
+    /**
+     * Publishes the depths, counters and batch latencies of the pipeline, named <code>activity_pipeline_*</code>
+     *
+     * @param registry where they are published
+     */
+    public void registerGauges(MetricsRegistry registry) {
+        registry.gauge("activity_pipeline_queue_depth", new Gauge() {
+            public double getValue() {
+                return getQueueDepth();
+            }
+        });
+        registry.gauge("activity_pipeline_parked_depth", new Gauge() {
+            public double getValue() {
+                return getParkedDepth();
+            }
+        });
+        registry.counter("activity_pipeline_accepted_total", new Gauge() {
+            public double getValue() {
+                return getAcceptedCount();
+            }
+        });
+        registry.counter("activity_pipeline_written_total", new Gauge() {
+            public double getValue() {
+                return getWrittenCount();
+            }
+        });
+        registry.counter("activity_pipeline_failed_total", new Gauge() {
+            public double getValue() {
+                return getFailedCount();
+            }
+        });
+        registry.counter("activity_pipeline_caller_written_total", new Gauge() {
+            public double getValue() {
+                return getCallerWrittenCount();
+            }
+        });
+        registry.counter("activity_pipeline_dropped_total", new Gauge() {
+            public double getValue() {
+                return getDroppedCount();
+            }
+        });
+        registry.counter("activity_pipeline_batches_total", new Gauge() {
+            public double getValue() {
+                return getBatchCount();
+            }
+        });
+        registry.gauge("activity_pipeline_batch_latency_mean_seconds", new Gauge() {
+            public double getValue() {
+                return getMeanBatchLatencyMicros() / 1e6;
+            }
+        });
+        registry.gauge("activity_pipeline_batch_latency_max_seconds", new Gauge() {
+            public double getValue() {
+                return getMaxBatchLatencyMicros() / 1e6;
+            }
+        });
+    }
+
+    private synchronized void start() {
+        if (running || stopped)
+            return;
+        running = true;
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(new Worker(), "activity-pipeline-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    private void writeOnCaller(PendingActivity pending) {
+        callerWrittenCount.incrementAndGet();
+        List<PendingActivity> batch = new ArrayList<PendingActivity>(1);
+        batch.add(pending);
+        //the caller must not wait for the dao to come back, the workers retry what it could not write
+        List<PendingActivity> deferred = write(batch);
+        if (workerCount == 0 || stopped)
+            drop(deferred);
+        else
+            park(deferred);
+    }
+
+    /**
+     * Writes a batch of activities
+     *
+     * @return the activities not written because ActivityDao was unavailable or the write failed, that have
+     *         attempts left
+     */
+    private List<PendingActivity> write(List<PendingActivity> batch) {
+        List<PendingActivity> deferred = null;
+        long start = System.nanoTime();
+        for (PendingActivity pending : batch) {
+            Guard.Permit permit;
+            try {
+                permit = ACTIVITY_DAO.enter(ADD_ACTIVITY);
+            } catch (DependencyUnavailableException e) {
+                if (deferred == null)
+                    deferred = new ArrayList<PendingActivity>();
+                deferred.add(pending);
+                continue;
+            }
+            try {
+                pending.activityDao.addActivity(pending.activity);
+                writtenCount.incrementAndGet();
+                pending.acknowledge(true);
+            } catch (RuntimeException e) {
+                failedCount.incrementAndGet();
+                permit.failed(e);
+                if (++pending.attempts < MAX_ATTEMPTS) {
+                    logger.warn("could not write activity for movie " + pending.activity.getMovieId()
+                            + ", will retry", e);
+                    if (deferred == null)
+                        deferred = new ArrayList<PendingActivity>();
+                    deferred.add(pending);
+                } else {
+                    droppedCount.incrementAndGet();
+                    logger.error("could not write activity for movie " + pending.activity.getMovieId(), e);
+                    pending.acknowledge(false);
+                }
+            } finally {
+                permit.release();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        batchCount.incrementAndGet();
+        batchNanos.addAndGet(elapsed);
+        long max = maxBatchNanos.get();
+        while (elapsed > max && !maxBatchNanos.compareAndSet(max, elapsed))
+            max = maxBatchNanos.get();
+        return deferred == null ? Collections.<PendingActivity>emptyList() : deferred;
+    }
+
+    /**
+     * Keeps activities deferred by an unavailable ActivityDao for a later retry, dropping those that find the side
+     * buffer full
+     */
+    private void park(List<PendingActivity> deferred) {
+        if (deferred.isEmpty())
+            return;
+        long now = System.currentTimeMillis();
+        long due = nextRetryAt.get();
+        if (due < now)
+            nextRetryAt.compareAndSet(due, now + RETRY_MILLIS);
+        List<PendingActivity> dropped = new ArrayList<PendingActivity>();
+        for (PendingActivity pending : deferred) {
+            if (!parked.offer(pending))
+                dropped.add(pending);
+        }
+        drop(dropped);
+    }
+
+    /**
+     * Claims the next retry of the parked activities for the calling worker
+     *
+     * @return true if parked activities are due for a retry and ActivityDao lets calls through
+     */
+    private boolean claimRetry() {
+        if (parked.isEmpty() || !ACTIVITY_DAO.isAvailable())
+            return false;
+        long now = System.currentTimeMillis();
+        long due = nextRetryAt.get();
+        return now >= due && nextRetryAt.compareAndSet(due, now + RETRY_MILLIS);
+    }
+
+    private void drop(List<PendingActivity> deferred) {
+        if (deferred.isEmpty())
+            return;
+        droppedCount.addAndGet(deferred.size());
+        logger.error("dropped " + deferred.size() + " activities, ActivityDao unavailable");
+        for (PendingActivity pending : deferred)
+            pending.acknowledge(false);
+    }
+
+    /**
+     * Told what became of an activity handed to the pipeline
+     */
+    interface Acknowledgement {
+
+        /**
+         * @param written true if the activity was written, false if the pipeline gave up on it
+         */
+        void acknowledge(boolean written);
+    }
+
+    private class Worker implements Runnable {
+        public void run() {
+            List<PendingActivity> batch = new ArrayList<PendingActivity>(batchSize);
+            while (running || !queue.isEmpty()) {
+                try {
+                    if (claimRetry()) {
+                        parked.drainTo(batch, batchSize);
+                        park(write(batch));
+                        continue;
+                    }
+                    PendingActivity first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null)
+                        continue;
+                    batch.add(first);
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+                    while (batch.size() < batchSize) {
+                        queue.drainTo(batch, batchSize - batch.size());
+                        long remaining = deadline - System.nanoTime();
+                        if (batch.size() >= batchSize || remaining <= 0)
+                            break;
+                        PendingActivity next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null)
+                            break;
+                        batch.add(next);
+                    }
+                    park(write(batch));
+                } catch (InterruptedException e) {
+                    if (!batch.isEmpty())
+                        drop(write(batch));
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    batch.clear();
+                }
+            }
+            //last attempt for the parked activities before shutdown writes whatever is left
+            List<PendingActivity> last = new ArrayList<PendingActivity>();
+            parked.drainTo(last);
+            if (!last.isEmpty())
+                park(write(last));
+        }
+    }
+
+    private static final class PendingActivity {
+        private final Activity activity;
+        private final ActivityDao activityDao;
+        private final Acknowledgement acknowledgement;
+        private int attempts;
+
+        private PendingActivity(Activity activity, ActivityDao activityDao, Acknowledgement acknowledgement) {
+            this.activity = activity;
+            this.activityDao = activityDao;
+            this.acknowledgement = acknowledgement;
+        }
+
+        private void acknowledge(boolean written) {
+            if (acknowledgement != null)
+                acknowledgement.acknowledge(written);
+        }
+    }
+}
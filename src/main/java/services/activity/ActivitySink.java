@@ -0,0 +1,20 @@
+package services.activity;
+
+import edu.umflix.model.Activity;
+import edu.umflix.persistence.ActivityDao;
+
+/**
+ * Destination of activities accepted by {@link model.MovieManager#sendActivity(String, Activity)} once they have
+ * been validated. Implementations are chained to form the ingestion path in front of {@link ActivityDao}.
+ */
+public interface ActivitySink {
+
+    /**
+     * Accepts an already validated activity
+     *
+     * @param activity    the activity
+     * @param activityDao the dao the activity is eventually written through
+     * @throws IllegalStateException when the sink was shut down and no longer accepts activities
+     */
+    public void submit(Activity activity, ActivityDao activityDao);
+}
@@ -0,0 +1,819 @@
+package services.activity;
+
+import edu.umflix.model.Activity;
+import edu.umflix.model.User;
+import edu.umflix.persistence.ActivityDao;
+import org.apache.log4j.Logger;
+import services.DaemonThreadFactory;
+import services.Settings;
+import services.cache.LruCache;
+import services.resilience.Guard;
+import services.resilience.Guards;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Durable write-ahead spool of activities in front of the {@link ActivityPipeline}. Accepted activities are appended
+ * to a local log and a replayer thread hands them to the pipeline in log order, which writes them through
+ * {@link ActivityDao} in batches, so accepting an activity costs a memory copy whatever the state of persistence.
+ * While the dao is unavailable the replayer leaves the activities in the log; an activity the pipeline gives up on
+ * is handed to it again after <code>retryMillis</code>, up to <code>maxAttempts</code> times. At most
+ * <code>activitySpool.maxInFlight</code> activities are held by the pipeline at a time.
+ * <p/>
+ * The log is a directory of memory-mapped segments of <code>segmentBytes</code>, rolled when full and deleted once
+ * replayed. Each record holds its length, a CRC32 and the activity; on startup segments are scanned up to the first
+ * damaged record and replay resumes from the checkpoint, a mapped position advanced once the pipeline wrote or gave up on every activity
+ * before it.
+ * Appended pages and the checkpoint are forced to disk every <code>syncMillis</code> by a background thread: a
+ * crashed process loses nothing, a crashed machine loses at most the last interval. The same thread maps the next
+ * segment ahead of time and forces the segments retired by a roll, so that appending never waits for the disk.
+ * <p/>
+ * A record keeps the movie id, position and time of the activity, the email of its user and, when the user is
+ * {@link Serializable}, its serialized form, from which the replayed user is rebuilt with all of its fields. A user
+ * that is not serializable, or whose serialized form exceeds 16 KB, is replayed with its email only. The activity id
+ * is not kept, the dao assigns it when it persists the activity.
+ * <p/>
+ * Every activity has an idempotency key derived from its user, movie, time and position. An activity whose key was
+ * appended within <code>dedupeWindowMillis</code>, such as a client retry, is not appended again, and the replayer
+ * skips keys it already wrote in that window. An activity written just before a crash, whose checkpoint update did
+ * not reach the disk, may still be written twice after a machine crash.
+ * <p/>
+ * Activities that can not be appended, because the disk is full or the record too large, are handed to the fallback
+ * sink.
+ */
+public class ActivitySpool implements ActivitySink {
+
+    static Logger logger = Logger.getLogger(ActivitySpool.class);
+    private static final Guard ACTIVITY_DAO = Guards.of("ActivityDao");
+    private static final int MAX_IN_FLIGHT = Settings.getInt("activitySpool.maxInFlight", 1000);
+    private static final DaemonThreadFactory REPLAYERS = new DaemonThreadFactory("activity-spool-replayer");
+    private static final DaemonThreadFactory SYNCERS = new DaemonThreadFactory("activity-spool-sync");
+
+    private static final String SEGMENT_PREFIX = "activities-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_EMAIL_BYTES = 1024;
+    private static final int MAX_USER_BYTES = 16 * 1024;
+    private static final long NO_MOVIE = Long.MIN_VALUE;
+
+    private final File directory;
+    private final int segmentBytes;
+    private final long syncMillis;
+    private final long retryMillis;
+    private final int maxAttempts;
+    private final long dedupeWindowMillis;
+    private final ActivityPipeline pipeline;
+    private final ActivitySink fallback;
+    private final LruCache<Long, Boolean> appendedKeys;
+    private final LruCache<Long, Boolean> replayedKeys;
+    private final MappedByteBuffer checkpoint;
+    private final RandomAccessFile checkpointFile;
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private Segment active;
+    //mapped ahead of time by the syncer, to become the next active segment
+    private Segment spare;
+    //sealed by a roll, not yet forced to disk
+    private final List<Segment> retired = new ArrayList<Segment>();
+    //replayed activities the checkpoint has not passed yet, in log order; also the lock of the checkpoint
+    private final ArrayDeque<Ticket> inFlight = new ArrayDeque<Ticket>();
+    //activities the pipeline gave up on, handed to it again once due
+    private final ArrayDeque<Ticket> retries = new ArrayDeque<Ticket>();
+    private boolean closed;
+    private volatile ActivityDao activityDao;
+    private volatile boolean dirty;
+    private volatile boolean checkpointDirty;
+    private volatile boolean running;
+    private volatile boolean stopped;
+    private Thread replayer;
+    private Thread syncer;
+
+    private final AtomicLong appendedCount = new AtomicLong();
+    private final AtomicLong duplicateCount = new AtomicLong();
+    private final AtomicLong replayedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong fallbackCount = new AtomicLong();
+
+    /**
+     * Opens the spool, recovering the activities left in the directory by a previous run
+     *
+     * @param directory          where the log is kept
+     * @param segmentBytes       size of a log segment
+     * @param syncMillis         how often appended records are forced to disk
+     * @param retryMillis        how long the replayer waits before handing again an activity the pipeline gave up on
+     * @param maxAttempts        how many times the replayer hands an activity to the pipeline before giving up on it
+     * @param dedupeEntries      maximum number of idempotency keys remembered
+     * @param dedupeWindowMillis how long idempotency keys are remembered
+     * @param pipeline           the pipeline replayed activities are written through
+     * @param fallback           the sink activities that can not be appended are handed to
+     * @throws IOException when the directory can not be used
+     */
+    public ActivitySpool(File directory, int segmentBytes, long syncMillis, long retryMillis, int maxAttempts,
+                         int dedupeEntries, long dedupeWindowMillis, ActivityPipeline pipeline,
+                         ActivitySink fallback) throws IOException {
+        if (segmentBytes < 1024 || maxAttempts <= 0)
+            throw new IllegalArgumentException("segmentBytes must be at least 1024, maxAttempts positive");
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.syncMillis = syncMillis;
+        this.retryMillis = retryMillis;
+        this.maxAttempts = maxAttempts;
+        this.dedupeWindowMillis = dedupeWindowMillis;
+        this.pipeline = pipeline;
+        this.fallback = fallback;
+        this.appendedKeys = new LruCache<Long, Boolean>(dedupeEntries, 16);
+        this.replayedKeys = new LruCache<Long, Boolean>(dedupeEntries, 16);
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("could not create spool directory " + directory);
+        checkpointFile = new RandomAccessFile(new File(directory, CHECKPOINT), "rw");
+        if (checkpointFile.length() < 8)
+            checkpointFile.setLength(8);
+        checkpoint = checkpointFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+        recover();
+    }
+
+    /**
+     * {@link ActivitySink#submit(Activity, ActivityDao)}
+     */
+    public void submit(Activity activity, ActivityDao activityDao) {
+        if (!running && !stopped && activityDao != null)
+            start(activityDao);
+        byte[] record = stopped ? null : encode(activity);
+        if (record == null) {
+            toFallback(activity, activityDao);
+            return;
+        }
+        try {
+            if (append(keyOf(activity), record))
+                appendedCount.incrementAndGet();
+            else
+                duplicateCount.incrementAndGet();
+        } catch (IOException e) {
+            if (!stopped)
+                logger.error("could not append activity to the spool", e);
+            toFallback(activity, activityDao);
+        }
+    }
+
+    /**
+     * Starts replaying the log through the given dao, to be called at startup so that activities recovered from a
+     * previous run are written without waiting for new ones
+     *
+     * @param activityDao the dao activities are written through
+     */
+    public synchronized void start(ActivityDao activityDao) {
+        if (this.activityDao == null)
+            this.activityDao = activityDao;
+        if (running || stopped)
+            return;
+        running = true;
+        replayer = REPLAYERS.newThread(new Runnable() {
+            public void run() {
+                replay();
+            }
+        });
+        replayer.start();
+        syncer = SYNCERS.newThread(new Runnable() {
+            public void run() {
+                sync();
+            }
+        });
+        syncer.start();
+    }
+
+    /**
+     * Stops the replayer and forces the log to disk, to be called on undeploy before the pipeline is shut down.
+     * Activities not replayed yet, and those the pipeline has not written within the timeout, stay in the log for the
+     * next run.
+     *
+     * @param timeoutMillis how long to wait for the replayer to stop, then for the pipeline to write what it holds
+     */
+    public void shutdown(long timeoutMillis) {
+        Thread replaying;
+        Thread syncing;
+        synchronized (this) {
+            stopped = true;
+            running = false;
+            replaying = replayer;
+            syncing = syncer;
+        }
+        try {
+            if (replaying != null) {
+                replaying.interrupt();
+                replaying.join(timeoutMillis);
+            }
+            awaitPipeline(timeoutMillis);
+            if (syncing != null) {
+                LockSupport.unpark(syncing);
+                syncing.join(timeoutMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (inFlight) {
+            closed = true;
+        }
+        synchronized (this) {
+            for (Segment segment : segments)
+                segment.close();
+            if (spare != null) {
+                spare.close();
+                if (!spare.file.delete())
+                    logger.warn("could not delete unused spool segment " + spare.sequence);
+                spare = null;
+            }
+            checkpoint.force();
+            try {
+                checkpointFile.close();
+            } catch (IOException e) {
+                logger.warn("could not close spool checkpoint", e);
+            }
+        }
+    }
+
+    public long getAppendedCount() {
+        return appendedCount.get();
+    }
+
+    /**
+     * @return number of activities not appended or not replayed because their idempotency key was seen recently
+     */
+    public long getDuplicateCount() {
+        return duplicateCount.get();
+    }
+
+    public long getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    /**
+     * @return number of activities given up after the pipeline failed to write them <code>maxAttempts</code> times
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return number of activities handed to the fallback sink
+     */
+    public long getFallbackCount() {
+        return fallbackCount.get();
+    }
+
+    /**
+     * @return number of replayed activities the checkpoint has not passed yet
+     */
+    public int getInFlightCount() {
+        synchronized (inFlight) {
+            return inFlight.size();
+        }
+    }
+
+    /**
+     * @return number of log segments not fully replayed yet
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    private void toFallback(Activity activity, ActivityDao activityDao) {
+        fallbackCount.incrementAndGet();
+        fallback.submit(activity, activityDao);
+    }
+
+    /**
+     * Opens the segments left by a previous run and a new active segment
+     */
+    private void recover() throws IOException {
+        long position = checkpoint.getLong(0);
+        long checkpointSequence = position >>> 32;
+        List<Long> sequences = new ArrayList<Long>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        sequences.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        logger.warn("ignoring unexpected file " + file + " in the spool");
+                    }
+                }
+            }
+        }
+        Collections.sort(sequences);
+        long last = checkpointSequence;
+        for (Long sequence : sequences) {
+            last = Math.max(last, sequence);
+            if (sequence < checkpointSequence) {
+                //fully replayed before the previous run stopped
+                if (!fileOf(sequence).delete())
+                    logger.warn("could not delete replayed spool segment " + sequence);
+                continue;
+            }
+            Segment segment = open(sequence, false);
+            segment.end = scan(segment.writer);
+            segment.sealed = true;
+            segments.add(segment);
+        }
+        active = open(last + 1, true);
+        segments.add(active);
+        Segment first = segments.getFirst();
+        if (first.sequence == checkpointSequence)
+            first.readOffset = Math.min((int) position, first.end);
+    }
+
+    private Segment open(long sequence, boolean create) throws IOException {
+        File file = fileOf(sequence);
+        RandomAccessFile channel = new RandomAccessFile(file, "rw");
+        if (create || channel.length() < HEADER_BYTES)
+            channel.setLength(segmentBytes);
+        MappedByteBuffer buffer = channel.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, channel.length());
+        return new Segment(sequence, file, channel, buffer);
+    }
+
+    private File fileOf(long sequence) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%019d", sequence) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * @return the end of the intact records at the start of a segment
+     */
+    private static int scan(ByteBuffer buffer) {
+        int position = 0;
+        CRC32 crc = new CRC32();
+        while (position + HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > buffer.capacity() - position - HEADER_BYTES)
+                break;
+            byte[] record = new byte[length];
+            buffer.position(position + HEADER_BYTES);
+            buffer.get(record);
+            crc.reset();
+            crc.update(record);
+            if ((int) crc.getValue() != buffer.getInt(position + 4))
+                break;
+            position += HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    /**
+     * Appends a record unless its key was appended recently
+     *
+     * @return false if the record is a duplicate
+     */
+    private synchronized boolean append(long key, byte[] record) throws IOException {
+        if (stopped)
+            throw new IOException("spool is shut down");
+        if (appendedKeys.get(key) != null)
+            return false;
+        int length = HEADER_BYTES + record.length;
+        //room is kept for the zero length marking the end of the records
+        if (active.end + length + 4 > active.writer.capacity())
+            roll();
+        MappedByteBuffer writer = active.writer;
+        int position = active.end;
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        writer.putInt(position + length, 0);
+        writer.position(position + HEADER_BYTES);
+        writer.put(record);
+        writer.putInt(position + 4, (int) crc.getValue());
+        writer.putInt(position, record.length);
+        active.end = position + length;
+        dirty = true;
+        appendedKeys.put(key, Boolean.TRUE, dedupeWindowMillis);
+        return true;
+    }
+
+    /**
+     * Seals the active segment and appends to the spare one, mapping it on the calling thread only when the syncer
+     * has not prepared it yet; the sealed segment is left for the syncer to force
+     */
+    private void roll() throws IOException {
+        Segment next = spare;
+        spare = null;
+        if (next == null)
+            next = open(active.sequence + 1, true);
+        active.sealed = true;
+        retired.add(active);
+        active = next;
+        segments.add(next);
+        Thread syncing = syncer;
+        if (syncing != null)
+            LockSupport.unpark(syncing);
+    }
+
+    private void sync() {
+        while (running) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(syncMillis));
+            if (!running)
+                break;
+            force();
+            prepareSpare();
+        }
+        force();
+    }
+
+    /**
+     * Forces to disk the segments retired by a roll, the records appended to the active segment and the checkpoint
+     */
+    private void force() {
+        List<Segment> sealed;
+        Segment segment;
+        synchronized (this) {
+            sealed = new ArrayList<Segment>(retired);
+            retired.clear();
+            segment = dirty ? active : null;
+            dirty = false;
+        }
+        for (Segment retiredSegment : sealed)
+            retiredSegment.writer.force();
+        if (segment != null)
+            segment.writer.force();
+        if (checkpointDirty) {
+            checkpointDirty = false;
+            checkpoint.force();
+        }
+    }
+
+    /**
+     * Maps the segment that follows the active one, so that the next roll does not create it on a request thread
+     */
+    private void prepareSpare() {
+        long sequence;
+        synchronized (this) {
+            if (spare != null || stopped)
+                return;
+            sequence = active.sequence + 1;
+        }
+        Segment next;
+        try {
+            next = open(sequence, true);
+        } catch (IOException e) {
+            logger.warn("could not prepare spool segment " + sequence, e);
+            return;
+        }
+        synchronized (this) {
+            if (spare == null && !stopped && active.sequence + 1 == sequence) {
+                spare = next;
+                return;
+            }
+        }
+        //a roll created it meanwhile, or the spool stopped
+        next.close();
+        if (!segmentInUse(next) && !next.file.delete())
+            logger.warn("could not delete unused spool segment " + sequence);
+    }
+
+    private synchronized boolean segmentInUse(Segment segment) {
+        for (Segment used : segments) {
+            if (used.sequence == segment.sequence)
+                return true;
+        }
+        return false;
+    }
+
+    private void replay() {
+        while (running) {
+            Ticket retry = dueRetry();
+            if (retry != null) {
+                if (!handOff(retry))
+                    return;
+                continue;
+            }
+            //while the dao is unavailable the activities wait in the log rather than in memory
+            if (!ACTIVITY_DAO.isAvailable() || getInFlightCount() >= MAX_IN_FLIGHT) {
+                if (!pause(syncMillis))
+                    return;
+                continue;
+            }
+            Segment segment = head();
+            int end = segment.end;
+            if (segment.readOffset >= end) {
+                if (segment.sealed && segment.readOffset >= segment.end && release(segment))
+                    continue;
+                if (!pause(syncMillis))
+                    return;
+                continue;
+            }
+            ByteBuffer reader = segment.reader;
+            int length = reader.getInt(segment.readOffset);
+            byte[] record = new byte[length];
+            reader.position(segment.readOffset + HEADER_BYTES);
+            reader.get(record);
+            segment.readOffset += HEADER_BYTES + length;
+            Ticket ticket = new Ticket(ByteBuffer.wrap(record).getLong(0), decode(record),
+                    (segment.sequence << 32) | segment.readOffset);
+            synchronized (inFlight) {
+                inFlight.addLast(ticket);
+            }
+            if (replayedKeys.get(ticket.key) != null) {
+                duplicateCount.incrementAndGet();
+                ticket.done();
+            } else if (!handOff(ticket)) {
+                return;
+            }
+        }
+    }
+
+    private synchronized Segment head() {
+        return segments.getFirst();
+    }
+
+    /**
+     * Drops a replayed segment once the pipeline is done with its activities
+     *
+     * @return false if activities of the segment are still in flight
+     */
+    private boolean release(Segment segment) {
+        synchronized (inFlight) {
+            if (!inFlight.isEmpty())
+                return false;
+            synchronized (this) {
+                segments.removeFirst();
+                checkpoint.putLong(0, segments.getFirst().sequence << 32);
+                checkpointDirty = true;
+            }
+        }
+        segment.close();
+        if (!segment.file.delete())
+            logger.warn("could not delete replayed spool segment " + segment.sequence);
+        return true;
+    }
+
+    /**
+     * Hands an activity to the pipeline
+     *
+     * @return false if the pipeline is shut down
+     */
+    private boolean handOff(Ticket ticket) {
+        ticket.attempts++;
+        ticket.submitted = true;
+        try {
+            pipeline.submit(ticket.activity, activityDao, ticket);
+            return true;
+        } catch (IllegalStateException e) {
+            //left in flight, the checkpoint keeps it for the next run
+            ticket.submitted = false;
+            logger.warn("activity pipeline shut down, replay stopped");
+            return false;
+        }
+    }
+
+    private Ticket dueRetry() {
+        synchronized (inFlight) {
+            Ticket retry = retries.peekFirst();
+            if (retry == null || retry.retryAt > System.currentTimeMillis())
+                return null;
+            return retries.pollFirst();
+        }
+    }
+
+    /**
+     * Moves the checkpoint past the activities at the head of the log the pipeline is done with
+     */
+    private void advance() {
+        synchronized (inFlight) {
+            Ticket last = null;
+            while (!inFlight.isEmpty() && inFlight.peekFirst().done)
+                last = inFlight.pollFirst();
+            if (last != null && !closed) {
+                checkpoint.putLong(0, last.position);
+                checkpointDirty = true;
+            }
+        }
+    }
+
+    /**
+     * Waits for the pipeline to write or give up on the activities handed to it
+     */
+    private void awaitPipeline(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (inFlight) {
+                boolean submitted = false;
+                for (Ticket ticket : inFlight)
+                    submitted |= ticket.submitted;
+                if (!submitted)
+                    return;
+            }
+            Thread.sleep(Math.max(1, Math.min(syncMillis, 10)));
+        }
+    }
+
+    private boolean pause(long millis) {
+        try {
+            Thread.sleep(millis);
+            return running;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    private static long keyOf(Activity activity) {
+        //FNV-1a over the fields that identify a playback event
+        long hash = 0xcbf29ce484222325L;
+        User user = activity.getUser();
+        String email = user == null || user.getEmail() == null ? "" : user.getEmail();
+        for (int i = 0; i < email.length(); i++)
+            hash = (hash ^ email.charAt(i)) * 0x100000001b3L;
+        long[] fields = {activity.getMovieId() == null ? NO_MOVIE : activity.getMovieId(), activity.getTime(), activity.getPosition()};
+        for (long field : fields) {
+            for (int shift = 0; shift < 64; shift += 8)
+                hash = (hash ^ ((field >>> shift) & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @return the record of an activity, or null if it is too large to be spooled
+     */
+    private static byte[] encode(Activity activity) {
+        User user = activity.getUser();
+        byte[] email = user == null || user.getEmail() == null ? null : user.getEmail().getBytes(UTF8);
+        if (email != null && email.length > MAX_EMAIL_BYTES)
+            return null;
+        byte[] serialized = serialize(user);
+        ByteBuffer record = ByteBuffer.allocate(8 + 8 + 4 + 8 + 2 + (email == null ? 0 : email.length)
+                + 4 + (serialized == null ? 0 : serialized.length));
+        record.putLong(keyOf(activity));
+        record.putLong(activity.getMovieId() == null ? NO_MOVIE : activity.getMovieId());
+        record.putInt(activity.getPosition());
+        record.putLong(activity.getTime());
+        record.putShort((short) (email == null ? -1 : email.length));
+        if (email != null)
+            record.put(email);
+        record.putInt(serialized == null ? -1 : serialized.length);
+        if (serialized != null)
+            record.put(serialized);
+        return record.array();
+    }
+
+    /**
+     * @return the serialized form of a user, or null if the user is not serializable or too large
+     */
+    private static byte[] serialize(User user) {
+        if (!(user instanceof Serializable))
+            return null;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(user);
+            out.close();
+        } catch (IOException e) {
+            logger.warn("could not serialize user, spooling its email only", e);
+            return null;
+        }
+        return bytes.size() > MAX_USER_BYTES ? null : bytes.toByteArray();
+    }
+
+    private static User deserialize(byte[] bytes) {
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            try {
+                return (User) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.warn("could not read spooled user, replaying its email only", e);
+        } catch (ClassNotFoundException e) {
+            logger.warn("could not read spooled user, replaying its email only", e);
+        } catch (ClassCastException e) {
+            logger.warn("could not read spooled user, replaying its email only", e);
+        }
+        return null;
+    }
+
+    private static Activity decode(byte[] bytes) {
+        ByteBuffer record = ByteBuffer.wrap(bytes);
+        record.getLong();
+        Activity activity = new Activity();
+        long movieId = record.getLong();
+        if (movieId != NO_MOVIE)
+            activity.setMovieId(movieId);
+        activity.setPosition(record.getInt());
+        activity.setTime(record.getLong());
+        short emailLength = record.getShort();
+        String email = null;
+        if (emailLength >= 0) {
+            byte[] emailBytes = new byte[emailLength];
+            record.get(emailBytes);
+            email = new String(emailBytes, UTF8);
+        }
+        User user = null;
+        //records of earlier versions end with the email
+        int userLength = record.remaining() >= 4 ? record.getInt() : -1;
+        if (userLength >= 0) {
+            byte[] userBytes = new byte[userLength];
+            record.get(userBytes);
+            user = deserialize(userBytes);
+        }
+        if (user == null && email != null)
+            user = new User();
+        if (user != null && user.getEmail() == null)
+            user.setEmail(email);
+        activity.setUser(user);
+        return activity;
+    }
+
+    /**
+     * A replayed activity, from its hand-off to the pipeline until the checkpoint passes it
+     */
+    private final class Ticket implements ActivityPipeline.Acknowledgement {
+        private final long key;
+        private final Activity activity;
+        //checkpoint position right after the record
+        private final long position;
+        private volatile boolean submitted;
+        private volatile boolean done;
+        private int attempts;
+        private long retryAt;
+
+        private Ticket(long key, Activity activity, long position) {
+            this.key = key;
+            this.activity = activity;
+            this.position = position;
+        }
+
+        public void acknowledge(boolean written) {
+            if (written) {
+                replayedCount.incrementAndGet();
+                replayedKeys.put(key, Boolean.TRUE, dedupeWindowMillis);
+            } else if (attempts < maxAttempts && !stopped) {
+                synchronized (inFlight) {
+                    submitted = false;
+                    retryAt = System.currentTimeMillis() + retryMillis;
+                    retries.addLast(this);
+                }
+                return;
+            } else if (attempts >= maxAttempts) {
+                failedCount.incrementAndGet();
+                logger.error("giving up activity for movie " + activity.getMovieId() + " after " + attempts
+                        + " attempts");
+            } else {
+                //left in flight, the checkpoint keeps it for the next run
+                submitted = false;
+                return;
+            }
+            done();
+        }
+
+        private void done() {
+            submitted = false;
+            done = true;
+            advance();
+        }
+    }
+
+    private static final class Segment {
+        private final long sequence;
+        private final File file;
+        private final RandomAccessFile channel;
+        private final MappedByteBuffer writer;
+        private final ByteBuffer reader;
+        private volatile int end;
+        private volatile boolean sealed;
+        private int readOffset;
+
+        private Segment(long sequence, File file, RandomAccessFile channel, MappedByteBuffer writer) {
+            this.sequence = sequence;
+            this.file = file;
+            this.channel = channel;
+            this.writer = writer;
+            this.reader = writer.duplicate();
+        }
+
+        private void close() {
+            writer.force();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("could not close spool segment " + sequence, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package services.activity;
+
+import edu.umflix.model.Activity;
+import edu.umflix.persistence.ActivityDao;
+import model.ResumePosition;
+import org.apache.log4j.Logger;
+import services.metrics.Metric;
+import services.metrics.Metrics;
+import services.resilience.Guard;
+import services.resilience.Guards;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory index of the latest position of each user in each movie, so that a client can resume playback without
+ * a database query. The index is fed with every accepted activity and rebuilt from {@link ActivityDao} on startup;
+ * since the activity with the latest time wins, both may run at once and replayed or late activities do not move a
+ * position back.
+ * <p/>
+ * Users are interned to int ids on their first indexed activity. Entries live in striped open-addressing tables of
+ * primitive arrays, keyed by user id and movie id, so a slot costs 24 bytes and no objects. Once
+ * <code>maxEntries</code> is reached, new (user, movie) pairs are not indexed; known pairs are still updated.
+ */
+public class ResumeIndex {
+
+    static Logger logger = Logger.getLogger(ResumeIndex.class);
+    private static final Metric GET_ALL_ACTIVITIES = Metrics.dependency("ActivityDao.getAllActivities");
+    private static final Guard ACTIVITY_DAO = Guards.of("ActivityDao");
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final ConcurrentHashMap<String, Integer> userIds = new ConcurrentHashMap<String, Integer>();
+    private final AtomicInteger lastUserId = new AtomicInteger();
+    private final Stripe[] stripes;
+    private final int maxEntriesPerStripe;
+    private final AtomicLong refusedCount = new AtomicLong();
+    private volatile boolean loaded;
+
+    /**
+     * @param maxEntries       maximum number of (user, movie) pairs indexed
+     * @param concurrencyLevel number of independently locked stripes, rounded up to a power of two
+     */
+    public ResumeIndex(int maxEntries, int concurrencyLevel) {
+        if (maxEntries <= 0 || concurrencyLevel <= 0)
+            throw new IllegalArgumentException("maxEntries and concurrencyLevel must be positive");
+        int stripeCount = 1;
+        while (stripeCount < concurrencyLevel)
+            stripeCount <<= 1;
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++)
+            stripes[i] = new Stripe();
+        maxEntriesPerStripe = Math.max(1, maxEntries / stripeCount);
+    }
+
+    /**
+     * Records the position of an activity, unless the index holds a later one for the same user and movie
+     *
+     * @param activity the activity
+     * @return true if the activity became the latest of its user and movie
+     */
+    public boolean record(Activity activity) {
+        if (activity == null || activity.getUser() == null || activity.getUser().getEmail() == null
+                || activity.getMovieId() == null)
+            return false;
+        String email = activity.getUser().getEmail();
+        long movieId = activity.getMovieId();
+        while (true) {
+            Integer known = userIds.get(email);
+            //an unknown user is given the next id only once one of its pairs is indexed
+            int userId = known != null ? known : lastUserId.get() + 1;
+            long hash = hash(userId, movieId);
+            Stripe stripe = stripes[(int) (hash >>> 32) & (stripes.length - 1)];
+            synchronized (stripe) {
+                int slot = stripe.find(userId, movieId, (int) hash);
+                if (stripe.users[slot] == 0) {
+                    if (stripe.size >= maxEntriesPerStripe) {
+                        refusedCount.incrementAndGet();
+                        return false;
+                    }
+                    if (known == null && !intern(email, userId))
+                        continue;
+                    if (stripe.size + 1 > stripe.users.length * LOAD_FACTOR) {
+                        stripe.grow();
+                        slot = stripe.find(userId, movieId, (int) hash);
+                    }
+                    stripe.users[slot] = userId;
+                    stripe.movies[slot] = movieId;
+                    stripe.size++;
+                } else if (stripe.times[slot] > activity.getTime()) {
+                    return false;
+                }
+                stripe.positions[slot] = activity.getPosition();
+                stripe.times[slot] = activity.getTime();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns where a user stopped playing a movie
+     *
+     * @param email   the email of the user
+     * @param movieId the id of the movie
+     * @return the latest position, or null if the user has no activity on the movie
+     */
+    public ResumePosition get(String email, Long movieId) {
+        if (email == null || movieId == null)
+            return null;
+        Integer userId = userIds.get(email);
+        if (userId == null)
+            return null;
+        long hash = hash(userId, movieId);
+        Stripe stripe = stripes[(int) (hash >>> 32) & (stripes.length - 1)];
+        synchronized (stripe) {
+            int slot = stripe.find(userId, movieId, (int) hash);
+            if (stripe.users[slot] == 0)
+                return null;
+            return new ResumePosition(movieId, stripe.positions[slot], stripe.times[slot]);
+        }
+    }
+
+    /**
+     * Records every activity of the dao, to be called once on startup
+     *
+     * @param activityDao the dao holding the recorded activities
+     * @return number of activities read
+     */
+    public int rebuild(ActivityDao activityDao) {
+        return rebuild(activityDao, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Records the activities of the dao, up to a cap, to be called once on startup. {@link ActivityDao} has no paged
+     * read, so the whole activity table is held in memory while the rebuild runs; the cap bounds how many of its
+     * rows are indexed and how long the rebuild takes, not the size of that read.
+     *
+     * @param activityDao   the dao holding the recorded activities
+     * @param maxActivities number of activities after which the rebuild stops
+     * @return number of activities indexed
+     */
+    public int rebuild(ActivityDao activityDao, int maxActivities) {
+        List<Activity> activities;
+        Guard.Permit permit = ACTIVITY_DAO.enter(GET_ALL_ACTIVITIES);
+        try {
+            activities = activityDao.getAllActivities();
+        } catch (RuntimeException e) {
+            permit.failed(e);
+            throw e;
+        } finally {
+            permit.release();
+        }
+        int count = 0;
+        if (activities != null) {
+            for (Activity activity : activities) {
+                if (count >= maxActivities) {
+                    logger.warn("resume index rebuilt from the first " + maxActivities + " of " + activities.size()
+                            + " activities, the others are indexed as they are played again");
+                    break;
+                }
+                record(activity);
+                count++;
+            }
+        }
+        loaded = true;
+        return count;
+    }
+
+    /**
+     * Rebuilds the index on an executor of its own, so that startup and other background work do not wait for it,
+     * retrying a failed read of the dao, an exhausted heap included, with a delay doubled on each failure
+     *
+     * @param activityDao    the dao holding the recorded activities
+     * @param executor       the executor the rebuild runs on
+     * @param maxActivities  number of activities after which the rebuild stops
+     * @param retryMillis    delay before the first retry
+     * @param maxRetryMillis longest delay between two retries
+     */
+    public void rebuildInBackground(ActivityDao activityDao, ScheduledExecutorService executor, int maxActivities,
+                                    long retryMillis, long maxRetryMillis) {
+        scheduleRebuild(activityDao, executor, maxActivities, 0, Math.max(1, retryMillis), maxRetryMillis);
+    }
+
+    /**
+     * @return true once the index was rebuilt from the dao
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return number of (user, movie) pairs indexed
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return number of users interned
+     */
+    public int getUserCount() {
+        return userIds.size();
+    }
+
+    /**
+     * @return number of activities not indexed because the index was full
+     */
+    public long getRefusedCount() {
+        return refusedCount.get();
+    }
+
+    private void scheduleRebuild(final ActivityDao activityDao, final ScheduledExecutorService executor,
+                                 final int maxActivities, long delayMillis, final long retryMillis,
+                                 final long maxRetryMillis) {
+        try {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        long start = System.currentTimeMillis();
+                        int count = rebuild(activityDao, maxActivities);
+                        logger.info("resume index rebuilt from " + count + " activities in "
+                                + (System.currentTimeMillis() - start) + " ms");
+                    } catch (RuntimeException e) {
+                        retry(e);
+                    } catch (OutOfMemoryError e) {
+                        //the activities read are garbage by now, the next attempt may find the heap less busy
+                        retry(e);
+                    }
+                }
+
+                private void retry(Throwable e) {
+                    logger.error("could not rebuild the resume index, retrying in " + retryMillis + " ms", e);
+                    scheduleRebuild(activityDao, executor, maxActivities, retryMillis,
+                            Math.min(maxRetryMillis, retryMillis * 2), maxRetryMillis);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.warn("resume index not rebuilt, executor shut down");
+        }
+    }
+
+    /**
+     * Gives a user the id it was looked up with, unless another user took it or the user got one meanwhile
+     *
+     * @return true if the user was given the id
+     */
+    private boolean intern(String email, int userId) {
+        return lastUserId.compareAndSet(userId - 1, userId) && userIds.putIfAbsent(email, userId) == null;
+    }
+
+    private static long hash(int userId, long movieId) {
+        long hash = (movieId ^ ((long) userId << 32 | userId)) * 0x9e3779b97f4a7c15L;
+        return hash ^ (hash >>> 29);
+    }
+
+    /**
+     * Open-addressing table with linear probing; user id 0 marks an empty slot
+     */
+    private static final class Stripe {
+        private int[] users = new int[16];
+        private long[] movies = new long[16];
+        private int[] positions = new int[16];
+        private long[] times = new long[16];
+        private int size;
+
+        /**
+         * @return the slot of the pair, or the empty slot where it would be inserted
+         */
+        private int find(int userId, long movieId, int hash) {
+            int mask = users.length - 1;
+            int slot = hash & mask;
+            while (users[slot] != 0 && (users[slot] != userId || movies[slot] != movieId))
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        private void grow() {
+            int[] oldUsers = users;
+            long[] oldMovies = movies;
+            int[] oldPositions = positions;
+            long[] oldTimes = times;
+            int capacity = oldUsers.length << 1;
+            users = new int[capacity];
+            movies = new long[capacity];
+            positions = new int[capacity];
+            times = new long[capacity];
+            for (int i = 0; i < oldUsers.length; i++) {
+                if (oldUsers[i] == 0)
+                    continue;
+                int slot = find(oldUsers[i], oldMovies[i], (int) hash(oldUsers[i], oldMovies[i]));
+                users[slot] = oldUsers[i];
+                movies[slot] = oldMovies[i];
+                positions[slot] = oldPositions[i];
+                times[slot] = oldTimes[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package services.ads;
+
+import edu.umflix.model.Ad;
+import edu.umflix.model.Clip;
+import edu.umflix.persistence.AdDao;
+import model.exceptions.NoAdsException;
+import org.apache.log4j.Logger;
+import services.Settings;
+import services.cache.SingleFlight;
+import services.metrics.Metric;
+import services.metrics.Metrics;
+import services.resilience.Guard;
+import services.resilience.Guards;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory index of the ads in system, used to pick the ad to play without reading {@link AdDao} per request.
+ * The index is an immutable snapshot of the ad list plus alias tables for weighted selection in constant time.
+ * Snapshots older than <code>refreshMillis</code> keep being served while the refresh executor reads a fresh ad list
+ * and swaps it in; only the very first selection reads the ad list on the calling thread, and selections arriving
+ * while it does wait for that read rather than starting their own. Ads that reached their
+ * frequency cap for the user are skipped by drawing again, a bounded number of times.
+ * <p/>
+ * With a targeted weighting a snapshot keeps the selection tables of at most <code>maxTargetedMovies</code> movies;
+ * the table of any further movie is built for the selection and discarded.
+ */
+public class AdIndex {
+
+    static Logger logger = Logger.getLogger(AdIndex.class);
+
+    private static final int MAX_DRAWS = 4;
+    private static final int DEFAULT_MAX_TARGETED_MOVIES = 10000;
+    private static final Metric GET_ALL_ADS = Metrics.dependency("AdDao.getAllAds");
+    private static final Guard AD_DAO = Guards.of("AdDao");
+    private static final long COLD_LOAD_TIMEOUT_MILLIS = Settings.getLong("adIndex.coldLoadTimeoutMillis", 5000);
+
+    private final long refreshMillis;
+    private final AdWeighting weighting;
+    private final AdRandom random;
+    private final FrequencyCap frequencyCap;
+    private final int maxTargetedMovies;
+    private final Executor refresher;
+    private volatile RefreshListener refreshListener;
+    private volatile Snapshot snapshot;
+    private final SingleFlight<Boolean, Snapshot> coldLoads = new SingleFlight<Boolean, Snapshot>(COLD_LOAD_TIMEOUT_MILLIS);
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    /**
+     * @param refreshMillis how long a snapshot is served before it is refreshed in background
+     * @param weighting     the weights of the ads
+     */
+    public AdIndex(long refreshMillis, AdWeighting weighting) {
+        this(refreshMillis, weighting, AdRandom.perThread(), FrequencyCap.NONE);
+    }
+
+    /**
+     * @param refreshMillis how long a snapshot is served before it is refreshed in background
+     * @param weighting     the weights of the ads
+     * @param random        the random source used to draw ads
+     * @param frequencyCap  the per user cap of impressions of an ad
+     */
+    public AdIndex(long refreshMillis, AdWeighting weighting, AdRandom random, FrequencyCap frequencyCap) {
+        this(refreshMillis, weighting, random, frequencyCap, DEFAULT_MAX_TARGETED_MOVIES, null);
+    }
+
+    /**
+     * @param refreshMillis     how long a snapshot is served before it is refreshed in background
+     * @param weighting         the weights of the ads
+     * @param random            the random source used to draw ads
+     * @param frequencyCap      the per user cap of impressions of an ad
+     * @param maxTargetedMovies maximum number of movies whose selection table a snapshot keeps
+     * @param refresher         runs the background refreshes; null refreshes a stale snapshot on the selecting thread
+     */
+    public AdIndex(long refreshMillis, AdWeighting weighting, AdRandom random, FrequencyCap frequencyCap,
+                   int maxTargetedMovies, Executor refresher) {
+        this.refreshMillis = refreshMillis;
+        this.weighting = weighting;
+        this.random = random;
+        this.frequencyCap = frequencyCap;
+        this.maxTargetedMovies = maxTargetedMovies;
+        this.refresher = refresher;
+    }
+
+    /**
+     * Picks an ad to be played in a movie
+     *
+     * @param movieId the movie the ad is played in
+     * @param user    the user the ad is shown to, identified by its email
+     * @param adDao   the dao used to read the ad list when the index is missing or stale
+     * @return the selected ad
+     * @throws NoAdsException when no ads are available for the movie
+     */
+    public Ad select(Long movieId, String user, AdDao adDao) throws NoAdsException {
+        Snapshot current = snapshot;
+        if (current == null)
+            current = loadCold(adDao);
+        else if (currentTimeMillis() - current.loadedAt >= refreshMillis)
+            refreshInBackground(adDao);
+        Ad ad = current.select(movieId, random.nextDouble());
+        for (int draws = 1; draws < MAX_DRAWS && !frequencyCap.allows(user, keyOf(ad)); draws++)
+            ad = current.select(movieId, random.nextDouble());
+        frequencyCap.record(user, keyOf(ad));
+        return ad;
+    }
+
+    /**
+     * Reads the ad list when there is no snapshot yet, or after {@link #invalidate()}, once for all the selections
+     * that find it missing at the same time
+     *
+     * @param adDao the dao the ad list is read from
+     * @return the snapshot read
+     */
+    private Snapshot loadCold(final AdDao adDao) {
+        try {
+            return coldLoads.load(Boolean.TRUE, new Callable<Snapshot>() {
+                public Snapshot call() {
+                    //a load that completed after the caller looked is as good as a new one
+                    Snapshot loaded = snapshot;
+                    return loaded != null ? loaded : refresh(adDao);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("could not read the ad list", SingleFlight.causeOf(e));
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("timed out waiting for the ad list", e);
+        }
+    }
+
+    /**
+     * Reads the ad list and swaps in a new snapshot
+     *
+     * @param adDao the dao the ad list is read from
+     * @return the new snapshot
+     */
+    private Snapshot refresh(AdDao adDao) {
+        List<Ad> ads;
+        Guard.Permit permit = AD_DAO.enter(GET_ALL_ADS);
+        try {
+            ads = adDao.getAllAds();
+        } catch (RuntimeException e) {
+            permit.failed(e);
+            throw e;
+        } finally {
+            permit.release();
+        }
+        Snapshot fresh = new Snapshot(ads == null ? Collections.<Ad>emptyList() : new ArrayList<Ad>(ads), weighting,
+                maxTargetedMovies, currentTimeMillis());
+        snapshot = fresh;
+        refreshCount.incrementAndGet();
+        RefreshListener listener = refreshListener;
+        if (listener != null) {
+            try {
+                listener.refreshed(fresh.ads);
+            } catch (RuntimeException e) {
+                logger.error("ad index refresh listener failed", e);
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * Sets who is told of every new ad list, such as the cache pinning the ad clips
+     *
+     * @param refreshListener the listener, or null
+     */
+    public void setRefreshListener(RefreshListener refreshListener) {
+        this.refreshListener = refreshListener;
+    }
+
+    /**
+     * Discards the current snapshot so that the next selection reads the ad list again, to be called when ads are
+     * added or removed
+     */
+    public void invalidate() {
+        snapshot = null;
+    }
+
+    public int getAdCount() {
+        Snapshot current = snapshot;
+        return current == null ? 0 : current.ads.size();
+    }
+
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /**
+     * Time source of the index, overridable by tests
+     *
+     * @return current time in milliseconds
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private static Long keyOf(Ad ad) {
+        Clip clip = ad.getClip();
+        return clip == null ? null : clip.getId();
+    }
+
+    private void refreshInBackground(final AdDao adDao) {
+        if (!refreshing.compareAndSet(false, true))
+            return;
+        Runnable refresh = new Runnable() {
+            public void run() {
+                try {
+                    refresh(adDao);
+                } catch (RuntimeException e) {
+                    logger.error("could not refresh ad index; keeping previous ads", e);
+                } finally {
+                    refreshing.set(false);
+                }
+            }
+        };
+        if (refresher == null) {
+            refresh.run();
+            return;
+        }
+        try {
+            refresher.execute(refresh);
+        } catch (RejectedExecutionException e) {
+            refreshing.set(false);
+        }
+    }
+
+    /**
+     * Told of the ad list each time the index reads it
+     */
+    public interface RefreshListener {
+
+        /**
+         * @param ads the ads now in the index
+         */
+        public void refreshed(List<Ad> ads);
+    }
+
+    /**
+     * Immutable view of the ad list at a point in time. Selection tables of targeted movies are built on first use.
+     */
+    private static final class Snapshot {
+        private final List<Ad> ads;
+        private final AdWeighting weighting;
+        private final int maxTargetedMovies;
+        private final long loadedAt;
+        private final AliasTable untargeted;
+        private final ConcurrentHashMap<Long, AliasTable> targeted = new ConcurrentHashMap<Long, AliasTable>();
+
+        private Snapshot(List<Ad> ads, AdWeighting weighting, int maxTargetedMovies, long loadedAt) {
+            this.ads = ads;
+            this.weighting = weighting;
+            this.maxTargetedMovies = maxTargetedMovies;
+            this.loadedAt = loadedAt;
+            this.untargeted = buildTable(null);
+        }
+
+        private Ad select(Long movieId, double uniform) throws NoAdsException {
+            AliasTable table = untargeted;
+            if (movieId != null && weighting.isTargeted()) {
+                table = targeted.get(movieId);
+                if (table == null) {
+                    table = buildTable(movieId);
+                    //ids come from callers, so only the first movies asked for are kept
+                    if (targeted.size() < maxTargetedMovies)
+                        targeted.put(movieId, table);
+                }
+            }
+            if (table.isEmpty())
+                throw new NoAdsException();
+            return ads.get(table.sample(uniform));
+        }
+
+        private AliasTable buildTable(Long movieId) {
+            double[] weights = new double[ads.size()];
+            for (int i = 0; i < weights.length; i++)
+                weights[i] = Math.max(0, weighting.weightOf(ads.get(i), movieId));
+            return new AliasTable(weights);
+        }
+    }
+}
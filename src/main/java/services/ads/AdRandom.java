@@ -0,0 +1,56 @@
+package services.ads;
+
+import java.util.Random;
+
+/**
+ * Random source for ad rotation. Every thread draws from its own generator, so concurrent ad requests do not
+ * contend on the single generator behind {@link Math#random()}. In seeded mode the generator of a thread is derived
+ * from a fixed seed and the name of the thread, so a thread of a named pool, such as a request thread of the app
+ * server, draws the same sequence on every run whatever order the threads start in. Threads sharing a name share a
+ * sequence.
+ */
+public final class AdRandom {
+
+    private static final long SEED_STRIDE = 0x9E3779B97F4A7C15L;
+
+    private final ThreadLocal<Random> randoms;
+
+    private AdRandom(final Long seed) {
+        randoms = new ThreadLocal<Random>() {
+            @Override
+            protected Random initialValue() {
+                return seed == null ? new Random() : new Random(seed + SEED_STRIDE * hash(Thread.currentThread().getName()));
+            }
+        };
+    }
+
+    /**
+     * @return a random source with unpredictable per-thread generators
+     */
+    public static AdRandom perThread() {
+        return new AdRandom(null);
+    }
+
+    /**
+     * @param seed the seed the per-thread generators are derived from
+     * @return a random source whose per-thread generators are derived from the seed
+     */
+    public static AdRandom seeded(long seed) {
+        return new AdRandom(seed);
+    }
+
+    /**
+     * @return a random number in [0, 1) from the generator of the calling thread
+     */
+    public double nextDouble() {
+        return randoms.get().nextDouble();
+    }
+
+    private static long hash(String name) {
+        //FNV-1a, stable across runs unlike the identity of the thread
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++)
+            hash = (hash ^ name.charAt(i)) * 0x100000001b3L;
+        return hash;
+    }
+}
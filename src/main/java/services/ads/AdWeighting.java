@@ -0,0 +1,38 @@
+package services.ads;
+
+import edu.umflix.model.Ad;
+
+/**
+ * Decides how often each ad is shown, optionally per movie
+ *
+ * @see AdIndex
+ */
+public interface AdWeighting {
+
+    /**
+     * Weighting that shows every ad equally often in every movie
+     */
+    public static final AdWeighting UNIFORM = new AdWeighting() {
+        public double weightOf(Ad ad, Long movieId) {
+            return 1;
+        }
+
+        public boolean isTargeted() {
+            return false;
+        }
+    };
+
+    /**
+     * Returns the relative weight of an ad
+     *
+     * @param ad      the ad
+     * @param movieId the movie the ad would be played in, or null for the untargeted selection
+     * @return the weight of the ad; 0 excludes it
+     */
+    public double weightOf(Ad ad, Long movieId);
+
+    /**
+     * @return true if weights depend on the movie, in which case a selection table is built per movie
+     */
+    public boolean isTargeted();
+}
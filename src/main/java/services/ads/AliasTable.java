@@ -0,0 +1,67 @@
+package services.ads;
+
+/**
+ * Walker/Vose alias table: after O(n) preparation, draws an index with probability proportional to its weight in
+ * constant time from a single uniform random number.
+ */
+final class AliasTable {
+
+    private final double[] probability;
+    private final int[] alias;
+    private final boolean empty;
+
+    AliasTable(double[] weights) {
+        int n = weights.length;
+        probability = new double[n];
+        alias = new int[n];
+        double total = 0;
+        for (double weight : weights)
+            total += weight;
+        empty = n == 0 || total <= 0;
+        if (empty)
+            return;
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[i] * n / total;
+            if (scaled[i] < 1)
+                small[smallCount++] = i;
+            else
+                large[largeCount++] = i;
+        }
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+            probability[less] = scaled[less];
+            alias[less] = more;
+            scaled[more] = scaled[more] + scaled[less] - 1;
+            if (scaled[more] < 1)
+                small[smallCount++] = more;
+            else
+                large[largeCount++] = more;
+        }
+        while (largeCount > 0)
+            probability[large[--largeCount]] = 1;
+        while (smallCount > 0)
+            probability[small[--smallCount]] = 1; //only reached through rounding errors
+    }
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * @param uniform a random number in [0, 1)
+     * @return the drawn index
+     */
+    int sample(double uniform) {
+        double scaled = uniform * probability.length;
+        int column = (int) scaled;
+        if (column >= probability.length)
+            column = probability.length - 1;
+        return scaled - column < probability[column] ? column : alias[column];
+    }
+}
@@ -0,0 +1,170 @@
+package services.ads;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how many times the same ad is shown to a user within a time window. Counters live in concurrent maps and
+ * are updated with atomic operations only, so ad selection never blocks on a lock; an expired window is replaced
+ * by a fresh one with a compare-and-set. The cap is best effort: concurrent requests of the same user may overshoot
+ * it by a few impressions.
+ * <p/>
+ * At most <code>maxUsers</code> windows are tracked. When they are all taken, the caller that wins a compare-and-set
+ * drops the expired windows and then the tenth that started first; a new user arriving while another caller makes
+ * room is not tracked, and its impressions are not capped.
+ */
+public class FrequencyCap {
+
+    /**
+     * Frequency cap that allows every impression
+     */
+    public static final FrequencyCap NONE = new FrequencyCap(0, 0, 1);
+
+    private final int maxImpressions;
+    private final long windowMillis;
+    private final int maxUsers;
+    private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    /**
+     * @param maxImpressions maximum impressions of an ad per user and window; 0 disables the cap
+     * @param windowMillis   length of the window
+     * @param maxUsers       maximum number of users tracked at a time
+     */
+    public FrequencyCap(int maxImpressions, long windowMillis, int maxUsers) {
+        this.maxImpressions = maxImpressions;
+        this.windowMillis = windowMillis;
+        this.maxUsers = Math.max(1, maxUsers);
+    }
+
+    /**
+     * Checks whether an ad may still be shown to a user
+     *
+     * @param user  the user, identified by its email
+     * @param adKey the ad, identified by its clip id
+     * @return true if the ad has not reached its cap for the user
+     */
+    public boolean allows(String user, Long adKey) {
+        if (maxImpressions <= 0 || user == null || adKey == null)
+            return true;
+        Window window = windows.get(user);
+        if (window == null || window.isOver(currentTimeMillis()))
+            return true;
+        AtomicInteger count = window.counts.get(adKey);
+        return count == null || count.get() < maxImpressions;
+    }
+
+    /**
+     * Records that an ad was shown to a user
+     *
+     * @param user  the user, identified by its email
+     * @param adKey the ad, identified by its clip id
+     */
+    public void record(String user, Long adKey) {
+        if (maxImpressions <= 0 || user == null || adKey == null)
+            return;
+        long now = currentTimeMillis();
+        Window window = windows.get(user);
+        if (window == null || window.isOver(now)) {
+            Window fresh = new Window(now, now + windowMillis);
+            if (window == null) {
+                if (!makeRoom(now))
+                    return;
+                window = windows.putIfAbsent(user, fresh);
+                if (window == null)
+                    window = fresh;
+            } else if (windows.replace(user, window, fresh)) {
+                window = fresh;
+            } else {
+                window = windows.get(user);
+                if (window == null)
+                    return;
+            }
+        }
+        AtomicInteger count = window.counts.get(adKey);
+        if (count == null) {
+            count = window.counts.putIfAbsent(adKey, new AtomicInteger(1));
+            if (count == null)
+                return;
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * @return number of users tracked
+     */
+    public int size() {
+        return windows.size();
+    }
+
+    /**
+     * Time source of the cap, overridable by tests
+     *
+     * @return current time in milliseconds
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if a new window may be tracked
+     */
+    private boolean makeRoom(long now) {
+        if (windows.size() < maxUsers)
+            return true;
+        //a single caller makes room, the others go on without waiting for it
+        if (!evicting.compareAndSet(false, true))
+            return false;
+        try {
+            evict(now);
+        } finally {
+            evicting.set(false);
+        }
+        return windows.size() < maxUsers;
+    }
+
+    private void evict(long now) {
+        Iterator<Window> iterator = windows.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isOver(now))
+                iterator.remove();
+        }
+        int toRemove = windows.size() - maxUsers + Math.max(1, maxUsers / 10);
+        if (toRemove <= 0)
+            return;
+        long[] starts = new long[windows.size()];
+        int count = 0;
+        for (Window window : windows.values()) {
+            if (count == starts.length)
+                break;
+            starts[count++] = window.startedAt;
+        }
+        if (count == 0)
+            return;
+        Arrays.sort(starts, 0, count);
+        long oldest = starts[Math.min(count, toRemove) - 1];
+        for (Map.Entry<String, Window> entry : windows.entrySet()) {
+            if (entry.getValue().startedAt <= oldest)
+                windows.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static final class Window {
+        private final long startedAt;
+        private final long endsAt;
+        private final ConcurrentHashMap<Long, AtomicInteger> counts = new ConcurrentHashMap<Long, AtomicInteger>(4);
+
+        private Window(long startedAt, long endsAt) {
+            this.startedAt = startedAt;
+            this.endsAt = endsAt;
+        }
+
+        private boolean isOver(long now) {
+            return now >= endsAt;
+        }
+    }
+}
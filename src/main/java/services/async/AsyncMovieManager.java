@@ -0,0 +1,217 @@
+package services.async;
+
+import edu.umflix.model.Activity;
+import edu.umflix.model.Clip;
+import edu.umflix.model.ClipData;
+import model.ClipChunk;
+import model.ClipDataResult;
+import model.ClipStream;
+import model.MovieManager;
+import model.MovieResult;
+import model.PlaybackGrant;
+import model.ResumePosition;
+import services.MovieManagerComponents;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non blocking counterparts of the {@link MovieManager} operations, for callers deployed in the same application.
+ * Each call is queued on an executor of its own instead of running on the caller's thread, so a slow
+ * AuthenticationHandler, dao or ClipStorage holds executor threads rather than pooled bean or request threads, and
+ * returns at once an {@link AsyncResult} bounded by the given deadline. Outcomes and exceptions are those of the
+ * blocking operation, delivered through the result.
+ * <p/>
+ * The executor is pluggable: by default the shared one from {@link MovieManagerComponents}, but a container managed
+ * executor, or one creating a thread per task where the runtime offers cheap threads, can be given instead. When it
+ * rejects a call the result fails at once with the {@link RejectedExecutionException}.
+ */
+public class AsyncMovieManager {
+
+    private final MovieManager movieManager;
+    private final Executor executor;
+    private final ScheduledExecutorService deadlineTimer;
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Runs calls on the shared async executor
+     *
+     * @param movieManager the blocking movie manager
+     */
+    public AsyncMovieManager(MovieManager movieManager) {
+        this(movieManager, MovieManagerComponents.getAsyncExecutor(), MovieManagerComponents.getDeadlineTimer());
+    }
+
+    /**
+     * @param movieManager  the blocking movie manager
+     * @param executor      runs the calls
+     * @param deadlineTimer fails results whose deadline passed
+     */
+    public AsyncMovieManager(MovieManager movieManager, Executor executor, ScheduledExecutorService deadlineTimer) {
+        this.movieManager = movieManager;
+        this.executor = executor;
+        this.deadlineTimer = deadlineTimer;
+    }
+
+    /**
+     * @see MovieManager#getMovie(String, Long)
+     */
+    public AsyncResult<List<Clip>> getMovie(final String userToken, final Long movieId, long deadlineMillis) {
+        return submit(new Callable<List<Clip>>() {
+            public List<Clip> call() throws Exception {
+                return movieManager.getMovie(userToken, movieId);
+            }
+        }, deadlineMillis);
+    }
+
+    /**
+     * @see MovieManager#getPlaybackGrant(String, Long)
+     */
+    public AsyncResult<PlaybackGrant> getPlaybackGrant(final String userToken, final Long movieId, long deadlineMillis) {
+        return submit(new Callable<PlaybackGrant>() {
+            public PlaybackGrant call() throws Exception {
+                return movieManager.getPlaybackGrant(userToken, movieId);
+            }
+        }, deadlineMillis);
+    }
+
+    /**
+     * @see MovieManager#getMovies(String, List)
+     */
+    public AsyncResult<List<MovieResult>> getMovies(final String userToken, final List<Long> movieIds, long deadlineMillis) {
+        return submit(new Callable<List<MovieResult>>() {
+            public List<MovieResult> call() throws Exception {
+                return movieManager.getMovies(userToken, movieIds);
+            }
+        }, deadlineMillis);
+    }
+
+    /**
+     * @see MovieManager#getClipData(String, Long)
+     */
+    public AsyncResult<ClipData> getClipData(final String userToken, final Long clipId, long deadlineMillis) {
+        return submit(new Callable<ClipData>() {
+            public ClipData call() throws Exception {
+                return movieManager.getClipData(userToken, clipId);
+            }
+        }, deadlineMillis);
+    }
+
+    /**
+     * @see MovieManager#getClipDataBatch(String, List)
+     */
+    public AsyncResult<List<ClipDataResult>> getClipDataBatch(final String userToken, final List<Long> clipIds,
+                                                              long deadlineMillis) {
+        return submit(new Callable<List<ClipDataResult>>() {
+            public List<ClipDataResult> call() throws Exception {
+                return movieManager.getClipDataBatch(userToken, clipIds);
+            }
+        }, deadlineMillis);
+    }
+
+    /**
+     * @see MovieManager#getClipChunk(String, Long, Long, Integer)
+     */
+    public AsyncResult<ClipChunk> getClipChunk(final String userToken, final Long clipId, final Long offset,
+                                               final Integer length, long deadlineMillis) {
+        return submit(new Callable<ClipChunk>() {
+            public ClipChunk call() throws Exception {
+                return movieManager.getClipChunk(userToken, clipId, offset, length);
+            }
+        }, deadlineMillis);
+    }
+
+    /**
+     * @see MovieManager#getClipStream(String, Long)
+     */
+    public AsyncResult<ClipStream> getClipStream(final String userToken, final Long clipId, long deadlineMillis) {
+        return submit(new Callable<ClipStream>() {
+            public ClipStream call() throws Exception {
+                return movieManager.getClipStream(userToken, clipId);
+            }
+        }, deadlineMillis);
+    }
+
+    /**
+     * @see MovieManager#sendActivity(String, Activity)
+     */
+    public AsyncResult<Void> sendActivity(final String userToken, final Activity activity, long deadlineMillis) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                movieManager.sendActivity(userToken, activity);
+                return null;
+            }
+        }, deadlineMillis);
+    }
+
+    /**
+     * @see MovieManager#getResumePosition(String, Long)
+     */
+    public AsyncResult<ResumePosition> getResumePosition(final String userToken, final Long movieId, long deadlineMillis) {
+        return submit(new Callable<ResumePosition>() {
+            public ResumePosition call() throws Exception {
+                return movieManager.getResumePosition(userToken, movieId);
+            }
+        }, deadlineMillis);
+    }
+
+    /**
+     * @see MovieManager#getAd(String, Long)
+     */
+    public AsyncResult<ClipData> getAd(final String userToken, final Long movieId, long deadlineMillis) {
+        return submit(new Callable<ClipData>() {
+            public ClipData call() throws Exception {
+                return movieManager.getAd(userToken, movieId);
+            }
+        }, deadlineMillis);
+    }
+
+    /**
+     * @see MovieManager#getAdStream(String, Long)
+     */
+    public AsyncResult<ClipStream> getAdStream(final String userToken, final Long movieId, long deadlineMillis) {
+        return submit(new Callable<ClipStream>() {
+            public ClipStream call() throws Exception {
+                return movieManager.getAdStream(userToken, movieId);
+            }
+        }, deadlineMillis);
+    }
+
+    /**
+     * @return the number of calls whose deadline passed before they completed
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    /**
+     * @return the number of calls the executor rejected
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    private <V> AsyncResult<V> submit(Callable<V> call, long deadlineMillis) {
+        if (deadlineMillis <= 0)
+            throw new IllegalArgumentException("Deadline must be positive");
+        final AsyncResult<V> result = new AsyncResult<V>(call, deadlineMillis, expiredCount, executor);
+        try {
+            result.setExpiry(deadlineTimer.schedule(new Runnable() {
+                public void run() {
+                    result.expire();
+                }
+            }, deadlineMillis, TimeUnit.MILLISECONDS));
+            executor.execute(result);
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            result.fail(e);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,190 @@
+package services.async;
+
+import org.apache.log4j.Logger;
+import services.resilience.Deadline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pending result of an operation run by {@link AsyncMovieManager}, bounded by a deadline. Once the deadline passes
+ * the result fails with a {@link TimeoutException}; an operation still queued at that point is never run, one
+ * already running is left to finish and its outcome is discarded. Callers either wait with {@link #get()} or register
+ * {@link Callback}s, which lets them chain calls without holding a thread in between. Callbacks run on the thread
+ * that ran the operation; when the result completes elsewhere, expired on the deadline timer or failed on submit,
+ * they are dispatched to the executor, or run in place if it rejects them.
+ *
+ * @param <V> the type of the result
+ */
+public class AsyncResult<V> extends FutureTask<V> {
+
+    static Logger logger = Logger.getLogger(AsyncResult.class);
+
+    private final long deadlineMillis;
+    private final long deadlineNanos;
+    private final AtomicLong expiredCount;
+    private final Executor callbackExecutor;
+    private final List<Callback<? super V>> callbacks = new ArrayList<Callback<? super V>>(2);
+    private boolean completed;
+    private volatile ScheduledFuture<?> expiry;
+    private volatile Thread runner;
+
+    AsyncResult(Callable<V> callable, long deadlineMillis, AtomicLong expiredCount, Executor callbackExecutor) {
+        super(callable);
+        this.deadlineMillis = deadlineMillis;
+        this.expiredCount = expiredCount;
+        this.callbackExecutor = callbackExecutor;
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+    }
+
+    /**
+     * Registers a callback, run at once when the result is already complete
+     *
+     * @param callback the callback
+     */
+    public void addCallback(Callback<? super V> callback) {
+        synchronized (this) {
+            if (!completed) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        notify(callback);
+    }
+
+    /**
+     * @return the deadline given when the operation was submitted, in milliseconds
+     */
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    @Override
+    public void run() {
+        long remaining = deadlineNanos - System.nanoTime();
+        if (remaining <= 0) {
+            //waited in the queue past its deadline, nobody is interested in the result anymore
+            expire();
+            return;
+        }
+        //dependency calls made by the operation are bounded by what is left of the deadline
+        Long previous = Deadline.begin(TimeUnit.NANOSECONDS.toMillis(remaining));
+        runner = Thread.currentThread();
+        try {
+            super.run();
+        } finally {
+            runner = null;
+            Deadline.end(previous);
+        }
+    }
+
+    /**
+     * Fails the result with a {@link TimeoutException} if it is not complete yet
+     */
+    void expire() {
+        if (isDone())
+            return;
+        TimeoutException timeout = new TimeoutException("deadline of " + deadlineMillis + " ms exceeded");
+        setException(timeout);
+        try {
+            get();
+        } catch (ExecutionException e) {
+            if (e.getCause() == timeout)
+                expiredCount.incrementAndGet();
+        } catch (CancellationException e) {
+            //cancelled by the caller first
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Fails the result, used when the operation could not be submitted
+     *
+     * @param failure the reason
+     */
+    void fail(Throwable failure) {
+        setException(failure);
+    }
+
+    void setExpiry(ScheduledFuture<?> expiry) {
+        this.expiry = expiry;
+        if (isDone())
+            expiry.cancel(false);
+    }
+
+    @Override
+    protected void done() {
+        ScheduledFuture<?> pending = expiry;
+        if (pending != null)
+            pending.cancel(false);
+        List<Callback<? super V>> toNotify;
+        synchronized (this) {
+            completed = true;
+            toNotify = new ArrayList<Callback<? super V>>(callbacks);
+            callbacks.clear();
+        }
+        if (toNotify.isEmpty())
+            return;
+        if (Thread.currentThread() == runner) {
+            for (Callback<? super V> callback : toNotify)
+                notify(callback);
+        } else {
+            //the deadline timer, or the submitting thread, must not run the callers' code
+            dispatch(toNotify);
+        }
+    }
+
+    private void dispatch(final List<Callback<? super V>> toNotify) {
+        Runnable notification = new Runnable() {
+            public void run() {
+                for (Callback<? super V> callback : toNotify)
+                    AsyncResult.this.notify(callback);
+            }
+        };
+        try {
+            callbackExecutor.execute(notification);
+        } catch (RejectedExecutionException e) {
+            notification.run();
+        }
+    }
+
+    private void notify(Callback<? super V> callback) {
+        V result;
+        try {
+            result = get();
+        } catch (ExecutionException e) {
+            notifyFailure(callback, e.getCause());
+            return;
+        } catch (CancellationException e) {
+            notifyFailure(callback, e);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            callback.onSuccess(result);
+        } catch (RuntimeException e) {
+            logger.error("callback failed", e);
+        }
+    }
+
+    private static void notifyFailure(Callback<?> callback, Throwable failure) {
+        try {
+            callback.onFailure(failure);
+        } catch (RuntimeException e) {
+            logger.error("callback failed", e);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package services.async;
+
+/**
+ * Receives the outcome of an {@link AsyncResult}. Callbacks run on the thread that completes the result, a worker
+ * of the async executor or the deadline timer, so they must not block; slow follow-up work is submitted elsewhere.
+ *
+ * @param <V> the type of the result
+ */
+public interface Callback<V> {
+
+    /**
+     * @param result the value the operation returned
+     */
+    public void onSuccess(V result);
+
+    /**
+     * @param failure the exception the operation threw, a {@link java.util.concurrent.TimeoutException} when its
+     *                deadline passed, or a {@link java.util.concurrent.RejectedExecutionException} when it could not
+     *                be queued
+     */
+    public void onFailure(Throwable failure);
+}
@@ -0,0 +1,248 @@
+package services.auth;
+
+import edu.umflix.model.Clip;
+import model.PlaybackGrant;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Issues and verifies playback grants: short lived tokens, signed with HMAC-SHA256, that let the bearer fetch the
+ * clips of one movie without the AuthenticationHandler being asked again. They are issued once the user has been
+ * validated and allowed to see the movie, and verified locally by any node sharing the keys.
+ * <p/>
+ * A grant reads <code>pg1.&lt;keyId&gt;.&lt;expiresAt&gt;.&lt;movieId&gt;.&lt;clipId&gt;-&lt;clipId&gt;....&lt;hmac&gt;</code>.
+ * Keys are named so that they can be rotated: grants are signed with the first key and verified with any key still
+ * configured. A grant outlives the revocation of the user token it was issued for by at most its TTL.
+ */
+public class PlaybackGrants {
+
+    /**
+     * Outcome of verifying a grant
+     */
+    public enum Status {
+        VALID, EXPIRED, INVALID, OUT_OF_SCOPE
+    }
+
+    private static final String PREFIX = "pg1.";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Pattern KEY_ID = Pattern.compile("[A-Za-z0-9_-]+");
+    private static final int MIN_KEY_LENGTH = 16;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Map<String, Mac> macs;
+    private final String signingKeyId;
+    private final long ttlMillis;
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong verified = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param keys      the secret of each key id, in order of preference; the first one signs new grants. No keys
+     *                     disables grants.
+     * @param ttlMillis how long issued grants are accepted
+     */
+    public PlaybackGrants(Map<String, byte[]> keys, long ttlMillis) {
+        if (ttlMillis <= 0)
+            throw new IllegalArgumentException("ttlMillis must be positive");
+        Map<String, Mac> macs = new LinkedHashMap<String, Mac>();
+        for (Map.Entry<String, byte[]> key : keys.entrySet()) {
+            if (!KEY_ID.matcher(key.getKey()).matches())
+                throw new IllegalArgumentException("Invalid grant key id " + key.getKey());
+            if (key.getValue().length < MIN_KEY_LENGTH)
+                throw new IllegalArgumentException("Grant key " + key.getKey() + " is shorter than " + MIN_KEY_LENGTH + " bytes");
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(new SecretKeySpec(key.getValue(), ALGORITHM));
+                macs.put(key.getKey(), mac);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HMAC-SHA256 is not available", e);
+            }
+        }
+        this.macs = Collections.unmodifiableMap(macs);
+        this.signingKeyId = macs.isEmpty() ? null : macs.keySet().iterator().next();
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Builds the grants from a setting listing the keys as <code>keyId:secret,keyId:secret</code>
+     *
+     * @param keys      the keys, or null to disable grants
+     * @param ttlMillis how long issued grants are accepted
+     * @return the grants
+     */
+    public static PlaybackGrants fromSetting(String keys, long ttlMillis) {
+        Map<String, byte[]> parsed = new LinkedHashMap<String, byte[]>();
+        if (keys != null) {
+            for (String key : keys.split(",")) {
+                if (key.trim().isEmpty())
+                    continue;
+                int separator = key.indexOf(':');
+                if (separator < 0)
+                    throw new IllegalArgumentException("Grant keys must be given as keyId:secret");
+                parsed.put(key.substring(0, separator).trim(), key.substring(separator + 1).trim().getBytes(Charset.forName("UTF-8")));
+            }
+        }
+        return new PlaybackGrants(parsed, ttlMillis);
+    }
+
+    /**
+     * @return true if grants are issued
+     */
+    public boolean isEnabled() {
+        return signingKeyId != null;
+    }
+
+    /**
+     * Tells a grant from a user token, without verifying it
+     *
+     * @param token the token received
+     * @return true if the token has the form of a grant
+     */
+    public static boolean isGrant(String token) {
+        return token != null && token.startsWith(PREFIX);
+    }
+
+    /**
+     * Issues a grant for the clips of a movie the caller has already been allowed to see
+     *
+     * @param movieId the id of the movie
+     * @param clips   the clips of the movie
+     * @return the clips along with the grant, which is null when grants are disabled
+     */
+    public PlaybackGrant issue(Long movieId, List<Clip> clips) {
+        if (!isEnabled())
+            return new PlaybackGrant(movieId, clips, null, 0);
+        long expiresAt = currentTimeMillis() + ttlMillis;
+        StringBuilder grant = new StringBuilder(64 + 8 * (clips == null ? 0 : clips.size()));
+        grant.append(PREFIX).append(signingKeyId).append('.').append(expiresAt).append('.').append(movieId).append('.');
+        if (clips != null) {
+            boolean first = true;
+            for (Clip clip : clips) {
+                if (clip == null || clip.getId() == null)
+                    continue;
+                if (!first)
+                    grant.append('-');
+                grant.append(clip.getId());
+                first = false;
+            }
+        }
+        byte[] signature = sign(macs.get(signingKeyId), grant.toString());
+        grant.append('.');
+        for (byte b : signature)
+            grant.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        issued.incrementAndGet();
+        return new PlaybackGrant(movieId, clips, grant.toString(), expiresAt);
+    }
+
+    /**
+     * Verifies a grant for the fetch of a clip
+     *
+     * @param grant  the grant received in place of a user token
+     * @param clipId the clip requested
+     * @return VALID when the grant is genuine, live and covers the clip; INVALID when it is malformed, forged or
+     *         signed with an unknown key
+     */
+    public Status verify(String grant, Long clipId) {
+        Status status = check(grant, clipId);
+        if (status == Status.VALID)
+            verified.incrementAndGet();
+        else
+            rejected.incrementAndGet();
+        return status;
+    }
+
+    public long getIssuedCount() {
+        return issued.get();
+    }
+
+    public long getVerifiedCount() {
+        return verified.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private Status check(String grant, Long clipId) {
+        if (!isGrant(grant) || clipId == null)
+            return Status.INVALID;
+        int keyEnd = grant.indexOf('.', PREFIX.length());
+        int expiresEnd = keyEnd < 0 ? -1 : grant.indexOf('.', keyEnd + 1);
+        int movieEnd = expiresEnd < 0 ? -1 : grant.indexOf('.', expiresEnd + 1);
+        int signatureStart = grant.lastIndexOf('.');
+        if (movieEnd < 0 || signatureStart <= movieEnd)
+            return Status.INVALID;
+        Mac prototype = macs.get(grant.substring(PREFIX.length(), keyEnd));
+        if (prototype == null)
+            return Status.INVALID;
+        byte[] expected = sign(prototype, grant.substring(0, signatureStart));
+        byte[] received = fromHex(grant, signatureStart + 1);
+        if (received == null || !MessageDigest.isEqual(expected, received))
+            return Status.INVALID;
+        long expiresAt;
+        try {
+            expiresAt = Long.parseLong(grant.substring(keyEnd + 1, expiresEnd));
+        } catch (NumberFormatException e) {
+            return Status.INVALID;
+        }
+        if (expiresAt <= currentTimeMillis())
+            return Status.EXPIRED;
+        return covers(grant, movieEnd + 1, signatureStart, clipId.toString()) ? Status.VALID : Status.OUT_OF_SCOPE;
+    }
+
+    private static boolean covers(String grant, int from, int to, String clipId) {
+        int start = from;
+        while (start < to) {
+            int end = grant.indexOf('-', start);
+            if (end < 0 || end > to)
+                end = to;
+            if (end - start == clipId.length() && grant.regionMatches(start, clipId, 0, clipId.length()))
+                return true;
+            start = end + 1;
+        }
+        return false;
+    }
+
+    private static byte[] sign(Mac prototype, String content) {
+        Mac mac;
+        try {
+            mac = (Mac) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            //providers are not required to support cloning, the prototype is then shared under a lock
+            synchronized (prototype) {
+                return prototype.doFinal(content.getBytes(ASCII));
+            }
+        }
+        return mac.doFinal(content.getBytes(ASCII));
+    }
+
+    private static byte[] fromHex(String grant, int from) {
+        int length = grant.length() - from;
+        if (length == 0 || length % 2 != 0)
+            return null;
+        byte[] bytes = new byte[length / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(grant.charAt(from + 2 * i), 16);
+            int low = Character.digit(grant.charAt(from + 2 * i + 1), 16);
+            if (high < 0 || low < 0)
+                return null;
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+}
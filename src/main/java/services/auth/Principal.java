@@ -0,0 +1,67 @@
+package services.auth;
+
+import edu.umflix.authenticationhandler.AuthenticationHandler;
+import edu.umflix.authenticationhandler.exceptions.InvalidTokenException;
+import edu.umflix.model.User;
+import edu.umflix.persistence.RoleDao;
+
+/**
+ * The caller of a single request, identified by an already validated token. The user and the roles behind the
+ * token are resolved at most once per request, through the shared caches, and then reused by every check of the
+ * validation chain. Instances are confined to the request thread and must not be shared.
+ */
+public final class Principal {
+
+    private final String userToken;
+    private final AuthenticationHandler authenticationHandler;
+    private final RoleDao roleDao;
+    private final TokenValidationCache tokenValidationCache;
+    private final RoleResolver roleResolver;
+    private User user;
+    private boolean rolesResolved;
+    private int roles;
+
+    public Principal(String userToken, AuthenticationHandler authenticationHandler, RoleDao roleDao,
+                     TokenValidationCache tokenValidationCache, RoleResolver roleResolver) {
+        this.userToken = userToken;
+        this.authenticationHandler = authenticationHandler;
+        this.roleDao = roleDao;
+        this.tokenValidationCache = tokenValidationCache;
+        this.roleResolver = roleResolver;
+    }
+
+    public String getUserToken() {
+        return userToken;
+    }
+
+    /**
+     * @return the user owning the token
+     * @throws InvalidTokenException when token is malformed
+     */
+    public User getUser() throws InvalidTokenException {
+        if (user == null)
+            user = tokenValidationCache.getUser(userToken, authenticationHandler);
+        return user;
+    }
+
+    /**
+     * @return the roles of the token, as a bitmask built by {@link RoleResolver}
+     * @throws InvalidTokenException when token is malformed
+     */
+    public int getRoles() throws InvalidTokenException {
+        if (!rolesResolved) {
+            roles = roleResolver.resolve(userToken, roleDao, authenticationHandler);
+            rolesResolved = true;
+        }
+        return roles;
+    }
+
+    /**
+     * @param mask the role types to test, as built by {@link RoleResolver#maskOf(edu.umflix.model.Role.RoleType...)}
+     * @return true if the token holds at least one of the role types
+     * @throws InvalidTokenException when token is malformed
+     */
+    public boolean hasAnyRole(int mask) throws InvalidTokenException {
+        return RoleResolver.hasAnyRole(getRoles(), mask);
+    }
+}
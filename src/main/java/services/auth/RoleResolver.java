@@ -0,0 +1,190 @@
+package services.auth;
+
+import edu.umflix.authenticationhandler.AuthenticationHandler;
+import edu.umflix.authenticationhandler.exceptions.InvalidTokenException;
+import edu.umflix.exceptions.RoleNotFoundException;
+import edu.umflix.model.Role;
+import edu.umflix.persistence.RoleDao;
+import services.cache.LruCache;
+import services.metrics.Metric;
+import services.metrics.Metrics;
+import services.resilience.Guard;
+import services.resilience.Guards;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves and memoizes the roles of a user token. The role catalogue is read from {@link RoleDao} once, and the
+ * full role set of a token is resolved on its first check and then kept as a bitmask over {@link Role.RoleType}
+ * ordinals, so later permission checks are plain bit tests. Role sets are kept in a bounded {@link LruCache}, like
+ * the token validation verdicts.
+ */
+public class RoleResolver {
+
+    private static final Metric IS_USER_IN_ROLE = Metrics.dependency("AuthenticationHandler.isUserInRole");
+    private static final Metric GET_ROLE_BY_ID = Metrics.dependency("RoleDao.getRoleById");
+    private static final Guard AUTHENTICATION_HANDLER = Guards.of("AuthenticationHandler");
+    private static final Guard ROLE_DAO = Guards.of("RoleDao");
+
+    private final LruCache<String, Integer> roleSets;
+    private final long ttlMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile Map<Role.RoleType, Role> catalogue;
+
+    /**
+     * @param maxEntries maximum number of tokens whose roles are remembered
+     * @param ttlMillis  how long a resolved role set is trusted; 0 disables memoization
+     */
+    public RoleResolver(int maxEntries, long ttlMillis) {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("maxEntries must be positive");
+        this.roleSets = new LruCache<String, Integer>(maxEntries, 16) {
+            @Override
+            protected long currentTimeMillis() {
+                return RoleResolver.this.currentTimeMillis();
+            }
+        };
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Builds the bitmask for a set of role types
+     *
+     * @param roleTypes the role types to include
+     * @return the bitmask with one bit per role type
+     */
+    public static int maskOf(Role.RoleType... roleTypes) {
+        int mask = 0;
+        for (Role.RoleType roleType : roleTypes)
+            mask |= 1 << roleType.ordinal();
+        return mask;
+    }
+
+    /**
+     * Checks a resolved role set against a role type
+     *
+     * @param roles    the role set returned by {@link #resolve(String, RoleDao, AuthenticationHandler)}
+     * @param roleType the role type to test
+     * @return true if the role set contains the role type
+     */
+    public static boolean hasRole(int roles, Role.RoleType roleType) {
+        return (roles & (1 << roleType.ordinal())) != 0;
+    }
+
+    /**
+     * Checks a resolved role set against several role types
+     *
+     * @param roles the role set returned by {@link #resolve(String, RoleDao, AuthenticationHandler)}
+     * @param mask  the role types to test, as built by {@link #maskOf(Role.RoleType...)}
+     * @return true if the role set contains at least one of the role types
+     */
+    public static boolean hasAnyRole(int roles, int mask) {
+        return (roles & mask) != 0;
+    }
+
+    /**
+     * Returns the role set of a token, resolving it through the authentication handler on a miss
+     *
+     * @param userToken             the user token
+     * @param roleDao               used to load the role catalogue the first time
+     * @param authenticationHandler used to resolve the roles of the token on a miss
+     * @return the bitmask of the roles held by the token
+     * @throws InvalidTokenException when token is malformed
+     */
+    public int resolve(String userToken, RoleDao roleDao, AuthenticationHandler authenticationHandler) throws InvalidTokenException {
+        if (userToken != null) {
+            Integer cached = roleSets.get(userToken);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+        }
+        misses.incrementAndGet();
+        int roles = 0;
+        for (Map.Entry<Role.RoleType, Role> entry : getCatalogue(roleDao).entrySet()) {
+            if (isUserInRole(userToken, entry.getValue(), authenticationHandler))
+                roles |= 1 << entry.getKey().ordinal();
+        }
+        if (userToken != null)
+            roleSets.put(userToken, roles, ttlMillis);
+        return roles;
+    }
+
+    /**
+     * Forgets the role set of a token, e.g. after its roles are changed
+     *
+     * @param userToken the token to forget
+     */
+    public void invalidate(String userToken) {
+        if (userToken != null)
+            roleSets.invalidate(userToken);
+    }
+
+    /**
+     * Forgets every role set and the role catalogue, which is read again on next use
+     */
+    public void invalidateAll() {
+        catalogue = null;
+        roleSets.clear();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Time source of the resolver, overridable by tests
+     *
+     * @return current time in milliseconds
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private static boolean isUserInRole(String userToken, Role role, AuthenticationHandler authenticationHandler)
+            throws InvalidTokenException {
+        Guard.Permit permit = AUTHENTICATION_HANDLER.enter(IS_USER_IN_ROLE);
+        try {
+            return authenticationHandler.isUserInRole(userToken, role);
+        } catch (RuntimeException e) {
+            permit.failed(e);
+            throw e;
+        } finally {
+            permit.release();
+        }
+    }
+
+    private Map<Role.RoleType, Role> getCatalogue(RoleDao roleDao) {
+        Map<Role.RoleType, Role> loaded = catalogue;
+        if (loaded == null) {
+            synchronized (this) {
+                loaded = catalogue;
+                if (loaded == null) {
+                    loaded = new EnumMap<Role.RoleType, Role>(Role.RoleType.class);
+                    for (Role.RoleType roleType : Role.RoleType.values()) {
+                        Guard.Permit permit = ROLE_DAO.enter(GET_ROLE_BY_ID);
+                        try {
+                            loaded.put(roleType, roleDao.getRoleById(roleType.getRole()));
+                        } catch (RoleNotFoundException e) {
+                            //a role missing from persistence can not be held by anyone
+                        } catch (RuntimeException e) {
+                            permit.failed(e);
+                            throw e;
+                        } finally {
+                            permit.release();
+                        }
+                    }
+                    catalogue = loaded;
+                }
+            }
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,197 @@
+package services.auth;
+
+import edu.umflix.authenticationhandler.AuthenticationHandler;
+import edu.umflix.authenticationhandler.exceptions.InvalidTokenException;
+import edu.umflix.model.User;
+import services.cache.LruCache;
+import services.metrics.Gauge;
+import services.metrics.Metric;
+import services.metrics.Metrics;
+import services.metrics.MetricsRegistry;
+import services.resilience.Guard;
+import services.resilience.Guards;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of token validation verdicts kept in front of {@link AuthenticationHandler#validateToken(String)}.
+ * Valid tokens are remembered for the configured TTL; expired and malformed tokens are remembered for the
+ * (usually shorter) negative TTL so that retries of a bad token do not reach the authentication service either.
+ * The user owning a valid token is remembered along with its verdict. A malformed token is remembered as a verdict
+ * and a fresh exception is thrown on every hit, so callers never share a stack trace.
+ */
+public class TokenValidationCache {
+
+    private static final Metric VALIDATE_TOKEN = Metrics.dependency("AuthenticationHandler.validateToken");
+    private static final Metric GET_USER_OF_TOKEN = Metrics.dependency("AuthenticationHandler.getUserOfToken");
+    private static final Guard AUTHENTICATION_HANDLER = Guards.of("AuthenticationHandler");
+
+    private final LruCache<String, Verdict> verdicts;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxEntries        maximum number of tokens kept in the cache
+     * @param ttlMillis         how long a valid verdict is trusted; 0 disables positive caching
+     * @param negativeTtlMillis how long an expired or malformed verdict is trusted; 0 disables negative caching
+     */
+    public TokenValidationCache(int maxEntries, long ttlMillis, long negativeTtlMillis) {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("maxEntries must be positive");
+        this.verdicts = new LruCache<String, Verdict>(maxEntries, 16) {
+            @Override
+            protected long currentTimeMillis() {
+                return TokenValidationCache.this.currentTimeMillis();
+            }
+        };
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+    }
+
+    /**
+     * Returns the verdict for the given token, asking the authentication handler only when no live verdict is cached
+     *
+     * @param userToken             the token to validate
+     * @param authenticationHandler the handler used on a cache miss
+     * @return true if token is valid, otherwise false
+     * @throws InvalidTokenException when token is malformed
+     */
+    public boolean validate(String userToken, AuthenticationHandler authenticationHandler) throws InvalidTokenException {
+        Verdict verdict = verdicts.get(userToken);
+        if (verdict != null) {
+            hits.incrementAndGet();
+            return verdict.result();
+        }
+        misses.incrementAndGet();
+        boolean valid;
+        Guard.Permit permit = AUTHENTICATION_HANDLER.enter(VALIDATE_TOKEN);
+        try {
+            valid = authenticationHandler.validateToken(userToken);
+        } catch (InvalidTokenException e) {
+            verdicts.put(userToken, new Verdict(false, true), negativeTtlMillis);
+            throw e;
+        } catch (RuntimeException e) {
+            permit.failed(e);
+            throw e;
+        } finally {
+            permit.release();
+        }
+        if (valid)
+            verdicts.put(userToken, new Verdict(true, false), ttlMillis);
+        else
+            verdicts.put(userToken, new Verdict(false, false), negativeTtlMillis);
+        return valid;
+    }
+
+    /**
+     * Returns the user owning a token, asking the authentication handler only the first time while the token's
+     * valid verdict is cached
+     *
+     * @param userToken             the token
+     * @param authenticationHandler the handler used on a cache miss
+     * @return the user owning the token
+     * @throws InvalidTokenException when token is malformed
+     */
+    public User getUser(String userToken, AuthenticationHandler authenticationHandler) throws InvalidTokenException {
+        Verdict verdict = verdicts.get(userToken);
+        boolean live = verdict != null && verdict.valid;
+        if (live && verdict.user != null) {
+            hits.incrementAndGet();
+            return verdict.user;
+        }
+        misses.incrementAndGet();
+        User user;
+        Guard.Permit permit = AUTHENTICATION_HANDLER.enter(GET_USER_OF_TOKEN);
+        try {
+            user = authenticationHandler.getUserOfToken(userToken);
+        } catch (RuntimeException e) {
+            permit.failed(e);
+            throw e;
+        } finally {
+            permit.release();
+        }
+        if (live)
+            verdict.user = user;
+        return user;
+    }
+
+    /**
+     * Forgets the verdict of a token, e.g. on logout or when its roles change
+     *
+     * @param userToken the token to forget
+     */
+    public void invalidate(String userToken) {
+        if (userToken != null)
+            verdicts.invalidate(userToken);
+    }
+
+    /**
+     * Forgets every cached verdict
+     */
+    public void invalidateAll() {
+        verdicts.clear();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public int size() {
+        return verdicts.size();
+    }
+
+    /**
+     * Publishes the hits, misses and size of the cache, named <code>token_cache_*</code>
+     *
+     * @param registry where they are published
+     */
+    public void registerGauges(MetricsRegistry registry) {
+        registry.counter("token_cache_hits_total", new Gauge() {
+            public double getValue() {
+                return getHitCount();
+            }
+        });
+        registry.counter("token_cache_misses_total", new Gauge() {
+            public double getValue() {
+                return getMissCount();
+            }
+        });
+        registry.gauge("token_cache_entries", new Gauge() {
+            public double getValue() {
+                return size();
+            }
+        });
+    }
+
+    /**
+     * Time source of the cache, overridable by tests
+     *
+     * @return current time in milliseconds
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private static final class Verdict {
+        private final boolean valid;
+        private final boolean malformed;
+        private volatile User user;
+
+        private Verdict(boolean valid, boolean malformed) {
+            this.valid = valid;
+            this.malformed = malformed;
+        }
+
+        private boolean result() throws InvalidTokenException {
+            if (malformed)
+                throw new InvalidTokenException();
+            return valid;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package services.cache;
+
+import edu.umflix.model.Clip;
+import edu.umflix.model.Movie;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable snapshot of the fields of a {@link Movie} the movie manager serves, taken when the movie is loaded. The
+ * entity returned by the dao may still be managed by the persistence context of the request that loaded it, so it
+ * is neither changed nor shared; callers get this snapshot instead.
+ */
+public final class CachedMovie {
+
+    private final Long id;
+    private final boolean enabled;
+    private final List<Clip> clips;
+
+    /**
+     * Copies a movie, fetching its clip list if it is loaded lazily
+     *
+     * @param movie the movie read through the dao
+     */
+    public CachedMovie(Movie movie) {
+        this.id = movie.getId();
+        this.enabled = movie.isEnabled();
+        List<Clip> movieClips = movie.getClips();
+        this.clips = movieClips == null ? null : Collections.unmodifiableList(new ArrayList<Clip>(movieClips));
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the clips of the movie, read-only, or null if it has none
+     */
+    public List<Clip> getClips() {
+        return clips;
+    }
+}
@@ -0,0 +1,713 @@
+package services.cache;
+
+import edu.umflix.clipstorage.ClipStorage;
+import edu.umflix.model.ClipData;
+import model.ClipChunk;
+import services.Settings;
+import services.metrics.Gauge;
+import services.metrics.Metric;
+import services.metrics.Metrics;
+import services.metrics.MetricsRegistry;
+import services.resilience.Guard;
+import services.resilience.Guards;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache of {@link ClipData} bounded by the total size of the cached payloads rather than by entry
+ * count. Hits are lock free. When the budget is exceeded, entries are evicted by Greedy-Dual-Size-Frequency
+ * priority (frequency of use divided by size, plus an aging term), so small popular clips stay and large rarely
+ * used ones go first; eviction frees some headroom below the budget so it does not run on every miss.
+ * Pinned entries, such as ad clips, are never evicted; they are bounded by their own <code>maxPinnedBytes</code>
+ * budget, beyond which clips are cached unpinned. When an {@link OffHeapClipStore} is given, cached payloads
+ * are kept off heap and copied back into a fresh ClipData on each hit, trading a short-lived copy per request for
+ * a heap that does not grow with the hot set. Concurrent misses of the same clip share a single read from storage.
+ * <p/>
+ * Clip storage only reads whole clips, so a clip above <code>maxEntryBytes</code> read for a byte range is held
+ * aside for <code>clipCache.oversizedTtlMillis</code>, up to <code>clipCache.maxOversizedClips</code> of them, so
+ * that the following ranges of a player do not read it again. Clips held aside take at most a quarter of
+ * <code>maxBytes</code> and count in the used bytes like cached ones; a clip larger than that is read again for
+ * every range. Clips found to have no ClipData are remembered for
+ * <code>clipCache.absentTtlMillis</code>, so that {@link #isAbsent(Long)} can tell without reading storage.
+ */
+public class ClipDataCache {
+
+    private static final double HEADROOM = 0.9;
+    private static final long DEFAULT_LOAD_TIMEOUT_MILLIS = 30000;
+    private static final Metric GET_CLIP_DATA = Metrics.dependency("ClipStorage.getClipDataByClipId");
+    private static final Guard CLIP_STORAGE = Guards.of("ClipStorage");
+    private static final long OVERSIZED_TTL_MILLIS = Settings.getLong("clipCache.oversizedTtlMillis", 30000);
+    private static final int MAX_OVERSIZED_CLIPS = Settings.getInt("clipCache.maxOversizedClips", 4);
+    private static final long ABSENT_TTL_MILLIS = Settings.getLong("clipCache.absentTtlMillis", 30000);
+    private static final int MAX_ABSENT_CLIPS = Settings.getInt("clipCache.maxAbsentClips", 1024);
+
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long maxPinnedBytes;
+    private final OffHeapClipStore offHeapStore;
+    private final SingleFlight<Long, ClipData> loads;
+    private final Oversized oversized;
+    private final LruCache<Long, Boolean> absent = new LruCache<Long, Boolean>(Math.max(1, MAX_ABSENT_CLIPS), 4);
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong pinnedBytes = new AtomicLong();
+    private final Object evictionLock = new Object();
+    private volatile double age;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicLong bytesLoaded = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes      total size of the cached payloads
+     * @param maxEntryBytes size above which a clip is not cached
+     */
+    public ClipDataCache(long maxBytes, long maxEntryBytes) {
+        this(maxBytes, maxEntryBytes, null);
+    }
+
+    /**
+     * @param maxBytes      total size of the cached payloads
+     * @param maxEntryBytes size above which a clip is not cached
+     * @param offHeapStore  where payloads are kept, or null to keep them on heap
+     */
+    public ClipDataCache(long maxBytes, long maxEntryBytes, OffHeapClipStore offHeapStore) {
+        this(maxBytes, maxEntryBytes, offHeapStore, DEFAULT_LOAD_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Builds a cache whose pinned clips may take up to half of <code>maxBytes</code>
+     *
+     * @param maxBytes          total size of the cached payloads
+     * @param maxEntryBytes     size above which a clip is not cached
+     * @param offHeapStore      where payloads are kept, or null to keep them on heap
+     * @param loadTimeoutMillis how long a miss waits for the read of the same clip started by another request
+     */
+    public ClipDataCache(long maxBytes, long maxEntryBytes, OffHeapClipStore offHeapStore, long loadTimeoutMillis) {
+        this(maxBytes, maxEntryBytes, maxBytes / 2, offHeapStore, loadTimeoutMillis);
+    }
+
+    /**
+     * @param maxBytes          total size of the cached payloads
+     * @param maxEntryBytes     size above which a clip is not cached
+     * @param maxPinnedBytes    total size of the pinned payloads, counted within maxBytes
+     * @param offHeapStore      where payloads are kept, or null to keep them on heap
+     * @param loadTimeoutMillis how long a miss waits for the read of the same clip started by another request
+     */
+    public ClipDataCache(long maxBytes, long maxEntryBytes, long maxPinnedBytes, OffHeapClipStore offHeapStore,
+                         long loadTimeoutMillis) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxBytes, maxEntryBytes);
+        this.maxPinnedBytes = Math.min(maxBytes, maxPinnedBytes);
+        this.offHeapStore = offHeapStore;
+        this.loads = new SingleFlight<Long, ClipData>(loadTimeoutMillis);
+        this.oversized = new Oversized(maxBytes / 4);
+    }
+
+    /**
+     * Returns the ClipData of a clip, reading it from clip storage on a miss
+     *
+     * @param clipId      the id of the clip
+     * @param clipStorage the storage used on a miss
+     * @param pinned      true if the clip must never be evicted once cached, budget of pinned clips permitting
+     * @return the ClipData of the clip
+     * @throws IllegalStateException when the read of the clip by another request did not complete in time
+     */
+    public ClipData get(final Long clipId, final ClipStorage clipStorage, final boolean pinned) {
+        Entry entry = entries.get(clipId);
+        if (entry != null) {
+            ClipData cached = entry.read();
+            if (cached != null) {
+                entry.frequency.incrementAndGet();
+                if (pinned)
+                    pin(entry);
+                hits.incrementAndGet();
+                bytesServed.addAndGet(entry.size);
+                return cached;
+            }
+        }
+        misses.incrementAndGet();
+        ClipData clipData;
+        try {
+            clipData = loads.load(clipId, new Callable<ClipData>() {
+                public ClipData call() {
+                    return load(clipId, clipStorage);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("could not read clip " + clipId, SingleFlight.causeOf(e));
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("timed out waiting for clip " + clipId, e);
+        }
+        if (pinned)
+            pin(clipId);
+        return clipData;
+    }
+
+    /**
+     * Returns the payload of a clip as a data source that reads the cached bytes in place, on or off heap, rather than
+     * copying them for every request; on a miss the clip is read and cached first
+     *
+     * @param clipId      the id of the clip
+     * @param clipStorage the storage used on a miss
+     * @param pinned      true if the clip must never be evicted once cached, budget of pinned clips permitting
+     * @return the payload, or null when the clip has no ClipData
+     */
+    public ClipPayload getPayload(final Long clipId, final ClipStorage clipStorage, final boolean pinned) {
+        Entry entry = entries.get(clipId);
+        if (entry != null) {
+            entry.frequency.incrementAndGet();
+            if (pinned)
+                pin(entry);
+            hits.incrementAndGet();
+            bytesServed.addAndGet(entry.size);
+            if (entry.block == null)
+                return new ClipPayload.OnHeap(clipId, entry.clipData.getBytes());
+            return new ClipPayload.OffHeap(clipId, entry.block, new ClipPayload.Reloader() {
+                public ClipPayload reload(Long id) {
+                    ClipData clipData = get(id, clipStorage, pinned);
+                    return new ClipPayload.OnHeap(id, clipData == null ? null : clipData.getBytes());
+                }
+            });
+        }
+        ClipData clipData = get(clipId, clipStorage, pinned);
+        return clipData == null ? null : new ClipPayload.OnHeap(clipId, clipData.getBytes());
+    }
+
+    /**
+     * Returns a byte range of the ClipData of a clip. On a hit only the range is copied, straight from the cached
+     * payload, whether it is on or off heap; on a miss the clip is read and cached first, or held aside for the
+     * next ranges when it is too large to be cached.
+     *
+     * @param clipId      the id of the clip
+     * @param clipStorage the storage used on a miss
+     * @param offset      position of the first requested byte
+     * @param length      maximum number of bytes to return
+     * @return the range, or null when the clip has no ClipData
+     */
+    public ClipChunk getChunk(Long clipId, ClipStorage clipStorage, long offset, int length) {
+        Entry entry = entries.get(clipId);
+        if (entry != null) {
+            ClipChunk chunk = entry.readChunk(offset, length);
+            if (chunk != null) {
+                entry.frequency.incrementAndGet();
+                hits.incrementAndGet();
+                bytesServed.addAndGet(chunk.getBytes().length);
+                return chunk;
+            }
+        }
+        ClipData clipData = oversized.get(clipId, currentTimeMillis());
+        if (clipData != null) {
+            ClipChunk chunk = chunkOf(clipId, clipData, offset, length);
+            hits.incrementAndGet();
+            bytesServed.addAndGet(chunk.getBytes().length);
+            return chunk;
+        }
+        clipData = get(clipId, clipStorage, false);
+        if (clipData == null)
+            return null;
+        long size = sizeOf(clipData);
+        if (size > maxEntryBytes)
+            oversized.put(clipId, clipData, size, currentTimeMillis());
+        return chunkOf(clipId, clipData, offset, length);
+    }
+
+    /**
+     * Tells whether a clip is known to have no ClipData, without reading clip storage
+     *
+     * @param clipId the id of the clip
+     * @return true if the clip was found missing from clip storage less than <code>clipCache.absentTtlMillis</code>
+     *         ago, false if it is cached or was not read recently
+     */
+    public boolean isAbsent(Long clipId) {
+        return entries.get(clipId) == null && absent.get(clipId) != null;
+    }
+
+    /**
+     * Marks a cached clip as never to be evicted, unless the pinned clips already fill their budget
+     *
+     * @param clipId the id of the clip
+     * @return true if the clip is cached and pinned
+     */
+    public boolean pin(Long clipId) {
+        Entry entry = entries.get(clipId);
+        return entry != null && pin(entry);
+    }
+
+    /**
+     * Makes a pinned clip evictable again
+     *
+     * @param clipId the id of the clip
+     */
+    public void unpin(Long clipId) {
+        Entry entry = entries.get(clipId);
+        if (entry != null)
+            unpin(entry);
+    }
+
+    /**
+     * Makes every pinned clip but the given ones evictable again, to be called when the set of clips to pin changes,
+     * such as the ads in system
+     *
+     * @param clipIds the clips that stay pinned
+     */
+    public void retainPinned(Collection<Long> clipIds) {
+        for (Entry entry : entries.values()) {
+            if (entry.pinned.get() && !clipIds.contains(entry.clipId))
+                unpin(entry);
+        }
+    }
+
+    /**
+     * Forgets a clip, to be called when its data changes in clip storage
+     *
+     * @param clipId the id of the clip
+     */
+    public void invalidate(Long clipId) {
+        oversized.remove(clipId);
+        absent.invalidate(clipId);
+        Entry removed = entries.remove(clipId);
+        if (removed != null) {
+            usedBytes.addAndGet(-removed.size);
+            unpin(removed);
+            removed.free();
+        }
+    }
+
+    /**
+     * Forgets every clip, pinned ones included
+     */
+    public void invalidateAll() {
+        synchronized (evictionLock) {
+            for (Long clipId : new ArrayList<Long>(entries.keySet()))
+                invalidate(clipId);
+        }
+        oversized.clear();
+        absent.clear();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return ratio of requests served from the cache, between 0 and 1
+     */
+    public double getHitRatio() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return total size of the payloads returned from the cache
+     */
+    public long getBytesServed() {
+        return bytesServed.get();
+    }
+
+    /**
+     * @return total size of the payloads read from clip storage
+     */
+    public long getBytesLoaded() {
+        return bytesLoaded.get();
+    }
+
+    /**
+     * @return number of misses served by a read started by another request
+     */
+    public long getSharedLoadCount() {
+        return loads.getSharedCount();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return size of the clips held aside for their next ranges, included in the used bytes
+     */
+    public long getOversizedBytes() {
+        return oversized.bytes;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getPinnedBytes() {
+        return pinnedBytes.get();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Publishes the counters and sizes of the cache, named <code>clip_cache_*</code>
+     *
+     * @param registry where they are published
+     */
+    public void registerGauges(MetricsRegistry registry) {
+        registry.gauge("clip_cache_hit_ratio", new Gauge() {
+            public double getValue() {
+                return getHitRatio();
+            }
+        });
+        registry.counter("clip_cache_hits_total", new Gauge() {
+            public double getValue() {
+                return getHitCount();
+            }
+        });
+        registry.counter("clip_cache_misses_total", new Gauge() {
+            public double getValue() {
+                return getMissCount();
+            }
+        });
+        registry.counter("clip_cache_served_bytes_total", new Gauge() {
+            public double getValue() {
+                return getBytesServed();
+            }
+        });
+        registry.counter("clip_cache_loaded_bytes_total", new Gauge() {
+            public double getValue() {
+                return getBytesLoaded();
+            }
+        });
+        registry.counter("clip_cache_shared_loads_total", new Gauge() {
+            public double getValue() {
+                return getSharedLoadCount();
+            }
+        });
+        registry.counter("clip_cache_evictions_total", new Gauge() {
+            public double getValue() {
+                return getEvictionCount();
+            }
+        });
+        registry.gauge("clip_cache_used_bytes", new Gauge() {
+            public double getValue() {
+                return getUsedBytes();
+            }
+        });
+        registry.gauge("clip_cache_pinned_bytes", new Gauge() {
+            public double getValue() {
+                return getPinnedBytes();
+            }
+        });
+        registry.gauge("clip_cache_oversized_bytes", new Gauge() {
+            public double getValue() {
+                return getOversizedBytes();
+            }
+        });
+        registry.gauge("clip_cache_entries", new Gauge() {
+            public double getValue() {
+                return size();
+            }
+        });
+    }
+
+    /**
+     * Size accounted for a clip payload
+     *
+     * @param clipData the payload
+     * @return its size in bytes, at least 1
+     */
+    private static long sizeOf(ClipData clipData) {
+        byte[] bytes = clipData.getBytes();
+        return bytes == null ? 1 : Math.max(1, bytes.length);
+    }
+
+    /**
+     * Copies the metadata of a ClipData around another payload
+     *
+     * @param template the ClipData to copy
+     * @param bytes    the payload of the copy
+     * @return the copy
+     */
+    private static ClipData copyOf(ClipData template, byte[] bytes) {
+        ClipData copy = new ClipData();
+        copy.setId(template.getId());
+        copy.setClip(template.getClip());
+        copy.setBytes(bytes);
+        return copy;
+    }
+
+    private static ClipChunk chunkOf(Long clipId, ClipData clipData, long offset, int length) {
+        byte[] bytes = clipData.getBytes();
+        return chunkOf(clipId, bytes == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(bytes), offset, length);
+    }
+
+    private static ClipChunk chunkOf(Long clipId, ByteBuffer payload, long offset, int length) {
+        int total = payload.remaining();
+        int start = (int) Math.min(offset, total);
+        int count = Math.min(length, total - start);
+        byte[] bytes = new byte[count];
+        payload.position(payload.position() + start);
+        payload.get(bytes);
+        return new ClipChunk(clipId, offset, total, bytes);
+    }
+
+    /**
+     * Reads a clip from storage and caches it when it fits
+     */
+    private ClipData load(Long clipId, ClipStorage clipStorage) {
+        ClipData clipData;
+        Guard.Permit permit = CLIP_STORAGE.enter(GET_CLIP_DATA);
+        try {
+            clipData = clipStorage.getClipDataByClipId(clipId);
+        } catch (RuntimeException e) {
+            permit.failed(e);
+            throw e;
+        } finally {
+            permit.release();
+        }
+        if (clipData == null) {
+            absent.put(clipId, Boolean.TRUE, ABSENT_TTL_MILLIS);
+            return null;
+        }
+        absent.invalidate(clipId);
+        long size = sizeOf(clipData);
+        bytesLoaded.addAndGet(size);
+        if (size > maxEntryBytes)
+            return clipData;
+        if (offHeapStore == null || clipData.getBytes() == null) {
+            put(new Entry(clipId, clipData, null, size));
+        } else {
+            OffHeapClipStore.Block block = offHeapStore.store(clipData.getBytes());
+            if (block != null)
+                put(new Entry(clipId, copyOf(clipData, null), block, size));
+        }
+        return clipData;
+    }
+
+    private void put(Entry entry) {
+        Entry previous = entries.put(entry.clipId, entry);
+        usedBytes.addAndGet(entry.size - (previous == null ? 0 : previous.size));
+        if (previous != null) {
+            unpin(previous);
+            previous.free();
+        }
+        if (usedBytes.get() > maxBytes)
+            evict();
+    }
+
+    /**
+     * Pins an entry if the budget of pinned clips allows it
+     *
+     * @return true if the entry is pinned
+     */
+    private boolean pin(Entry entry) {
+        if (entry.pinned.get())
+            return true;
+        while (true) {
+            long pinned = pinnedBytes.get();
+            if (pinned + entry.size > maxPinnedBytes)
+                return false;
+            if (pinnedBytes.compareAndSet(pinned, pinned + entry.size))
+                break;
+        }
+        if (!entry.pinned.compareAndSet(false, true)) {
+            pinnedBytes.addAndGet(-entry.size);
+            return true;
+        }
+        //an entry removed meanwhile must not keep its bytes in the budget
+        if (entries.get(entry.clipId) != entry) {
+            unpin(entry);
+            return false;
+        }
+        return true;
+    }
+
+    private void unpin(Entry entry) {
+        if (entry.pinned.compareAndSet(true, false))
+            pinnedBytes.addAndGet(-entry.size);
+    }
+
+    private void evict() {
+        synchronized (evictionLock) {
+            if (usedBytes.get() <= maxBytes)
+                return;
+            List<Entry> candidates = new ArrayList<Entry>();
+            for (Entry entry : entries.values()) {
+                if (!entry.pinned.get()) {
+                    entry.priority = age + (double) entry.frequency.get() / entry.size;
+                    candidates.add(entry);
+                }
+            }
+            Collections.sort(candidates, new Comparator<Entry>() {
+                public int compare(Entry first, Entry second) {
+                    return Double.compare(first.priority, second.priority);
+                }
+            });
+            long target = (long) (maxBytes * HEADROOM);
+            for (Entry entry : candidates) {
+                if (usedBytes.get() <= target)
+                    break;
+                if (!entry.pinned.get() && entries.remove(entry.clipId, entry)) {
+                    usedBytes.addAndGet(-entry.size);
+                    entry.free();
+                    evictions.incrementAndGet();
+                    age = Math.max(age, entry.priority);
+                }
+            }
+        }
+    }
+
+    /**
+     * Time source of the clips held aside, overridable by tests
+     *
+     * @return current time in milliseconds
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Clips too large to be cached, held aside for the next ranges of a player, least recently read first out. They
+     * are few and only read for ranges, so a single lock is enough.
+     */
+    private final class Oversized {
+        private final long maxBytes;
+        private final LinkedHashMap<Long, Aside> clips = new LinkedHashMap<Long, Aside>(16, 0.75f, true);
+        private volatile long bytes;
+
+        private Oversized(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        private synchronized ClipData get(Long clipId, long now) {
+            Aside aside = clips.get(clipId);
+            if (aside == null)
+                return null;
+            if (now >= aside.expiresAt) {
+                remove(clipId);
+                return null;
+            }
+            return aside.clipData;
+        }
+
+        private void put(Long clipId, ClipData clipData, long size, long now) {
+            if (size > maxBytes)
+                return;
+            synchronized (this) {
+                remove(clipId);
+                Iterator<Map.Entry<Long, Aside>> eldest = clips.entrySet().iterator();
+                while (eldest.hasNext() && (clips.size() >= MAX_OVERSIZED_CLIPS || bytes + size > maxBytes)) {
+                    Aside dropped = eldest.next().getValue();
+                    eldest.remove();
+                    release(dropped.size);
+                }
+                clips.put(clipId, new Aside(clipData, size, now + OVERSIZED_TTL_MILLIS));
+                bytes += size;
+            }
+            if (usedBytes.addAndGet(size) > ClipDataCache.this.maxBytes)
+                evict();
+        }
+
+        private synchronized void remove(Long clipId) {
+            Aside removed = clips.remove(clipId);
+            if (removed != null)
+                release(removed.size);
+        }
+
+        private synchronized void clear() {
+            for (Aside aside : clips.values())
+                release(aside.size);
+            clips.clear();
+        }
+
+        private void release(long size) {
+            bytes -= size;
+            usedBytes.addAndGet(-size);
+        }
+    }
+
+    private static final class Aside {
+        private final ClipData clipData;
+        private final long size;
+        private final long expiresAt;
+
+        private Aside(ClipData clipData, long size, long expiresAt) {
+            this.clipData = clipData;
+            this.size = size;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Entry {
+        private final Long clipId;
+        private final ClipData clipData;
+        private final OffHeapClipStore.Block block;
+        private final long size;
+        private final AtomicInteger frequency = new AtomicInteger(1);
+        private final AtomicBoolean pinned = new AtomicBoolean();
+        private double priority;
+
+        /**
+         * @param clipData the cached ClipData, or the metadata of it when the payload is off heap
+         * @param block    the off heap payload, or null when clipData holds the payload
+         */
+        private Entry(Long clipId, ClipData clipData, OffHeapClipStore.Block block, long size) {
+            this.clipId = clipId;
+            this.clipData = clipData;
+            this.block = block;
+            this.size = size;
+        }
+
+        /**
+         * @return the cached ClipData, or null if its off heap payload was freed meanwhile
+         */
+        private ClipData read() {
+            if (block == null)
+                return clipData;
+            if (!block.retain())
+                return null;
+            try {
+                return copyOf(clipData, block.toByteArray());
+            } finally {
+                block.release();
+            }
+        }
+
+        /**
+         * @return the requested range, or null if the off heap payload was freed meanwhile
+         */
+        private ClipChunk readChunk(long offset, int length) {
+            if (block == null)
+                return chunkOf(clipId, clipData, offset, length);
+            if (!block.retain())
+                return null;
+            try {
+                return chunkOf(clipId, block.view(), offset, length);
+            } finally {
+                block.release();
+            }
+        }
+
+        private void free() {
+            if (block != null)
+                block.release();
+        }
+    }
+}
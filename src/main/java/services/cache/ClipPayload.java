@@ -0,0 +1,152 @@
+package services.cache;
+
+import javax.activation.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The payload of a clip as a {@link DataSource}, so that it can be sent as a streamed attachment without being
+ * copied. A payload cached on heap is read in place; a payload cached off heap is read straight from its direct
+ * buffer, each stream holding a reference to the block until it is closed. If the block was evicted before a stream
+ * is opened, the payload is read again through the cache.
+ */
+public abstract class ClipPayload implements DataSource {
+
+    private static final String CONTENT_TYPE = "application/octet-stream";
+
+    private final Long clipId;
+    private final long length;
+
+    ClipPayload(Long clipId, long length) {
+        this.clipId = clipId;
+        this.length = length;
+    }
+
+    public Long getClipId() {
+        return clipId;
+    }
+
+    /**
+     * @return size of the payload in bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    public String getName() {
+        return "clip-" + clipId;
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("clip payloads are read only");
+    }
+
+    /**
+     * Payload held in a heap array
+     */
+    static final class OnHeap extends ClipPayload {
+        private final byte[] bytes;
+
+        OnHeap(Long clipId, byte[] bytes) {
+            super(clipId, bytes == null ? 0 : bytes.length);
+            this.bytes = bytes == null ? new byte[0] : bytes;
+        }
+
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(bytes);
+        }
+    }
+
+    /**
+     * Payload held in an off heap block of the cache
+     */
+    static final class OffHeap extends ClipPayload {
+        private final OffHeapClipStore.Block block;
+        private final Reloader reloader;
+
+        OffHeap(Long clipId, OffHeapClipStore.Block block, Reloader reloader) {
+            super(clipId, block.size());
+            this.block = block;
+            this.reloader = reloader;
+        }
+
+        public InputStream getInputStream() throws IOException {
+            if (!block.retain())
+                return reloader.reload(getClipId()).getInputStream();
+            return new BlockInputStream(block);
+        }
+    }
+
+    /**
+     * Reads a payload again when its block was freed
+     */
+    interface Reloader {
+        ClipPayload reload(Long clipId) throws IOException;
+    }
+
+    /**
+     * Stream over a retained block, releasing it once on close
+     */
+    private static final class BlockInputStream extends InputStream {
+        private final OffHeapClipStore.Block block;
+        private final ByteBuffer buffer;
+        private boolean closed;
+
+        private BlockInputStream(OffHeapClipStore.Block block) {
+            this.block = block;
+            this.buffer = block.view();
+        }
+
+        @Override
+        public int read() throws IOException {
+            ensureOpen();
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            ensureOpen();
+            if (length == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            ensureOpen();
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            ensureOpen();
+            return buffer.remaining();
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                block.release();
+            }
+        }
+
+        private void ensureOpen() throws IOException {
+            if (closed)
+                throw new IOException("stream closed");
+        }
+    }
+}
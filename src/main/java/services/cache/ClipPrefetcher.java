@@ -0,0 +1,291 @@
+package services.cache;
+
+import edu.umflix.clipstorage.ClipStorage;
+import edu.umflix.model.Clip;
+import edu.umflix.model.ClipData;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Warms the {@link ClipDataCache} with the clips a player is about to request. Opening a movie starts a playback
+ * session holding its clip list, keyed by the token the player fetches clips with, a playback grant or its user
+ * token; activity reported with the user token finds the session of its grant; every clip the player then fetches moves the session cursor, and
+ * the next <code>lookahead</code> clips are loaded in background. Playback activity keeps the session alive, and a
+ * session that sees no request for <code>idleMillis</code> stops prefetching and is dropped. Sessions are entries of
+ * an {@link LruCache} whose time to live is restarted by each request, so the least recently active players make
+ * room for new ones. Clips prefetched but not yet requested count against a per-node byte budget, beyond which no
+ * more clips are prefetched.
+ */
+public class ClipPrefetcher {
+
+    static Logger logger = Logger.getLogger(ClipPrefetcher.class);
+
+    private final ClipDataCache clipDataCache;
+    private final Executor executor;
+    private final int lookahead;
+    private final long idleMillis;
+    private final long maxOutstandingBytes;
+    private final LruCache<String, Session> sessions;
+    //session key of the players fetching clips with a grant, by user token
+    private final LruCache<String, String> grants;
+    private final AtomicLong outstandingBytes = new AtomicLong();
+    private final AtomicLong prefetchedCount = new AtomicLong();
+    private final AtomicLong usedCount = new AtomicLong();
+
+    /**
+     * @param clipDataCache       the cache the clips are loaded into
+     * @param executor            runs the background loads; rejected loads are skipped
+     * @param lookahead           number of clips loaded ahead of the player; 0 disables prefetching
+     * @param idleMillis          how long a session lives without requests
+     * @param maxOutstandingBytes budget of prefetched clips not yet requested
+     * @param maxSessions         maximum number of sessions tracked at a time
+     */
+    public ClipPrefetcher(ClipDataCache clipDataCache, Executor executor, int lookahead, long idleMillis,
+                          long maxOutstandingBytes, int maxSessions) {
+        this.clipDataCache = clipDataCache;
+        this.executor = executor;
+        this.lookahead = lookahead;
+        this.idleMillis = idleMillis;
+        this.maxOutstandingBytes = maxOutstandingBytes;
+        this.sessions = new LruCache<String, Session>(maxSessions, 16) {
+            @Override
+            protected long currentTimeMillis() {
+                return ClipPrefetcher.this.currentTimeMillis();
+            }
+
+            @Override
+            protected void onRemoval(String userToken, Session session) {
+                close(session);
+            }
+        };
+        this.grants = new LruCache<String, String>(maxSessions, 16) {
+            @Override
+            protected long currentTimeMillis() {
+                return ClipPrefetcher.this.currentTimeMillis();
+            }
+        };
+    }
+
+    /**
+     * Starts a session when a movie is returned to a player, and prefetches its first clips
+     *
+     * @param userToken   the token of the player
+     * @param movieId     the movie
+     * @param clips       the clips of the movie, in playback order
+     * @param clipStorage the storage clips are read from
+     */
+    public void movieOpened(String userToken, Long movieId, List<Clip> clips, ClipStorage clipStorage) {
+        movieOpened(userToken, userToken, movieId, clips, clipStorage);
+    }
+
+    /**
+     * Starts a session when a movie is returned to a player along with a playback grant, and prefetches its first
+     * clips
+     *
+     * @param userToken   the token of the player
+     * @param clipToken   the token the player fetches clips with, a playback grant or the user token
+     * @param movieId     the movie
+     * @param clips       the clips of the movie, in playback order
+     * @param clipStorage the storage clips are read from
+     */
+    public void movieOpened(String userToken, String clipToken, Long movieId, List<Clip> clips,
+                            ClipStorage clipStorage) {
+        if (lookahead <= 0 || clips == null || clips.isEmpty())
+            return;
+        if (clipToken.equals(userToken))
+            grants.invalidate(userToken);
+        else
+            grants.put(userToken, clipToken, idleMillis);
+        List<Long> clipIds = new ArrayList<Long>(clips.size());
+        for (Clip clip : clips)
+            clipIds.add(clip.getId());
+        Session session = new Session(movieId, clipIds);
+        Session previous = sessions.put(clipToken, session, idleMillis);
+        if (previous != null)
+            close(previous);
+        schedule(clipToken, session, session.advance(-1, lookahead), clipStorage);
+    }
+
+    /**
+     * Moves the cursor of the player's session to a requested clip and prefetches the clips after it
+     *
+     * @param userToken   the token of the player
+     * @param clipId      the requested clip
+     * @param clipStorage the storage clips are read from
+     */
+    public void clipRequested(String userToken, Long clipId, ClipStorage clipStorage) {
+        Session session = sessions.get(userToken);
+        if (session == null)
+            return;
+        sessions.touch(userToken, idleMillis);
+        Long used = session.consume(clipId);
+        if (used != null) {
+            outstandingBytes.addAndGet(-used);
+            usedCount.incrementAndGet();
+        }
+        Integer index = session.indexes.get(clipId);
+        if (index != null)
+            schedule(userToken, session, session.advance(index, lookahead), clipStorage);
+    }
+
+    /**
+     * Keeps the session of a player alive while it reports playback of the session's movie
+     *
+     * @param userToken the user token of the player
+     * @param movieId   the movie being played
+     */
+    public void activityReported(String userToken, Long movieId) {
+        String grant = grants.get(userToken);
+        String key = grant == null ? userToken : grant;
+        Session session = sessions.get(key);
+        if (session != null && session.movieId != null && session.movieId.equals(movieId)) {
+            sessions.touch(key, idleMillis);
+            if (grant != null)
+                grants.touch(userToken, idleMillis);
+        }
+    }
+
+    /**
+     * Drops the sessions that went idle, releasing the budget of the clips they prefetched; to be run periodically
+     */
+    public void sweep() {
+        sessions.purgeExpired();
+        grants.purgeExpired();
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return size of the clips prefetched and not requested yet
+     */
+    public long getOutstandingBytes() {
+        return outstandingBytes.get();
+    }
+
+    public long getPrefetchedCount() {
+        return prefetchedCount.get();
+    }
+
+    /**
+     * @return number of prefetched clips that were later requested by their player
+     */
+    public long getUsedCount() {
+        return usedCount.get();
+    }
+
+    /**
+     * Time source of the prefetcher, overridable by tests
+     *
+     * @return current time in milliseconds
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private void schedule(final String userToken, final Session session, List<Long> clipIds, final ClipStorage clipStorage) {
+        for (final Long clipId : clipIds) {
+            if (outstandingBytes.get() >= maxOutstandingBytes)
+                return;
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        prefetch(userToken, session, clipId, clipStorage);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    private void prefetch(String userToken, Session session, Long clipId, ClipStorage clipStorage) {
+        if (sessions.get(userToken) != session || outstandingBytes.get() >= maxOutstandingBytes)
+            return;
+        try {
+            ClipData clipData = clipDataCache.get(clipId, clipStorage, false);
+            if (clipData == null)
+                return;
+            long size = clipData.getBytes() == null ? 0 : clipData.getBytes().length;
+            if (session.prefetched(clipId, size)) {
+                outstandingBytes.addAndGet(size);
+                prefetchedCount.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            logger.warn("could not prefetch clip " + clipId, e);
+        }
+    }
+
+    private void close(Session session) {
+        outstandingBytes.addAndGet(-session.close());
+    }
+
+    /**
+     * Playback of one movie by one token
+     */
+    private static final class Session {
+        private final Long movieId;
+        private final List<Long> clipIds;
+        private final Map<Long, Integer> indexes;
+        private final Map<Long, Long> unused = new HashMap<Long, Long>();
+        private int scheduledUpTo = -1;
+        private boolean closed;
+
+        private Session(Long movieId, List<Long> clipIds) {
+            this.movieId = movieId;
+            this.clipIds = clipIds;
+            this.indexes = new HashMap<Long, Integer>(clipIds.size() * 2);
+            for (int i = clipIds.size() - 1; i >= 0; i--)
+                indexes.put(clipIds.get(i), i);
+        }
+
+        /**
+         * @return the clips after the cursor not scheduled yet
+         */
+        private synchronized List<Long> advance(int cursor, int lookahead) {
+            int last = Math.min(clipIds.size() - 1, cursor + lookahead);
+            List<Long> next = new ArrayList<Long>();
+            for (int i = Math.max(cursor + 1, scheduledUpTo + 1); i <= last; i++)
+                next.add(clipIds.get(i));
+            scheduledUpTo = Math.max(scheduledUpTo, last);
+            return next;
+        }
+
+        /**
+         * @return true if the clip is recorded as prefetched and unused
+         */
+        private synchronized boolean prefetched(Long clipId, long size) {
+            if (closed || unused.containsKey(clipId))
+                return false;
+            unused.put(clipId, size);
+            return true;
+        }
+
+        /**
+         * @return size of the clip if it had been prefetched, otherwise null
+         */
+        private synchronized Long consume(Long clipId) {
+            return unused.remove(clipId);
+        }
+
+        /**
+         * @return size of the prefetched clips never requested
+         */
+        private synchronized long close() {
+            closed = true;
+            long size = 0;
+            for (Long unusedSize : unused.values())
+                size += unusedSize;
+            unused.clear();
+            return size;
+        }
+    }
+}
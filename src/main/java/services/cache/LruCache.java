@@ -0,0 +1,228 @@
+package services.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded least-recently-used cache with a time to live per entry. Keys are spread over independently locked
+ * segments so that concurrent readers of different keys do not contend on a single lock. Subclasses are told of the
+ * entries the cache drops on its own, evicted or expired, through {@link #onRemoval(Object, Object)}.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class LruCache<K, V> {
+
+    private final Segment<K, V>[] segments;
+
+    /**
+     * @param maxEntries       maximum number of entries kept in the cache
+     * @param concurrencyLevel number of independently locked segments
+     */
+    @SuppressWarnings("unchecked")
+    public LruCache(int maxEntries, int concurrencyLevel) {
+        if (maxEntries <= 0 || concurrencyLevel <= 0)
+            throw new IllegalArgumentException("maxEntries and concurrencyLevel must be positive");
+        int segmentCount = Math.min(concurrencyLevel, maxEntries);
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++)
+            segments[i] = new Segment<K, V>(this, Math.max(1, maxEntries / segmentCount));
+    }
+
+    /**
+     * Returns the cached value of a key
+     *
+     * @param key the key
+     * @return the value, or null when the key is not cached or its entry expired
+     */
+    public V get(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        long now = currentTimeMillis();
+        synchronized (segment) {
+            CachedValue<V> entry = segment.get(key);
+            if (entry == null)
+                return null;
+            if (entry.expiresAt <= now) {
+                segment.remove(key);
+                onRemoval(key, entry.value);
+                return null;
+            }
+            return entry.value;
+        }
+    }
+
+    /**
+     * Caches a value unless the key holds one that has not expired
+     *
+     * @param key       the key
+     * @param value     the value
+     * @param ttlMillis how long the value is valid; values with a non positive ttl are not cached
+     * @return the value already cached, or null if the given one was cached
+     */
+    public V putIfAbsent(K key, V value, long ttlMillis) {
+        if (ttlMillis <= 0)
+            return null;
+        Segment<K, V> segment = segmentFor(key);
+        long now = currentTimeMillis();
+        synchronized (segment) {
+            CachedValue<V> entry = segment.get(key);
+            if (entry != null && entry.expiresAt > now)
+                return entry.value;
+            if (entry != null)
+                onRemoval(key, entry.value);
+            segment.put(key, new CachedValue<V>(value, now + ttlMillis));
+            return null;
+        }
+    }
+
+    /**
+     * Restarts the time to live of a cached value
+     *
+     * @param key       the key
+     * @param ttlMillis how long the value is valid from now on
+     * @return false if the key is not cached or its entry expired
+     */
+    public boolean touch(K key, long ttlMillis) {
+        Segment<K, V> segment = segmentFor(key);
+        long now = currentTimeMillis();
+        synchronized (segment) {
+            CachedValue<V> entry = segment.get(key);
+            if (entry == null || entry.expiresAt <= now)
+                return false;
+            segment.put(key, new CachedValue<V>(entry.value, now + ttlMillis));
+            return true;
+        }
+    }
+
+    /**
+     * Caches a value, evicting the least recently used entry of its segment if the segment is full
+     *
+     * @param key       the key
+     * @param value     the value
+     * @param ttlMillis how long the value is valid; values with a non positive ttl are not cached
+     * @return the value the key held before, expired or not, or null
+     */
+    public V put(K key, V value, long ttlMillis) {
+        if (ttlMillis <= 0)
+            return null;
+        Segment<K, V> segment = segmentFor(key);
+        CachedValue<V> entry = new CachedValue<V>(value, currentTimeMillis() + ttlMillis);
+        CachedValue<V> previous;
+        synchronized (segment) {
+            previous = segment.put(key, entry);
+        }
+        return previous == null ? null : previous.value;
+    }
+
+    /**
+     * Removes a key from the cache
+     *
+     * @param key the key
+     */
+    public void invalidate(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    /**
+     * Removes every entry from the cache
+     */
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Drops the expired entries of every segment
+     *
+     * @return number of entries dropped
+     */
+    public int purgeExpired() {
+        int purged = 0;
+        long now = currentTimeMillis();
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                Iterator<Map.Entry<K, CachedValue<V>>> iterator = segment.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Map.Entry<K, CachedValue<V>> entry = iterator.next();
+                    if (entry.getValue().expiresAt <= now) {
+                        iterator.remove();
+                        onRemoval(entry.getKey(), entry.getValue().value);
+                        purged++;
+                    }
+                }
+            }
+        }
+        return purged;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Time source of the cache, overridable by tests
+     *
+     * @return current time in milliseconds
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Called when the cache drops an entry because its segment is full or it expired, but not when the entry is
+     * replaced or invalidated. Runs under the lock of the segment and must not call back into the cache.
+     *
+     * @param key   the key of the entry
+     * @param value the value of the entry
+     */
+    protected void onRemoval(K key, V value) {
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[(hash & 0x7fffffff) % segments.length];
+    }
+
+    private static final class Segment<K, V> extends LinkedHashMap<K, CachedValue<V>> {
+        private final LruCache<K, V> cache;
+        private final int capacity;
+
+        private Segment(LruCache<K, V> cache, int capacity) {
+            super(16, 0.75f, true);
+            this.cache = cache;
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, CachedValue<V>> eldest) {
+            if (size() <= capacity)
+                return false;
+            cache.onRemoval(eldest.getKey(), eldest.getValue().value);
+            return true;
+        }
+    }
+
+    private static final class CachedValue<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private CachedValue(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
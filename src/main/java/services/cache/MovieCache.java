@@ -0,0 +1,169 @@
+package services.cache;
+
+import edu.umflix.exceptions.MovieNotFoundException;
+import edu.umflix.model.Movie;
+import edu.umflix.persistence.MovieDao;
+import services.metrics.Metric;
+import services.metrics.Metrics;
+import services.resilience.Guard;
+import services.resilience.Guards;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache of movies loaded through {@link MovieDao#getMovieById(Long)}. Lookups of missing movies are
+ * cached too, for a shorter time, so that requests for an unknown id do not reach persistence every time.
+ * Concurrent misses of the same movie share a single load. The publishing side must call {@link #invalidate(Long)}
+ * when a movie is enabled, disabled or its clips change.
+ * <p/>
+ * Callers get a {@link CachedMovie} snapshot, the same instance until it expires; the entity read through the dao is
+ * not kept nor changed.
+ */
+public class MovieCache {
+
+    private static final long DEFAULT_LOAD_TIMEOUT_MILLIS = 10000;
+    private static final Metric GET_MOVIE_BY_ID = Metrics.dependency("MovieDao.getMovieById");
+    private static final Guard MOVIE_DAO = Guards.of("MovieDao");
+
+    private final LruCache<Long, Lookup> movies;
+    private final SingleFlight<Long, Lookup> loads;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxEntries        maximum number of movies kept in the cache
+     * @param ttlMillis         how long a loaded movie is served from the cache; 0 disables caching
+     * @param negativeTtlMillis how long a missing movie is remembered; 0 disables negative caching
+     */
+    public MovieCache(int maxEntries, long ttlMillis, long negativeTtlMillis) {
+        this(maxEntries, ttlMillis, negativeTtlMillis, DEFAULT_LOAD_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param maxEntries        maximum number of movies kept in the cache
+     * @param ttlMillis         how long a loaded movie is served from the cache; 0 disables caching
+     * @param negativeTtlMillis how long a missing movie is remembered; 0 disables negative caching
+     * @param loadTimeoutMillis how long a miss waits for the load of the same movie started by another request
+     */
+    public MovieCache(int maxEntries, long ttlMillis, long negativeTtlMillis, long loadTimeoutMillis) {
+        this.movies = new LruCache<Long, Lookup>(maxEntries, 16);
+        this.loads = new SingleFlight<Long, Lookup>(loadTimeoutMillis);
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+    }
+
+    /**
+     * Returns a movie, loading it through the given dao on a miss
+     *
+     * @param movieId  the id of the movie
+     * @param movieDao the dao used on a miss
+     * @return a snapshot of the movie
+     * @throws MovieNotFoundException when the movie does not exist in system
+     * @throws IllegalStateException  when the load of the movie by another request did not complete in time
+     */
+    public CachedMovie getMovie(final Long movieId, final MovieDao movieDao) throws MovieNotFoundException {
+        Lookup lookup = movies.get(movieId);
+        if (lookup != null) {
+            hits.incrementAndGet();
+            return lookup.result();
+        }
+        misses.incrementAndGet();
+        try {
+            lookup = loads.load(movieId, new Callable<Lookup>() {
+                public Lookup call() {
+                    return load(movieId, movieDao);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("could not load movie " + movieId, SingleFlight.causeOf(e));
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("timed out waiting for movie " + movieId, e);
+        }
+        return lookup.result();
+    }
+
+    /**
+     * Forgets a movie, to be called when it is enabled, disabled or its clips change
+     *
+     * @param movieId the id of the movie
+     */
+    public void invalidate(Long movieId) {
+        if (movieId != null)
+            movies.invalidate(movieId);
+    }
+
+    /**
+     * Forgets every movie
+     */
+    public void invalidateAll() {
+        movies.clear();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of misses served by a load started by another request
+     */
+    public long getSharedLoadCount() {
+        return loads.getSharedCount();
+    }
+
+    public int size() {
+        return movies.size();
+    }
+
+    /**
+     * @return the outcome of reading a movie through the dao, cached for the matching TTL
+     */
+    private Lookup load(Long movieId, MovieDao movieDao) {
+        //a load that just completed may have been cached after this request missed
+        Lookup cached = movies.get(movieId);
+        if (cached != null)
+            return cached;
+        Movie movie;
+        Guard.Permit permit = MOVIE_DAO.enter(GET_MOVIE_BY_ID);
+        try {
+            movie = movieDao.getMovieById(movieId);
+        } catch (MovieNotFoundException e) {
+            Lookup missing = new Lookup(null);
+            movies.put(movieId, missing, negativeTtlMillis);
+            return missing;
+        } catch (RuntimeException e) {
+            permit.failed(e);
+            throw e;
+        } finally {
+            permit.release();
+        }
+        Lookup found = new Lookup(new CachedMovie(movie));
+        movies.put(movieId, found, ttlMillis);
+        return found;
+    }
+
+    /**
+     * A cached movie, or the fact that it is missing; each request for a missing movie gets its own exception
+     */
+    private static final class Lookup {
+        private final CachedMovie movie;
+
+        private Lookup(CachedMovie movie) {
+            this.movie = movie;
+        }
+
+        private CachedMovie result() throws MovieNotFoundException {
+            if (movie == null)
+                throw new MovieNotFoundException();
+            return movie;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package services.cache;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps clip payloads in direct buffers outside the Java heap, so that a large hot set of clips does not grow the
+ * old generation. Every stored payload is a reference counted {@link Block}: the owner holds the first reference,
+ * readers {@link Block#retain()} it while they copy or send the bytes and {@link Block#release()} it afterwards,
+ * and the memory is freed through the buffer's cleaner when the last reference is released, rather than whenever
+ * the garbage collector gets to the buffer, so the bytes counted against the ceiling are the bytes actually
+ * allocated. Stores beyond the configured ceiling, or failing for lack of direct memory, are refused rather than
+ * allowed to exhaust it; the JVM's <code>-XX:MaxDirectMemorySize</code> should be at least that ceiling.
+ * <p/>
+ * The cleaner is reached by reflection: through <code>sun.misc.Unsafe.invokeCleaner</code> on Java 9 and later, and
+ * through <code>sun.nio.ch.DirectBuffer.cleaner()</code> before. When neither is available an error is logged once
+ * at startup and memory is only returned when the garbage collector reclaims the buffers, so stores may be refused
+ * for lack of direct memory before the ceiling is reached.
+ */
+public class OffHeapClipStore {
+
+    static Logger logger = Logger.getLogger(OffHeapClipStore.class);
+
+    private static final Freer FREER = freer();
+
+    private final long maxBytes;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong storedCount = new AtomicLong();
+    private final AtomicLong refusedCount = new AtomicLong();
+
+    /**
+     * @param maxBytes ceiling of the direct memory used by payloads
+     */
+    public OffHeapClipStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Copies a payload off heap
+     *
+     * @param bytes the payload
+     * @return the block holding the payload, with one reference owned by the caller, or null when the store is full
+     */
+    public Block store(byte[] bytes) {
+        int size = bytes.length;
+        long used;
+        do {
+            used = usedBytes.get();
+            if (used + size > maxBytes) {
+                refusedCount.incrementAndGet();
+                return null;
+            }
+        } while (!usedBytes.compareAndSet(used, used + size));
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.allocateDirect(size);
+        } catch (OutOfMemoryError e) {
+            //direct memory is smaller than the ceiling, or leaked elsewhere
+            usedBytes.addAndGet(-size);
+            refusedCount.incrementAndGet();
+            logger.warn("could not allocate " + size + " bytes of direct memory", e);
+            return null;
+        }
+        buffer.put(bytes);
+        buffer.flip();
+        storedCount.incrementAndGet();
+        return new Block(buffer);
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getStoredCount() {
+        return storedCount.get();
+    }
+
+    /**
+     * @return number of payloads refused because the ceiling was reached
+     */
+    public long getRefusedCount() {
+        return refusedCount.get();
+    }
+
+    /**
+     * @return true if released blocks free their memory right away rather than when they are garbage collected
+     */
+    public static boolean isFreedExplicitly() {
+        return FREER != null;
+    }
+
+    /**
+     * Frees the memory of a direct buffer right away; left to the garbage collector when the JVM offers no cleaner
+     */
+    private static void free(ByteBuffer buffer) {
+        if (FREER == null)
+            return;
+        try {
+            FREER.free(buffer);
+        } catch (Exception e) {
+            logger.warn("could not free direct buffer", e);
+        }
+    }
+
+    /**
+     * @return the way this JVM frees direct buffers, or null if it offers none
+     */
+    private static Freer freer() {
+        Exception unsafeFailure;
+        try {
+            //Java 9 and later, in the jdk.unsupported module
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Object unsafe = theUnsafe.get(null);
+            Freer freer = new Freer() {
+                void free(ByteBuffer buffer) throws Exception {
+                    invokeCleaner.invoke(unsafe, buffer);
+                }
+            };
+            return probe(freer);
+        } catch (Exception e) {
+            unsafeFailure = e;
+        }
+        try {
+            //Java 8 and earlier
+            final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            cleaner.setAccessible(true);
+            final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            clean.setAccessible(true);
+            Freer freer = new Freer() {
+                void free(ByteBuffer buffer) throws Exception {
+                    Object bufferCleaner = cleaner.invoke(buffer);
+                    if (bufferCleaner != null)
+                        clean.invoke(bufferCleaner);
+                }
+            };
+            return probe(freer);
+        } catch (Exception e) {
+            logger.error("direct buffers can not be freed explicitly on this JVM, off heap clips are freed by the "
+                    + "garbage collector and stores may be refused before the ceiling is reached; Unsafe.invokeCleaner: "
+                    + unsafeFailure + ", DirectBuffer.cleaner: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Frees a buffer of one byte, so that a JVM that exposes a cleaner but refuses to run it is found at startup
+     */
+    private static Freer probe(Freer freer) throws Exception {
+        freer.free(ByteBuffer.allocateDirect(1));
+        return freer;
+    }
+
+    private abstract static class Freer {
+        abstract void free(ByteBuffer buffer) throws Exception;
+    }
+
+    /**
+     * A payload stored off heap
+     */
+    public final class Block {
+        private final AtomicInteger references = new AtomicInteger(1);
+        private volatile ByteBuffer buffer;
+        private final int size;
+
+        private Block(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.size = buffer.remaining();
+        }
+
+        /**
+         * Takes a reference to the block, to be paired with {@link #release()}
+         *
+         * @return false if the block was already freed and can not be read anymore
+         */
+        public boolean retain() {
+            for (; ; ) {
+                int current = references.get();
+                if (current == 0)
+                    return false;
+                if (references.compareAndSet(current, current + 1))
+                    return true;
+            }
+        }
+
+        /**
+         * Drops a reference to the block, freeing it when it was the last one
+         */
+        public void release() {
+            int remaining = references.decrementAndGet();
+            if (remaining == 0) {
+                ByteBuffer freed = buffer;
+                buffer = null;
+                free(freed);
+                usedBytes.addAndGet(-size);
+            } else if (remaining < 0) {
+                references.incrementAndGet();
+                throw new IllegalStateException("block released more times than retained");
+            }
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Read-only view of the payload, valid while the caller holds a reference
+         *
+         * @return a buffer positioned at the start of the payload
+         */
+        public ByteBuffer view() {
+            ByteBuffer current = buffer;
+            if (current == null)
+                throw new IllegalStateException("block already freed");
+            return current.asReadOnlyBuffer();
+        }
+
+        /**
+         * Copies the payload back to the heap, to be called while the caller holds a reference
+         *
+         * @return the payload
+         */
+        public byte[] toByteArray() {
+            byte[] bytes = new byte[size];
+            view().get(bytes);
+            return bytes;
+        }
+    }
+}
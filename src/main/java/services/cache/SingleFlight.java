@@ -0,0 +1,113 @@
+package services.cache;
+
+import services.resilience.Deadline;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses concurrent loads of the same key into one. The first caller for a key runs the load in its own thread;
+ * callers arriving while it is in flight wait for its outcome instead of loading again, and receive the same value
+ * or the same failure. Waiters give up after the configured timeout, or earlier when the {@link Deadline} of their
+ * request comes first, while the load itself keeps running for its caller. Nothing is remembered once a load
+ * completes: caching the result is left to the caller.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, FutureTask<V>> flights = new ConcurrentHashMap<K, FutureTask<V>>();
+    private final long timeoutMillis;
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * @param timeoutMillis how long a caller waits for a load started by another caller
+     */
+    public SingleFlight(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Runs a load, or waits for the one already in flight for the same key
+     *
+     * @param key    the key being loaded
+     * @param loader the load to run when none is in flight
+     * @return the loaded value
+     * @throws ExecutionException when the load failed; the cause is the failure of the load
+     * @throws TimeoutException   when the load in flight did not complete in time
+     */
+    public V load(K key, Callable<V> loader) throws ExecutionException, TimeoutException {
+        FutureTask<V> flight = new FutureTask<V>(loader);
+        FutureTask<V> inFlight = flights.putIfAbsent(key, flight);
+        if (inFlight == null) {
+            loads.incrementAndGet();
+            try {
+                flight.run();
+            } finally {
+                flights.remove(key, flight);
+            }
+            return await(flight);
+        }
+        shared.incrementAndGet();
+        try {
+            return inFlight.get(Math.min(timeoutMillis, Deadline.remainingMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e);
+        } catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of loads actually run
+     */
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    /**
+     * @return number of callers served by a load started by another caller
+     */
+    public long getSharedCount() {
+        return shared.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * Rethrows the failure of a load when it is unchecked, so that callers only deal with their checked ones
+     *
+     * @param e the failure of a load
+     * @return the checked cause of the failure
+     */
+    public static Throwable causeOf(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        if (cause instanceof Error)
+            throw (Error) cause;
+        return cause;
+    }
+
+    private V await(FutureTask<V> flight) throws ExecutionException {
+        try {
+            return flight.get();
+        } catch (InterruptedException e) {
+            //the task already ran in this thread, so get() returns without waiting
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e);
+        }
+    }
+}
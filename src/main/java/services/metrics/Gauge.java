@@ -0,0 +1,13 @@
+package services.metrics;
+
+/**
+ * A value read from a component of the movie manager whenever the metrics are scraped, such as the depth of a queue
+ * or a counter the component keeps itself
+ */
+public abstract class Gauge implements GaugeMBean {
+
+    /**
+     * @return the current value
+     */
+    public abstract double getValue();
+}
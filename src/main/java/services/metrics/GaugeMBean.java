@@ -0,0 +1,9 @@
+package services.metrics;
+
+/**
+ * JMX view of a {@link Gauge}
+ */
+public interface GaugeMBean {
+
+    double getValue();
+}
@@ -0,0 +1,99 @@
+package services.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in the spirit of HdrHistogram. Values are kept in microseconds in log-linear
+ * buckets: every power of two range is split in 64 linear sub-buckets, so any recorded value is reported within
+ * about 1.5% of its real value, from 1 microsecond up to more than a week, in a fixed 18KB of counters.
+ * Recording is a few arithmetic operations and one atomic increment; percentiles are read without stopping writers,
+ * so a reading taken under load reflects the counts at some point while it ran.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    private static final int MAX_MAGNITUDE = 40;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF;
+    private static final long MAX_VALUE = (1L << MAX_MAGNITUDE) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Records one latency
+     *
+     * @param nanos the latency, in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.min(MAX_VALUE, Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)));
+        counts.incrementAndGet(indexOf(micros));
+        totalCount.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        long max;
+        do {
+            max = maxMicros.get();
+        } while (micros > max && !maxMicros.compareAndSet(max, micros));
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return sum of the recorded latencies, in microseconds
+     */
+    public long getTotalMicros() {
+        return totalMicros.get();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    public double getMeanMicros() {
+        long count = totalCount.get();
+        return count == 0 ? 0 : (double) totalMicros.get() / count;
+    }
+
+    /**
+     * Latency below which the given share of the recorded latencies fall
+     *
+     * @param percentile between 0 and 100
+     * @return the latency, in microseconds, or 0 when nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount.get();
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highestValueOf(i), maxMicros.get());
+        }
+        return maxMicros.get();
+    }
+
+    static int indexOf(long micros) {
+        if (micros < SUB_BUCKET_COUNT)
+            return (int) micros;
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros) - (SUB_BUCKET_BITS - 1);
+        int subBucket = (int) (micros >>> magnitude);
+        return SUB_BUCKET_COUNT + (magnitude - 1) * SUB_BUCKET_HALF + (subBucket - SUB_BUCKET_HALF);
+    }
+
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+        int magnitude = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return ((subBucket + 1) << magnitude) - 1;
+    }
+}
@@ -0,0 +1,99 @@
+package services.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histogram and error counters of one operation or dependency call. Errors are counted per exception
+ * type as well as in total; every call, failed or not, records its latency.
+ */
+public class Metric implements MetricMBean {
+
+    private final String name;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final ConcurrentHashMap<String, AtomicLong> errorsByType = new ConcurrentHashMap<String, AtomicLong>();
+
+    Metric(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records the latency of a call
+     *
+     * @param nanos the latency, in nanoseconds
+     */
+    public void record(long nanos) {
+        latencies.record(nanos);
+    }
+
+    /**
+     * Counts a failed call
+     *
+     * @param failure what the call threw
+     */
+    public void error(Throwable failure) {
+        errors.incrementAndGet();
+        String type = failure.getClass().getSimpleName();
+        AtomicLong count = errorsByType.get(type);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = errorsByType.putIfAbsent(type, created);
+            if (count == null)
+                count = created;
+        }
+        count.incrementAndGet();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    public long getCount() {
+        return latencies.getCount();
+    }
+
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * @return number of failed calls by simple name of the exception thrown
+     */
+    public Map<String, Long> getErrorsByType() {
+        Map<String, Long> snapshot = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : errorsByType.entrySet())
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        return snapshot;
+    }
+
+    public double getMeanMicros() {
+        return latencies.getMeanMicros();
+    }
+
+    public long getMaxMicros() {
+        return latencies.getMaxMicros();
+    }
+
+    public long getP50Micros() {
+        return latencies.getValueAtPercentile(50);
+    }
+
+    public long getP90Micros() {
+        return latencies.getValueAtPercentile(90);
+    }
+
+    public long getP99Micros() {
+        return latencies.getValueAtPercentile(99);
+    }
+
+    public long getP999Micros() {
+        return latencies.getValueAtPercentile(99.9);
+    }
+}
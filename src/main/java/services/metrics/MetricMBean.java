@@ -0,0 +1,25 @@
+package services.metrics;
+
+/**
+ * JMX view of a {@link Metric}; latencies are in microseconds
+ */
+public interface MetricMBean {
+
+    String getName();
+
+    long getCount();
+
+    long getErrorCount();
+
+    double getMeanMicros();
+
+    long getMaxMicros();
+
+    long getP50Micros();
+
+    long getP90Micros();
+
+    long getP99Micros();
+
+    long getP999Micros();
+}
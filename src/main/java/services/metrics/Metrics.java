@@ -0,0 +1,37 @@
+package services.metrics;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Entry point to the metrics registry shared by the application, in the way loggers are obtained: classes that time
+ * an operation or a dependency call keep the {@link Metric} in a static field.
+ */
+public final class Metrics {
+
+    private static final MetricsRegistry REGISTRY = new MetricsRegistry(ManagementFactory.getPlatformMBeanServer());
+
+    private Metrics() {
+    }
+
+    /**
+     * @param name the name of the operation
+     * @return the shared metric of the operation
+     * @see MetricsRegistry#operation(String)
+     */
+    public static Metric operation(String name) {
+        return REGISTRY.operation(name);
+    }
+
+    /**
+     * @param name the dependency call
+     * @return the shared metric of the dependency call
+     * @see MetricsRegistry#dependency(String)
+     */
+    public static Metric dependency(String name) {
+        return REGISTRY.dependency(name);
+    }
+
+    public static MetricsRegistry getRegistry() {
+        return REGISTRY;
+    }
+}
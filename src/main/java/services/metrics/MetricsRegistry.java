@@ -0,0 +1,205 @@
+package services.metrics;
+
+import org.apache.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The metrics of the movie manager, in two families: the operations it serves and the dependency calls it makes.
+ * Metrics are created on first use and, when an MBean server is given, registered as
+ * <code>movie-manager:type=Operation|Dependency,name=...</code>. They can also be written in the Prometheus text
+ * exposition format, latencies in seconds.
+ * <p/>
+ * Components also publish their own gauges and counters, read on every scrape, registered as
+ * <code>movie-manager:type=Gauge|Counter,name=...</code> and written as <code>moviemanager_&lt;name&gt;</code>.
+ */
+public class MetricsRegistry {
+
+    static Logger logger = Logger.getLogger(MetricsRegistry.class);
+    private static final String DOMAIN = "movie-manager";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ConcurrentHashMap<String, Metric> operations = new ConcurrentHashMap<String, Metric>();
+    private final ConcurrentHashMap<String, Metric> dependencies = new ConcurrentHashMap<String, Metric>();
+    private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+    private final ConcurrentHashMap<String, Gauge> counters = new ConcurrentHashMap<String, Gauge>();
+    private final MBeanServer mBeanServer;
+
+    /**
+     * @param mBeanServer the server metrics are registered with, or null to skip JMX
+     */
+    public MetricsRegistry(MBeanServer mBeanServer) {
+        this.mBeanServer = mBeanServer;
+    }
+
+    /**
+     * @param name the name of the operation, e.g. getMovie
+     * @return the metric of the operation
+     */
+    public Metric operation(String name) {
+        return metricOf(operations, "Operation", name);
+    }
+
+    /**
+     * @param name the dependency call, e.g. MovieDao.getMovieById
+     * @return the metric of the dependency call
+     */
+    public Metric dependency(String name) {
+        return metricOf(dependencies, "Dependency", name);
+    }
+
+    /**
+     * Publishes a value that goes up and down, replacing a gauge of the same name
+     *
+     * @param name  the name of the gauge, e.g. activity_pipeline_queue_depth
+     * @param gauge reads the value
+     */
+    public void gauge(String name, Gauge gauge) {
+        publish(gauges, "Gauge", name, gauge);
+    }
+
+    /**
+     * Publishes a value that only goes up, replacing a counter of the same name
+     *
+     * @param name    the name of the counter, ending in _total, e.g. clip_cache_hits_total
+     * @param counter reads the value
+     */
+    public void counter(String name, Gauge counter) {
+        publish(counters, "Counter", name, counter);
+    }
+
+    public Map<String, Metric> getOperations() {
+        return new TreeMap<String, Metric>(operations);
+    }
+
+    public Map<String, Metric> getDependencies() {
+        return new TreeMap<String, Metric>(dependencies);
+    }
+
+    /**
+     * Removes the MBeans of every metric, to be called on undeploy
+     */
+    public void unregister() {
+        if (mBeanServer == null)
+            return;
+        for (String name : operations.keySet())
+            unregister("Operation", name);
+        for (String name : dependencies.keySet())
+            unregister("Dependency", name);
+        for (String name : gauges.keySet())
+            unregister("Gauge", name);
+        for (String name : counters.keySet())
+            unregister("Counter", name);
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format
+     *
+     * @param writer where the metrics are written
+     * @throws IOException when the writer fails
+     */
+    public void writeText(Writer writer) throws IOException {
+        writeFamily(writer, "moviemanager_operation", "operation", getOperations());
+        writeFamily(writer, "moviemanager_dependency", "call", getDependencies());
+        writeValues(writer, "gauge", gauges);
+        writeValues(writer, "counter", counters);
+        writer.flush();
+    }
+
+    private Metric metricOf(ConcurrentHashMap<String, Metric> family, String type, String name) {
+        Metric metric = family.get(name);
+        if (metric != null)
+            return metric;
+        Metric created = new Metric(name);
+        metric = family.putIfAbsent(name, created);
+        if (metric != null)
+            return metric;
+        register(type, created);
+        return created;
+    }
+
+    private void publish(ConcurrentHashMap<String, Gauge> family, String type, String name, Gauge gauge) {
+        family.put(name, gauge);
+        register(type, name, gauge);
+    }
+
+    private void register(String type, Metric metric) {
+        register(type, metric.getName(), metric);
+    }
+
+    private void register(String type, String name, Object mBean) {
+        if (mBeanServer == null)
+            return;
+        try {
+            ObjectName objectName = objectNameOf(type, name);
+            //a previous deployment may have left its MBean behind
+            if (mBeanServer.isRegistered(objectName))
+                mBeanServer.unregisterMBean(objectName);
+            mBeanServer.registerMBean(mBean, objectName);
+        } catch (JMException e) {
+            logger.warn("could not register metric " + name, e);
+        }
+    }
+
+    private void unregister(String type, String name) {
+        try {
+            ObjectName objectName = objectNameOf(type, name);
+            if (mBeanServer.isRegistered(objectName))
+                mBeanServer.unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.warn("could not unregister metric " + name, e);
+        }
+    }
+
+    private static ObjectName objectNameOf(String type, String name) throws JMException {
+        return new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+    }
+
+    private static void writeFamily(Writer writer, String prefix, String label, Map<String, Metric> metrics)
+            throws IOException {
+        if (metrics.isEmpty())
+            return;
+        writer.write("# TYPE " + prefix + "_latency_seconds summary\n");
+        for (Metric metric : metrics.values()) {
+            String labels = label + "=\"" + metric.getName() + "\"";
+            LatencyHistogram latencies = metric.getLatencies();
+            for (double quantile : QUANTILES) {
+                writer.write(prefix + "_latency_seconds{" + labels + ",quantile=\"" + quantile + "\"} "
+                        + seconds(latencies.getValueAtPercentile(quantile * 100)) + "\n");
+            }
+            writer.write(prefix + "_latency_seconds_sum{" + labels + "} " + seconds(latencies.getTotalMicros()) + "\n");
+            writer.write(prefix + "_latency_seconds_count{" + labels + "} " + latencies.getCount() + "\n");
+        }
+        writer.write("# TYPE " + prefix + "_latency_seconds_max gauge\n");
+        for (Metric metric : metrics.values()) {
+            writer.write(prefix + "_latency_seconds_max{" + label + "=\"" + metric.getName() + "\"} "
+                    + seconds(metric.getMaxMicros()) + "\n");
+        }
+        writer.write("# TYPE " + prefix + "_errors_total counter\n");
+        for (Metric metric : metrics.values()) {
+            for (Map.Entry<String, Long> error : metric.getErrorsByType().entrySet()) {
+                writer.write(prefix + "_errors_total{" + label + "=\"" + metric.getName() + "\",type=\""
+                        + error.getKey() + "\"} " + error.getValue() + "\n");
+            }
+        }
+    }
+
+    private static void writeValues(Writer writer, String type, Map<String, Gauge> values) throws IOException {
+        for (Map.Entry<String, Gauge> value : new TreeMap<String, Gauge>(values).entrySet()) {
+            String name = "moviemanager_" + value.getKey();
+            writer.write("# TYPE " + name + " " + type + "\n");
+            writer.write(name + " " + value.getValue().getValue() + "\n");
+        }
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1e6);
+    }
+}
@@ -0,0 +1,24 @@
+package services.metrics;
+
+import services.resilience.Guards;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Text scrape endpoint of the shared {@link MetricsRegistry} and of the dependency guards, in the Prometheus
+ * exposition format
+ */
+public class MetricsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        Metrics.getRegistry().writeText(response.getWriter());
+        Guards.writeText(response.getWriter());
+    }
+}
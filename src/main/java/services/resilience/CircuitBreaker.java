@@ -0,0 +1,188 @@
+package services.resilience;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Latency aware circuit breaker over the outcomes of the last <code>windowSize</code> calls to a dependency. The
+ * circuit opens when, over at least <code>minCalls</code> calls, the share of failed calls or the share of calls
+ * slower than <code>slowCallMillis</code> reaches its threshold. It then refuses calls for <code>openMillis</code>,
+ * after which up to <code>probes</code> calls are let through: the circuit closes when they all succeed in time and
+ * opens again as soon as one does not.
+ * <p/>
+ * The state is swapped with compare-and-set and the window is updated with atomic counters, so calls never lock
+ * and a closed circuit admits them with a single volatile read. Only the calls admitted as probes decide whether
+ * a half open circuit closes or opens again; the outcome of a call admitted in another state is ignored.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final int FAILED = 1;
+    private static final int SLOW = 2;
+
+    private final int windowSize;
+    private final int minCalls;
+    private final int failureRatePercent;
+    private final int slowRatePercent;
+    private final long slowCallNanos;
+    private final long openMillis;
+    private final int probes;
+    private final AtomicReference<Phase> phase;
+    private final AtomicLong openCount = new AtomicLong();
+
+    /**
+     * @param windowSize         number of recent calls the rates are computed over
+     * @param minCalls           number of calls needed before the circuit may open
+     * @param failureRatePercent share of failed calls that opens the circuit
+     * @param slowCallMillis     latency from which a call counts as slow
+     * @param slowRatePercent    share of slow calls that opens the circuit
+     * @param openMillis         how long an open circuit refuses calls
+     * @param probes             number of calls let through to test a recovering dependency
+     */
+    public CircuitBreaker(int windowSize, int minCalls, int failureRatePercent, long slowCallMillis,
+                          int slowRatePercent, long openMillis, int probes) {
+        if (windowSize <= 0 || minCalls <= 0 || probes <= 0)
+            throw new IllegalArgumentException("windowSize, minCalls and probes must be positive");
+        this.windowSize = windowSize;
+        this.minCalls = Math.min(minCalls, windowSize);
+        this.failureRatePercent = failureRatePercent;
+        this.slowRatePercent = slowRatePercent;
+        this.slowCallNanos = slowCallMillis * 1000000L;
+        this.openMillis = openMillis;
+        this.probes = probes;
+        this.phase = new AtomicReference<Phase>(new Phase(State.CLOSED, 0));
+    }
+
+    /**
+     * Asks whether a call may be made; every admitted call must be followed by
+     * {@link #record(Admission, long, boolean)}
+     *
+     * @return the admission of the call, or null if the call may not be made
+     */
+    public Admission allow() {
+        while (true) {
+            Phase current = phase.get();
+            if (current.state == State.CLOSED)
+                return current.admission;
+            long now = currentTimeMillis();
+            if (current.state == State.OPEN) {
+                if (now - current.since < openMillis)
+                    return null;
+                phase.compareAndSet(current, new Phase(State.HALF_OPEN, now));
+                continue;
+            }
+            int admitted = current.probesAdmitted.get();
+            if (admitted >= probes) {
+                //probes that never came back must not keep the circuit half open forever
+                if (now - current.since < openMillis)
+                    return null;
+                phase.compareAndSet(current, new Phase(State.HALF_OPEN, now));
+                continue;
+            }
+            if (current.probesAdmitted.compareAndSet(admitted, admitted + 1))
+                return current.admission;
+        }
+    }
+
+    /**
+     * Records the outcome of a call
+     *
+     * @param admission    the admission of the call
+     * @param elapsedNanos how long the call took
+     * @param failed       true if the dependency failed
+     */
+    public void record(Admission admission, long elapsedNanos, boolean failed) {
+        Phase admittedIn = admission.phase;
+        //a call admitted in a state the circuit has left since says nothing of the current one
+        if (phase.get() != admittedIn)
+            return;
+        boolean slow = elapsedNanos >= slowCallNanos;
+        if (admittedIn.state == State.HALF_OPEN) {
+            if (failed || slow)
+                transition(admittedIn, State.OPEN);
+            else if (admittedIn.probesSucceeded.incrementAndGet() >= probes)
+                transition(admittedIn, State.CLOSED);
+            return;
+        }
+        if (admittedIn.state == State.CLOSED && admittedIn.recordCall(failed, slow))
+            transition(admittedIn, State.OPEN);
+    }
+
+    public State getState() {
+        return phase.get().state;
+    }
+
+    /**
+     * @return number of times the circuit opened
+     */
+    public long getOpenCount() {
+        return openCount.get();
+    }
+
+    /**
+     * Time source of the breaker, overridable by tests
+     *
+     * @return current time in milliseconds
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private void transition(Phase from, State to) {
+        if (phase.compareAndSet(from, new Phase(to, currentTimeMillis())) && to == State.OPEN)
+            openCount.incrementAndGet();
+    }
+
+    /**
+     * Ticket of an admitted call, telling the state of the circuit it was admitted in
+     */
+    public static final class Admission {
+        private final Phase phase;
+
+        private Admission(Phase phase) {
+            this.phase = phase;
+        }
+    }
+
+    /**
+     * A state of the circuit since a time; every transition starts a new phase, with an empty window and no probes
+     */
+    private final class Phase {
+        private final State state;
+        private final long since;
+        private final Admission admission = new Admission(this);
+        private final AtomicInteger probesAdmitted = new AtomicInteger();
+        private final AtomicInteger probesSucceeded = new AtomicInteger();
+        private final AtomicIntegerArray outcomes;
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicInteger slowCalls = new AtomicInteger();
+
+        private Phase(State state, long since) {
+            this.state = state;
+            this.since = since;
+            this.outcomes = state == State.CLOSED ? new AtomicIntegerArray(windowSize) : null;
+        }
+
+        /**
+         * Adds the outcome of a call to the window, replacing the oldest one once it is full
+         *
+         * @return true if the rates of the window open the circuit
+         */
+        private boolean recordCall(boolean failed, boolean slow) {
+            long call = calls.getAndIncrement();
+            int outcome = (failed ? FAILED : 0) | (slow ? SLOW : 0);
+            int evicted = outcomes.getAndSet((int) (call % windowSize), outcome);
+            int failureCount = failures.addAndGet((failed ? 1 : 0) - (evicted & FAILED));
+            int slowCount = slowCalls.addAndGet((slow ? 1 : 0) - (evicted & SLOW) / SLOW);
+            long recorded = Math.min(call + 1, windowSize);
+            return recorded >= minCalls && (failureCount * 100L >= (long) failureRatePercent * recorded
+                    || slowCount * 100L >= (long) slowRatePercent * recorded);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package services.resilience;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The deadline of the request being served by the current thread. Operations start one when they are entered, and
+ * every guarded dependency call made on their behalf checks it: a call is not started once the deadline has
+ * passed, and waits for a concurrency permit or for a load shared with another request are cut short to the time
+ * left. A deadline started while another one is running never extends it.
+ */
+public final class Deadline {
+
+    private static final ThreadLocal<Long> CURRENT = new ThreadLocal<Long>();
+
+    private Deadline() {
+    }
+
+    /**
+     * Starts a deadline on the current thread
+     *
+     * @param millis time allowed from now
+     * @return the deadline that was running, to be given back to {@link #end(Long)}
+     */
+    public static Long begin(long millis) {
+        Long previous = CURRENT.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        if (previous == null || deadline - previous < 0)
+            CURRENT.set(deadline);
+        return previous;
+    }
+
+    /**
+     * Ends the deadline started by the matching {@link #begin(long)}
+     *
+     * @param previous the value returned by begin
+     */
+    public static void end(Long previous) {
+        if (previous == null)
+            CURRENT.remove();
+        else
+            CURRENT.set(previous);
+    }
+
+    /**
+     * @return milliseconds left before the deadline, 0 when it has passed, or Long.MAX_VALUE when there is none
+     */
+    public static long remainingMillis() {
+        Long deadline = CURRENT.get();
+        if (deadline == null)
+            return Long.MAX_VALUE;
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /**
+     * @return true if a deadline is running and has passed
+     */
+    public static boolean isExpired() {
+        Long deadline = CURRENT.get();
+        return deadline != null && deadline - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Carries the deadline of the current thread over to a task run on another thread
+     *
+     * @param task the task
+     * @param <V>  the type of the result
+     * @return the task, running under the current deadline
+     */
+    public static <V> Callable<V> propagate(final Callable<V> task) {
+        final Long deadline = CURRENT.get();
+        if (deadline == null)
+            return task;
+        return new Callable<V>() {
+            public V call() throws Exception {
+                Long previous = CURRENT.get();
+                CURRENT.set(deadline);
+                try {
+                    return task.call();
+                } finally {
+                    end(previous);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,23 @@
+package services.resilience;
+
+/**
+ * Thrown instead of calling a dependency that is not expected to answer in time: its circuit is open, too many calls
+ * to it are already in flight, or the request's deadline has passed. Callers either fall back to a degraded answer
+ * or let the request fail fast.
+ */
+public class DependencyUnavailableException extends RuntimeException {
+
+    private final String dependency;
+
+    public DependencyUnavailableException(String dependency, String reason) {
+        super(dependency + " unavailable: " + reason);
+        this.dependency = dependency;
+    }
+
+    /**
+     * @return the name of the dependency that was not called
+     */
+    public String getDependency() {
+        return dependency;
+    }
+}
@@ -0,0 +1,156 @@
+package services.resilience;
+
+import services.metrics.Metric;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Isolation of one dependency: a bulkhead bounding the calls in flight to it, so that a slow dependency can not hold
+ * every request thread, and a {@link CircuitBreaker} that stops calling it while it fails or is slow. Calls also
+ * honour the {@link Deadline} of the request. A refused call fails at once with a
+ * {@link DependencyUnavailableException}, counted as an error of the call's metric.
+ * <pre>
+ * Guard.Permit permit = GUARD.enter(METRIC);
+ * try {
+ *     return dependency.call();
+ * } catch (RuntimeException e) {
+ *     permit.failed(e);
+ *     throw e;
+ * } finally {
+ *     permit.release();
+ * }
+ * </pre>
+ * Checked exceptions of the dependency are answers, not failures, and are not reported.
+ */
+public class Guard {
+
+    private final String name;
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private final long maxWaitMillis;
+    private final CircuitBreaker breaker;
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * @param name          the dependency
+     * @param maxConcurrent maximum number of calls in flight
+     * @param maxWaitMillis how long a call waits for a permit when all are taken
+     * @param breaker       the circuit breaker of the dependency
+     */
+    public Guard(String name, int maxConcurrent, long maxWaitMillis, CircuitBreaker breaker) {
+        if (maxConcurrent <= 0)
+            throw new IllegalArgumentException("maxConcurrent must be positive");
+        this.name = name;
+        this.permits = new Semaphore(maxConcurrent);
+        this.maxConcurrent = maxConcurrent;
+        this.maxWaitMillis = maxWaitMillis;
+        this.breaker = breaker;
+    }
+
+    /**
+     * Admits a call to the dependency
+     *
+     * @param metric the metric of the call
+     * @return the permit of the call, to be released once it returns
+     * @throws DependencyUnavailableException when the call is refused
+     */
+    public Permit enter(Metric metric) {
+        if (Deadline.isExpired())
+            throw reject(metric, "deadline exceeded");
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(Math.min(maxWaitMillis, Deadline.remainingMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired)
+            throw reject(metric, "too many calls in flight");
+        CircuitBreaker.Admission admission = breaker.allow();
+        if (admission == null) {
+            permits.release();
+            throw reject(metric, "circuit open");
+        }
+        return new Permit(metric, admission);
+    }
+
+    /**
+     * @return true unless the circuit is open; a half open circuit may still refuse calls
+     */
+    public boolean isAvailable() {
+        return breaker.getState() != CircuitBreaker.State.OPEN;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public CircuitBreaker.State getState() {
+        return breaker.getState();
+    }
+
+    /**
+     * @return number of times the circuit opened
+     */
+    public long getOpenCount() {
+        return breaker.getOpenCount();
+    }
+
+    /**
+     * @return number of calls in flight
+     */
+    public int getInFlight() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /**
+     * @return number of calls refused
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    private DependencyUnavailableException reject(Metric metric, String reason) {
+        rejectedCount.incrementAndGet();
+        DependencyUnavailableException e = new DependencyUnavailableException(name, reason);
+        metric.error(e);
+        return e;
+    }
+
+    /**
+     * An admitted call
+     */
+    public final class Permit {
+        private final Metric metric;
+        private final CircuitBreaker.Admission admission;
+        private final long start = System.nanoTime();
+        private boolean failed;
+
+        private Permit(Metric metric, CircuitBreaker.Admission admission) {
+            this.metric = metric;
+            this.admission = admission;
+        }
+
+        /**
+         * Reports that the dependency failed
+         *
+         * @param e the failure
+         */
+        public void failed(RuntimeException e) {
+            failed = true;
+            metric.error(e);
+        }
+
+        /**
+         * Ends the call, recording its latency and outcome
+         */
+        public void release() {
+            long elapsed = System.nanoTime() - start;
+            metric.record(elapsed);
+            breaker.record(admission, elapsed, failed);
+            permits.release();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package services.resilience;
+
+import services.Settings;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The guards of the dependencies of the movie manager, shared by every class calling the same dependency and
+ * obtained like metrics. Each guard is configured by settings named after its dependency, e.g.
+ * <code>guard.ClipStorage.maxConcurrent</code>, falling back to the same setting without the dependency name,
+ * e.g. <code>guard.maxConcurrent</code>.
+ */
+public final class Guards {
+
+    private static final ConcurrentHashMap<String, Guard> GUARDS = new ConcurrentHashMap<String, Guard>();
+
+    private Guards() {
+    }
+
+    /**
+     * @param dependency the dependency, e.g. ClipStorage
+     * @return the shared guard of the dependency
+     */
+    public static Guard of(String dependency) {
+        Guard guard = GUARDS.get(dependency);
+        if (guard != null)
+            return guard;
+        Guard created = new Guard(dependency,
+                getInt(dependency, "maxConcurrent", 64),
+                getLong(dependency, "maxWaitMillis", 20),
+                new CircuitBreaker(
+                        getInt(dependency, "windowSize", 100),
+                        getInt(dependency, "minCalls", 20),
+                        getInt(dependency, "failureRatePercent", 50),
+                        getLong(dependency, "slowCallMillis", 2000),
+                        getInt(dependency, "slowRatePercent", 80),
+                        getLong(dependency, "openMillis", 5000),
+                        getInt(dependency, "probes", 3)));
+        guard = GUARDS.putIfAbsent(dependency, created);
+        return guard == null ? created : guard;
+    }
+
+    /**
+     * @return every guard created, by dependency
+     */
+    public static Map<String, Guard> getAll() {
+        return new TreeMap<String, Guard>(GUARDS);
+    }
+
+    /**
+     * Writes the state of every guard in the Prometheus text exposition format
+     *
+     * @param writer where the state is written
+     * @throws IOException when the writer fails
+     */
+    public static void writeText(Writer writer) throws IOException {
+        Map<String, Guard> guards = getAll();
+        if (guards.isEmpty())
+            return;
+        writer.write("# TYPE moviemanager_dependency_circuit_open gauge\n");
+        for (Guard guard : guards.values())
+            writer.write("moviemanager_dependency_circuit_open{dependency=\"" + guard.getName() + "\"} "
+                    + (guard.getState() == CircuitBreaker.State.CLOSED ? 0 : 1) + "\n");
+        writer.write("# TYPE moviemanager_dependency_in_flight gauge\n");
+        for (Guard guard : guards.values())
+            writer.write("moviemanager_dependency_in_flight{dependency=\"" + guard.getName() + "\"} "
+                    + guard.getInFlight() + "\n");
+        writer.write("# TYPE moviemanager_dependency_rejected_total counter\n");
+        for (Guard guard : guards.values())
+            writer.write("moviemanager_dependency_rejected_total{dependency=\"" + guard.getName() + "\"} "
+                    + guard.getRejectedCount() + "\n");
+        writer.flush();
+    }
+
+    private static int getInt(String dependency, String key, int defaultValue) {
+        return Settings.getInt("guard." + dependency + "." + key, Settings.getInt("guard." + key, defaultValue));
+    }
+
+    private static long getLong(String dependency, String key, long defaultValue) {
+        return Settings.getLong("guard." + dependency + "." + key, Settings.getLong("guard." + key, defaultValue));
+    }
+}
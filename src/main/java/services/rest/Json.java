@@ -0,0 +1,162 @@
+package services.rest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The little JSON the REST transport needs: escaping of strings it writes, and parsing of flat request objects
+ * whose values are strings, numbers, booleans or null
+ */
+final class Json {
+
+    private Json() {
+    }
+
+    /**
+     * @param value the string to quote
+     * @return the value as a JSON string literal
+     */
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    else
+                        quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Parses a JSON object without nested objects or arrays
+     *
+     * @param text the JSON text
+     * @return the members of the object; numbers, booleans and strings are returned as their text, null as null
+     * @throws IllegalArgumentException when the text is not such an object
+     */
+    static Map<String, String> parseObject(String text) {
+        Parser parser = new Parser(text);
+        Map<String, String> members = new HashMap<String, String>();
+        parser.expect('{');
+        if (!parser.consume('}')) {
+            do {
+                String name = parser.string();
+                parser.expect(':');
+                members.put(name, parser.value());
+            } while (parser.consume(','));
+            parser.expect('}');
+        }
+        parser.end();
+        return members;
+    }
+
+    private static final class Parser {
+        private final String text;
+        private int position;
+
+        private Parser(String text) {
+            this.text = text;
+        }
+
+        private void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position)))
+                position++;
+        }
+
+        private boolean consume(char c) {
+            skipWhitespace();
+            if (position < text.length() && text.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!consume(c))
+                throw new IllegalArgumentException("Malformed JSON: expected '" + c + "' at " + position);
+        }
+
+        private void end() {
+            skipWhitespace();
+            if (position != text.length())
+                throw new IllegalArgumentException("Malformed JSON: unexpected content at " + position);
+        }
+
+        private String value() {
+            skipWhitespace();
+            if (position < text.length() && text.charAt(position) == '"')
+                return string();
+            int start = position;
+            while (position < text.length() && ",}".indexOf(text.charAt(position)) < 0
+                    && !Character.isWhitespace(text.charAt(position)))
+                position++;
+            String literal = text.substring(start, position);
+            if (literal.isEmpty() || literal.charAt(0) == '{' || literal.charAt(0) == '[')
+                throw new IllegalArgumentException("Malformed JSON: unsupported value at " + start);
+            return literal.equals("null") ? null : literal;
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (position < text.length()) {
+                char c = text.charAt(position++);
+                if (c == '"')
+                    return value.toString();
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (position >= text.length())
+                    break;
+                char escaped = text.charAt(position++);
+                switch (escaped) {
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'u':
+                        if (position + 4 > text.length())
+                            throw new IllegalArgumentException("Malformed JSON: bad escape at " + position);
+                        value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        position += 4;
+                        break;
+                    default:
+                        value.append(escaped);
+                }
+            }
+            throw new IllegalArgumentException("Malformed JSON: unterminated string");
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package services.rest;
+
+import edu.umflix.authenticationhandler.exceptions.InvalidTokenException;
+import edu.umflix.exceptions.MovieNotFoundException;
+import edu.umflix.model.Activity;
+import edu.umflix.model.Clip;
+import edu.umflix.model.ClipData;
+import edu.umflix.model.User;
+import model.ClipChunk;
+import model.ClipStream;
+import model.MovieManager;
+import model.PlaybackGrant;
+import model.ResumePosition;
+import model.exceptions.NoAdsException;
+import model.exceptions.UserNotAllowedException;
+import model.exceptions.ValuesInActivityException;
+import org.apache.log4j.Logger;
+import services.resilience.DependencyUnavailableException;
+
+import javax.ejb.EJB;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * HTTP/JSON transport of {@link MovieManager}, next to the SOAP endpoint. The caller's token travels in an
+ * <code>Authorization: Bearer</code> header; a missing or invalid one is answered with 401 and a
+ * <code>WWW-Authenticate: Bearer</code> challenge. Clip and ad payloads are sent as raw bytes rather than base64
+ * inside an envelope, a whole clip being streamed from {@link MovieManager#getClipStream(String, Long)}. Clip
+ * payloads are immutable for a clip id, so they carry a strong ETag derived from the id and answer
+ * <code>If-None-Match</code> with 304 once {@link MovieManager#hasClip(String, Long)} authorizes the caller, and a
+ * single <code>Range</code> is served from {@link MovieManager#getClipChunk(String, Long, Long, Integer)}. Every
+ * response has a Content-Length, so that the container can keep the connection alive. The playback grant returned
+ * with a movie can be sent as the bearer token when fetching its clips.
+ * <pre>
+ * GET  /movies/{movieId}          clips of a movie and a playback grant for them, as JSON
+ * GET  /movies/{movieId}/position where the caller stopped playing a movie, as JSON; 404 if never played
+ * GET  /clips/{clipId}            payload of a clip
+ * POST /activities                an activity, as a JSON object with movieId, position, time and email
+ * GET  /ads?movieId={movieId}     payload of an ad, its clip id in the X-Clip-Id header
+ * </pre>
+ */
+public class RestServlet extends HttpServlet {
+
+    static Logger logger = Logger.getLogger(RestServlet.class);
+
+    private static final Pattern MOVIE = Pattern.compile("/movies/(\\d+)");
+    private static final Pattern RESUME = Pattern.compile("/movies/(\\d+)/position");
+    private static final Pattern CLIP = Pattern.compile("/clips/(\\d+)");
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final String JSON = "application/json; charset=UTF-8";
+    private static final String BINARY = "application/octet-stream";
+    private static final int MAX_BODY_LENGTH = 64 * 1024;
+
+    @EJB(beanName = "MovieManager")
+    private MovieManager movieManager;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String path = request.getPathInfo() == null ? "" : request.getPathInfo();
+        try {
+            Matcher matcher;
+            if ((matcher = MOVIE.matcher(path)).matches())
+                getMovie(request, response, Long.valueOf(matcher.group(1)));
+            else if ((matcher = RESUME.matcher(path)).matches())
+                getResumePosition(request, response, Long.valueOf(matcher.group(1)));
+            else if ((matcher = CLIP.matcher(path)).matches())
+                getClip(request, response, Long.valueOf(matcher.group(1)));
+            else if (path.equals("/ads"))
+                getAd(request, response, Long.valueOf(parameter(request, "movieId")));
+            else
+                sendError(response, HttpServletResponse.SC_NOT_FOUND, "Unknown resource");
+        } catch (Exception e) {
+            sendError(response, e);
+        }
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String path = request.getPathInfo() == null ? "" : request.getPathInfo();
+        try {
+            if (path.equals("/activities"))
+                sendActivity(request, response);
+            else
+                sendError(response, HttpServletResponse.SC_NOT_FOUND, "Unknown resource");
+        } catch (Exception e) {
+            sendError(response, e);
+        }
+    }
+
+    private void getMovie(HttpServletRequest request, HttpServletResponse response, Long movieId) throws Exception {
+        PlaybackGrant grant = movieManager.getPlaybackGrant(tokenOf(request), movieId);
+        List<Clip> clips = grant.getClips();
+        StringBuilder json = new StringBuilder(128 + 16 * (clips == null ? 0 : clips.size()));
+        json.append("{\"movieId\":").append(movieId);
+        if (grant.getGrant() != null) {
+            json.append(",\"grant\":").append(Json.quote(grant.getGrant()));
+            json.append(",\"grantExpiresAt\":").append(grant.getExpiresAt());
+        }
+        json.append(",\"clips\":[");
+        if (clips != null) {
+            for (int i = 0; i < clips.size(); i++) {
+                if (i > 0)
+                    json.append(',');
+                json.append("{\"id\":").append(clips.get(i).getId()).append('}');
+            }
+        }
+        json.append("]}");
+        send(response, HttpServletResponse.SC_OK, JSON, json.toString().getBytes("UTF-8"));
+    }
+
+    private void getResumePosition(HttpServletRequest request, HttpServletResponse response, Long movieId) throws Exception {
+        ResumePosition position = movieManager.getResumePosition(tokenOf(request), movieId);
+        if (position == null) {
+            sendError(response, HttpServletResponse.SC_NOT_FOUND, "No position for the movie");
+            return;
+        }
+        response.setHeader("Cache-Control", "no-store");
+        String json = "{\"movieId\":" + movieId + ",\"position\":" + position.getPosition()
+                + ",\"time\":" + position.getTime() + "}";
+        send(response, HttpServletResponse.SC_OK, JSON, json.getBytes("UTF-8"));
+    }
+
+    private void getClip(HttpServletRequest request, HttpServletResponse response, Long clipId) throws Exception {
+        String userToken = tokenOf(request);
+        String etag = "\"clip-" + clipId + "\"";
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "private, max-age=86400");
+        response.setHeader("Accept-Ranges", "bytes");
+        if (matches(request.getHeader("If-None-Match"), etag)) {
+            //authorizes the caller without reading the payload again
+            if (movieManager.hasClip(userToken, clipId))
+                send(response, HttpServletResponse.SC_NOT_MODIFIED, null, null);
+            else
+                sendError(response, HttpServletResponse.SC_NOT_FOUND, "Clip not found");
+            return;
+        }
+        String range = request.getHeader("Range");
+        Matcher matcher = range == null ? null : RANGE.matcher(range.trim());
+        if (matcher != null && matcher.matches()) {
+            long offset = Long.parseLong(matcher.group(1));
+            long last = matcher.group(2).isEmpty() ? Long.MAX_VALUE : Long.parseLong(matcher.group(2));
+            if (last < offset) {
+                sendError(response, HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, "Invalid range");
+                return;
+            }
+            int length = (int) Math.min(Integer.MAX_VALUE, last - offset + 1);
+            ClipChunk chunk = movieManager.getClipChunk(userToken, clipId, offset, length);
+            if (chunk == null) {
+                sendError(response, HttpServletResponse.SC_NOT_FOUND, "Clip not found");
+            } else if (offset >= chunk.getTotalLength()) {
+                response.setHeader("Content-Range", "bytes */" + chunk.getTotalLength());
+                sendError(response, HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, "Range beyond clip");
+            } else {
+                response.setHeader("Content-Range", "bytes " + offset + "-" + (offset + chunk.getBytes().length - 1)
+                        + "/" + chunk.getTotalLength());
+                send(response, HttpServletResponse.SC_PARTIAL_CONTENT, BINARY, chunk.getBytes());
+            }
+            return;
+        }
+        ClipStream clipStream = movieManager.getClipStream(userToken, clipId);
+        if (clipStream == null) {
+            sendError(response, HttpServletResponse.SC_NOT_FOUND, "Clip not found");
+            return;
+        }
+        //copied from the cached payload in place, rather than through a ClipData copy of it
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(BINARY);
+        if (clipStream.getLength() <= Integer.MAX_VALUE)
+            response.setContentLength((int) clipStream.getLength());
+        else
+            response.setHeader("Content-Length", String.valueOf(clipStream.getLength()));
+        OutputStream out = response.getOutputStream();
+        clipStream.getData().writeTo(out);
+        out.flush();
+    }
+
+    private void getAd(HttpServletRequest request, HttpServletResponse response, Long movieId) throws Exception {
+        ClipData clipData = movieManager.getAd(tokenOf(request), movieId);
+        response.setHeader("Cache-Control", "no-store");
+        if (clipData.getClip() != null)
+            response.setHeader("X-Clip-Id", String.valueOf(clipData.getClip().getId()));
+        send(response, HttpServletResponse.SC_OK, BINARY, clipData.getBytes() == null ? new byte[0] : clipData.getBytes());
+    }
+
+    private void sendActivity(HttpServletRequest request, HttpServletResponse response) throws Exception {
+        String userToken = tokenOf(request);
+        Map<String, String> body = Json.parseObject(readBody(request));
+        Activity activity = new Activity();
+        if (body.get("movieId") != null)
+            activity.setMovieId(Long.valueOf(body.get("movieId")));
+        if (body.get("position") != null)
+            activity.setPosition(Integer.parseInt(body.get("position")));
+        activity.setTime(body.get("time") == null ? System.currentTimeMillis() : Long.parseLong(body.get("time")));
+        if (body.get("email") != null) {
+            User user = new User();
+            user.setEmail(body.get("email"));
+            activity.setUser(user);
+        }
+        movieManager.sendActivity(userToken, activity);
+        send(response, HttpServletResponse.SC_NO_CONTENT, null, null);
+    }
+
+    private static String tokenOf(HttpServletRequest request) throws InvalidTokenException {
+        String authorization = request.getHeader("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, "Bearer ", 0, 7))
+            throw new InvalidTokenException("Missing bearer token");
+        return authorization.substring(7).trim();
+    }
+
+    private static String parameter(HttpServletRequest request, String name) {
+        String value = request.getParameter(name);
+        if (value == null)
+            throw new IllegalArgumentException("Null values are not accepted as inputs");
+        return value;
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null)
+            return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            String trimmed = candidate.trim();
+            if (trimmed.equals("*") || trimmed.equals(etag) || trimmed.equals("W/" + etag))
+                return true;
+        }
+        return false;
+    }
+
+    private static String readBody(HttpServletRequest request) throws IOException {
+        StringBuilder body = new StringBuilder();
+        BufferedReader reader = request.getReader();
+        char[] buffer = new char[1024];
+        int read;
+        while ((read = reader.read(buffer)) > 0) {
+            body.append(buffer, 0, read);
+            if (body.length() > MAX_BODY_LENGTH)
+                throw new IllegalArgumentException("Request body too large");
+        }
+        return body.toString();
+    }
+
+    private static void send(HttpServletResponse response, int status, String contentType, byte[] body) throws IOException {
+        response.setStatus(status);
+        if (body == null) {
+            response.setContentLength(0);
+            return;
+        }
+        response.setContentType(contentType);
+        response.setContentLength(body.length);
+        OutputStream out = response.getOutputStream();
+        out.write(body);
+        out.flush();
+    }
+
+    private static void sendError(HttpServletResponse response, Exception e) throws IOException {
+        if (e instanceof InvalidTokenException) {
+            response.setHeader("WWW-Authenticate", "Bearer");
+            sendError(response, HttpServletResponse.SC_UNAUTHORIZED, "Invalid token");
+        }
+        else if (e instanceof UserNotAllowedException)
+            sendError(response, HttpServletResponse.SC_FORBIDDEN, e.getMessage());
+        else if (e instanceof MovieNotFoundException)
+            sendError(response, HttpServletResponse.SC_NOT_FOUND, "Movie not found");
+        else if (e instanceof NoAdsException)
+            sendError(response, HttpServletResponse.SC_NOT_FOUND, "No ads available");
+        else if (e instanceof ValuesInActivityException || e instanceof IllegalArgumentException)
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        else if (e instanceof DependencyUnavailableException) {
+            response.setHeader("Retry-After", "1");
+            sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service unavailable");
+        }
+        else {
+            logger.error("could not serve request", e);
+            sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal error");
+        }
+    }
+
+    private static void sendError(HttpServletResponse response, int status, String message) throws IOException {
+        send(response, status, JSON, ("{\"error\":" + Json.quote(message == null ? "" : message) + "}").getBytes("UTF-8"));
+    }
+
+    /**
+     * Setter for movieManager attribute
+     *
+     * @param movieManager to set
+     * @see MovieManager
+     */
+    public void setMovieManager(MovieManager movieManager) {
+        this.movieManager = movieManager;
+    }
+}
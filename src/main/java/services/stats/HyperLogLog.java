@@ -0,0 +1,135 @@
+package services.stats;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * HyperLogLog sketch estimating the number of distinct items offered to it in fixed memory: 2^precision registers
+ * of a byte, with a standard error of about 1.04 / sqrt(2^precision). Registers are packed four to an int and
+ * raised with compare-and-set, so concurrent offers never lock. Sketches of the same precision merge without loss,
+ * which is how the counts of several windows are combined.
+ */
+public final class HyperLogLog {
+
+    private final int precision;
+    private final int registerCount;
+    private final AtomicIntegerArray registers;
+
+    /**
+     * @param precision number of index bits, from 4 to 16
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16)
+            throw new IllegalArgumentException("precision must be between 4 and 16");
+        this.precision = precision;
+        this.registerCount = 1 << precision;
+        this.registers = new AtomicIntegerArray(registerCount / 4);
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Offers an item, given as a well mixed 64 bit hash
+     *
+     * @param hash the hash of the item
+     * @see #hash(String)
+     */
+    public void offer(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        //the sentinel bit bounds the rank when the remaining bits are all zero
+        long remaining = (hash << precision) | (1L << (precision - 1));
+        raise(index, Long.numberOfLeadingZeros(remaining) + 1);
+    }
+
+    /**
+     * Adds the items of another sketch of the same precision to this one
+     *
+     * @param other the sketch to merge
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision)
+            throw new IllegalArgumentException("sketches of different precision can not be merged");
+        for (int i = 0; i < registerCount; i++) {
+            int rank = other.register(i);
+            if (rank > 0)
+                raise(i, rank);
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct items offered
+     */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < registerCount; i++) {
+            int rank = register(i);
+            sum += 1.0 / (1L << rank);
+            if (rank == 0)
+                zeros++;
+        }
+        double estimate = alpha() * registerCount * registerCount / sum;
+        //linear counting is more accurate while many registers are still empty
+        if (estimate <= 2.5 * registerCount && zeros > 0)
+            estimate = registerCount * Math.log((double) registerCount / zeros);
+        return Math.round(estimate);
+    }
+
+    /**
+     * @param value the string to hash
+     * @return a 64 bit hash of the string, suitable for {@link #offer(long)}
+     */
+    public static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++)
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+        return mix(hash);
+    }
+
+    /**
+     * @param value the number to hash
+     * @return a 64 bit hash of the number, suitable for {@link #offer(long)}
+     */
+    public static long hash(long value) {
+        return mix(value);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private double alpha() {
+        switch (registerCount) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / registerCount);
+        }
+    }
+
+    private int register(int index) {
+        return (registers.get(index >> 2) >>> ((index & 3) << 3)) & 0xff;
+    }
+
+    private void raise(int index, int rank) {
+        int slot = index >> 2;
+        int shift = (index & 3) << 3;
+        while (true) {
+            int packed = registers.get(slot);
+            if (((packed >>> shift) & 0xff) >= rank)
+                return;
+            int raised = (packed & ~(0xff << shift)) | (rank << shift);
+            if (registers.compareAndSet(slot, packed, raised))
+                return;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package services.stats;
+
+import services.MovieManagerComponents;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * JSON query endpoint of the shared {@link ViewingStats}, answered from memory only
+ * <pre>
+ * GET /stats?windows={count}&amp;top={count}  concurrent viewers, the last tumbling windows and the most viewed movies
+ * GET /stats?movieId={movieId}&amp;windows={count} the same for a movie, without the ranking
+ * </pre>
+ */
+public class StatsServlet extends HttpServlet {
+
+    private ViewingStats viewingStats = MovieManagerComponents.getViewingStats();
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Long movieId;
+        int windows;
+        int top;
+        try {
+            movieId = request.getParameter("movieId") == null ? null : Long.valueOf(request.getParameter("movieId"));
+            windows = intParameter(request, "windows", 10);
+            top = intParameter(request, "top", 10);
+        } catch (NumberFormatException e) {
+            send(response, HttpServletResponse.SC_BAD_REQUEST, "{\"error\":\"Invalid parameter\"}");
+            return;
+        }
+        StringBuilder json = new StringBuilder(256);
+        json.append('{');
+        if (movieId != null)
+            json.append("\"movieId\":").append(movieId).append(',');
+        json.append("\"concurrentViewers\":").append(movieId == null
+                ? viewingStats.getConcurrentViewers() : viewingStats.getConcurrentViewers(movieId));
+        json.append(",\"windows\":");
+        append(json, viewingStats.getTumblingWindows(movieId, windows), false);
+        if (movieId == null) {
+            json.append(",\"topMovies\":");
+            append(json, viewingStats.getTopMovies(top, viewingStats.getActiveWindowMillis()), true);
+        }
+        json.append('}');
+        send(response, HttpServletResponse.SC_OK, json.toString());
+    }
+
+    private static void append(StringBuilder json, List<ViewingStats.Window> windows, boolean withMovie) {
+        json.append('[');
+        for (int i = 0; i < windows.size(); i++) {
+            ViewingStats.Window window = windows.get(i);
+            if (i > 0)
+                json.append(',');
+            json.append('{');
+            if (withMovie)
+                json.append("\"movieId\":").append(window.getMovieId()).append(',');
+            json.append("\"start\":").append(window.getStart())
+                    .append(",\"end\":").append(window.getEnd())
+                    .append(",\"viewers\":").append(window.getViewers())
+                    .append(",\"activities\":").append(window.getActivities())
+                    .append(",\"adImpressions\":").append(window.getAdImpressions())
+                    .append('}');
+        }
+        json.append(']');
+    }
+
+    private static int intParameter(HttpServletRequest request, String name, int defaultValue) {
+        String value = request.getParameter(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static void send(HttpServletResponse response, int status, String json) throws IOException {
+        byte[] body = json.getBytes("UTF-8");
+        response.setStatus(status);
+        response.setContentType("application/json; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setContentLength(body.length);
+        OutputStream out = response.getOutputStream();
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Setter for viewingStats attribute
+     *
+     * @param viewingStats to set
+     * @see ViewingStats
+     */
+    public void setViewingStats(ViewingStats viewingStats) {
+        this.viewingStats = viewingStats;
+    }
+}
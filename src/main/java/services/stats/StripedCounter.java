@@ -0,0 +1,63 @@
+package services.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter for hot paths updated by many threads. Increments are spread over cells picked by thread, each on a cache
+ * line of its own, so concurrent writers rarely contend and never lock; reads sum the cells.
+ */
+public final class StripedCounter {
+
+    //longs per 64 byte cache line
+    private static final int PADDING = 8;
+    private static final int DEFAULT_STRIPES = stripesFor(Runtime.getRuntime().availableProcessors() * 2);
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    /**
+     * Counter with about two cells per processor
+     */
+    public StripedCounter() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes number of cells, rounded up to a power of two
+     */
+    public StripedCounter(int stripes) {
+        int count = stripesFor(stripes);
+        cells = new AtomicLongArray(count * PADDING);
+        mask = count - 1;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        cells.getAndAdd(cellOfCurrentThread(), delta);
+    }
+
+    /**
+     * @return the sum of the cells; increments concurrent with the call may or may not be counted
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING)
+            sum += cells.get(i);
+        return sum;
+    }
+
+    private int cellOfCurrentThread() {
+        int hash = (int) Thread.currentThread().getId() * 0x9e3779b9;
+        return ((hash ^ (hash >>> 16)) & mask) * PADDING;
+    }
+
+    private static int stripesFor(int stripes) {
+        int count = 1;
+        while (count < stripes && count < 64)
+            count <<= 1;
+        return count;
+    }
+}
@@ -0,0 +1,339 @@
+package services.stats;
+
+import edu.umflix.model.Activity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Real-time viewing aggregates, updated incrementally by every accepted activity and every ad served, so that
+ * dashboards do not have to query the activity table. Time is cut in tumbling buckets of <code>bucketMillis</code>
+ * kept in a ring of <code>bucketCount</code>; a bucket holds, overall and per movie, striped counters of activities
+ * and ad impressions and a {@link HyperLogLog} of the users seen. Sliding windows are answered by summing the
+ * counters and merging the sketches of the buckets they cover, to the precision of a bucket.
+ * <p/>
+ * Viewers of a window are the distinct users that reported an activity in it, which makes the viewers of a movie
+ * its plays, and the viewers of the last <code>activeWindowMillis</code> the concurrent viewers. Updates never lock:
+ * a bucket is replaced with a compare-and-set when its time is over. At most <code>maxMoviesPerBucket</code> movies
+ * are tracked per bucket; activities of further movies count in the totals only.
+ */
+public class ViewingStats {
+
+    private final long bucketMillis;
+    private final int bucketCount;
+    private final long activeWindowMillis;
+    private final int precision;
+    private final int moviePrecision;
+    private final int maxMoviesPerBucket;
+    private final AtomicReferenceArray<Bucket> buckets;
+    private final AtomicLong untrackedCount = new AtomicLong();
+
+    /**
+     * @param bucketMillis       length of a bucket
+     * @param bucketCount        number of buckets kept, the oldest being replaced by the newest
+     * @param activeWindowMillis how recent the activity of a concurrent viewer is
+     * @param precision          precision of the sketches of all viewers
+     * @param moviePrecision     precision of the sketches of the viewers of a movie
+     * @param maxMoviesPerBucket maximum number of movies tracked in a bucket
+     */
+    public ViewingStats(long bucketMillis, int bucketCount, long activeWindowMillis, int precision, int moviePrecision,
+                        int maxMoviesPerBucket) {
+        if (bucketMillis <= 0 || bucketCount <= 0 || activeWindowMillis <= 0)
+            throw new IllegalArgumentException("bucketMillis, bucketCount and activeWindowMillis must be positive");
+        this.bucketMillis = bucketMillis;
+        this.bucketCount = bucketCount;
+        this.activeWindowMillis = activeWindowMillis;
+        this.precision = precision;
+        this.moviePrecision = moviePrecision;
+        this.maxMoviesPerBucket = maxMoviesPerBucket;
+        this.buckets = new AtomicReferenceArray<Bucket>(bucketCount);
+        //fails fast on an invalid precision
+        new HyperLogLog(precision);
+        new HyperLogLog(moviePrecision);
+    }
+
+    /**
+     * Records an accepted activity, at the time it is received
+     *
+     * @param activity the activity
+     */
+    public void recordActivity(Activity activity) {
+        if (activity == null || activity.getMovieId() == null)
+            return;
+        String email = activity.getUser() == null ? null : activity.getUser().getEmail();
+        long viewer = HyperLogLog.hash(email == null ? "" : email);
+        Bucket bucket = current();
+        bucket.activities.increment();
+        bucket.viewers.offer(viewer);
+        MovieBucket movie = bucket.movie(activity.getMovieId());
+        if (movie != null) {
+            movie.activities.increment();
+            movie.viewers.offer(viewer);
+        }
+    }
+
+    /**
+     * Records an ad served while playing a movie
+     *
+     * @param movieId the movie
+     */
+    public void recordAdImpression(Long movieId) {
+        Bucket bucket = current();
+        bucket.adImpressions.increment();
+        MovieBucket movie = movieId == null ? null : bucket.movie(movieId);
+        if (movie != null)
+            movie.adImpressions.increment();
+    }
+
+    /**
+     * @return estimated number of distinct users with an activity in the last <code>activeWindowMillis</code>
+     */
+    public long getConcurrentViewers() {
+        return getSlidingWindow(null, activeWindowMillis).getViewers();
+    }
+
+    /**
+     * @param movieId the movie
+     * @return estimated number of distinct users with an activity on the movie in the last
+     *         <code>activeWindowMillis</code>
+     */
+    public long getConcurrentViewers(Long movieId) {
+        return getSlidingWindow(movieId, activeWindowMillis).getViewers();
+    }
+
+    /**
+     * Aggregates the buckets overlapping the last <code>windowMillis</code>, the current one included
+     *
+     * @param movieId      the movie, or null for all movies
+     * @param windowMillis length of the window
+     * @return the aggregates of the window
+     */
+    public Window getSlidingWindow(Long movieId, long windowMillis) {
+        long now = currentTimeMillis();
+        long last = now / bucketMillis;
+        long first = firstEpoch(now, windowMillis);
+        HyperLogLog viewers = new HyperLogLog(movieId == null ? precision : moviePrecision);
+        long activities = 0;
+        long adImpressions = 0;
+        for (long epoch = first; epoch <= last; epoch++) {
+            Bucket bucket = bucket(epoch);
+            if (bucket == null)
+                continue;
+            if (movieId == null) {
+                activities += bucket.activities.sum();
+                adImpressions += bucket.adImpressions.sum();
+                viewers.merge(bucket.viewers);
+            } else {
+                MovieBucket movie = bucket.movies.get(movieId);
+                if (movie == null)
+                    continue;
+                activities += movie.activities.sum();
+                adImpressions += movie.adImpressions.sum();
+                viewers.merge(movie.viewers);
+            }
+        }
+        return new Window(movieId, first * bucketMillis, (last + 1) * bucketMillis, activities, adImpressions,
+                viewers.estimate());
+    }
+
+    /**
+     * Returns the most recent tumbling windows, one per bucket, oldest first
+     *
+     * @param movieId the movie, or null for all movies
+     * @param count   number of windows, at most <code>bucketCount</code>
+     * @return the aggregates of each window, empty windows included
+     */
+    public List<Window> getTumblingWindows(Long movieId, int count) {
+        long last = currentTimeMillis() / bucketMillis;
+        int windows = Math.max(0, Math.min(count, bucketCount));
+        List<Window> result = new ArrayList<Window>(windows);
+        for (long epoch = last - windows + 1; epoch <= last; epoch++) {
+            Bucket bucket = bucket(epoch);
+            long start = epoch * bucketMillis;
+            if (bucket == null) {
+                result.add(new Window(movieId, start, start + bucketMillis, 0, 0, 0));
+            } else if (movieId == null) {
+                result.add(new Window(null, start, start + bucketMillis, bucket.activities.sum(),
+                        bucket.adImpressions.sum(), bucket.viewers.estimate()));
+            } else {
+                MovieBucket movie = bucket.movies.get(movieId);
+                result.add(movie == null
+                        ? new Window(movieId, start, start + bucketMillis, 0, 0, 0)
+                        : new Window(movieId, start, start + bucketMillis, movie.activities.sum(),
+                        movie.adImpressions.sum(), movie.viewers.estimate()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Ranks the movies by viewers over the last <code>windowMillis</code>
+     *
+     * @param count        maximum number of movies returned
+     * @param windowMillis length of the window
+     * @return the aggregates of the most viewed movies, most viewed first
+     */
+    public List<Window> getTopMovies(int count, long windowMillis) {
+        long now = currentTimeMillis();
+        long last = now / bucketMillis;
+        Set<Long> movieIds = new HashSet<Long>();
+        for (long epoch = firstEpoch(now, windowMillis); epoch <= last; epoch++) {
+            Bucket bucket = bucket(epoch);
+            if (bucket != null)
+                movieIds.addAll(bucket.movies.keySet());
+        }
+        List<Window> movies = new ArrayList<Window>(movieIds.size());
+        for (Long movieId : movieIds)
+            movies.add(getSlidingWindow(movieId, windowMillis));
+        Collections.sort(movies, new Comparator<Window>() {
+            public int compare(Window a, Window b) {
+                return a.viewers == b.viewers ? 0 : a.viewers > b.viewers ? -1 : 1;
+            }
+        });
+        return movies.size() > count ? new ArrayList<Window>(movies.subList(0, Math.max(0, count))) : movies;
+    }
+
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    public long getActiveWindowMillis() {
+        return activeWindowMillis;
+    }
+
+    /**
+     * @return number of updates of movies not tracked because their bucket was full
+     */
+    public long getUntrackedCount() {
+        return untrackedCount.get();
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * @return the first kept bucket overlapping a window ending now
+     */
+    private long firstEpoch(long now, long windowMillis) {
+        long last = now / bucketMillis;
+        return Math.min(last, Math.max(last - bucketCount + 1, (now - Math.max(0, windowMillis)) / bucketMillis));
+    }
+
+    /**
+     * @return the bucket of the current time, replacing the one it reuses in the ring
+     */
+    private Bucket current() {
+        long epoch = currentTimeMillis() / bucketMillis;
+        int index = (int) (epoch % bucketCount);
+        while (true) {
+            Bucket bucket = buckets.get(index);
+            //a bucket newer than the clock of a lagging thread is updated rather than replaced
+            if (bucket != null && bucket.epoch >= epoch)
+                return bucket;
+            Bucket fresh = new Bucket(epoch);
+            if (buckets.compareAndSet(index, bucket, fresh))
+                return fresh;
+        }
+    }
+
+    /**
+     * @return the bucket of a time, or null if it has no updates or was replaced
+     */
+    private Bucket bucket(long epoch) {
+        Bucket bucket = buckets.get((int) (epoch % bucketCount));
+        return bucket != null && bucket.epoch == epoch ? bucket : null;
+    }
+
+    /**
+     * The aggregates of a window of time, overall or for a movie
+     */
+    public static final class Window {
+        private final Long movieId;
+        private final long start;
+        private final long end;
+        private final long activities;
+        private final long adImpressions;
+        private final long viewers;
+
+        Window(Long movieId, long start, long end, long activities, long adImpressions, long viewers) {
+            this.movieId = movieId;
+            this.start = start;
+            this.end = end;
+            this.activities = activities;
+            this.adImpressions = adImpressions;
+            this.viewers = viewers;
+        }
+
+        /**
+         * @return the movie, or null if the window covers all movies
+         */
+        public Long getMovieId() {
+            return movieId;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public long getActivities() {
+            return activities;
+        }
+
+        public long getAdImpressions() {
+            return adImpressions;
+        }
+
+        /**
+         * @return estimated number of distinct users with an activity in the window
+         */
+        public long getViewers() {
+            return viewers;
+        }
+    }
+
+    private final class Bucket {
+        private final long epoch;
+        private final StripedCounter activities = new StripedCounter();
+        private final StripedCounter adImpressions = new StripedCounter();
+        private final HyperLogLog viewers = new HyperLogLog(precision);
+        private final ConcurrentHashMap<Long, MovieBucket> movies = new ConcurrentHashMap<Long, MovieBucket>();
+
+        private Bucket(long epoch) {
+            this.epoch = epoch;
+        }
+
+        /**
+         * @return the aggregates of a movie, or null if the bucket tracks too many movies already
+         */
+        private MovieBucket movie(Long movieId) {
+            MovieBucket movie = movies.get(movieId);
+            if (movie != null)
+                return movie;
+            if (movies.size() >= maxMoviesPerBucket) {
+                untrackedCount.incrementAndGet();
+                return null;
+            }
+            MovieBucket fresh = new MovieBucket();
+            movie = movies.putIfAbsent(movieId, fresh);
+            return movie == null ? fresh : movie;
+        }
+    }
+
+    private final class MovieBucket {
+        private final StripedCounter activities = new StripedCounter(2);
+        private final StripedCounter adImpressions = new StripedCounter(2);
+        private final HyperLogLog viewers = new HyperLogLog(moviePrecision);
+    }
+}
@@ -0,0 +1,13 @@
+package services.trace;
+
+/**
+ * The phases of a request timed by a {@link Trace}
+ */
+public enum Phase {
+    TOKEN_VALIDATION,
+    DAO_FETCH,
+    PERMISSION_CHECK,
+    STORAGE_FETCH,
+    AD_SELECTION,
+    ACTIVITY_SUBMIT
+}
@@ -0,0 +1,117 @@
+package services.trace;
+
+/**
+ * Timing of one request, split in {@link Phase phases}. A phase can be entered several times, e.g. once per item of
+ * a batch, and its spans add up. A phase still open when the trace finishes is reported as the one the request
+ * failed in. Requests that are not sampled share the {@link #DISABLED} trace, on which every call returns at once
+ * without allocating. A trace belongs to the thread serving its request and is not thread safe.
+ */
+public class Trace {
+
+    /**
+     * The trace of requests that are not sampled
+     */
+    public static final Trace DISABLED = new Trace(null, 0);
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final String operation;
+    private final long startNanos;
+    private final long[] spanStarts;
+    private final long[] spanNanos;
+    private long totalNanos;
+    private Phase failedPhase;
+
+    Trace(String operation, long startNanos) {
+        this.operation = operation;
+        this.startNanos = startNanos;
+        this.spanStarts = operation == null ? null : new long[PHASES.length];
+        this.spanNanos = operation == null ? null : new long[PHASES.length];
+    }
+
+    /**
+     * Opens a span of a phase
+     *
+     * @param phase the phase entered
+     */
+    public void begin(Phase phase) {
+        if (spanStarts != null)
+            spanStarts[phase.ordinal()] = System.nanoTime();
+    }
+
+    /**
+     * Closes the span of a phase opened by {@link #begin(Phase)}
+     *
+     * @param phase the phase left
+     */
+    public void end(Phase phase) {
+        if (spanStarts == null)
+            return;
+        int index = phase.ordinal();
+        if (spanStarts[index] != 0) {
+            spanNanos[index] += System.nanoTime() - spanStarts[index];
+            spanStarts[index] = 0;
+        }
+    }
+
+    public boolean isEnabled() {
+        return spanStarts != null;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * @param phase a phase
+     * @return total time spent in the phase, in nanoseconds
+     */
+    public long getNanos(Phase phase) {
+        return spanNanos == null ? 0 : spanNanos[phase.ordinal()];
+    }
+
+    /**
+     * @return duration of the request, in nanoseconds, once finished
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return the phase that was still open when the request finished, or null if the request completed
+     */
+    public Phase getFailedPhase() {
+        return failedPhase;
+    }
+
+    /**
+     * Closes the trace, recording the phase left open by a failure
+     *
+     * @param endNanos time the request finished
+     */
+    void finish(long endNanos) {
+        totalNanos = endNanos - startNanos;
+        for (int i = 0; i < PHASES.length; i++) {
+            if (spanStarts[i] != 0) {
+                spanNanos[i] += endNanos - spanStarts[i];
+                spanStarts[i] = 0;
+                failedPhase = PHASES[i];
+            }
+        }
+    }
+
+    /**
+     * @return one line describing the trace, with durations in microseconds
+     */
+    public String format() {
+        StringBuilder line = new StringBuilder(128);
+        line.append("op=").append(operation).append(" total_us=").append(totalNanos / 1000);
+        for (int i = 0; i < PHASES.length; i++) {
+            if (spanNanos[i] != 0)
+                line.append(' ').append(PHASES[i].name().toLowerCase()).append("_us=").append(spanNanos[i] / 1000);
+        }
+        if (failedPhase != null)
+            line.append(" failed_in=").append(failedPhase.name().toLowerCase());
+        return line.toString();
+    }
+}
@@ -0,0 +1,142 @@
+package services.trace;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Starts the {@link Trace} of sampled requests and writes finished traces in background, one line each, to the
+ * <code>services.trace</code> logger. Requests that are not sampled get {@link Trace#DISABLED}, so with sampling off
+ * tracing costs a field read per call. Finished traces are queued to a daemon appender, keeping log I/O off the
+ * request threads; when the queue is full traces are dropped rather than slowing requests down.
+ */
+public class Tracer {
+
+    static Logger logger = Logger.getLogger(Tracer.class);
+    private static final Logger TRACE_LOG = Logger.getLogger("services.trace");
+    private static final int DRAIN_BATCH = 256;
+
+    private final int sampleOneIn;
+    private final BlockingQueue<Trace> queue;
+    private final AtomicLong sampled = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean stopped;
+    private volatile Thread appender;
+
+    /**
+     * @param sampleOneIn   one request in this many is traced; 0 disables tracing, 1 traces every request
+     * @param queueCapacity number of finished traces waiting to be written
+     */
+    public Tracer(int sampleOneIn, int queueCapacity) {
+        if (sampleOneIn < 0 || queueCapacity <= 0)
+            throw new IllegalArgumentException("sampleOneIn must not be negative, queueCapacity must be positive");
+        this.sampleOneIn = sampleOneIn;
+        this.queue = new ArrayBlockingQueue<Trace>(queueCapacity);
+    }
+
+    /**
+     * Starts the trace of a request
+     *
+     * @param operation the name of the operation served
+     * @return a new trace if the request is sampled, otherwise {@link Trace#DISABLED}
+     */
+    public Trace start(String operation) {
+        if (sampleOneIn == 0 || (sampleOneIn > 1 && ThreadLocalRandom.current().nextInt(sampleOneIn) != 0))
+            return Trace.DISABLED;
+        sampled.incrementAndGet();
+        return new Trace(operation, System.nanoTime());
+    }
+
+    /**
+     * Finishes the trace of a request and queues it to be written
+     *
+     * @param trace the trace returned by {@link #start(String)}
+     */
+    public void finish(Trace trace) {
+        if (!trace.isEnabled())
+            return;
+        trace.finish(System.nanoTime());
+        if (appender == null)
+            startAppender();
+        if (stopped || !queue.offer(trace))
+            dropped.incrementAndGet();
+    }
+
+    /**
+     * Writes the queued traces and stops the appender, to be called on undeploy
+     */
+    public void shutdown() {
+        stopped = true;
+        Thread current = appender;
+        if (current != null) {
+            current.interrupt();
+            try {
+                current.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        drain();
+    }
+
+    public long getSampledCount() {
+        return sampled.get();
+    }
+
+    /**
+     * @return number of traces not written because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes a finished trace, overridable by tests
+     *
+     * @param trace the trace
+     */
+    protected void append(Trace trace) {
+        if (TRACE_LOG.isInfoEnabled())
+            TRACE_LOG.info(trace.format());
+    }
+
+    private synchronized void startAppender() {
+        if (appender != null || stopped)
+            return;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                while (!stopped) {
+                    try {
+                        Trace trace = queue.poll(1, TimeUnit.SECONDS);
+                        if (trace != null) {
+                            append(trace);
+                            drain();
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (RuntimeException e) {
+                        logger.error("could not write traces", e);
+                    }
+                }
+            }
+        }, "request-tracer");
+        thread.setDaemon(true);
+        appender = thread;
+        thread.start();
+    }
+
+    private void drain() {
+        List<Trace> batch = new ArrayList<Trace>(DRAIN_BATCH);
+        while (queue.drainTo(batch, DRAIN_BATCH) > 0) {
+            for (Trace trace : batch)
+                append(trace);
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import edu.umflix.model.Activity;
+import edu.umflix.model.User;
+import edu.umflix.persistence.ActivityDao;
+import org.junit.Before;
+import org.junit.Test;
+import services.activity.ActivityCoalescer;
+import services.activity.ActivitySink;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ActivityCoalescerTest {
+
+    private ActivitySink downstream;
+    private ActivityDao activityDao;
+    private User user;
+    private long now;
+    private ActivityCoalescer coalescer;
+
+    @Before
+    public void getCoalescer() {
+        downstream = mock(ActivitySink.class);
+        activityDao = mock(ActivityDao.class);
+        user = mock(User.class);
+        when(user.getEmail()).thenReturn("user@mail.com");
+        now = 1000;
+        coalescer = new ActivityCoalescer(downstream, 100000) {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    private Activity activity(long movieId, int position, long time) {
+        Activity activity = mock(Activity.class);
+        when(activity.getUser()).thenReturn(user);
+        when(activity.getMovieId()).thenReturn(movieId);
+        when(activity.getPosition()).thenReturn(position);
+        when(activity.getTime()).thenReturn(time);
+        return activity;
+    }
+
+    @Test
+    public void testOnlyLatestPositionForwarded() {
+        Activity first = activity(1, 10, 100);
+        Activity second = activity(1, 20, 110);
+        Activity third = activity(1, 30, 120);
+        coalescer.submit(first, activityDao);
+        coalescer.submit(second, activityDao);
+        coalescer.submit(third, activityDao);
+        coalescer.sweep();
+        verify(downstream, never()).submit(any(Activity.class), any(ActivityDao.class));
+        now += 100000;
+        coalescer.sweep();
+        verify(downstream, times(1)).submit(third, activityDao);
+        verify(downstream, times(1)).submit(any(Activity.class), any(ActivityDao.class));
+        assertEquals(2, coalescer.getCoalescedCount());
+        assertEquals(0, coalescer.getPendingCount());
+    }
+
+    @Test
+    public void testSeekBackwardsIsForwarded() {
+        Activity watched = activity(1, 500, 100);
+        Activity restarted = activity(1, 0, 110);
+        coalescer.submit(watched, activityDao);
+        coalescer.submit(restarted, activityDao);
+        verify(downstream, times(1)).submit(watched, activityDao);
+        coalescer.shutdown();
+        verify(downstream, times(1)).submit(restarted, activityDao);
+    }
+
+    @Test
+    public void testDifferentMoviesKeptApart() {
+        Activity first = activity(1, 10, 100);
+        Activity second = activity(2, 20, 110);
+        coalescer.submit(first, activityDao);
+        coalescer.submit(second, activityDao);
+        coalescer.shutdown();
+        verify(downstream, times(1)).submit(first, activityDao);
+        verify(downstream, times(1)).submit(second, activityDao);
+    }
+
+    @Test
+    public void testSubmitRejectedAfterShutdown() {
+        coalescer.shutdown();
+        try {
+            coalescer.submit(activity(1, 10, 100), activityDao);
+            fail();
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        assertEquals(0, coalescer.getPendingCount());
+        verify(downstream, never()).submit(any(Activity.class), any(ActivityDao.class));
+    }
+
+    @Test
+    public void testNothingForwardedAfterShutdown() {
+        Activity watched = activity(1, 10, 100);
+        coalescer.submit(watched, activityDao);
+        coalescer.shutdown();
+        verify(downstream, times(1)).submit(watched, activityDao);
+        now += 100000;
+        coalescer.sweep();
+        verify(downstream, times(1)).submit(any(Activity.class), any(ActivityDao.class));
+    }
+}
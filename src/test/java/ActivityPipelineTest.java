@@ -0,0 +1,105 @@
+import edu.umflix.model.Activity;
+import edu.umflix.persistence.ActivityDao;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import services.activity.ActivityPipeline;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ActivityPipelineTest {
+
+    private ActivityDao activityDao;
+
+    @Before
+    public void getDao() {
+        activityDao = mock(ActivityDao.class);
+    }
+
+    @Test
+    public void testSynchronousWithoutWorkers() {
+        ActivityPipeline pipeline = new ActivityPipeline(10, 10, 0, 0, 0);
+        Activity activity = mock(Activity.class);
+        pipeline.submit(activity, activityDao);
+        verify(activityDao, times(1)).addActivity(activity);
+        assertEquals(1, pipeline.getCallerWrittenCount());
+    }
+
+    @Test
+    public void testWorkersWriteEverythingBeforeShutdown() {
+        ActivityPipeline pipeline = new ActivityPipeline(1000, 50, 5, 1000, 2);
+        for (int i = 0; i < 500; i++)
+            pipeline.submit(mock(Activity.class), activityDao);
+        assertTrue(pipeline.shutdown(5000));
+        verify(activityDao, times(500)).addActivity(any(Activity.class));
+        assertEquals(500, pipeline.getWrittenCount());
+        assertEquals(0, pipeline.getQueueDepth());
+        assertTrue(pipeline.getBatchCount() > 0);
+    }
+
+    @Test
+    public void testCallerWritesWhenQueueFull() throws InterruptedException {
+        final Object lock = new Object();
+        ActivityDao slowDao = mock(ActivityDao.class);
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) throws InterruptedException {
+                synchronized (lock) {
+                    lock.wait(20);
+                }
+                return null;
+            }
+        }).when(slowDao).addActivity(any(Activity.class));
+        ActivityPipeline pipeline = new ActivityPipeline(1, 1, 0, 0, 1);
+        for (int i = 0; i < 10; i++)
+            pipeline.submit(mock(Activity.class), slowDao);
+        assertTrue(pipeline.getCallerWrittenCount() > 0);
+        pipeline.shutdown(5000);
+        verify(slowDao, times(10)).addActivity(any(Activity.class));
+    }
+
+    @Test
+    public void testSubmitRejectedAfterShutdown() {
+        ActivityPipeline pipeline = new ActivityPipeline(10, 10, 0, 0, 1);
+        pipeline.shutdown(1000);
+        try {
+            pipeline.submit(mock(Activity.class), activityDao);
+            fail();
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        verify(activityDao, never()).addActivity(any(Activity.class));
+    }
+
+    @Test
+    public void testFailedWriteRetried() {
+        Activity activity = mock(Activity.class);
+        doThrow(new RuntimeException("deadlock")).doNothing().when(activityDao).addActivity(activity);
+        ActivityPipeline pipeline = new ActivityPipeline(10, 10, 0, 0, 1);
+        pipeline.submit(activity, activityDao);
+        assertTrue(pipeline.shutdown(5000));
+        verify(activityDao, times(2)).addActivity(activity);
+        assertEquals(1, pipeline.getWrittenCount());
+        assertEquals(0, pipeline.getDroppedCount());
+    }
+
+    @Test
+    public void testKeepsDrainingWhileRetrying() throws InterruptedException {
+        Activity failing = mock(Activity.class);
+        doThrow(new RuntimeException("deadlock")).doNothing().when(activityDao).addActivity(failing);
+        ActivityPipeline pipeline = new ActivityPipeline(10, 1, 0, 0, 1);
+        pipeline.submit(failing, activityDao);
+        for (int i = 0; i < 5; i++)
+            pipeline.submit(mock(Activity.class), activityDao);
+        long deadline = System.currentTimeMillis() + 500;
+        while (pipeline.getWrittenCount() < 5 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        //written well before the failed activity is retried
+        assertEquals(5, pipeline.getWrittenCount());
+        assertEquals(1, pipeline.getParkedDepth());
+        assertTrue(pipeline.shutdown(5000));
+        verify(activityDao, times(2)).addActivity(failing);
+        assertEquals(6, pipeline.getWrittenCount());
+    }
+}
@@ -0,0 +1,207 @@
+import edu.umflix.model.Activity;
+import edu.umflix.model.User;
+import edu.umflix.persistence.ActivityDao;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import services.activity.ActivityPipeline;
+import services.activity.ActivitySink;
+import services.activity.ActivitySpool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ActivitySpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private ActivitySink fallback;
+    private ActivityPipeline pipeline;
+    private ActivityDao activityDao;
+    private ActivitySpool spool;
+
+    @Before
+    public void getSpool() throws IOException {
+        directory = folder.newFolder("spool");
+        fallback = mock(ActivitySink.class);
+        //writes on the replayer thread, in log order
+        pipeline = new ActivityPipeline(100, 10, 0, 0, 0);
+        activityDao = mock(ActivityDao.class);
+    }
+
+    @After
+    public void shutdownSpool() {
+        if (spool != null)
+            spool.shutdown(1000);
+        pipeline.shutdown(1000);
+    }
+
+    private ActivitySpool open(int segmentBytes) throws IOException {
+        return new ActivitySpool(directory, segmentBytes, 10, 10, 3, 1000, 60000, pipeline, fallback);
+    }
+
+    private Activity activity(long movieId, int position, long time) {
+        User user = new User();
+        user.setEmail("user@mail.com");
+        Activity activity = new Activity();
+        activity.setUser(user);
+        activity.setMovieId(movieId);
+        activity.setPosition(position);
+        activity.setTime(time);
+        return activity;
+    }
+
+    private List<Activity> written(int count) {
+        ArgumentCaptor<Activity> captor = ArgumentCaptor.forClass(Activity.class);
+        verify(activityDao, timeout(2000).times(count)).addActivity(captor.capture());
+        return captor.getAllValues();
+    }
+
+    @Test
+    public void testActivitiesReplayedInOrder() throws IOException {
+        spool = open(64 * 1024);
+        spool.submit(activity(1, 10, 100), activityDao);
+        spool.submit(activity(1, 20, 110), activityDao);
+        spool.submit(activity(2, 5, 120), activityDao);
+        List<Activity> written = written(3);
+        assertEquals(10, written.get(0).getPosition());
+        assertEquals(20, written.get(1).getPosition());
+        assertEquals(Long.valueOf(2), written.get(2).getMovieId());
+        assertEquals(120, written.get(2).getTime());
+        assertEquals("user@mail.com", written.get(2).getUser().getEmail());
+        assertEquals(3, spool.getAppendedCount());
+        verify(fallback, never()).submit(any(Activity.class), any(ActivityDao.class));
+    }
+
+    @Test
+    public void testDuplicateNotAppended() throws IOException {
+        spool = open(64 * 1024);
+        spool.submit(activity(1, 10, 100), activityDao);
+        spool.submit(activity(1, 10, 100), activityDao);
+        spool.submit(activity(1, 20, 110), activityDao);
+        written(2);
+        assertEquals(2, spool.getAppendedCount());
+        assertEquals(1, spool.getDuplicateCount());
+    }
+
+    @Test
+    public void testPendingActivitiesRecoveredOnce() throws IOException, InterruptedException {
+        doThrow(new RuntimeException("database down")).when(activityDao).addActivity(any(Activity.class));
+        spool = new ActivitySpool(directory, 64 * 1024, 10, 60000, 100, 1000, 60000, pipeline, fallback);
+        spool.submit(activity(1, 10, 100), activityDao);
+        spool.submit(activity(1, 20, 110), activityDao);
+        verify(activityDao, timeout(2000).atLeastOnce()).addActivity(any(Activity.class));
+        spool.shutdown(1000);
+
+        ActivityDao recovered = mock(ActivityDao.class);
+        spool = open(64 * 1024);
+        spool.start(recovered);
+        ArgumentCaptor<Activity> captor = ArgumentCaptor.forClass(Activity.class);
+        verify(recovered, timeout(2000).times(2)).addActivity(captor.capture());
+        assertEquals(10, captor.getAllValues().get(0).getPosition());
+        assertEquals(20, captor.getAllValues().get(1).getPosition());
+        spool.shutdown(1000);
+
+        //the checkpoint keeps replayed activities from being written again
+        ActivityDao reopened = mock(ActivityDao.class);
+        spool = open(64 * 1024);
+        spool.start(reopened);
+        Thread.sleep(100);
+        verify(reopened, never()).addActivity(any(Activity.class));
+    }
+
+    @Test
+    public void testReplayedSegmentsDeleted() throws IOException {
+        spool = open(1024);
+        for (int i = 0; i < 50; i++)
+            spool.submit(activity(1, i, 100 + i), activityDao);
+        List<Activity> written = written(50);
+        for (int i = 0; i < 50; i++)
+            assertEquals(i, written.get(i).getPosition());
+        long deadline = System.currentTimeMillis() + 2000;
+        while (spool.getSegmentCount() > 1 && System.currentTimeMillis() < deadline)
+            Thread.yield();
+        assertEquals(1, spool.getSegmentCount());
+        //the checkpoint, the active segment and the next one, mapped ahead of time
+        assertTrue(directory.list().length <= 3);
+    }
+
+    @Test
+    public void testActivityGivenUpAfterMaxAttempts() throws IOException {
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                if (((Activity) invocation.getArguments()[0]).getPosition() == 10)
+                    throw new RuntimeException("constraint violation");
+                return null;
+            }
+        }).when(activityDao).addActivity(any(Activity.class));
+        spool = open(64 * 1024);
+        spool.submit(activity(1, 10, 100), activityDao);
+        spool.submit(activity(1, 20, 110), activityDao);
+        int failing = 0;
+        for (Activity written : written(4)) {
+            if (written.getPosition() == 10)
+                failing++;
+        }
+        assertEquals(3, failing);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (spool.getInFlightCount() > 0 && System.currentTimeMillis() < deadline)
+            Thread.yield();
+        assertEquals(0, spool.getInFlightCount());
+        assertEquals(1, spool.getFailedCount());
+        assertEquals(1, spool.getReplayedCount());
+    }
+
+    @Test
+    public void testReplayedThroughPipelineWorkers() throws IOException {
+        pipeline = new ActivityPipeline(100, 10, 5, 100, 2);
+        spool = open(64 * 1024);
+        for (int i = 0; i < 20; i++)
+            spool.submit(activity(1, i, 100 + i), activityDao);
+        written(20);
+        assertEquals(20, pipeline.getWrittenCount());
+        assertEquals(0, pipeline.getCallerWrittenCount());
+    }
+
+    @Test
+    public void testSerializableUserReplayedWhole() throws IOException {
+        spool = open(64 * 1024);
+        NamedUser user = new NamedUser();
+        user.setEmail("user@mail.com");
+        user.name = "User";
+        Activity activity = activity(1, 10, 100);
+        activity.setUser(user);
+        spool.submit(activity, activityDao);
+        User replayed = written(1).get(0).getUser();
+        assertTrue(replayed instanceof NamedUser);
+        assertEquals("User", ((NamedUser) replayed).name);
+        assertEquals("user@mail.com", replayed.getEmail());
+    }
+
+    @Test
+    public void testSubmitAfterShutdownGoesToFallback() throws IOException {
+        spool = open(64 * 1024);
+        spool.shutdown(1000);
+        Activity activity = activity(1, 10, 100);
+        spool.submit(activity, activityDao);
+        verify(fallback).submit(activity, activityDao);
+        assertEquals(1, spool.getFallbackCount());
+        spool = null;
+    }
+
+    static class NamedUser extends User implements Serializable {
+        String name;
+    }
+}
@@ -0,0 +1,223 @@
+import edu.umflix.model.Ad;
+import edu.umflix.persistence.AdDao;
+import model.exceptions.NoAdsException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import services.ads.AdIndex;
+import services.ads.AdRandom;
+import services.ads.AdWeighting;
+import services.ads.FrequencyCap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class AdIndexTest {
+
+    private AdDao adDao;
+    private Ad heavyAd;
+    private Ad lightAd;
+    private Ad otherMovieAd;
+
+    @Before
+    public void getAds() {
+        adDao = mock(AdDao.class);
+        heavyAd = mock(Ad.class);
+        lightAd = mock(Ad.class);
+        otherMovieAd = mock(Ad.class);
+        List<Ad> ads = new ArrayList<Ad>();
+        ads.add(heavyAd);
+        ads.add(lightAd);
+        ads.add(otherMovieAd);
+        when(adDao.getAllAds()).thenReturn(ads);
+    }
+
+    @Test
+    public void testAdListReadOnce() throws NoAdsException {
+        AdIndex adIndex = new AdIndex(60000, AdWeighting.UNIFORM);
+        for (int i = 0; i < 100; i++)
+            assertNotNull(adIndex.select((long) 1, "validTokenUser", adDao));
+        verify(adDao, times(1)).getAllAds();
+        assertEquals(3, adIndex.getAdCount());
+    }
+
+    @Test
+    public void testWeightedTargetedSelection() throws NoAdsException {
+        AdIndex adIndex = new AdIndex(60000, new AdWeighting() {
+            public double weightOf(Ad ad, Long movieId) {
+                if (ad == otherMovieAd)
+                    return movieId != null && movieId == 2 ? 1 : 0;
+                return ad == heavyAd ? 3 : 1;
+            }
+
+            public boolean isTargeted() {
+                return true;
+            }
+        });
+        int heavy = 0;
+        int light = 0;
+        for (int i = 0; i < 4000; i++) {
+            Ad ad = adIndex.select((long) 1, "validTokenUser", adDao);
+            assertNotSame(otherMovieAd, ad);
+            if (ad == heavyAd)
+                heavy++;
+            else
+                light++;
+        }
+        assertTrue(heavy > 2 * light);
+        boolean otherMovieAdShown = false;
+        for (int i = 0; i < 1000 && !otherMovieAdShown; i++)
+            otherMovieAdShown = adIndex.select((long) 2, "validTokenUser", adDao) == otherMovieAd;
+        assertTrue(otherMovieAdShown);
+    }
+
+    @Test
+    public void testColdLoadShared() throws Exception {
+        final List<Ad> ads = adDao.getAllAds();
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(adDao.getAllAds()).thenAnswer(new Answer<List<Ad>>() {
+            public List<Ad> answer(InvocationOnMock invocation) throws Throwable {
+                reading.countDown();
+                release.await();
+                return ads;
+            }
+        });
+        final AdIndex adIndex = new AdIndex(60000, AdWeighting.UNIFORM);
+        final AtomicInteger selected = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        if (adIndex.select((long) 1, "validTokenUser", adDao) != null)
+                            selected.incrementAndGet();
+                    } catch (NoAdsException e) {
+                        //counted as not selected
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+            if (i == 0)
+                assertTrue(reading.await(5, TimeUnit.SECONDS));
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (Thread thread : threads)
+            thread.join(5000);
+        assertEquals(8, selected.get());
+        verify(adDao, times(2)).getAllAds(); //once by the test itself, once by the index
+        assertEquals(1, adIndex.getRefreshCount());
+    }
+
+    @Test(expected = NoAdsException.class)
+    public void testNoAds() throws NoAdsException {
+        when(adDao.getAllAds()).thenReturn(new ArrayList<Ad>());
+        new AdIndex(60000, AdWeighting.UNIFORM).select((long) 1, "validTokenUser", adDao);
+    }
+
+    @Test
+    public void testInvalidate() throws NoAdsException {
+        AdIndex adIndex = new AdIndex(60000, AdWeighting.UNIFORM);
+        adIndex.select((long) 1, "validTokenUser", adDao);
+        adIndex.invalidate();
+        adIndex.select((long) 1, "validTokenUser", adDao);
+        verify(adDao, times(2)).getAllAds();
+    }
+
+    @Test
+    public void testStaleSnapshotRefreshedOnExecutor() throws NoAdsException {
+        final long[] now = {0};
+        final List<Runnable> refreshes = new ArrayList<Runnable>();
+        AdIndex adIndex = new AdIndex(60000, AdWeighting.UNIFORM, AdRandom.perThread(), FrequencyCap.NONE, 10,
+                new Executor() {
+                    public void execute(Runnable command) {
+                        refreshes.add(command);
+                    }
+                }) {
+            @Override
+            protected long currentTimeMillis() {
+                return now[0];
+            }
+        };
+        adIndex.select((long) 1, "validTokenUser", adDao);
+        now[0] = 60000;
+        adIndex.select((long) 1, "validTokenUser", adDao);
+        adIndex.select((long) 1, "validTokenUser", adDao);
+        assertEquals(1, refreshes.size());
+        verify(adDao, times(1)).getAllAds();
+        refreshes.get(0).run();
+        verify(adDao, times(2)).getAllAds();
+    }
+
+    @Test
+    public void testSeededSelectionReproducible() throws NoAdsException {
+        AdIndex first = new AdIndex(60000, AdWeighting.UNIFORM, AdRandom.seeded(42), FrequencyCap.NONE);
+        AdIndex second = new AdIndex(60000, AdWeighting.UNIFORM, AdRandom.seeded(42), FrequencyCap.NONE);
+        for (int i = 0; i < 50; i++)
+            assertSame(first.select((long) 1, "validTokenUser", adDao), second.select((long) 1, "validTokenUser", adDao));
+    }
+
+    @Test
+    public void testSeededSequenceFollowsThreadName() throws InterruptedException {
+        AdRandom first = AdRandom.seeded(42);
+        draw(first, "request-1");
+        double drawnFirst = draw(first, "request-0");
+        AdRandom second = AdRandom.seeded(42);
+        double drawnSecond = draw(second, "request-0");
+        assertEquals(drawnFirst, drawnSecond, 0);
+        assertNotEquals(drawnSecond, draw(second, "request-1"), 0);
+    }
+
+    private static double draw(final AdRandom random, String threadName) throws InterruptedException {
+        final double[] drawn = new double[1];
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                drawn[0] = random.nextDouble();
+            }
+        }, threadName);
+        thread.start();
+        thread.join();
+        return drawn[0];
+    }
+
+    @Test
+    public void testFrequencyCap() {
+        FrequencyCap frequencyCap = new FrequencyCap(2, 60000, 10);
+        assertTrue(frequencyCap.allows("user@mail.com", (long) 1));
+        frequencyCap.record("user@mail.com", (long) 1);
+        frequencyCap.record("user@mail.com", (long) 1);
+        assertFalse(frequencyCap.allows("user@mail.com", (long) 1));
+        assertTrue(frequencyCap.allows("user@mail.com", (long) 2));
+        assertTrue(frequencyCap.allows("admin@mail.com", (long) 1));
+    }
+
+    @Test
+    public void testFrequencyCapDropsOldestWindows() {
+        final long[] now = {1000};
+        FrequencyCap frequencyCap = new FrequencyCap(1, 60000, 10) {
+            @Override
+            protected long currentTimeMillis() {
+                return now[0];
+            }
+        };
+        for (int i = 0; i < 10; i++) {
+            frequencyCap.record("user" + i + "@mail.com", (long) 1);
+            now[0]++;
+        }
+        frequencyCap.record("late@mail.com", (long) 1);
+        assertEquals(10, frequencyCap.size());
+        assertTrue(frequencyCap.allows("user0@mail.com", (long) 1));
+        assertFalse(frequencyCap.allows("user9@mail.com", (long) 1));
+        assertFalse(frequencyCap.allows("late@mail.com", (long) 1));
+    }
+}
@@ -0,0 +1,174 @@
+import edu.umflix.authenticationhandler.exceptions.InvalidTokenException;
+import edu.umflix.model.Clip;
+import model.MovieManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import services.async.AsyncMovieManager;
+import services.async.AsyncResult;
+import services.async.Callback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class AsyncMovieManagerTest {
+
+    private MovieManager movieManager;
+    private ThreadPoolExecutor executor;
+    private ScheduledExecutorService timer;
+    private AsyncMovieManager asyncMovieManager;
+    private CountDownLatch release;
+
+    @Before
+    public void setUp() throws Exception {
+        movieManager = mock(MovieManager.class);
+        release = new CountDownLatch(1);
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1));
+        timer = Executors.newSingleThreadScheduledExecutor();
+        asyncMovieManager = new AsyncMovieManager(movieManager, executor, timer);
+        List<Clip> clips = new ArrayList<Clip>();
+        clips.add(new Clip());
+        when(movieManager.getMovie("validToken", (long) 1)).thenReturn(clips);
+        when(movieManager.getMovie("invalidToken", (long) 1)).thenThrow(new InvalidTokenException());
+        when(movieManager.getMovie("validToken", (long) 2)).thenAnswer(new Answer<List<Clip>>() {
+            public List<Clip> answer(InvocationOnMock invocation) throws Throwable {
+                release.await();
+                return new ArrayList<Clip>();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        executor.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    @Test
+    public void testResultDeliveredToCallback() throws Exception {
+        final CountDownLatch notified = new CountDownLatch(1);
+        final AtomicReference<List<Clip>> received = new AtomicReference<List<Clip>>();
+        AsyncResult<List<Clip>> result = asyncMovieManager.getMovie("validToken", (long) 1, 1000);
+        result.addCallback(new Callback<List<Clip>>() {
+            public void onSuccess(List<Clip> clips) {
+                received.set(clips);
+                notified.countDown();
+            }
+
+            public void onFailure(Throwable failure) {
+            }
+        });
+        assertEquals(1, result.get(5, TimeUnit.SECONDS).size());
+        assertTrue(notified.await(1, TimeUnit.SECONDS));
+        assertEquals(1, received.get().size());
+    }
+
+    @Test
+    public void testExceptionOfOperationDelivered() throws Exception {
+        AsyncResult<List<Clip>> result = asyncMovieManager.getMovie("invalidToken", (long) 1, 1000);
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InvalidTokenException);
+        }
+    }
+
+    @Test
+    public void testDeadlineExpires() throws Exception {
+        AsyncResult<List<Clip>> result = asyncMovieManager.getMovie("validToken", (long) 2, 50);
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        //counted by the timer once the waiter has been released
+        long deadline = System.currentTimeMillis() + 5000;
+        while (asyncMovieManager.getExpiredCount() == 0) {
+            assertTrue("the expired call was not counted", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals(1, asyncMovieManager.getExpiredCount());
+    }
+
+    @Test
+    public void testExpiryCallbackRunsOnExecutor() throws Exception {
+        final CountDownLatch notified = new CountDownLatch(1);
+        final AtomicReference<Throwable> received = new AtomicReference<Throwable>();
+        AsyncResult<List<Clip>> result = asyncMovieManager.getMovie("validToken", (long) 2, 50);
+        result.addCallback(new Callback<List<Clip>>() {
+            public void onSuccess(List<Clip> clips) {
+            }
+
+            public void onFailure(Throwable failure) {
+                received.set(failure);
+                notified.countDown();
+            }
+        });
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        //queued behind the call still holding the only executor thread, not run by the timer
+        assertFalse(notified.await(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(notified.await(5, TimeUnit.SECONDS));
+        assertTrue(received.get() instanceof TimeoutException);
+    }
+
+    @Test
+    public void testQueuedPastDeadlineNeverRuns() throws Exception {
+        AsyncResult<List<Clip>> blocking = asyncMovieManager.getMovie("validToken", (long) 2, 5000);
+        AsyncResult<List<Clip>> queued = asyncMovieManager.getMovie("validToken", (long) 1, 50);
+        try {
+            queued.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        release.countDown();
+        blocking.get(5, TimeUnit.SECONDS);
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+        verify(movieManager, never()).getMovie("validToken", (long) 1);
+    }
+
+    @Test
+    public void testRejectedWhenSaturated() throws Exception {
+        asyncMovieManager.getMovie("validToken", (long) 2, 5000);
+        asyncMovieManager.getMovie("validToken", (long) 2, 5000);
+        AsyncResult<List<Clip>> rejected = asyncMovieManager.getMovie("validToken", (long) 1, 5000);
+        assertTrue(rejected.isDone());
+        try {
+            rejected.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(1, asyncMovieManager.getRejectedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDeadlineMustBePositive() {
+        asyncMovieManager.getMovie("validToken", (long) 1, 0);
+    }
+}
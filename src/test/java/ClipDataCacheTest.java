@@ -0,0 +1,194 @@
+import edu.umflix.clipstorage.ClipStorage;
+import edu.umflix.model.ClipData;
+import org.junit.Before;
+import org.junit.Test;
+import model.ClipChunk;
+import services.cache.ClipDataCache;
+import services.cache.ClipPayload;
+import services.cache.OffHeapClipStore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ClipDataCacheTest {
+
+    private ClipStorage clipStorage;
+
+    @Before
+    public void getStorage() {
+        clipStorage = mock(ClipStorage.class);
+        for (long clipId = 1; clipId <= 5; clipId++) {
+            ClipData clipData = mock(ClipData.class);
+            when(clipData.getBytes()).thenReturn(new byte[clipId == 5 ? 2000 : 400]);
+            when(clipStorage.getClipDataByClipId(clipId)).thenReturn(clipData);
+        }
+    }
+
+    @Test
+    public void testReadThrough() {
+        ClipDataCache cache = new ClipDataCache(1000, 1000);
+        ClipData clipData = cache.get((long) 1, clipStorage, false);
+        assertSame(clipData, cache.get((long) 1, clipStorage, false));
+        verify(clipStorage, times(1)).getClipDataByClipId((long) 1);
+        assertEquals(0.5, cache.getHitRatio(), 0.001);
+        assertEquals(400, cache.getBytesServed());
+    }
+
+    @Test
+    public void testBoundedByBytes() {
+        ClipDataCache cache = new ClipDataCache(1000, 1000);
+        cache.get((long) 1, clipStorage, false);
+        cache.get((long) 1, clipStorage, false);
+        cache.get((long) 2, clipStorage, false);
+        cache.get((long) 3, clipStorage, false);
+        assertTrue(cache.getUsedBytes() <= 1000);
+        assertEquals(1, cache.getEvictionCount());
+        cache.get((long) 1, clipStorage, false);
+        verify(clipStorage, times(1)).getClipDataByClipId((long) 1); //the most used clip survives
+    }
+
+    @Test
+    public void testPinnedNeverEvicted() {
+        ClipDataCache cache = new ClipDataCache(1000, 1000);
+        cache.get((long) 1, clipStorage, true);
+        for (long clipId = 2; clipId <= 4; clipId++) {
+            cache.get(clipId, clipStorage, false);
+            cache.get(clipId, clipStorage, false);
+        }
+        cache.get((long) 1, clipStorage, false);
+        verify(clipStorage, times(1)).getClipDataByClipId((long) 1);
+    }
+
+    @Test
+    public void testPinnedBytesBounded() {
+        ClipDataCache cache = new ClipDataCache(1000, 1000, 500, null, 1000);
+        cache.get((long) 1, clipStorage, true);
+        cache.get((long) 2, clipStorage, true);
+        assertEquals(400, cache.getPinnedBytes());
+        assertFalse(cache.pin((long) 2));
+        cache.retainPinned(Arrays.asList((long) 2));
+        assertEquals(0, cache.getPinnedBytes());
+        assertTrue(cache.pin((long) 2));
+        assertEquals(400, cache.getPinnedBytes());
+    }
+
+    @Test
+    public void testLargeClipNotCached() {
+        ClipDataCache cache = new ClipDataCache(1000, 1000);
+        cache.get((long) 5, clipStorage, false);
+        cache.get((long) 5, clipStorage, false);
+        verify(clipStorage, times(2)).getClipDataByClipId((long) 5);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLargeClipReadOnceForRanges() {
+        ClipDataCache cache = new ClipDataCache(8000, 1000);
+        for (long offset = 0; offset < 2000; offset += 500)
+            assertEquals(500, cache.getChunk((long) 5, clipStorage, offset, 500).getBytes().length);
+        verify(clipStorage, times(1)).getClipDataByClipId((long) 5);
+        assertEquals(0, cache.size());
+        assertEquals(2000, cache.getOversizedBytes());
+        assertEquals(2000, cache.getUsedBytes());
+        cache.invalidate((long) 5);
+        assertEquals(0, cache.getUsedBytes());
+    }
+
+    @Test
+    public void testLargeClipBeyondBudgetNotHeld() {
+        ClipDataCache cache = new ClipDataCache(4000, 1000);
+        for (long offset = 0; offset < 2000; offset += 500)
+            cache.getChunk((long) 5, clipStorage, offset, 500);
+        verify(clipStorage, times(4)).getClipDataByClipId((long) 5);
+        assertEquals(0, cache.getOversizedBytes());
+    }
+
+    @Test
+    public void testOffHeapPayload() {
+        ClipData stored = new ClipData();
+        stored.setBytes(new byte[]{1, 2, 3});
+        when(clipStorage.getClipDataByClipId((long) 6)).thenReturn(stored);
+        OffHeapClipStore offHeapStore = new OffHeapClipStore(1000);
+        ClipDataCache cache = new ClipDataCache(1000, 1000, offHeapStore);
+        cache.get((long) 6, clipStorage, false);
+        ClipData cached = cache.get((long) 6, clipStorage, false);
+        assertNotSame(stored, cached);
+        assertTrue(Arrays.equals(new byte[]{1, 2, 3}, cached.getBytes()));
+        assertEquals(3, offHeapStore.getUsedBytes());
+        cache.invalidate((long) 6);
+        assertEquals(0, offHeapStore.getUsedBytes());
+    }
+
+    @Test
+    public void testOffHeapBlockFreedAfterLastRelease() {
+        OffHeapClipStore offHeapStore = new OffHeapClipStore(10);
+        OffHeapClipStore.Block block = offHeapStore.store(new byte[]{1, 2, 3, 4});
+        assertNull(offHeapStore.store(new byte[8]));
+        assertTrue(block.retain());
+        block.release();
+        assertEquals(4, offHeapStore.getUsedBytes());
+        block.release();
+        assertEquals(0, offHeapStore.getUsedBytes());
+        assertFalse(block.retain());
+    }
+
+    @Test
+    public void testOffHeapChunk() {
+        ClipData stored = new ClipData();
+        stored.setBytes(new byte[]{1, 2, 3, 4, 5, 6});
+        when(clipStorage.getClipDataByClipId((long) 6)).thenReturn(stored);
+        ClipDataCache cache = new ClipDataCache(1000, 1000, new OffHeapClipStore(1000));
+        cache.get((long) 6, clipStorage, false);
+        ClipChunk chunk = cache.getChunk((long) 6, clipStorage, 2, 2);
+        assertTrue(Arrays.equals(new byte[]{3, 4}, chunk.getBytes()));
+        assertEquals(6, chunk.getTotalLength());
+        assertEquals(0, cache.getChunk((long) 6, clipStorage, 10, 2).getBytes().length);
+        verify(clipStorage, times(1)).getClipDataByClipId((long) 6);
+    }
+
+    @Test
+    public void testOffHeapPayloadReadInPlace() throws IOException {
+        ClipData stored = new ClipData();
+        stored.setBytes(new byte[]{1, 2, 3, 4});
+        when(clipStorage.getClipDataByClipId((long) 6)).thenReturn(stored);
+        OffHeapClipStore offHeapStore = new OffHeapClipStore(1000);
+        ClipDataCache cache = new ClipDataCache(1000, 1000, offHeapStore);
+        cache.get((long) 6, clipStorage, false);
+        ClipPayload payload = cache.getPayload((long) 6, clipStorage, false);
+        assertEquals(4, payload.getLength());
+        InputStream in = payload.getInputStream();
+        cache.invalidate((long) 6);
+        //the open stream still holds the block
+        assertEquals(4, offHeapStore.getUsedBytes());
+        assertTrue(Arrays.equals(new byte[]{1, 2, 3, 4}, readFully(in)));
+        in.close();
+        assertEquals(0, offHeapStore.getUsedBytes());
+        //a stream opened after the block was freed reads the clip again
+        assertTrue(Arrays.equals(new byte[]{1, 2, 3, 4}, readFully(payload.getInputStream())));
+        verify(clipStorage, times(2)).getClipDataByClipId((long) 6);
+    }
+
+    @Test
+    public void testPayloadOfMissingClip() {
+        assertNull(new ClipDataCache(1000, 1000).getPayload((long) 9, clipStorage, false));
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3];
+        int read;
+        while ((read = in.read(buffer)) > 0)
+            out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testOffHeapBlocksFreedExplicitly() {
+        assertTrue(OffHeapClipStore.isFreedExplicitly());
+    }
+}
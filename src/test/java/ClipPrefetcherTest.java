@@ -0,0 +1,121 @@
+import edu.umflix.clipstorage.ClipStorage;
+import edu.umflix.model.Clip;
+import edu.umflix.model.ClipData;
+import org.junit.Before;
+import org.junit.Test;
+import services.cache.ClipDataCache;
+import services.cache.ClipPrefetcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ClipPrefetcherTest {
+
+    private static final Executor INLINE = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private ClipStorage clipStorage;
+    private List<Clip> clips;
+    private ClipDataCache cache;
+    private long now;
+
+    @Before
+    public void getStorage() {
+        clipStorage = mock(ClipStorage.class);
+        clips = new ArrayList<Clip>();
+        for (long clipId = 1; clipId <= 5; clipId++) {
+            Clip clip = mock(Clip.class);
+            when(clip.getId()).thenReturn(clipId);
+            clips.add(clip);
+            ClipData clipData = mock(ClipData.class);
+            when(clipData.getBytes()).thenReturn(new byte[100]);
+            when(clipStorage.getClipDataByClipId(clipId)).thenReturn(clipData);
+        }
+        cache = new ClipDataCache(10000, 10000);
+    }
+
+    private ClipPrefetcher prefetcher(int lookahead, long maxOutstandingBytes) {
+        return new ClipPrefetcher(cache, INLINE, lookahead, 1000, maxOutstandingBytes, 10) {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void testPrefetchesAheadOfPlayer() {
+        ClipPrefetcher prefetcher = prefetcher(2, 10000);
+        prefetcher.movieOpened("token", (long) 1, clips, clipStorage);
+        verify(clipStorage, times(1)).getClipDataByClipId((long) 1);
+        verify(clipStorage, times(1)).getClipDataByClipId((long) 2);
+        verify(clipStorage, never()).getClipDataByClipId((long) 3);
+
+        cache.get((long) 1, clipStorage, false);
+        prefetcher.clipRequested("token", (long) 1, clipStorage);
+        verify(clipStorage, times(1)).getClipDataByClipId((long) 1);
+        verify(clipStorage, times(1)).getClipDataByClipId((long) 3);
+        verify(clipStorage, never()).getClipDataByClipId((long) 4);
+        assertEquals(3, prefetcher.getPrefetchedCount());
+        assertEquals(1, prefetcher.getUsedCount());
+        assertEquals(200, prefetcher.getOutstandingBytes());
+    }
+
+    @Test
+    public void testDisabled() {
+        ClipPrefetcher prefetcher = prefetcher(0, 10000);
+        prefetcher.movieOpened("token", (long) 1, clips, clipStorage);
+        prefetcher.clipRequested("token", (long) 1, clipStorage);
+        verifyZeroInteractions(clipStorage);
+        assertEquals(0, prefetcher.getSessionCount());
+    }
+
+    @Test
+    public void testBoundedByBudget() {
+        ClipPrefetcher prefetcher = prefetcher(5, 150);
+        prefetcher.movieOpened("token", (long) 1, clips, clipStorage);
+        assertEquals(2, prefetcher.getPrefetchedCount());
+        verify(clipStorage, never()).getClipDataByClipId((long) 3);
+
+        prefetcher.clipRequested("token", (long) 1, clipStorage);
+        prefetcher.clipRequested("token", (long) 2, clipStorage);
+        assertEquals(0, prefetcher.getOutstandingBytes());
+    }
+
+    @Test
+    public void testIdleSessionStops() {
+        ClipPrefetcher prefetcher = prefetcher(1, 10000);
+        prefetcher.movieOpened("token", (long) 1, clips, clipStorage);
+        now = 500;
+        prefetcher.activityReported("token", (long) 1);
+        now = 1200;
+        prefetcher.clipRequested("token", (long) 1, clipStorage); //kept alive by the activity
+        verify(clipStorage, times(1)).getClipDataByClipId((long) 2);
+
+        now = 5000;
+        prefetcher.sweep();
+        assertEquals(0, prefetcher.getSessionCount());
+        assertEquals(0, prefetcher.getOutstandingBytes());
+        prefetcher.clipRequested("token", (long) 2, clipStorage);
+        verify(clipStorage, never()).getClipDataByClipId((long) 3);
+    }
+
+    @Test
+    public void testActivityKeepsGrantSessionAlive() {
+        ClipPrefetcher prefetcher = prefetcher(1, 10000);
+        prefetcher.movieOpened("token", "grant", (long) 1, clips, clipStorage);
+        now = 500;
+        prefetcher.activityReported("token", (long) 1);
+        now = 1200;
+        prefetcher.clipRequested("grant", (long) 1, clipStorage); //kept alive by the activity
+        verify(clipStorage, times(1)).getClipDataByClipId((long) 2);
+        assertEquals(1, prefetcher.getSessionCount());
+    }
+}
@@ -0,0 +1,158 @@
+import org.junit.Test;
+import services.metrics.Metric;
+import services.metrics.MetricsRegistry;
+import services.resilience.CircuitBreaker;
+import services.resilience.Deadline;
+import services.resilience.DependencyUnavailableException;
+import services.resilience.Guard;
+
+import static org.junit.Assert.*;
+
+public class GuardTest {
+
+    private static final long FAST = 1000000L;
+    private static final long SLOW = 200000000L;
+
+    private static class ClockedBreaker extends CircuitBreaker {
+        private long now = 1000;
+
+        private ClockedBreaker() {
+            super(10, 4, 50, 100, 50, 5000, 2);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private final Metric metric = new MetricsRegistry(null).dependency("Dependency.call");
+
+    @Test
+    public void testOpensOnFailureRate() {
+        ClockedBreaker breaker = new ClockedBreaker();
+        for (int i = 0; i < 3; i++) {
+            CircuitBreaker.Admission call = breaker.allow();
+            assertNotNull(call);
+            breaker.record(call, FAST, i == 0);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.record(breaker.allow(), FAST, true);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertNull(breaker.allow());
+        assertEquals(1, breaker.getOpenCount());
+    }
+
+    @Test
+    public void testOpensOnSlowCalls() {
+        ClockedBreaker breaker = new ClockedBreaker();
+        for (int i = 0; i < 4; i++)
+            breaker.record(breaker.allow(), i % 2 == 0 ? SLOW : FAST, false);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testProbesCloseOrReopen() {
+        ClockedBreaker breaker = new ClockedBreaker();
+        for (int i = 0; i < 4; i++)
+            breaker.record(breaker.allow(), FAST, true);
+        breaker.now += 5000;
+        CircuitBreaker.Admission first = breaker.allow();
+        assertNotNull(first);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        CircuitBreaker.Admission second = breaker.allow();
+        assertNotNull(second);
+        assertNull(breaker.allow());
+        breaker.record(first, FAST, false);
+        breaker.record(second, SLOW, false);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        breaker.now += 5000;
+        first = breaker.allow();
+        second = breaker.allow();
+        breaker.record(first, FAST, false);
+        breaker.record(second, FAST, false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testOnlyProbesDecideHalfOpenCircuit() {
+        ClockedBreaker breaker = new ClockedBreaker();
+        CircuitBreaker.Admission lingering = breaker.allow();
+        for (int i = 0; i < 4; i++)
+            breaker.record(breaker.allow(), FAST, true);
+        breaker.now += 5000;
+        CircuitBreaker.Admission probe = breaker.allow();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        //admitted while closed, it is no probe whatever its outcome
+        breaker.record(lingering, SLOW, true);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.record(probe, FAST, false);
+        breaker.record(breaker.allow(), FAST, false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(1, breaker.getOpenCount());
+    }
+
+    @Test
+    public void testRejectsWhenOpen() {
+        ClockedBreaker breaker = new ClockedBreaker();
+        Guard guard = new Guard("Dependency", 10, 0, breaker);
+        for (int i = 0; i < 4; i++) {
+            Guard.Permit permit = guard.enter(metric);
+            permit.failed(new IllegalStateException());
+            permit.release();
+        }
+        assertFalse(guard.isAvailable());
+        try {
+            guard.enter(metric);
+            fail();
+        } catch (DependencyUnavailableException e) {
+            assertEquals("Dependency", e.getDependency());
+        }
+        assertEquals(1, guard.getRejectedCount());
+        assertEquals(Long.valueOf(4), metric.getErrorsByType().get("IllegalStateException"));
+        assertEquals(Long.valueOf(1), metric.getErrorsByType().get("DependencyUnavailableException"));
+    }
+
+    @Test
+    public void testBulkheadBoundsCallsInFlight() {
+        Guard guard = new Guard("Dependency", 1, 0, new ClockedBreaker());
+        Guard.Permit permit = guard.enter(metric);
+        assertEquals(1, guard.getInFlight());
+        try {
+            guard.enter(metric);
+            fail();
+        } catch (DependencyUnavailableException e) {
+            assertEquals(1, guard.getRejectedCount());
+        }
+        permit.release();
+        guard.enter(metric).release();
+        assertEquals(0, guard.getInFlight());
+    }
+
+    @Test
+    public void testExpiredDeadlineNotCalled() {
+        Guard guard = new Guard("Dependency", 1, 0, new ClockedBreaker());
+        Long previous = Deadline.begin(0);
+        try {
+            guard.enter(metric);
+            fail();
+        } catch (DependencyUnavailableException e) {
+            assertEquals(0, guard.getInFlight());
+        } finally {
+            Deadline.end(previous);
+        }
+        assertFalse(Deadline.isExpired());
+        assertEquals(Long.MAX_VALUE, Deadline.remainingMillis());
+    }
+
+    @Test
+    public void testDeadlineNeverExtended() {
+        Long outer = Deadline.begin(100);
+        Long inner = Deadline.begin(60000);
+        assertTrue(Deadline.remainingMillis() <= 100);
+        Deadline.end(inner);
+        Deadline.end(outer);
+        assertEquals(Long.MAX_VALUE, Deadline.remainingMillis());
+    }
+}
@@ -0,0 +1,69 @@
+import org.junit.Test;
+import services.stats.HyperLogLog;
+import services.stats.StripedCounter;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class HyperLogLogTest {
+
+    @Test
+    public void testSmallCardinalityExact() {
+        HyperLogLog sketch = new HyperLogLog(14);
+        assertEquals(0, sketch.estimate());
+        for (int i = 0; i < 10; i++) {
+            sketch.offer(HyperLogLog.hash("user" + i + "@mail.com"));
+            sketch.offer(HyperLogLog.hash("user" + i + "@mail.com"));
+        }
+        assertEquals(10, sketch.estimate());
+    }
+
+    @Test
+    public void testLargeCardinalityWithinError() {
+        HyperLogLog sketch = new HyperLogLog(14);
+        for (int i = 0; i < 200000; i++)
+            sketch.offer(HyperLogLog.hash("user" + i + "@mail.com"));
+        //standard error is below 1% at this precision
+        assertEquals(200000, sketch.estimate(), 200000 * 0.03);
+    }
+
+    @Test
+    public void testMergeIsUnion() {
+        HyperLogLog first = new HyperLogLog(12);
+        HyperLogLog second = new HyperLogLog(12);
+        for (int i = 0; i < 30000; i++)
+            first.offer(HyperLogLog.hash(i));
+        for (int i = 20000; i < 50000; i++)
+            second.offer(HyperLogLog.hash(i));
+        first.merge(second);
+        assertEquals(50000, first.estimate(), 50000 * 0.06);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeOfDifferentPrecision() {
+        new HyperLogLog(12).merge(new HyperLogLog(10));
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws InterruptedException {
+        final HyperLogLog sketch = new HyperLogLog(14);
+        final StripedCounter counter = new StripedCounter();
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 25000; i++) {
+                        sketch.offer(HyperLogLog.hash(thread * 25000L + i));
+                        counter.increment();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals(100000, counter.sum());
+        assertEquals(100000, sketch.estimate(), 100000 * 0.03);
+    }
+}
@@ -0,0 +1,92 @@
+import org.junit.Before;
+import org.junit.Test;
+import services.cache.LruCache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LruCacheTest {
+
+    private long now;
+    private LruCache<Long, String> cache;
+    private List<String> removed;
+
+    @Before
+    public void getCache() {
+        now = 1000;
+        removed = new ArrayList<String>();
+        cache = new LruCache<Long, String>(2, 1) {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+
+            @Override
+            protected void onRemoval(Long key, String value) {
+                removed.add(value);
+            }
+        };
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        cache.put((long) 1, "one", 100);
+        cache.put((long) 2, "two", 100);
+        assertEquals("one", cache.get((long) 1));
+        cache.put((long) 3, "three", 100);
+        assertEquals("one", cache.get((long) 1));
+        assertNull(cache.get((long) 2));
+        assertEquals("three", cache.get((long) 3));
+    }
+
+    @Test
+    public void testEntryExpires() {
+        cache.put((long) 1, "one", 100);
+        now += 100;
+        assertNull(cache.get((long) 1));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testInvalidate() {
+        cache.put((long) 1, "one", 100);
+        cache.invalidate((long) 1);
+        assertNull(cache.get((long) 1));
+    }
+
+    @Test
+    public void testPutIfAbsentKeepsLiveEntry() {
+        assertNull(cache.putIfAbsent((long) 1, "one", 100));
+        assertEquals("one", cache.putIfAbsent((long) 1, "uno", 100));
+        now += 100;
+        assertNull(cache.putIfAbsent((long) 1, "uno", 100));
+        assertEquals("uno", cache.get((long) 1));
+    }
+
+    @Test
+    public void testTouchRestartsTimeToLive() {
+        cache.put((long) 1, "one", 100);
+        now += 60;
+        assertTrue(cache.touch((long) 1, 100));
+        now += 60;
+        assertEquals("one", cache.get((long) 1));
+        now += 100;
+        assertFalse(cache.touch((long) 1, 100));
+    }
+
+    @Test
+    public void testEvictedAndExpiredEntriesReported() {
+        cache.put((long) 1, "one", 100);
+        cache.put((long) 2, "two", 50);
+        cache.put((long) 3, "three", 100);
+        assertEquals(1, removed.size());
+        assertEquals("one", removed.get(0));
+        now += 50;
+        assertEquals(1, cache.purgeExpired());
+        assertEquals("two", removed.get(1));
+        cache.invalidate((long) 3);
+        assertEquals(2, removed.size());
+    }
+}
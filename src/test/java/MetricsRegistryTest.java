@@ -0,0 +1,95 @@
+import org.junit.Test;
+import services.metrics.Gauge;
+import services.metrics.LatencyHistogram;
+import services.metrics.Metric;
+import services.metrics.MetricsRegistry;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 10000; micros++)
+            histogram.record(micros * 1000);
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000, histogram.getMaxMicros());
+        assertEquals(5000.5, histogram.getMeanMicros(), 0.001);
+        assertEquals(5000, histogram.getValueAtPercentile(50), 5000 * 0.02);
+        assertEquals(9900, histogram.getValueAtPercentile(99), 9900 * 0.02);
+        assertEquals(10000, histogram.getValueAtPercentile(100));
+        assertEquals(0, new LatencyHistogram().getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testSmallValuesExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3000);
+        histogram.record(100000);
+        assertEquals(3, histogram.getValueAtPercentile(50));
+        assertEquals(100, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testRegisteredWithJmx() throws Exception {
+        MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+        MetricsRegistry registry = new MetricsRegistry(mBeanServer);
+        Metric metric = registry.operation("getMovie");
+        assertSame(metric, registry.operation("getMovie"));
+        metric.record(2000000);
+        metric.error(new IllegalArgumentException());
+        ObjectName name = new ObjectName("movie-manager:type=Operation,name=\"getMovie\"");
+        assertEquals(1L, mBeanServer.getAttribute(name, "Count"));
+        assertEquals(1L, mBeanServer.getAttribute(name, "ErrorCount"));
+        registry.unregister();
+        assertFalse(mBeanServer.isRegistered(name));
+    }
+
+    @Test
+    public void testTextFormat() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry(null);
+        Metric metric = registry.dependency("MovieDao.getMovieById");
+        metric.record(1500000);
+        metric.error(new IllegalStateException());
+        StringWriter text = new StringWriter();
+        registry.writeText(text);
+        String scrape = text.toString();
+        assertTrue(scrape.contains("# TYPE moviemanager_dependency_latency_seconds summary\n"));
+        assertTrue(scrape.contains("moviemanager_dependency_latency_seconds_count{call=\"MovieDao.getMovieById\"} 1\n"));
+        assertTrue(scrape.contains("moviemanager_dependency_errors_total{call=\"MovieDao.getMovieById\",type=\"IllegalStateException\"} 1\n"));
+        assertFalse(scrape.contains("moviemanager_operation"));
+    }
+
+    @Test
+    public void testGaugesPublished() throws Exception {
+        MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+        MetricsRegistry registry = new MetricsRegistry(mBeanServer);
+        final long[] depth = {3};
+        registry.gauge("activity_pipeline_queue_depth", new Gauge() {
+            public double getValue() {
+                return depth[0];
+            }
+        });
+        registry.counter("clip_cache_hits_total", new Gauge() {
+            public double getValue() {
+                return 7;
+            }
+        });
+        depth[0] = 5;
+        StringWriter text = new StringWriter();
+        registry.writeText(text);
+        String scrape = text.toString();
+        assertTrue(scrape.contains("# TYPE moviemanager_activity_pipeline_queue_depth gauge\nmoviemanager_activity_pipeline_queue_depth 5.0\n"));
+        assertTrue(scrape.contains("# TYPE moviemanager_clip_cache_hits_total counter\nmoviemanager_clip_cache_hits_total 7.0\n"));
+        ObjectName name = new ObjectName("movie-manager:type=Gauge,name=\"activity_pipeline_queue_depth\"");
+        assertEquals(5.0, mBeanServer.getAttribute(name, "Value"));
+        registry.unregister();
+        assertFalse(mBeanServer.isRegistered(name));
+    }
+}
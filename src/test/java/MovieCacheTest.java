@@ -0,0 +1,84 @@
+import edu.umflix.exceptions.MovieNotFoundException;
+import edu.umflix.model.Clip;
+import edu.umflix.model.Movie;
+import edu.umflix.persistence.MovieDao;
+import org.junit.Before;
+import org.junit.Test;
+import services.cache.CachedMovie;
+import services.cache.MovieCache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class MovieCacheTest {
+
+    private MovieDao movieDao;
+    private Movie movie;
+    private MovieCache movieCache;
+
+    @Before
+    public void getCache() throws MovieNotFoundException {
+        movieDao = mock(MovieDao.class);
+        movie = mock(Movie.class);
+        when(movie.getId()).thenReturn((long) 1);
+        when(movie.isEnabled()).thenReturn(true);
+        when(movieDao.getMovieById((long) 1)).thenReturn(movie);
+        when(movieDao.getMovieById((long) 2)).thenThrow(MovieNotFoundException.class);
+        movieCache = new MovieCache(10, 60000, 60000);
+    }
+
+    @Test
+    public void testReadThrough() throws MovieNotFoundException {
+        CachedMovie cached = movieCache.getMovie((long) 1, movieDao);
+        assertEquals(Long.valueOf(1), cached.getId());
+        assertTrue(cached.isEnabled());
+        assertSame(cached, movieCache.getMovie((long) 1, movieDao));
+        verify(movieDao, times(1)).getMovieById((long) 1);
+        assertEquals(1, movieCache.getHitCount());
+        assertEquals(1, movieCache.getMissCount());
+    }
+
+    @Test
+    public void testNotFoundCached() throws MovieNotFoundException {
+        for (int i = 0; i < 2; i++) {
+            try {
+                movieCache.getMovie((long) 2, movieDao);
+                fail();
+            } catch (MovieNotFoundException e) {
+                //expected
+            }
+        }
+        verify(movieDao, times(1)).getMovieById((long) 2);
+    }
+
+    @Test
+    public void testInvalidate() throws MovieNotFoundException {
+        movieCache.getMovie((long) 1, movieDao);
+        movieCache.invalidate((long) 1);
+        movieCache.getMovie((long) 1, movieDao);
+        verify(movieDao, times(2)).getMovieById((long) 1);
+    }
+
+    @Test
+    public void testClipListIsReadOnly() throws MovieNotFoundException {
+        Movie withClips = new Movie();
+        List<Clip> clips = new ArrayList<Clip>();
+        clips.add(new Clip());
+        withClips.setClips(clips);
+        when(movieDao.getMovieById((long) 3)).thenReturn(withClips);
+        List<Clip> cached = movieCache.getMovie((long) 3, movieDao).getClips();
+        //the entity read through the dao is left as it was
+        assertSame(clips, withClips.getClips());
+        clips.clear();
+        assertEquals(1, cached.size());
+        try {
+            cached.clear();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            //expected
+        }
+    }
+}
@@ -13,14 +13,39 @@ import edu.umflix.persistence.AdDao;
 import edu.umflix.persistence.MovieDao;
 import edu.umflix.persistence.RoleDao;
 
+import model.ClipChunk;
+import model.ClipDataResult;
+import model.ClipStream;
+import model.ItemError;
+import model.MovieResult;
+import model.PlaybackGrant;
+import model.ResumePosition;
 import model.exceptions.NoAdsException;
 import model.exceptions.UserNotAllowedException;
 import model.exceptions.ValuesInActivityException;
 import org.junit.Before;
 import org.junit.Test;
 import services.MovieManagerImpl;
-
+import services.activity.ActivityPipeline;
+import services.activity.ResumeIndex;
+import services.ads.AdIndex;
+import services.ads.AdWeighting;
+import services.auth.PlaybackGrants;
+import services.auth.RoleResolver;
+import services.auth.TokenValidationCache;
+import services.resilience.Deadline;
+import services.stats.ViewingStats;
+import services.cache.ClipDataCache;
+import services.cache.ClipPrefetcher;
+import services.cache.MovieCache;
+import services.trace.Tracer;
+
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
@@ -34,6 +59,7 @@ public class MovieManagerImplTest {
     private AuthenticationHandler authenticationHandler;
     private ClipStorage clipStorage;
     private AdDao adDao;
+    private ViewingStats viewingStats;
 
     @Before
     public void getMockManager() throws InvalidTokenException, RoleNotFoundException, MovieNotFoundException {
@@ -109,6 +135,21 @@ public class MovieManagerImplTest {
         movieManager.setMovieDao(movieDao);
         movieManager.setClipStorage(clipStorage);
         movieManager.setAdDao(adDao);
+        movieManager.setTokenValidationCache(new TokenValidationCache(100, 60000, 60000));
+        movieManager.setRoleResolver(new RoleResolver(100, 60000));
+        movieManager.setMovieCache(new MovieCache(100, 60000, 60000));
+        movieManager.setActivitySink(new ActivityPipeline(100, 10, 0, 0, 0));
+        movieManager.setAdIndex(new AdIndex(60000, AdWeighting.UNIFORM));
+        ClipDataCache clipDataCache = new ClipDataCache(1024, 1024);
+        movieManager.setClipDataCache(clipDataCache);
+        movieManager.setClipPrefetcher(new ClipPrefetcher(clipDataCache, Executors.newSingleThreadExecutor(), 0, 60000, 1024, 100));
+        movieManager.setBatchExecutor(Executors.newFixedThreadPool(2));
+        movieManager.setTracer(new Tracer(0, 1));
+        movieManager.setPlaybackGrants(new PlaybackGrants(
+                Collections.singletonMap("k1", "0123456789abcdef".getBytes()), 60000));
+        movieManager.setResumeIndex(new ResumeIndex(100, 4));
+        viewingStats = new ViewingStats(60000, 10, 120000, 10, 8, 100);
+        movieManager.setViewingStats(viewingStats);
     }
 
     //getMovie tests
@@ -116,31 +157,31 @@ public class MovieManagerImplTest {
     @Test
     public void testValidUserToken() throws InvalidTokenException, IllegalArgumentException, MovieNotFoundException, UserNotAllowedException {
         String userToken = "validTokenUser";
-        assertArrayEquals(((ArrayList<Clip>) movieManager.getMovie(userToken, (long) 1)).toArray(), new ArrayList<Clip>().toArray());
+        assertArrayEquals(movieManager.getMovie(userToken, (long) 1).toArray(), new ArrayList<Clip>().toArray());
     }
 
     @Test
     public void testValidAdminToken() throws InvalidTokenException, IllegalArgumentException, MovieNotFoundException, UserNotAllowedException {
         String userToken = "validTokenAdmin";
-        assertArrayEquals(((ArrayList<Clip>) movieManager.getMovie(userToken, (long) 1)).toArray(), new ArrayList<Clip>().toArray());
+        assertArrayEquals(movieManager.getMovie(userToken, (long) 1).toArray(), new ArrayList<Clip>().toArray());
     }
 
     @Test
     public void testValidReviewerToken() throws InvalidTokenException, IllegalArgumentException, MovieNotFoundException, UserNotAllowedException {
         String userToken = "validTokenReviewer";
-        assertArrayEquals(((ArrayList<Clip>) movieManager.getMovie(userToken, (long) 1)).toArray(), new ArrayList<Clip>().toArray());
+        assertArrayEquals(movieManager.getMovie(userToken, (long) 1).toArray(), new ArrayList<Clip>().toArray());
     }
 
     @Test
     public void testValidMovieProviderToken() throws InvalidTokenException, IllegalArgumentException, MovieNotFoundException, UserNotAllowedException {
         String userToken = "validTokenMovieProvider";
-        assertArrayEquals(((ArrayList<Clip>) movieManager.getMovie(userToken, (long) 1)).toArray(), new ArrayList<Clip>().toArray());
+        assertArrayEquals(movieManager.getMovie(userToken, (long) 1).toArray(), new ArrayList<Clip>().toArray());
     }
 
     @Test
     public void testValidAdProviderToken() throws InvalidTokenException, IllegalArgumentException, MovieNotFoundException, UserNotAllowedException {
         String userToken = "validTokenAdProvider";
-        assertArrayEquals(((ArrayList<Clip>) movieManager.getMovie(userToken, (long) 1)).toArray(), new ArrayList<Clip>().toArray());
+        assertArrayEquals(movieManager.getMovie(userToken, (long) 1).toArray(), new ArrayList<Clip>().toArray());
     }
 
     @Test(expected = InvalidTokenException.class)
@@ -182,13 +223,97 @@ public class MovieManagerImplTest {
     @Test
     public void testReviewerAllowed() throws InvalidTokenException, IllegalArgumentException, MovieNotFoundException, UserNotAllowedException {
         String userToken = "validTokenReviewer";
-        assertArrayEquals(((ArrayList<Clip>) movieManager.getMovie(userToken, (long) 2)).toArray(), new ArrayList<Clip>().toArray());
+        assertArrayEquals(movieManager.getMovie(userToken, (long) 2).toArray(), new ArrayList<Clip>().toArray());
     }
 
     @Test
     public void testAdminAllowed() throws InvalidTokenException, IllegalArgumentException, MovieNotFoundException, UserNotAllowedException {
         String userToken = "validTokenAdmin";
-        assertArrayEquals(((ArrayList<Clip>) movieManager.getMovie(userToken, (long) 2)).toArray(), new ArrayList<Clip>().toArray());
+        assertArrayEquals(movieManager.getMovie(userToken, (long) 2).toArray(), new ArrayList<Clip>().toArray());
+    }
+
+    @Test
+    public void testRolesResolvedOnce() throws InvalidTokenException, IllegalArgumentException, MovieNotFoundException, UserNotAllowedException, RoleNotFoundException {
+        String userToken = "validTokenReviewer";
+        movieManager.getMovie(userToken, (long) 2);
+        movieManager.getMovie(userToken, (long) 2);
+        verify(authenticationHandler, times(1)).isUserInRole(userToken, roleDao.getRoleById(Role.RoleType.REVIEWER.getRole()));
+    }
+
+    @Test
+    public void testMovieLoadedOnce() throws InvalidTokenException, IllegalArgumentException, MovieNotFoundException, UserNotAllowedException {
+        String userToken = "validTokenUser";
+        movieManager.getMovie(userToken, (long) 1);
+        movieManager.getMovie(userToken, (long) 1);
+        verify(movieDao, times(1)).getMovieById((long) 1);
+    }
+
+    @Test
+    public void testClipDataWithPlaybackGrant() throws Exception {
+        PlaybackGrant grant = movieManager.getPlaybackGrant("validTokenUser", grantedMovie());
+        assertEquals(1, grant.getClips().size());
+        reset(authenticationHandler);
+        assertEquals(clipStorage.getClipDataByClipId((long) 1), movieManager.getClipData(grant.getGrant(), (long) 1));
+        assertNotNull(movieManager.getClipChunk(grant.getGrant(), (long) 1, (long) 0, 0));
+        verifyZeroInteractions(authenticationHandler);
+    }
+
+    @Test(expected = InvalidTokenException.class)
+    public void testPlaybackGrantScopedToMovie() throws Exception {
+        PlaybackGrant grant = movieManager.getPlaybackGrant("validTokenUser", grantedMovie());
+        movieManager.getClipData(grant.getGrant(), (long) 2);
+    }
+
+    @Test(expected = InvalidTokenException.class)
+    public void testForgedPlaybackGrant() throws Exception {
+        String grant = movieManager.getPlaybackGrant("validTokenUser", grantedMovie()).getGrant();
+        movieManager.getClipData(grant.replace(".4.1.", ".4.2."), (long) 2);
+    }
+
+    @Test
+    public void testClipDataBatchWithPlaybackGrant() throws Exception {
+        PlaybackGrant grant = movieManager.getPlaybackGrant("validTokenUser", grantedMovie());
+        reset(authenticationHandler);
+        List<ClipDataResult> results = movieManager.getClipDataBatch(grant.getGrant(), Arrays.asList((long) 1));
+        assertEquals(clipStorage.getClipDataByClipId((long) 1), results.get(0).getClipData());
+        verifyZeroInteractions(authenticationHandler);
+    }
+
+    @Test(expected = InvalidTokenException.class)
+    public void testClipDataBatchGrantScopedToMovie() throws Exception {
+        PlaybackGrant grant = movieManager.getPlaybackGrant("validTokenUser", grantedMovie());
+        movieManager.getClipDataBatch(grant.getGrant(), Arrays.asList((long) 1, (long) 2));
+    }
+
+    @Test(expected = UserNotAllowedException.class)
+    public void testNoPlaybackGrantForDisabledMovie() throws Exception {
+        movieManager.getPlaybackGrant("validTokenUser", (long) 2);
+    }
+
+    private Long grantedMovie() throws MovieNotFoundException {
+        Clip clip = mock(Clip.class);
+        when(clip.getId()).thenReturn((long) 1);
+        Movie movie = mock(Movie.class);
+        when(movie.isEnabled()).thenReturn(true);
+        when(movie.getClips()).thenReturn(Arrays.asList(clip));
+        when(movieDao.getMovieById((long) 4)).thenReturn(movie);
+        return (long) 4;
+    }
+
+    @Test
+    public void testGetMoviesPerItemResults() throws InvalidTokenException {
+        List<MovieResult> results = movieManager.getMovies("validTokenUser", Arrays.asList((long) 1, (long) 2, (long) 3));
+        assertEquals(3, results.size());
+        assertNull(results.get(0).getError());
+        assertNotNull(results.get(0).getClips());
+        assertEquals(ItemError.USER_NOT_ALLOWED, results.get(1).getError());
+        assertEquals(ItemError.MOVIE_NOT_FOUND, results.get(2).getError());
+        verify(authenticationHandler, times(1)).validateToken("validTokenUser");
+    }
+
+    @Test(expected = InvalidTokenException.class)
+    public void testGetMoviesBadToken() throws InvalidTokenException {
+        movieManager.getMovies("invalidToken", Arrays.asList((long) 1));
     }
 
     //getClipData tests
@@ -206,6 +331,89 @@ public class MovieManagerImplTest {
         movieManager.getClipData(userToken, clipId);
     }
 
+    @Test
+    public void testGetClipDataValidatesTokenOnce() throws InvalidTokenException {
+        String userToken = "validTokenUser";
+        movieManager.getClipData(userToken, (long) 1);
+        movieManager.getClipData(userToken, (long) 1);
+        verify(authenticationHandler, times(1)).validateToken(userToken);
+    }
+
+    @Test
+    public void testSuccessfulGetClipChunk() throws InvalidTokenException {
+        ClipData clipData = mock(ClipData.class);
+        when(clipData.getBytes()).thenReturn(new byte[]{1, 2, 3, 4, 5});
+        when(clipStorage.getClipDataByClipId((long) 2)).thenReturn(clipData);
+        ClipChunk chunk = movieManager.getClipChunk("validTokenUser", (long) 2, (long) 1, 3);
+        assertArrayEquals(new byte[]{2, 3, 4}, chunk.getBytes());
+        assertEquals(5, chunk.getTotalLength());
+        chunk = movieManager.getClipChunk("validTokenUser", (long) 2, (long) 4, 3);
+        assertArrayEquals(new byte[]{5}, chunk.getBytes());
+        verify(clipStorage, times(1)).getClipDataByClipId((long) 2);
+    }
+
+    @Test
+    public void testSuccessfulGetClipStream() throws Exception {
+        ClipData clipData = mock(ClipData.class);
+        when(clipData.getBytes()).thenReturn(new byte[]{1, 2, 3});
+        when(clipStorage.getClipDataByClipId((long) 2)).thenReturn(clipData);
+        ClipStream stream = movieManager.getClipStream("validTokenUser", (long) 2);
+        assertEquals(3, stream.getLength());
+        InputStream in = stream.getData().getInputStream();
+        assertEquals(1, in.read());
+        assertEquals(2, in.read());
+        assertEquals(3, in.read());
+        assertEquals(-1, in.read());
+        movieManager.getClipStream("validTokenUser", (long) 2);
+        verify(clipStorage, times(1)).getClipDataByClipId((long) 2);
+    }
+
+    @Test
+    public void testHasClipReadsNoPayload() throws Exception {
+        assertTrue(movieManager.hasClip("validTokenUser", (long) 2));
+        verify(clipStorage, never()).getClipDataByClipId((long) 2);
+        assertNull(movieManager.getClipData("validTokenUser", (long) 3));
+        assertFalse(movieManager.hasClip("validTokenUser", (long) 3));
+        verify(clipStorage, times(1)).getClipDataByClipId((long) 3);
+    }
+
+    @Test(expected = InvalidTokenException.class)
+    public void testUnsuccessfulHasClipBadToken() throws InvalidTokenException {
+        movieManager.hasClip("invalidToken", (long) 1);
+    }
+
+    @Test(expected = InvalidTokenException.class)
+    public void testUnsuccessfulGetClipStreamBadToken() throws InvalidTokenException {
+        movieManager.getClipStream("invalidToken", (long) 1);
+    }
+
+    @Test(expected = InvalidTokenException.class)
+    public void testUnsuccessfulGetClipChunkBadToken() throws InvalidTokenException {
+        movieManager.getClipChunk("invalidToken", (long) 1, (long) 0, 10);
+    }
+
+    @Test
+    public void testGetClipDataBatchPerItemResults() throws InvalidTokenException {
+        List<ClipDataResult> results = movieManager.getClipDataBatch("validTokenUser", Arrays.asList((long) 1, (long) 9));
+        assertEquals(clipStorage.getClipDataByClipId((long) 1), results.get(0).getClipData());
+        assertNull(results.get(0).getError());
+        assertEquals(ItemError.CLIP_NOT_FOUND, results.get(1).getError());
+    }
+
+    @Test
+    public void testAdSkippedPastDeadline() throws Exception {
+        assertTrue(movieManager.getMovie("validTokenUser", (long) 1).isEmpty());
+        Long previous = Deadline.begin(0);
+        try {
+            movieManager.getAd("validTokenUser", (long) 1);
+            fail();
+        } catch (NoAdsException e) {
+            verify(adDao, never()).getAllAds();
+        } finally {
+            Deadline.end(previous);
+        }
+    }
+
     //sendActivity tests
     @Test
     public void testSuccessfulUserSendActivity() throws UserNotAllowedException, InvalidTokenException, ValuesInActivityException, InvalidUserException {
@@ -240,6 +448,24 @@ public class MovieManagerImplTest {
         verify(activityDao, times(1)).addActivity(activity);
     }
 
+    @Test
+    public void testSendActivityResolvesCallerOnce() throws UserNotAllowedException, InvalidTokenException, ValuesInActivityException, InvalidUserException {
+        String userToken = "validTokenAdmin";
+        User admin = mock(User.class);
+        when(admin.getEmail()).thenReturn("admin@mail.com");
+        for (int i = 0; i < 3; i++) {
+            Activity activity = mock(Activity.class);
+            when(activity.getUser()).thenReturn(admin);
+            when(activity.getMovieId()).thenReturn((long) 2);
+            when(activity.getPosition()).thenReturn(i);
+            movieManager.sendActivity(userToken, activity);
+        }
+        verify(authenticationHandler, times(1)).validateToken(userToken);
+        verify(authenticationHandler, times(1)).getUserOfToken(userToken);
+        verify(authenticationHandler, never()).authenticate(any(User.class));
+        verify(activityDao, times(3)).addActivity(any(Activity.class));
+    }
+
     @Test(expected = ValuesInActivityException.class)
     public void testUnsuccessfulSendActivityDifferentUsers() throws UserNotAllowedException, InvalidTokenException, ValuesInActivityException {
         String userToken = "validTokenUser";
@@ -332,7 +558,7 @@ public class MovieManagerImplTest {
         Activity activity = mock(Activity.class);
 
         User user = mock(User.class);
-        when(user.getEmail()).thenReturn("user@mail.com");
+        when(user.getEmail()).thenReturn("admin@mail.com");
         when(activity.getUser()).thenReturn(user);
         when(activity.getMovieId()).thenReturn((long) 3);
         when(activity.getPosition()).thenReturn(1);
@@ -341,6 +567,35 @@ public class MovieManagerImplTest {
         verify(activityDao, times(0)).addActivity(activity);
     }
 
+    //getResumePosition tests
+
+    @Test
+    public void testResumePositionOfLatestActivity() throws UserNotAllowedException, InvalidTokenException, ValuesInActivityException {
+        User user = mock(User.class);
+        when(user.getEmail()).thenReturn("user@mail.com");
+        for (int position : new int[]{30, 10}) {
+            Activity activity = mock(Activity.class);
+            when(activity.getUser()).thenReturn(user);
+            when(activity.getMovieId()).thenReturn((long) 1);
+            when(activity.getPosition()).thenReturn(position);
+            when(activity.getTime()).thenReturn((long) 100 + position);
+            movieManager.sendActivity("validTokenUser", activity);
+        }
+        ResumePosition resumePosition = movieManager.getResumePosition("validTokenUser", (long) 1);
+        assertEquals(30, resumePosition.getPosition());
+        assertEquals(130, resumePosition.getTime());
+        assertNull(movieManager.getResumePosition("validTokenAdmin", (long) 1));
+        assertNull(movieManager.getResumePosition("validTokenUser", (long) 2));
+        verify(activityDao, never()).getAllActivities();
+        assertEquals(1, viewingStats.getConcurrentViewers((long) 1));
+        assertEquals(2, viewingStats.getSlidingWindow((long) 1, 60000).getActivities());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsuccessfulGetResumePositionExpiredToken() throws InvalidTokenException {
+        movieManager.getResumePosition("expiredToken", (long) 1);
+    }
+
     //getAd tests
     @Test(expected = NoAdsException.class)
     public void testUnsuccessfulGetAdZeroSizedList() throws NoAdsException, InvalidTokenException {
@@ -377,5 +632,6 @@ public class MovieManagerImplTest {
         ads.add(ad);
         when(adDao.getAllAds()).thenReturn(ads);
         assertEquals(clipStorage.getClipDataByClipId((long) 1), movieManager.getAd(userToken, movieId));
+        assertEquals(1, viewingStats.getSlidingWindow(movieId, 60000).getAdImpressions());
     }
 }
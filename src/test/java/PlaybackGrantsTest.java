@@ -0,0 +1,99 @@
+import edu.umflix.model.Clip;
+import model.PlaybackGrant;
+import org.junit.Test;
+import services.auth.PlaybackGrants;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class PlaybackGrantsTest {
+
+    private static class ClockedGrants extends PlaybackGrants {
+        private long now = 1000;
+
+        private ClockedGrants(String keys) {
+            super(parse(keys), 500);
+        }
+
+        private static Map<String, byte[]> parse(String keys) {
+            Map<String, byte[]> parsed = new LinkedHashMap<String, byte[]>();
+            for (String key : keys.split(","))
+                parsed.put(key.substring(0, key.indexOf(':')), key.substring(key.indexOf(':') + 1).getBytes());
+            return parsed;
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private static List<Clip> clips(long... ids) {
+        List<Clip> clips = new ArrayList<Clip>();
+        for (long id : ids) {
+            Clip clip = mock(Clip.class);
+            when(clip.getId()).thenReturn(id);
+            clips.add(clip);
+        }
+        return clips;
+    }
+
+    @Test
+    public void testGrantCoversClipsOfMovie() {
+        ClockedGrants grants = new ClockedGrants("k1:0123456789abcdef");
+        PlaybackGrant grant = grants.issue((long) 3, clips(10, 11, 110));
+        assertTrue(PlaybackGrants.isGrant(grant.getGrant()));
+        assertEquals(1500, grant.getExpiresAt());
+        assertEquals(PlaybackGrants.Status.VALID, grants.verify(grant.getGrant(), (long) 10));
+        assertEquals(PlaybackGrants.Status.VALID, grants.verify(grant.getGrant(), (long) 110));
+        assertEquals(PlaybackGrants.Status.OUT_OF_SCOPE, grants.verify(grant.getGrant(), (long) 1));
+        assertEquals(2, grants.getVerifiedCount());
+        assertEquals(1, grants.getRejectedCount());
+    }
+
+    @Test
+    public void testGrantExpires() {
+        ClockedGrants grants = new ClockedGrants("k1:0123456789abcdef");
+        String grant = grants.issue((long) 3, clips(10)).getGrant();
+        grants.now = 1500;
+        assertEquals(PlaybackGrants.Status.EXPIRED, grants.verify(grant, (long) 10));
+    }
+
+    @Test
+    public void testTamperedGrantRejected() {
+        ClockedGrants grants = new ClockedGrants("k1:0123456789abcdef");
+        String grant = grants.issue((long) 3, clips(10)).getGrant();
+        assertEquals(PlaybackGrants.Status.INVALID, grants.verify(grant.replace(".1500.", ".9500."), (long) 10));
+        assertEquals(PlaybackGrants.Status.INVALID, grants.verify(grant.replace(".10.", ".11."), (long) 11));
+        assertEquals(PlaybackGrants.Status.INVALID, grants.verify(grant.substring(0, grant.length() - 2), (long) 10));
+        assertEquals(PlaybackGrants.Status.INVALID, grants.verify("pg1.k1", (long) 10));
+        assertEquals(PlaybackGrants.Status.INVALID, grants.verify("validTokenUser", (long) 10));
+    }
+
+    @Test
+    public void testRotatedKeyStillVerifies() {
+        String grant = new ClockedGrants("old:fedcba9876543210").issue((long) 3, clips(10)).getGrant();
+        ClockedGrants rotated = new ClockedGrants("new:0123456789abcdef,old:fedcba9876543210");
+        assertEquals(PlaybackGrants.Status.VALID, rotated.verify(grant, (long) 10));
+        assertTrue(rotated.issue((long) 3, clips(10)).getGrant().startsWith("pg1.new."));
+        assertEquals(PlaybackGrants.Status.INVALID,
+                new ClockedGrants("new:0123456789abcdef").verify(grant, (long) 10));
+    }
+
+    @Test
+    public void testDisabledWithoutKeys() {
+        PlaybackGrants grants = PlaybackGrants.fromSetting(null, 500);
+        assertFalse(grants.isEnabled());
+        assertNull(grants.issue((long) 3, clips(10)).getGrant());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShortKeyRefused() {
+        PlaybackGrants.fromSetting("k1:short", 500);
+    }
+}
@@ -0,0 +1,182 @@
+import edu.umflix.authenticationhandler.exceptions.InvalidTokenException;
+import edu.umflix.model.Activity;
+import edu.umflix.model.Clip;
+import model.ClipChunk;
+import model.ClipStream;
+import model.MovieManager;
+import model.PlaybackGrant;
+import model.ResumePosition;
+import model.exceptions.UserNotAllowedException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import services.rest.RestServlet;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class RestServletTest {
+
+    private MovieManager movieManager;
+    private RestServlet servlet;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private ByteArrayOutputStream body;
+
+    @Before
+    public void getServlet() throws IOException {
+        movieManager = mock(MovieManager.class);
+        servlet = new RestServlet();
+        servlet.setMovieManager(movieManager);
+        request = mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getHeader("Authorization")).thenReturn("Bearer token");
+        response = mock(HttpServletResponse.class);
+        body = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+        });
+    }
+
+    @Test
+    public void testGetMovie() throws Exception {
+        Clip clip = mock(Clip.class);
+        when(clip.getId()).thenReturn((long) 7);
+        when(movieManager.getPlaybackGrant("token", (long) 1))
+                .thenReturn(new PlaybackGrant((long) 1, Arrays.asList(clip, clip), null, 0));
+        when(request.getPathInfo()).thenReturn("/movies/1");
+        servlet.service(request, response);
+        verify(response).setStatus(HttpServletResponse.SC_OK);
+        assertEquals("{\"movieId\":1,\"clips\":[{\"id\":7},{\"id\":7}]}", body.toString("UTF-8"));
+    }
+
+    @Test
+    public void testGetMovieWithGrant() throws Exception {
+        Clip clip = mock(Clip.class);
+        when(clip.getId()).thenReturn((long) 7);
+        when(movieManager.getPlaybackGrant("token", (long) 1))
+                .thenReturn(new PlaybackGrant((long) 1, Arrays.asList(clip), "pg1.k.5.1.7.ab", 5));
+        when(request.getPathInfo()).thenReturn("/movies/1");
+        servlet.service(request, response);
+        assertEquals("{\"movieId\":1,\"grant\":\"pg1.k.5.1.7.ab\",\"grantExpiresAt\":5,\"clips\":[{\"id\":7}]}",
+                body.toString("UTF-8"));
+    }
+
+    @Test
+    public void testGetResumePosition() throws Exception {
+        when(movieManager.getResumePosition("token", (long) 1)).thenReturn(new ResumePosition((long) 1, 42, 1000));
+        when(request.getPathInfo()).thenReturn("/movies/1/position");
+        servlet.service(request, response);
+        verify(response).setStatus(HttpServletResponse.SC_OK);
+        assertEquals("{\"movieId\":1,\"position\":42,\"time\":1000}", body.toString("UTF-8"));
+        when(request.getPathInfo()).thenReturn("/movies/2/position");
+        servlet.service(request, response);
+        verify(response).setStatus(HttpServletResponse.SC_NOT_FOUND);
+    }
+
+    @Test
+    public void testGetClipRawWithEtag() throws Exception {
+        when(movieManager.getClipStream("token", (long) 5)).thenReturn(streamOf(5, new byte[]{1, 2, 3}));
+        when(request.getPathInfo()).thenReturn("/clips/5");
+        servlet.service(request, response);
+        verify(response).setHeader("ETag", "\"clip-5\"");
+        verify(response).setContentLength(3);
+        assertArrayEquals(new byte[]{1, 2, 3}, body.toByteArray());
+    }
+
+    @Test
+    public void testConditionalGetClip() throws Exception {
+        when(movieManager.hasClip("token", (long) 5)).thenReturn(true);
+        when(request.getPathInfo()).thenReturn("/clips/5");
+        when(request.getHeader("If-None-Match")).thenReturn("\"clip-5\"");
+        servlet.service(request, response);
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(movieManager, never()).getClipStream(anyString(), anyLong());
+        verify(movieManager, never()).getClipChunk(anyString(), anyLong(), anyLong(), anyInt());
+        assertEquals(0, body.size());
+    }
+
+    @Test
+    public void testRangeGetClip() throws Exception {
+        when(movieManager.getClipChunk("token", (long) 5, (long) 1, 2)).thenReturn(new ClipChunk((long) 5, 1, 3, new byte[]{2, 3}));
+        when(request.getPathInfo()).thenReturn("/clips/5");
+        when(request.getHeader("Range")).thenReturn("bytes=1-2");
+        servlet.service(request, response);
+        verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        verify(response).setHeader("Content-Range", "bytes 1-2/3");
+        assertArrayEquals(new byte[]{2, 3}, body.toByteArray());
+    }
+
+    @Test
+    public void testSendActivity() throws Exception {
+        when(request.getMethod()).thenReturn("POST");
+        when(request.getPathInfo()).thenReturn("/activities");
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(
+                "{\"movieId\": 3, \"position\": 120, \"time\": 1000, \"email\": \"user@umflix.edu\"}")));
+        servlet.service(request, response);
+        ArgumentCaptor<Activity> activity = ArgumentCaptor.forClass(Activity.class);
+        verify(movieManager).sendActivity(eq("token"), activity.capture());
+        assertEquals(Long.valueOf(3), activity.getValue().getMovieId());
+        assertEquals(120, activity.getValue().getPosition());
+        assertEquals("user@umflix.edu", activity.getValue().getUser().getEmail());
+        verify(response).setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+
+    @Test
+    public void testErrorsMapped() throws Exception {
+        when(request.getPathInfo()).thenReturn("/movies/1");
+        when(movieManager.getPlaybackGrant("token", (long) 1)).thenThrow(UserNotAllowedException.class);
+        servlet.service(request, response);
+        verify(response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+
+        reset(response);
+        when(response.getOutputStream()).thenReturn(mock(ServletOutputStream.class));
+        doThrow(InvalidTokenException.class).when(movieManager).getPlaybackGrant("token", (long) 1);
+        servlet.service(request, response);
+        verify(response).setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+
+        reset(response);
+        when(response.getOutputStream()).thenReturn(mock(ServletOutputStream.class));
+        when(request.getHeader("Authorization")).thenReturn(null);
+        servlet.service(request, response);
+        verify(response).setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+        verify(response).setHeader("WWW-Authenticate", "Bearer");
+    }
+
+    private static ClipStream streamOf(long clipId, final byte[] bytes) {
+        return new ClipStream(clipId, bytes.length, new DataHandler(new DataSource() {
+            public InputStream getInputStream() {
+                return new ByteArrayInputStream(bytes);
+            }
+
+            public OutputStream getOutputStream() throws IOException {
+                throw new IOException("Read only");
+            }
+
+            public String getContentType() {
+                return "application/octet-stream";
+            }
+
+            public String getName() {
+                return "clip";
+            }
+        }));
+    }
+}
@@ -0,0 +1,134 @@
+import edu.umflix.model.Activity;
+import edu.umflix.model.User;
+import edu.umflix.persistence.ActivityDao;
+import model.ResumePosition;
+import org.junit.Before;
+import org.junit.Test;
+import services.activity.ResumeIndex;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ResumeIndexTest {
+
+    private ResumeIndex resumeIndex;
+
+    @Before
+    public void getIndex() {
+        resumeIndex = new ResumeIndex(1000, 4);
+    }
+
+    private Activity activity(String email, long movieId, int position, long time) {
+        User user = mock(User.class);
+        when(user.getEmail()).thenReturn(email);
+        Activity activity = mock(Activity.class);
+        when(activity.getUser()).thenReturn(user);
+        when(activity.getMovieId()).thenReturn(movieId);
+        when(activity.getPosition()).thenReturn(position);
+        when(activity.getTime()).thenReturn(time);
+        return activity;
+    }
+
+    @Test
+    public void testLatestActivityWins() {
+        assertTrue(resumeIndex.record(activity("user@mail.com", 1, 10, 100)));
+        assertTrue(resumeIndex.record(activity("user@mail.com", 1, 20, 110)));
+        assertFalse(resumeIndex.record(activity("user@mail.com", 1, 5, 90)));
+        ResumePosition position = resumeIndex.get("user@mail.com", (long) 1);
+        assertEquals(20, position.getPosition());
+        assertEquals(110, position.getTime());
+        assertEquals(Long.valueOf(1), position.getMovieId());
+        assertEquals(1, resumeIndex.size());
+    }
+
+    @Test
+    public void testPositionsKeyedByUserAndMovie() {
+        resumeIndex.record(activity("user@mail.com", 1, 10, 100));
+        resumeIndex.record(activity("user@mail.com", 2, 20, 100));
+        resumeIndex.record(activity("admin@mail.com", 1, 30, 100));
+        assertEquals(10, resumeIndex.get("user@mail.com", (long) 1).getPosition());
+        assertEquals(20, resumeIndex.get("user@mail.com", (long) 2).getPosition());
+        assertEquals(30, resumeIndex.get("admin@mail.com", (long) 1).getPosition());
+        assertNull(resumeIndex.get("admin@mail.com", (long) 2));
+        assertNull(resumeIndex.get("other@mail.com", (long) 1));
+    }
+
+    @Test
+    public void testGrowsPastInitialCapacity() {
+        for (int i = 0; i < 500; i++)
+            resumeIndex.record(activity("user" + (i % 7) + "@mail.com", i, i, i));
+        assertEquals(500, resumeIndex.size());
+        for (int i = 0; i < 500; i++)
+            assertEquals(i, resumeIndex.get("user" + (i % 7) + "@mail.com", (long) i).getPosition());
+    }
+
+    @Test
+    public void testFullIndexStillUpdatesKnownPairs() {
+        resumeIndex = new ResumeIndex(1, 1);
+        assertTrue(resumeIndex.record(activity("user@mail.com", 1, 10, 100)));
+        assertFalse(resumeIndex.record(activity("user@mail.com", 2, 10, 100)));
+        assertTrue(resumeIndex.record(activity("user@mail.com", 1, 20, 110)));
+        assertEquals(20, resumeIndex.get("user@mail.com", (long) 1).getPosition());
+        assertEquals(1, resumeIndex.getRefusedCount());
+    }
+
+    @Test
+    public void testRefusedUserNotInterned() {
+        resumeIndex = new ResumeIndex(1, 1);
+        assertTrue(resumeIndex.record(activity("user@mail.com", 1, 10, 100)));
+        assertFalse(resumeIndex.record(activity("other@mail.com", 1, 10, 100)));
+        assertEquals(1, resumeIndex.getUserCount());
+        assertNull(resumeIndex.get("other@mail.com", (long) 1));
+    }
+
+    @Test
+    public void testRebuildMergesWithLiveActivities() {
+        resumeIndex.record(activity("user@mail.com", 1, 50, 200));
+        List<Activity> recorded = Arrays.asList(
+                activity("user@mail.com", 1, 10, 100),
+                activity("user@mail.com", 2, 20, 100));
+        ActivityDao activityDao = mock(ActivityDao.class);
+        when(activityDao.getAllActivities()).thenReturn(recorded);
+        assertFalse(resumeIndex.isLoaded());
+        assertEquals(2, resumeIndex.rebuild(activityDao));
+        assertTrue(resumeIndex.isLoaded());
+        assertEquals(50, resumeIndex.get("user@mail.com", (long) 1).getPosition());
+        assertEquals(20, resumeIndex.get("user@mail.com", (long) 2).getPosition());
+    }
+
+    @Test
+    public void testRebuildRetriedInBackground() throws InterruptedException {
+        ActivityDao activityDao = mock(ActivityDao.class);
+        when(activityDao.getAllActivities()).thenThrow(new RuntimeException("connection refused"))
+                .thenReturn(Arrays.asList(activity("user@mail.com", 1, 10, 100)));
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            resumeIndex.rebuildInBackground(activityDao, executor, 100, 10, 100);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!resumeIndex.isLoaded() && System.currentTimeMillis() < deadline)
+                Thread.sleep(5);
+            assertTrue(resumeIndex.isLoaded());
+            assertEquals(10, resumeIndex.get("user@mail.com", (long) 1).getPosition());
+            verify(activityDao, times(2)).getAllActivities();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRebuildStopsAtCap() {
+        ActivityDao activityDao = mock(ActivityDao.class);
+        List<Activity> recorded = Arrays.asList(
+                activity("user@mail.com", 1, 10, 100),
+                activity("user@mail.com", 2, 20, 100));
+        when(activityDao.getAllActivities()).thenReturn(recorded);
+        assertEquals(1, resumeIndex.rebuild(activityDao, 1));
+        assertTrue(resumeIndex.isLoaded());
+        assertEquals(1, resumeIndex.size());
+    }
+}
@@ -0,0 +1,76 @@
+import edu.umflix.authenticationhandler.AuthenticationHandler;
+import edu.umflix.authenticationhandler.exceptions.InvalidTokenException;
+import edu.umflix.exceptions.RoleNotFoundException;
+import edu.umflix.model.Role;
+import edu.umflix.persistence.RoleDao;
+import org.junit.Before;
+import org.junit.Test;
+import services.auth.RoleResolver;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class RoleResolverTest {
+
+    private RoleDao roleDao;
+    private AuthenticationHandler authenticationHandler;
+    private RoleResolver roleResolver;
+
+    @Before
+    public void getResolver() throws RoleNotFoundException, InvalidTokenException {
+        roleDao = mock(RoleDao.class);
+        authenticationHandler = mock(AuthenticationHandler.class);
+        for (Role.RoleType roleType : Role.RoleType.values())
+            when(roleDao.getRoleById(roleType.getRole())).thenReturn(mock(Role.class));
+        when(authenticationHandler.isUserInRole("reviewerToken", roleDao.getRoleById(Role.RoleType.REVIEWER.getRole()))).thenReturn(true);
+        when(authenticationHandler.isUserInRole("reviewerToken", roleDao.getRoleById(Role.RoleType.USER.getRole()))).thenReturn(true);
+        roleResolver = new RoleResolver(10, 60000);
+    }
+
+    @Test
+    public void testResolveRoleSet() throws InvalidTokenException {
+        int roles = roleResolver.resolve("reviewerToken", roleDao, authenticationHandler);
+        assertTrue(RoleResolver.hasRole(roles, Role.RoleType.REVIEWER));
+        assertTrue(RoleResolver.hasRole(roles, Role.RoleType.USER));
+        assertFalse(RoleResolver.hasRole(roles, Role.RoleType.ADMINISTRATOR));
+        assertTrue(RoleResolver.hasAnyRole(roles, RoleResolver.maskOf(Role.RoleType.ADMINISTRATOR, Role.RoleType.REVIEWER)));
+        assertFalse(RoleResolver.hasAnyRole(roles, RoleResolver.maskOf(Role.RoleType.AD_PROVIDER)));
+    }
+
+    @Test
+    public void testCatalogueAndRolesLoadedOnce() throws InvalidTokenException, RoleNotFoundException {
+        roleResolver.resolve("reviewerToken", roleDao, authenticationHandler);
+        roleResolver.resolve("reviewerToken", roleDao, authenticationHandler);
+        roleResolver.resolve("otherToken", roleDao, authenticationHandler);
+        verify(roleDao, times(2)).getRoleById(Role.RoleType.REVIEWER.getRole()); //once by the test setup, once by the resolver
+        verify(authenticationHandler, times(Role.RoleType.values().length)).isUserInRole(eq("reviewerToken"), any(Role.class));
+        assertEquals(1, roleResolver.getHitCount());
+        assertEquals(2, roleResolver.getMissCount());
+    }
+
+    @Test
+    public void testInvalidate() throws InvalidTokenException {
+        roleResolver.resolve("reviewerToken", roleDao, authenticationHandler);
+        roleResolver.invalidate("reviewerToken");
+        roleResolver.resolve("reviewerToken", roleDao, authenticationHandler);
+        verify(authenticationHandler, times(2 * Role.RoleType.values().length)).isUserInRole(eq("reviewerToken"), any(Role.class));
+    }
+
+    @Test
+    public void testExpiredRoleSetResolvedAgain() throws InvalidTokenException {
+        final long[] now = {1000};
+        roleResolver = new RoleResolver(10, 60000) {
+            @Override
+            protected long currentTimeMillis() {
+                return now[0];
+            }
+        };
+        roleResolver.resolve("reviewerToken", roleDao, authenticationHandler);
+        now[0] += 59999;
+        roleResolver.resolve("reviewerToken", roleDao, authenticationHandler);
+        now[0] += 1;
+        roleResolver.resolve("reviewerToken", roleDao, authenticationHandler);
+        assertEquals(1, roleResolver.getHitCount());
+        assertEquals(2, roleResolver.getMissCount());
+    }
+}
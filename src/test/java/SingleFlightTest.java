@@ -0,0 +1,136 @@
+import org.junit.Test;
+import services.cache.SingleFlight;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testConcurrentLoadsShared() throws Exception {
+        final SingleFlight<Long, String> singleFlight = new SingleFlight<Long, String>(5000);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final Callable<String> loader = new Callable<String>() {
+            public String call() throws Exception {
+                loads.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "movie";
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        Future<String> leader = executor.submit(new Callable<String>() {
+            public String call() throws Exception {
+                return singleFlight.load((long) 1, loader);
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<String> follower = executor.submit(new Callable<String>() {
+            public String call() throws Exception {
+                return singleFlight.load((long) 1, loader);
+            }
+        });
+        awaitSharedLoad(singleFlight);
+        release.countDown();
+        assertEquals("movie", leader.get(5, TimeUnit.SECONDS));
+        assertEquals("movie", follower.get(5, TimeUnit.SECONDS));
+        assertEquals(1, loads.get());
+        assertEquals(1, singleFlight.getLoadCount());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testFailureReachesEveryWaiter() throws Exception {
+        final SingleFlight<Long, String> singleFlight = new SingleFlight<Long, String>(5000);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> loader = new Callable<String>() {
+            public String call() throws Exception {
+                started.countDown();
+                release.await();
+                throw new IllegalArgumentException("storage down");
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Callable<String> call = new Callable<String>() {
+            public String call() throws Exception {
+                return singleFlight.load((long) 1, loader);
+            }
+        };
+        Future<String> leader = executor.submit(call);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<String> follower = executor.submit(call);
+        awaitSharedLoad(singleFlight);
+        release.countDown();
+        for (Future<String> result : new Future[]{leader, follower}) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ExecutionException);
+                assertTrue(e.getCause().getCause() instanceof IllegalArgumentException);
+            }
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testWaiterTimesOut() throws Exception {
+        final SingleFlight<Long, String> singleFlight = new SingleFlight<Long, String>(10);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<String> leader = executor.submit(new Callable<String>() {
+            public String call() throws Exception {
+                return singleFlight.load((long) 1, new Callable<String>() {
+                    public String call() throws Exception {
+                        started.countDown();
+                        release.await();
+                        return "movie";
+                    }
+                });
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        try {
+            singleFlight.load((long) 1, new Callable<String>() {
+                public String call() {
+                    return "other";
+                }
+            });
+            fail();
+        } catch (TimeoutException e) {
+            assertEquals(1, singleFlight.getTimeoutCount());
+        }
+        release.countDown();
+        assertEquals("movie", leader.get(5, TimeUnit.SECONDS));
+        assertEquals("other", singleFlight.load((long) 1, new Callable<String>() {
+            public String call() {
+                return "other";
+            }
+        }));
+        executor.shutdown();
+    }
+
+    /**
+     * Waits for a second caller to join the load in progress, failing the test if it does not within 5 seconds
+     */
+    private static void awaitSharedLoad(SingleFlight<?, ?> singleFlight) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (singleFlight.getSharedCount() == 0) {
+            assertTrue("the second caller did not join the load", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
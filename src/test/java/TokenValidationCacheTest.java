@@ -0,0 +1,82 @@
+import edu.umflix.authenticationhandler.AuthenticationHandler;
+import edu.umflix.authenticationhandler.exceptions.InvalidTokenException;
+import org.junit.Before;
+import org.junit.Test;
+import services.auth.TokenValidationCache;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class TokenValidationCacheTest {
+
+    private AuthenticationHandler authenticationHandler;
+    private long now;
+    private TokenValidationCache cache;
+
+    @Before
+    public void getCache() throws InvalidTokenException {
+        authenticationHandler = mock(AuthenticationHandler.class);
+        when(authenticationHandler.validateToken("validToken")).thenReturn(true);
+        when(authenticationHandler.validateToken("expiredToken")).thenReturn(false);
+        when(authenticationHandler.validateToken("invalidToken")).thenThrow(InvalidTokenException.class);
+        now = 1000;
+        cache = new TokenValidationCache(2, 100, 10) {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void testValidTokenCachedUntilTtl() throws InvalidTokenException {
+        assertTrue(cache.validate("validToken", authenticationHandler));
+        now += 99;
+        assertTrue(cache.validate("validToken", authenticationHandler));
+        verify(authenticationHandler, times(1)).validateToken("validToken");
+        now += 1;
+        assertTrue(cache.validate("validToken", authenticationHandler));
+        verify(authenticationHandler, times(2)).validateToken("validToken");
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testExpiredTokenNegativelyCached() throws InvalidTokenException {
+        assertFalse(cache.validate("expiredToken", authenticationHandler));
+        assertFalse(cache.validate("expiredToken", authenticationHandler));
+        verify(authenticationHandler, times(1)).validateToken("expiredToken");
+        now += 10;
+        assertFalse(cache.validate("expiredToken", authenticationHandler));
+        verify(authenticationHandler, times(2)).validateToken("expiredToken");
+    }
+
+    @Test
+    public void testInvalidTokenNegativelyCached() throws InvalidTokenException {
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.validate("invalidToken", authenticationHandler);
+                fail();
+            } catch (InvalidTokenException e) {
+                //expected
+            }
+        }
+        verify(authenticationHandler, times(1)).validateToken("invalidToken");
+    }
+
+    @Test
+    public void testInvalidate() throws InvalidTokenException {
+        cache.validate("validToken", authenticationHandler);
+        cache.invalidate("validToken");
+        cache.validate("validToken", authenticationHandler);
+        verify(authenticationHandler, times(2)).validateToken("validToken");
+    }
+
+    @Test
+    public void testBounded() throws InvalidTokenException {
+        cache.validate("validToken", authenticationHandler);
+        cache.validate("expiredToken", authenticationHandler);
+        cache.validate("otherToken", authenticationHandler);
+        assertTrue(cache.size() <= 2);
+    }
+}
@@ -0,0 +1,75 @@
+import org.junit.Test;
+import services.trace.Phase;
+import services.trace.Trace;
+import services.trace.Tracer;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class TracerTest {
+
+    private static class RecordingTracer extends Tracer {
+        private final List<Trace> appended = new CopyOnWriteArrayList<Trace>();
+
+        private RecordingTracer(int sampleOneIn) {
+            super(sampleOneIn, 10);
+        }
+
+        @Override
+        protected void append(Trace trace) {
+            appended.add(trace);
+        }
+    }
+
+    @Test
+    public void testDisabledTracesNothing() {
+        RecordingTracer tracer = new RecordingTracer(0);
+        Trace trace = tracer.start("getMovie");
+        assertSame(Trace.DISABLED, trace);
+        trace.begin(Phase.TOKEN_VALIDATION);
+        trace.end(Phase.TOKEN_VALIDATION);
+        tracer.finish(trace);
+        tracer.shutdown();
+        assertTrue(tracer.appended.isEmpty());
+        assertEquals(0, tracer.getSampledCount());
+    }
+
+    @Test
+    public void testSpansRecorded() throws InterruptedException {
+        RecordingTracer tracer = new RecordingTracer(1);
+        Trace trace = tracer.start("getMovie");
+        trace.begin(Phase.TOKEN_VALIDATION);
+        Thread.sleep(2);
+        trace.end(Phase.TOKEN_VALIDATION);
+        trace.begin(Phase.DAO_FETCH);
+        tracer.finish(trace); //the request failed while fetching
+        tracer.shutdown();
+        assertEquals(1, tracer.appended.size());
+        assertTrue(trace.getNanos(Phase.TOKEN_VALIDATION) >= 2000000);
+        assertEquals(0, trace.getNanos(Phase.STORAGE_FETCH));
+        assertEquals(Phase.DAO_FETCH, trace.getFailedPhase());
+        assertTrue(trace.getTotalNanos() >= trace.getNanos(Phase.TOKEN_VALIDATION));
+        assertTrue(trace.format().startsWith("op=getMovie total_us="));
+        assertTrue(trace.format().endsWith(" failed_in=dao_fetch"));
+    }
+
+    @Test
+    public void testFullQueueDrops() {
+        Tracer tracer = new Tracer(1, 1) {
+            @Override
+            protected void append(Trace trace) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        for (int i = 0; i < 10; i++)
+            tracer.finish(tracer.start("getClipData"));
+        assertTrue(tracer.getDroppedCount() > 0);
+        assertEquals(10, tracer.getSampledCount());
+    }
+}
@@ -0,0 +1,108 @@
+import edu.umflix.model.Activity;
+import edu.umflix.model.User;
+import org.junit.Before;
+import org.junit.Test;
+import services.stats.ViewingStats;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ViewingStatsTest {
+
+    private long now;
+    private ViewingStats viewingStats;
+
+    @Before
+    public void getStats() {
+        now = 600000;
+        viewingStats = new ViewingStats(60000, 10, 120000, 12, 8, 100) {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    private Activity activity(String email, long movieId) {
+        User user = mock(User.class);
+        when(user.getEmail()).thenReturn(email);
+        Activity activity = mock(Activity.class);
+        when(activity.getUser()).thenReturn(user);
+        when(activity.getMovieId()).thenReturn(movieId);
+        return activity;
+    }
+
+    @Test
+    public void testTumblingWindows() {
+        viewingStats.recordActivity(activity("a@mail.com", 1));
+        viewingStats.recordActivity(activity("a@mail.com", 1));
+        viewingStats.recordAdImpression((long) 1);
+        now += 60000;
+        viewingStats.recordActivity(activity("b@mail.com", 2));
+        viewingStats.recordActivity(activity("c@mail.com", 2));
+        List<ViewingStats.Window> windows = viewingStats.getTumblingWindows(null, 3);
+        assertEquals(3, windows.size());
+        assertEquals(0, windows.get(0).getActivities());
+        assertEquals(600000, windows.get(1).getStart());
+        assertEquals(2, windows.get(1).getActivities());
+        assertEquals(1, windows.get(1).getViewers());
+        assertEquals(1, windows.get(1).getAdImpressions());
+        assertEquals(2, windows.get(2).getActivities());
+        assertEquals(2, windows.get(2).getViewers());
+        List<ViewingStats.Window> movie = viewingStats.getTumblingWindows((long) 2, 2);
+        assertEquals(0, movie.get(0).getViewers());
+        assertEquals(2, movie.get(1).getViewers());
+    }
+
+    @Test
+    public void testConcurrentViewersSlide() {
+        viewingStats.recordActivity(activity("a@mail.com", 1));
+        now += 60000;
+        viewingStats.recordActivity(activity("a@mail.com", 1));
+        viewingStats.recordActivity(activity("b@mail.com", 1));
+        assertEquals(2, viewingStats.getConcurrentViewers());
+        assertEquals(2, viewingStats.getConcurrentViewers((long) 1));
+        assertEquals(3, viewingStats.getSlidingWindow(null, 120000).getActivities());
+        now += 180000;
+        assertEquals(0, viewingStats.getConcurrentViewers());
+    }
+
+    @Test
+    public void testOldBucketsReplaced() {
+        viewingStats.recordActivity(activity("a@mail.com", 1));
+        now += 10 * 60000;
+        viewingStats.recordActivity(activity("b@mail.com", 1));
+        List<ViewingStats.Window> windows = viewingStats.getTumblingWindows(null, 20);
+        assertEquals(10, windows.size());
+        long activities = 0;
+        for (ViewingStats.Window window : windows)
+            activities += window.getActivities();
+        assertEquals(1, activities);
+    }
+
+    @Test
+    public void testTopMovies() {
+        for (int i = 0; i < 5; i++)
+            viewingStats.recordActivity(activity("user" + i + "@mail.com", 2));
+        viewingStats.recordActivity(activity("user0@mail.com", 1));
+        for (int i = 0; i < 3; i++)
+            viewingStats.recordActivity(activity("user" + i + "@mail.com", 3));
+        List<ViewingStats.Window> top = viewingStats.getTopMovies(2, 120000);
+        assertEquals(2, top.size());
+        assertEquals(Long.valueOf(2), top.get(0).getMovieId());
+        assertEquals(5, top.get(0).getViewers());
+        assertEquals(Long.valueOf(3), top.get(1).getMovieId());
+    }
+
+    @Test
+    public void testMoviesPerBucketBounded() {
+        viewingStats = new ViewingStats(60000, 10, 120000, 12, 8, 1);
+        viewingStats.recordActivity(activity("a@mail.com", 1));
+        viewingStats.recordActivity(activity("a@mail.com", 2));
+        assertEquals(2, viewingStats.getSlidingWindow(null, 60000).getActivities());
+        assertEquals(0, viewingStats.getSlidingWindow((long) 2, 60000).getActivities());
+        assertEquals(1, viewingStats.getUntrackedCount());
+    }
+}